@@ -0,0 +1,14 @@
+package org.realityforge.spydle;
+
+/**
+ * The interface implemented by sources whose polls may block on I/O that is not aborted by interrupting
+ * the polling thread, such as socket reads performed by JDBC drivers and RMI.
+ */
+public interface Abortable
+{
+  /**
+   * Abort any poll in progress so that it fails promptly. Invoked from a shared timer thread when a poll
+   * exceeds its timeout, so the implementation must not block and releases resources in the background.
+   */
+  void abort();
+}
@@ -0,0 +1,17 @@
+package org.realityforge.spydle;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The interface implemented by sources, publishers and sinks that report metrics describing their
+ * own operation, such as the cost of the most recent poll or the health of a connection. The runtime
+ * reports these alongside its own metrics.
+ */
+public interface Instrumented
+{
+  /**
+   * @return metrics describing the operation of the component.
+   */
+  @Nonnull
+  MetricValueSet getStatistics();
+}
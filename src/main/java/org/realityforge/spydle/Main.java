@@ -15,6 +15,7 @@ public final class Main
   private static final int HELP_OPT = 1;
   private static final int VERBOSE_OPT = 'v';
   private static final int CONFIG_DIRECTORY_CONFIG_OPT = 'd';
+  private static final int TIMING_WHEEL_OPT = 'w';
 
   private static final CLOptionDescriptor[] OPTIONS = new CLOptionDescriptor[]{
     new CLOptionDescriptor( "help",
@@ -29,11 +30,16 @@ public final class Main
                             CLOptionDescriptor.ARGUMENT_REQUIRED,
                             CONFIG_DIRECTORY_CONFIG_OPT,
                             "the directory in which configuration is read from. Defaults to " + DEFAULT_CONFIG_DIRECTORY ),
+    new CLOptionDescriptor( "timing-wheel",
+                            CLOptionDescriptor.ARGUMENT_DISALLOWED,
+                            TIMING_WHEEL_OPT,
+                            "schedule sources using a hierarchical timing wheel. Suited to large numbers of sources." ),
   };
 
   private static final int ERROR_PARSING_ARGS_EXIT_CODE = 1;
 
   private static boolean c_verbose;
+  private static boolean c_timingWheel;
   private static File c_configDirectory = new File( DEFAULT_CONFIG_DIRECTORY ).getAbsoluteFile();
 
   public static void main( final String[] args )
@@ -45,25 +51,20 @@ public final class Main
       return;
     }
 
-    final SpydleRuntime runtime = new SpydleRuntime();
+    final SpydleRuntime runtime = new SpydleRuntime( c_timingWheel );
 
     runtime.start( c_configDirectory );
 
-    //noinspection InfiniteLoopStatement
-    while( true )
+    Runtime.getRuntime().addShutdownHook( new Thread( "Spydle-Shutdown" )
     {
-      final long sleepTime = runtime.tick();
-      try
-      {
-        Thread.sleep( sleepTime );
-      }
-      catch( final InterruptedException ie )
+      @Override
+      public void run()
       {
-        //Ignored
+        runtime.stop();
       }
-    }
-    //runtime.stop();
-    //System.exit( SUCCESS_EXIT_CODE );
+    } );
+
+    runtime.join();
   }
 
   private static boolean processOptions( final String[] args )
@@ -99,6 +100,11 @@ public final class Main
           c_verbose = true;
           break;
         }
+        case TIMING_WHEEL_OPT:
+        {
+          c_timingWheel = true;
+          break;
+        }
         case HELP_OPT:
         {
           printUsage();
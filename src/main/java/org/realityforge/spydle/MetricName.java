@@ -0,0 +1,162 @@
+package org.realityforge.spydle;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+
+/**
+ * An interned metric name. Each distinct name is represented by a single instance
+ * that caches the encoded form of the name so that sinks need not re-encode it.
+ *
+ * <p>The registry only weakly references the names, so the names of metrics that are
+ * no longer produced are removed once the sources and sinks have released them. The id
+ * of a removed name is reused by later names, so ids are unique among the live names
+ * and remain small enough to index tables.</p>
+ */
+public final class MetricName
+{
+  private static final Charset US_ASCII = Charset.forName( "US-ASCII" );
+  private static final ConcurrentHashMap<String, Entry> c_registry = new ConcurrentHashMap<>();
+  private static final ReferenceQueue<MetricName> c_collected = new ReferenceQueue<>();
+  private static final ConcurrentLinkedQueue<Integer> c_freeIds = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger c_nextId = new AtomicInteger();
+
+  private final int _id;
+  @Nonnull
+  private final String _name;
+  @Nonnull
+  private final byte[] _encoded;
+
+  private MetricName( final int id, @Nonnull final String name )
+  {
+    _id = id;
+    _name = name;
+    _encoded = name.getBytes( US_ASCII );
+  }
+
+  /**
+   * Return the canonical instance for the specified name, creating it if necessary.
+   */
+  @Nonnull
+  public static MetricName intern( @Nonnull final String name )
+  {
+    final Entry existing = c_registry.get( name );
+    if( null != existing )
+    {
+      final MetricName metricName = existing.get();
+      if( null != metricName )
+      {
+        return metricName;
+      }
+    }
+    purge();
+    final MetricName candidate = new MetricName( allocateId(), name );
+    final Entry entry = new Entry( candidate );
+    while( true )
+    {
+      final Entry current = c_registry.putIfAbsent( name, entry );
+      if( null == current )
+      {
+        return candidate;
+      }
+      final MetricName raced = current.get();
+      if( null != raced )
+      {
+        // Another thread interned the name first so the candidate id is returned without enqueuing the entry
+        entry.clear();
+        c_freeIds.offer( candidate._id );
+        return raced;
+      }
+      else if( c_registry.replace( name, current, entry ) )
+      {
+        return candidate;
+      }
+    }
+  }
+
+  /**
+   * @return the number of distinct names in the registry, including names that have been
+   * collected but not yet removed.
+   */
+  public static int getInternedCount()
+  {
+    purge();
+    return c_registry.size();
+  }
+
+  /**
+   * @return one greater than the largest id that has been allocated.
+   */
+  static int getIdLimit()
+  {
+    return c_nextId.get();
+  }
+
+  /**
+   * @return an id unique to the name among the names that are currently interned.
+   */
+  public int getId()
+  {
+    return _id;
+  }
+
+  @Nonnull
+  public String getName()
+  {
+    return _name;
+  }
+
+  /**
+   * @return the name encoded as US-ASCII. The array is shared and must not be modified.
+   */
+  @Nonnull
+  public byte[] getEncoded()
+  {
+    return _encoded;
+  }
+
+  @Override
+  public String toString()
+  {
+    return _name;
+  }
+
+  private static int allocateId()
+  {
+    final Integer id = c_freeIds.poll();
+    return null != id ? id : c_nextId.getAndIncrement();
+  }
+
+  /**
+   * Remove the entries of the names that have been collected and release their ids.
+   */
+  private static void purge()
+  {
+    Entry entry;
+    while( null != ( entry = (Entry) c_collected.poll() ) )
+    {
+      // The entry may already have been replaced by a new instance of the name
+      c_registry.remove( entry._name, entry );
+      c_freeIds.offer( entry._id );
+    }
+  }
+
+  private static final class Entry
+    extends WeakReference<MetricName>
+  {
+    @Nonnull
+    private final String _name;
+    private final int _id;
+
+    Entry( @Nonnull final MetricName name )
+    {
+      super( name, c_collected );
+      _name = name._name;
+      _id = name._id;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package org.realityforge.spydle;
+
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Cache of names generated by a probe, keyed on the probe specific context
+ * (i.e. an ObjectName or a key column value) and the element within that context
+ * (i.e. an attribute or column name). Used so that steady state polls can
+ * look up names rather than generating them.
+ *
+ * <p>The cache holds two generations of contexts. Sweeping discards the older generation,
+ * so the names of a context that has not been looked up since the previous sweep, such
+ * as an MBean that has been unregistered, are released rather than retained forever.</p>
+ */
+public final class MetricNameCache
+{
+  // ConcurrentHashMap does not support null keys so null contexts are stored under this key
+  private static final Object NULL_CONTEXT = new Object();
+
+  private volatile ConcurrentHashMap<Object, ConcurrentHashMap<String, MetricName>> _names = new ConcurrentHashMap<>();
+  // Contexts that have not been looked up since the last sweep
+  private volatile ConcurrentHashMap<Object, ConcurrentHashMap<String, MetricName>> _previous =
+    new ConcurrentHashMap<>();
+
+  @Nullable
+  public MetricName get( @Nullable final Object context, @Nonnull final String element )
+  {
+    final Object key = null == context ? NULL_CONTEXT : context;
+    ConcurrentHashMap<String, MetricName> names = _names.get( key );
+    if( null == names )
+    {
+      names = _previous.remove( key );
+      if( null == names )
+      {
+        return null;
+      }
+      final ConcurrentHashMap<String, MetricName> existing = _names.putIfAbsent( key, names );
+      if( null != existing )
+      {
+        names = existing;
+      }
+    }
+    return names.get( element );
+  }
+
+  public void put( @Nullable final Object context, @Nonnull final String element, @Nonnull final MetricName name )
+  {
+    final Object key = null == context ? NULL_CONTEXT : context;
+    ConcurrentHashMap<String, MetricName> names = _names.get( key );
+    if( null == names )
+    {
+      final ConcurrentHashMap<String, MetricName> candidate = new ConcurrentHashMap<>();
+      names = _names.putIfAbsent( key, candidate );
+      if( null == names )
+      {
+        names = candidate;
+      }
+    }
+    names.put( element, name );
+  }
+
+  /**
+   * Discard the contexts that have not been looked up since the previous sweep.
+   * Expected to be invoked once per poll so that every live context is looked up between sweeps.
+   */
+  public synchronized void sweep()
+  {
+    _previous = _names;
+    _names = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * @return the number of contexts in the cache.
+   */
+  public int size()
+  {
+    return _names.size() + _previous.size();
+  }
+}
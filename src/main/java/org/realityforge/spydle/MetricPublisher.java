@@ -0,0 +1,19 @@
+package org.realityforge.spydle;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The interface implemented by components that generate metric values as events occur rather than when polled.
+ * A publisher that implements Closeable is closed when it is deregistered.
+ */
+public interface MetricPublisher
+{
+  /**
+   * Start publishing metrics. Invoked once when the publisher is registered.
+   * Metrics may be passed to the sink from any thread until the publisher is closed.
+   *
+   * @param sink the sink that routes published metrics to the registered sinks.
+   */
+  void start( @Nonnull MetricSink sink )
+    throws Exception;
+}
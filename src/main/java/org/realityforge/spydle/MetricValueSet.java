@@ -1,23 +1,99 @@
 package org.realityforge.spydle;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * A set of metrics collected at a single point in time.
+ * The values are stored in columns so that they can be accessed by index without boxing.
  */
 public class MetricValueSet
 {
-  private final Collection<MetricValue> _metrics;
+  public static final byte TYPE_LONG = 0;
+  public static final byte TYPE_DOUBLE = 1;
+
+  private final int _size;
+  private final MetricName[] _names;
+  private final byte[] _types;
+  private final long[] _longValues;
+  private final double[] _doubleValues;
   private final long _collectedAt;
+  // Lazily created view of metrics as MetricValue instances
+  private volatile Collection<MetricValue> _metrics;
+  // Lazily created values derived from the set, such as encoded payloads, that are shared by the sinks
+  private volatile ConcurrentHashMap<Object, Object> _attachments;
+
+  /**
+   * Create a set from columns. The arrays are not copied and must not be modified after construction.
+   * The value of an element is read from the longValues or doubleValues array according to its type.
+   */
+  public MetricValueSet( @Nonnull final MetricName[] names,
+                         @Nonnull final byte[] types,
+                         @Nonnull final long[] longValues,
+                         @Nonnull final double[] doubleValues,
+                         @Nonnegative final int size,
+                         final long collectedAt )
+  {
+    if( size > names.length || size > types.length || size > longValues.length || size > doubleValues.length )
+    {
+      throw new IllegalArgumentException( "Size " + size + " exceeds length of columns" );
+    }
+    _size = size;
+    _names = names;
+    _types = types;
+    _longValues = longValues;
+    _doubleValues = doubleValues;
+    _collectedAt = collectedAt;
+  }
 
   public MetricValueSet( final Collection<MetricValue> metrics, final long collectedAt )
   {
-    _metrics = metrics;
+    _size = metrics.size();
+    _names = new MetricName[ _size ];
+    _types = new byte[ _size ];
+    _longValues = new long[ _size ];
+    _doubleValues = new double[ _size ];
     _collectedAt = collectedAt;
+    int index = 0;
+    for( final MetricValue metric : metrics )
+    {
+      _names[ index ] = MetricName.intern( metric.getName() );
+      final Number value = metric.getValue();
+      if( isIntegral( value ) )
+      {
+        _types[ index ] = TYPE_LONG;
+        _longValues[ index ] = value.longValue();
+      }
+      else
+      {
+        _types[ index ] = TYPE_DOUBLE;
+        _doubleValues[ index ] = value.doubleValue();
+      }
+      index++;
+    }
+    _metrics = metrics;
   }
 
+  /**
+   * @return the metrics as MetricValue instances. Prefer the index based accessors which do not allocate.
+   */
   public Collection<MetricValue> getMetrics()
   {
+    if( null == _metrics )
+    {
+      final ArrayList<MetricValue> metrics = new ArrayList<>( _size );
+      for( int i = 0; i < _size; i++ )
+      {
+        metrics.add( new MetricValue( getName( i ), getValue( i ) ) );
+      }
+      _metrics = Collections.unmodifiableList( metrics );
+    }
     return _metrics;
   }
 
@@ -25,4 +101,122 @@ public class MetricValueSet
   {
     return _collectedAt;
   }
+
+  public int size()
+  {
+    return _size;
+  }
+
+  @Nonnull
+  public String getName( final int index )
+  {
+    return getMetricName( index ).getName();
+  }
+
+  @Nonnull
+  public MetricName getMetricName( final int index )
+  {
+    checkIndex( index );
+    return _names[ index ];
+  }
+
+  /**
+   * @return the type of the value, either TYPE_LONG or TYPE_DOUBLE.
+   */
+  public byte getType( final int index )
+  {
+    checkIndex( index );
+    return _types[ index ];
+  }
+
+  public boolean isDouble( final int index )
+  {
+    return TYPE_DOUBLE == getType( index );
+  }
+
+  /**
+   * @return the value as a long, truncating double values.
+   */
+  public long getLongValue( final int index )
+  {
+    return isDouble( index ) ? (long) _doubleValues[ index ] : _longValues[ index ];
+  }
+
+  public double getDoubleValue( final int index )
+  {
+    return isDouble( index ) ? _doubleValues[ index ] : (double) _longValues[ index ];
+  }
+
+  /**
+   * @return the value boxed as a Long or Double.
+   */
+  @Nonnull
+  public Number getValue( final int index )
+  {
+    return isDouble( index ) ? (Number) _doubleValues[ index ] : (Number) _longValues[ index ];
+  }
+
+  /**
+   * Return a value previously attached to the set.
+   *
+   * @return the value or null if no value is attached under the key.
+   */
+  @Nullable
+  public Object getAttachment( @Nonnull final Object key )
+  {
+    final ConcurrentHashMap<Object, Object> attachments = _attachments;
+    return null != attachments ? attachments.get( key ) : null;
+  }
+
+  /**
+   * Attach a value derived from the set so that it can be shared by every consumer of the set.
+   * The value must be immutable or thread safe as the set may be consumed by several threads.
+   *
+   * @return the value already attached under the key or null if the specified value was attached.
+   */
+  @Nullable
+  public Object putAttachmentIfAbsent( @Nonnull final Object key, @Nonnull final Object value )
+  {
+    ConcurrentHashMap<Object, Object> attachments = _attachments;
+    if( null == attachments )
+    {
+      synchronized( this )
+      {
+        attachments = _attachments;
+        if( null == attachments )
+        {
+          attachments = new ConcurrentHashMap<>( 4 );
+          _attachments = attachments;
+        }
+      }
+    }
+    return attachments.putIfAbsent( key, value );
+  }
+
+  /**
+   * @return true if the number should be represented as a long rather than a double.
+   */
+  static boolean isIntegral( @Nonnull final Number value )
+  {
+    if( value instanceof Double || value instanceof Float )
+    {
+      return false;
+    }
+    else if( value instanceof BigDecimal )
+    {
+      return ( (BigDecimal) value ).scale() <= 0;
+    }
+    else
+    {
+      return true;
+    }
+  }
+
+  private void checkIndex( final int index )
+  {
+    if( index < 0 || index >= _size )
+    {
+      throw new IndexOutOfBoundsException( "Index " + index + " not in range [0," + _size + ")" );
+    }
+  }
 }
@@ -0,0 +1,130 @@
+package org.realityforge.spydle;
+
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+
+/**
+ * Accumulates metric values in columns prior to creating a MetricValueSet.
+ * A builder is not thread safe.
+ */
+public final class MetricValueSetBuilder
+{
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private MetricName[] _names;
+  private byte[] _types;
+  private long[] _longValues;
+  private double[] _doubleValues;
+  private int _size;
+
+  public MetricValueSetBuilder( final int capacity )
+  {
+    _names = new MetricName[ capacity ];
+    _types = new byte[ capacity ];
+    _longValues = new long[ capacity ];
+    _doubleValues = new double[ capacity ];
+  }
+
+  public MetricValueSetBuilder()
+  {
+    this( DEFAULT_CAPACITY );
+  }
+
+  @Nonnull
+  public MetricValueSetBuilder add( @Nonnull final String name, final long value )
+  {
+    return add( MetricName.intern( name ), value );
+  }
+
+  @Nonnull
+  public MetricValueSetBuilder add( @Nonnull final String name, final double value )
+  {
+    return add( MetricName.intern( name ), value );
+  }
+
+  @Nonnull
+  public MetricValueSetBuilder add( @Nonnull final String name, @Nonnull final Number value )
+  {
+    return add( MetricName.intern( name ), value );
+  }
+
+  @Nonnull
+  public MetricValueSetBuilder add( @Nonnull final MetricName name, final long value )
+  {
+    final int index = nextIndex();
+    _names[ index ] = name;
+    _types[ index ] = MetricValueSet.TYPE_LONG;
+    _longValues[ index ] = value;
+    return this;
+  }
+
+  @Nonnull
+  public MetricValueSetBuilder add( @Nonnull final MetricName name, final double value )
+  {
+    final int index = nextIndex();
+    _names[ index ] = name;
+    _types[ index ] = MetricValueSet.TYPE_DOUBLE;
+    _doubleValues[ index ] = value;
+    return this;
+  }
+
+  @Nonnull
+  public MetricValueSetBuilder add( @Nonnull final MetricName name, @Nonnull final Number value )
+  {
+    return MetricValueSet.isIntegral( value ) ? add( name, value.longValue() ) : add( name, value.doubleValue() );
+  }
+
+  /**
+   * Add the values accumulated by another builder, which is left unchanged.
+   */
+  @Nonnull
+  public MetricValueSetBuilder addAll( @Nonnull final MetricValueSetBuilder other )
+  {
+    for( int i = 0; i < other._size; i++ )
+    {
+      final int index = nextIndex();
+      _names[ index ] = other._names[ i ];
+      _types[ index ] = other._types[ i ];
+      _longValues[ index ] = other._longValues[ i ];
+      _doubleValues[ index ] = other._doubleValues[ i ];
+    }
+    return this;
+  }
+
+  public int size()
+  {
+    return _size;
+  }
+
+  /**
+   * Create a MetricValueSet from the accumulated values. The builder must not be used after this call.
+   */
+  @Nonnull
+  public MetricValueSet build( final long collectedAt )
+  {
+    final MetricValueSet set =
+      new MetricValueSet( _names, _types, _longValues, _doubleValues, _size, collectedAt );
+    _names = null;
+    _types = null;
+    _longValues = null;
+    _doubleValues = null;
+    return set;
+  }
+
+  private int nextIndex()
+  {
+    if( null == _names )
+    {
+      throw new IllegalStateException( "Builder has already been built" );
+    }
+    if( _size == _names.length )
+    {
+      final int capacity = Math.max( DEFAULT_CAPACITY, _size * 2 );
+      _names = Arrays.copyOf( _names, capacity );
+      _types = Arrays.copyOf( _types, capacity );
+      _longValues = Arrays.copyOf( _longValues, capacity );
+      _doubleValues = Arrays.copyOf( _doubleValues, capacity );
+    }
+    return _size++;
+  }
+}
@@ -0,0 +1,47 @@
+package org.realityforge.spydle.file;
+
+import java.io.File;
+import javax.json.JsonObject;
+
+/**
+ * Utility class to interact with the FileSink.
+ */
+public final class FileKit
+{
+  private FileKit()
+  {
+  }
+
+  public static FileSink build( final JsonObject config )
+    throws Exception
+  {
+    return new FileSink( parse( config ) );
+  }
+
+  private static FileSinkDescriptor parse( final JsonObject config )
+    throws Exception
+  {
+    final File directory = new File( config.getString( "directory" ) );
+    final FileSinkDescriptor.Format format = parseFormat( config.getString( "format", "binary" ) );
+    final int segmentSize = config.getInt( "segment_size", FileSinkDescriptor.DEFAULT_SEGMENT_SIZE );
+    final long rotatePeriod =
+      config.containsKey( "rotate_period" ) ?
+      config.getJsonNumber( "rotate_period" ).longValue() :
+      FileSinkDescriptor.DEFAULT_ROTATE_PERIOD;
+    final boolean compress = config.getBoolean( "compress", false );
+    return new FileSinkDescriptor( directory, format, segmentSize, rotatePeriod, compress );
+  }
+
+  private static FileSinkDescriptor.Format parseFormat( final String format )
+  {
+    switch( format )
+    {
+      case "csv":
+        return FileSinkDescriptor.Format.CSV;
+      case "binary":
+        return FileSinkDescriptor.Format.BINARY;
+      default:
+        throw new IllegalArgumentException( "Unknown file format " + format );
+    }
+  }
+}
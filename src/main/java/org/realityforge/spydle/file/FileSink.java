@@ -0,0 +1,448 @@
+package org.realityforge.spydle.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.Instrumented;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+
+/**
+ * A sink that archives metrics to local segment files. Each segment is memory mapped at its
+ * maximum size so that metrics are written without a system call per sample. A segment is
+ * closed and truncated to the data written when it is full or has been open for the rotate
+ * period, after which it may be compressed in the background.
+ *
+ * <p>The binary format starts with a 4 byte magic number and a version byte, followed by
+ * records. A name record ('N') defines a segment local id for a metric name as an int id, a
+ * short length and the name. A set record ('S') contains the collection time as a long, an
+ * int count and, for each metric, the int id, a type byte and the long value or raw bits of
+ * the double value. A zero byte marks the end of a segment that was not closed.</p>
+ */
+public final class FileSink
+  implements Closeable, MetricSink, Instrumented
+{
+  private static final Logger LOG = Logger.getLogger( FileSink.class.getName() );
+
+  static final int MAGIC = 0x53505944;
+  static final byte VERSION = 1;
+  static final byte NAME_RECORD = 'N';
+  static final byte SET_RECORD = 'S';
+
+  private static final Charset US_ASCII = Charset.forName( "US-ASCII" );
+  private static final byte[] CSV_HEADER = "timestamp,name,value\n".getBytes( US_ASCII );
+
+  @Nonnull
+  private final FileSinkDescriptor _descriptor;
+  @Nullable
+  private final ExecutorService _compressor;
+  // Segment local ids of the names written to the current segment, allocated sequentially
+  private final HashMap<MetricName, Integer> _nameIds = new HashMap<>();
+  private int[] _ids = new int[ 64 ];
+  private final AtomicLong _writtenCount = new AtomicLong();
+  private final AtomicLong _segmentCount = new AtomicLong();
+  private final AtomicLong _compressedCount = new AtomicLong();
+  private final AtomicLong _droppedCount = new AtomicLong();
+  @Nullable
+  private File _file;
+  @Nullable
+  private FileChannel _channel;
+  @Nullable
+  private MappedByteBuffer _buffer;
+  // Offset after the segment header
+  private int _dataOffset;
+  private long _segmentStartedAt;
+  private long _sequence;
+  private boolean _closed;
+
+  public FileSink( @Nonnull final FileSinkDescriptor descriptor )
+    throws IOException
+  {
+    _descriptor = descriptor;
+    final File directory = descriptor.getDirectory();
+    if( !directory.isDirectory() && !directory.mkdirs() )
+    {
+      throw new IOException( "Unable to create directory " + directory );
+    }
+    if( descriptor.isCompress() )
+    {
+      _compressor = Executors.newSingleThreadExecutor( new ThreadFactory()
+      {
+        @Override
+        public Thread newThread( final Runnable r )
+        {
+          final Thread thread = new Thread( r, "Spydle-File-Compressor" );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    else
+    {
+      _compressor = null;
+    }
+  }
+
+  /**
+   * Append the metrics to the current segment, starting a new segment if required.
+   *
+   * @return false if the metrics could not be written.
+   */
+  @Override
+  public synchronized boolean handleMetrics( @Nonnull final MetricValueSet metrics )
+  {
+    if( _closed )
+    {
+      return false;
+    }
+    final long now = System.currentTimeMillis();
+    try
+    {
+      final long rotatePeriod = _descriptor.getRotatePeriod();
+      if( null != _buffer && 0 != rotatePeriod && now - _segmentStartedAt >= rotatePeriod )
+      {
+        closeSegment();
+      }
+      if( null == _buffer )
+      {
+        openSegment( now );
+      }
+      if( !write( metrics ) )
+      {
+        if( getBuffer().position() != _dataOffset )
+        {
+          closeSegment();
+          openSegment( now );
+        }
+        if( !write( metrics ) )
+        {
+          LOG.warning( "Unable to write " + metrics.size() + " metrics to " + _descriptor +
+                       " as they exceed the segment size" );
+          _droppedCount.incrementAndGet();
+          return false;
+        }
+      }
+      _writtenCount.addAndGet( metrics.size() );
+      return true;
+    }
+    catch( final IOException ioe )
+    {
+      LOG.log( Level.WARNING, "Error writing metrics to " + _descriptor, ioe );
+      _droppedCount.incrementAndGet();
+      _buffer = null;
+      closeQuietly();
+      return false;
+    }
+  }
+
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
+  {
+    return new MetricValueSetBuilder( 4 ).
+      add( "written_count", _writtenCount.get() ).
+      add( "segment_count", _segmentCount.get() ).
+      add( "compressed_count", _compressedCount.get() ).
+      add( "dropped_count", _droppedCount.get() ).
+      build( System.currentTimeMillis() );
+  }
+
+  long getSegmentCount()
+  {
+    return _segmentCount.get();
+  }
+
+  long getCompressedCount()
+  {
+    return _compressedCount.get();
+  }
+
+  /**
+   * Close the current segment. Compression of closed segments continues in the background.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if( !_closed )
+    {
+      _closed = true;
+      try
+      {
+        closeSegment();
+      }
+      catch( final IOException ioe )
+      {
+        LOG.log( Level.WARNING, "Error closing segment " + _file, ioe );
+      }
+      if( null != _compressor )
+      {
+        _compressor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Encode the metrics into the current segment.
+   *
+   * @return false if the segment has insufficient space, in which case the segment is unchanged.
+   */
+  private boolean write( @Nonnull final MetricValueSet metrics )
+  {
+    final MappedByteBuffer buffer = getBuffer();
+    final int position = buffer.position();
+    final int nameCount = _nameIds.size();
+    try
+    {
+      if( FileSinkDescriptor.Format.BINARY == _descriptor.getFormat() )
+      {
+        writeBinary( buffer, metrics );
+      }
+      else
+      {
+        writeCsv( buffer, metrics );
+      }
+      return true;
+    }
+    catch( final BufferOverflowException boe )
+    {
+      // Clear the partial write so the segment still ends with a zero byte if it is not closed
+      for( int i = buffer.position() - 1; i >= position; i-- )
+      {
+        buffer.put( i, (byte) 0 );
+      }
+      buffer.position( position );
+      // Forget names whose definitions were not written
+      final Iterator<Integer> iterator = _nameIds.values().iterator();
+      while( iterator.hasNext() )
+      {
+        if( iterator.next() >= nameCount )
+        {
+          iterator.remove();
+        }
+      }
+      return false;
+    }
+  }
+
+  private void writeBinary( @Nonnull final MappedByteBuffer buffer, @Nonnull final MetricValueSet metrics )
+  {
+    final int size = metrics.size();
+    if( _ids.length < size )
+    {
+      _ids = new int[ Math.max( size, _ids.length * 2 ) ];
+    }
+    for( int i = 0; i < size; i++ )
+    {
+      final MetricName name = metrics.getMetricName( i );
+      Integer id = _nameIds.get( name );
+      if( null == id )
+      {
+        id = _nameIds.size();
+        _nameIds.put( name, id );
+        final byte[] encoded = name.getEncoded();
+        buffer.put( NAME_RECORD );
+        buffer.putInt( id );
+        buffer.putShort( (short) encoded.length );
+        buffer.put( encoded );
+      }
+      _ids[ i ] = id;
+    }
+    buffer.put( SET_RECORD );
+    buffer.putLong( metrics.getCollectedAt() );
+    buffer.putInt( size );
+    for( int i = 0; i < size; i++ )
+    {
+      final byte type = metrics.getType( i );
+      buffer.putInt( _ids[ i ] );
+      buffer.put( type );
+      if( MetricValueSet.TYPE_DOUBLE == type )
+      {
+        buffer.putDouble( metrics.getDoubleValue( i ) );
+      }
+      else
+      {
+        buffer.putLong( metrics.getLongValue( i ) );
+      }
+    }
+  }
+
+  private void writeCsv( @Nonnull final MappedByteBuffer buffer, @Nonnull final MetricValueSet metrics )
+  {
+    final byte[] timestamp = Long.toString( metrics.getCollectedAt() ).getBytes( US_ASCII );
+    final int size = metrics.size();
+    for( int i = 0; i < size; i++ )
+    {
+      buffer.put( timestamp );
+      buffer.put( (byte) ',' );
+      buffer.put( metrics.getMetricName( i ).getEncoded() );
+      buffer.put( (byte) ',' );
+      final String value =
+        metrics.isDouble( i ) ? Double.toString( metrics.getDoubleValue( i ) ) : Long.toString( metrics.getLongValue( i ) );
+      final int length = value.length();
+      for( int j = 0; j < length; j++ )
+      {
+        buffer.put( (byte) value.charAt( j ) );
+      }
+      buffer.put( (byte) '\n' );
+    }
+  }
+
+  private void openSegment( final long now )
+    throws IOException
+  {
+    final String extension = FileSinkDescriptor.Format.BINARY == _descriptor.getFormat() ? ".bin" : ".csv";
+    // Sequence is padded so that segments created in the same millisecond sort in order
+    final String name = String.format( "metrics-%d-%06d%s", now, _sequence++, extension );
+    final File file = new File( _descriptor.getDirectory(), name );
+    final FileChannel channel = new RandomAccessFile( file, "rw" ).getChannel();
+    final MappedByteBuffer buffer;
+    try
+    {
+      buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, _descriptor.getSegmentSize() );
+    }
+    catch( final IOException ioe )
+    {
+      channel.close();
+      throw ioe;
+    }
+    if( FileSinkDescriptor.Format.BINARY == _descriptor.getFormat() )
+    {
+      buffer.putInt( MAGIC );
+      buffer.put( VERSION );
+    }
+    else
+    {
+      buffer.put( CSV_HEADER );
+    }
+    _file = file;
+    _channel = channel;
+    _buffer = buffer;
+    _dataOffset = buffer.position();
+    _segmentStartedAt = now;
+    _nameIds.clear();
+    _segmentCount.incrementAndGet();
+  }
+
+  /**
+   * Flush the current segment and truncate the file to the data written.
+   */
+  private void closeSegment()
+    throws IOException
+  {
+    final MappedByteBuffer buffer = _buffer;
+    final FileChannel channel = _channel;
+    final File file = _file;
+    if( null == buffer || null == channel || null == file )
+    {
+      return;
+    }
+    _buffer = null;
+    try
+    {
+      buffer.force();
+      // The mapping is released when the buffer is garbage collected
+      channel.truncate( buffer.position() );
+    }
+    finally
+    {
+      closeQuietly();
+    }
+    if( null != _compressor )
+    {
+      _compressor.execute( new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          compress( file );
+        }
+      } );
+    }
+  }
+
+  private void closeQuietly()
+  {
+    if( null != _channel )
+    {
+      try
+      {
+        _channel.close();
+      }
+      catch( final IOException ioe )
+      {
+        LOG.log( Level.FINE, "Error closing segment " + _file, ioe );
+      }
+      _channel = null;
+      _file = null;
+    }
+  }
+
+  /**
+   * Compress a closed segment, replacing it with a gzip file.
+   */
+  private void compress( @Nonnull final File file )
+  {
+    final File temporary = new File( file.getPath() + ".gz.tmp" );
+    try
+    {
+      try ( final InputStream input = new FileInputStream( file );
+            final OutputStream output = new GZIPOutputStream( new FileOutputStream( temporary ), 64 * 1024 ) )
+      {
+        final byte[] data = new byte[ 64 * 1024 ];
+        int count;
+        while( -1 != ( count = input.read( data ) ) )
+        {
+          output.write( data, 0, count );
+        }
+      }
+      if( !temporary.renameTo( new File( file.getPath() + ".gz" ) ) || !file.delete() )
+      {
+        throw new IOException( "Unable to replace " + file + " with compressed segment" );
+      }
+      _compressedCount.incrementAndGet();
+    }
+    catch( final IOException ioe )
+    {
+      LOG.log( Level.WARNING, "Error compressing segment " + file, ioe );
+      if( temporary.exists() && !temporary.delete() )
+      {
+        LOG.fine( "Unable to delete " + temporary );
+      }
+    }
+  }
+
+  @Nonnull
+  private MappedByteBuffer getBuffer()
+  {
+    assert null != _buffer;
+    return _buffer;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "FileSink[" + _descriptor + "]";
+  }
+}
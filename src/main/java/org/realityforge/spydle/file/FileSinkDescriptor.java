@@ -0,0 +1,96 @@
+package org.realityforge.spydle.file;
+
+import java.io.File;
+import javax.annotation.Nonnull;
+
+/**
+ * Describes a local archive of metrics written to rolling segment files.
+ */
+public final class FileSinkDescriptor
+{
+  public enum Format
+  {
+    /**
+     * Lines of the form "timestamp,name,value" where timestamp is in milliseconds.
+     */
+    CSV,
+    /**
+     * A compact binary encoding in which each name is written once per segment.
+     */
+    BINARY
+  }
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  public static final long DEFAULT_ROTATE_PERIOD = 60 * 60 * 1000;
+
+  @Nonnull
+  private final File _directory;
+  @Nonnull
+  private final Format _format;
+  private final int _segmentSize;
+  private final long _rotatePeriod;
+  private final boolean _compress;
+
+  public FileSinkDescriptor( @Nonnull final File directory,
+                             @Nonnull final Format format,
+                             final int segmentSize,
+                             final long rotatePeriod,
+                             final boolean compress )
+  {
+    if( segmentSize < 4096 )
+    {
+      throw new IllegalArgumentException( "segment_size must be at least 4096" );
+    }
+    if( rotatePeriod < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid rotate_period " + rotatePeriod );
+    }
+    _directory = directory;
+    _format = format;
+    _segmentSize = segmentSize;
+    _rotatePeriod = rotatePeriod;
+    _compress = compress;
+  }
+
+  @Nonnull
+  public File getDirectory()
+  {
+    return _directory;
+  }
+
+  @Nonnull
+  public Format getFormat()
+  {
+    return _format;
+  }
+
+  /**
+   * @return the maximum size of a segment file in bytes.
+   */
+  public int getSegmentSize()
+  {
+    return _segmentSize;
+  }
+
+  /**
+   * @return the time in milliseconds after which a segment is closed and a new segment started, 0 to never rotate by time.
+   */
+  public long getRotatePeriod()
+  {
+    return _rotatePeriod;
+  }
+
+  /**
+   * @return true if closed segments are compressed with gzip.
+   */
+  public boolean isCompress()
+  {
+    return _compress;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "File[directory=" + _directory + ",format=" + _format + "]";
+  }
+}
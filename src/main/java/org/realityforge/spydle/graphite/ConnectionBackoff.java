@@ -0,0 +1,64 @@
+package org.realityforge.spydle.graphite;
+
+/**
+ * Tracks the delay before the next connection attempt, doubling the delay after
+ * each consecutive failure up to a maximum. The delay is only reset by a successful
+ * write on a connection that has been open for the healthy period, so a server that
+ * accepts connections and then drops them is still backed off. Not thread safe.
+ */
+final class ConnectionBackoff
+{
+  static final long INITIAL_DELAY = 1000;
+  // Time in milliseconds a connection must remain open before a successful write resets the delay
+  static final long HEALTHY_PERIOD = 5000;
+
+  private final long _maxDelay;
+  // Delay applied after the last failure or 0 if the last attempt succeeded
+  private long _delay;
+  private long _nextAttemptTime;
+  // Time at which the current connection was established
+  private long _connectedAt;
+
+  ConnectionBackoff( final long maxDelay )
+  {
+    _maxDelay = Math.max( INITIAL_DELAY, maxDelay );
+  }
+
+  boolean isAttemptAllowed( final long now )
+  {
+    return now >= _nextAttemptTime;
+  }
+
+  long getNextAttemptTime()
+  {
+    return _nextAttemptTime;
+  }
+
+  long getDelay()
+  {
+    return _delay;
+  }
+
+  void onFailure( final long now )
+  {
+    _delay = 0 == _delay ? INITIAL_DELAY : Math.min( _maxDelay, _delay * 2 );
+    _nextAttemptTime = now + _delay;
+  }
+
+  void onConnect( final long now )
+  {
+    _connectedAt = now;
+  }
+
+  /**
+   * Record a successful write, resetting the delay if the connection has been open for the healthy period.
+   */
+  void onSuccess( final long now )
+  {
+    if( 0 != _delay && now - _connectedAt >= HEALTHY_PERIOD )
+    {
+      _delay = 0;
+      _nextAttemptTime = 0;
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package org.realityforge.spydle.graphite;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A consistent hash ring that places metrics on the same nodes as carbon-relay
+ * when it is configured with the same destinations in the same order. The ring is
+ * not thread safe.
+ */
+final class ConsistentHashRing
+{
+  enum HashType
+  {
+    /**
+     * The first 16 bits of the MD5 digest. The default hash used by carbon.
+     */
+    CARBON_CH,
+    /**
+     * The 32-bit FNV-1a hash folded to 16 bits. Replicas are keyed on the instance name alone.
+     */
+    FNV1A_CH
+  }
+
+  /**
+   * The number of replicas placed on the ring for each node, matching carbon.
+   */
+  static final int REPLICA_COUNT = 100;
+
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+  private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+  private static final int FNV_PRIME = 0x01000193;
+
+  @Nonnull
+  private final HashType _hashType;
+  private final int _nodeCount;
+  // Ring positions in ascending order and the node index at each position
+  private final int[] _positions;
+  private final int[] _nodes;
+  @Nullable
+  private final MessageDigest _digest;
+
+  ConsistentHashRing( @Nonnull final HashType hashType, @Nonnull final List<String> nodeKeys )
+  {
+    if( nodeKeys.isEmpty() )
+    {
+      throw new IllegalArgumentException( "Ring requires at least one node" );
+    }
+    _hashType = hashType;
+    _nodeCount = nodeKeys.size();
+    _digest = HashType.CARBON_CH == hashType ? newDigest() : null;
+
+    // Each entry packs the position in the upper bits and the node index in the lower bits
+    // so that sorting the entries sorts by position
+    final long[] entries = new long[ _nodeCount * REPLICA_COUNT ];
+    final int[] used = new int[ entries.length ];
+    int count = 0;
+    for( int node = 0; node < _nodeCount; node++ )
+    {
+      for( int i = 0; i < REPLICA_COUNT; i++ )
+      {
+        final String replicaKey =
+          HashType.CARBON_CH == hashType ? nodeKeys.get( node ) + ":" + i : i + "-" + nodeKeys.get( node );
+        int position = computePosition( replicaKey );
+        // Carbon moves colliding replicas to the next free position
+        while( contains( used, count, position ) )
+        {
+          position++;
+        }
+        used[ count ] = position;
+        entries[ count ] = ( ( (long) position ) << 32 ) | node;
+        count++;
+      }
+    }
+    Arrays.sort( entries );
+    _positions = new int[ entries.length ];
+    _nodes = new int[ entries.length ];
+    for( int i = 0; i < entries.length; i++ )
+    {
+      _positions[ i ] = (int) ( entries[ i ] >>> 32 );
+      _nodes[ i ] = (int) entries[ i ];
+    }
+  }
+
+  /**
+   * Return the key carbon uses to identify a destination on the ring.
+   * For the carbon hash this is the python representation of the (server, instance) tuple
+   * while the fnv1a hash uses the instance name alone.
+   */
+  @Nonnull
+  static String toNodeKey( @Nonnull final HashType hashType,
+                           @Nonnull final String host,
+                           @Nullable final String instance )
+  {
+    if( HashType.CARBON_CH == hashType )
+    {
+      return "('" + host + "', " + ( null == instance ? "None" : "'" + instance + "'" ) + ")";
+    }
+    else
+    {
+      return String.valueOf( instance );
+    }
+  }
+
+  int getNodeCount()
+  {
+    return _nodeCount;
+  }
+
+  /**
+   * Return the distinct nodes that the key is placed on, in order of preference.
+   *
+   * @param key               the metric name.
+   * @param replicationFactor the maximum number of nodes to return.
+   * @return the indexes of the nodes, in the order they were supplied to the constructor.
+   */
+  @Nonnull
+  int[] getNodes( @Nonnull final String key, final int replicationFactor )
+  {
+    final int limit = Math.min( replicationFactor, _nodeCount );
+    final int[] nodes = new int[ limit ];
+    if( 1 == _nodeCount )
+    {
+      return nodes;
+    }
+    final int length = _positions.length;
+    int index = search( computePosition( key ) ) % length;
+    final int lastIndex = ( index - 1 + length ) % length;
+    int found = 0;
+    while( found < limit && index != lastIndex )
+    {
+      final int node = _nodes[ index ];
+      if( !contains( nodes, found, node ) )
+      {
+        nodes[ found++ ] = node;
+      }
+      index = ( index + 1 ) % length;
+    }
+    return found == limit ? nodes : Arrays.copyOf( nodes, found );
+  }
+
+  int computePosition( @Nonnull final String key )
+  {
+    final byte[] bytes = key.getBytes( UTF_8 );
+    if( HashType.CARBON_CH == _hashType )
+    {
+      assert null != _digest;
+      final byte[] hash = _digest.digest( bytes );
+      return ( ( hash[ 0 ] & 0xFF ) << 8 ) | ( hash[ 1 ] & 0xFF );
+    }
+    else
+    {
+      int hash = FNV_OFFSET_BASIS;
+      for( final byte b : bytes )
+      {
+        hash ^= ( b & 0xFF );
+        hash *= FNV_PRIME;
+      }
+      return ( hash >>> 16 ) ^ ( hash & 0xFFFF );
+    }
+  }
+
+  /**
+   * @return the index of the first position that is not less than the specified position.
+   */
+  private int search( final int position )
+  {
+    int low = 0;
+    int high = _positions.length;
+    while( low < high )
+    {
+      final int middle = ( low + high ) >>> 1;
+      if( _positions[ middle ] < position )
+      {
+        low = middle + 1;
+      }
+      else
+      {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static boolean contains( final int[] values, final int count, final int value )
+  {
+    for( int i = 0; i < count; i++ )
+    {
+      if( values[ i ] == value )
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Nonnull
+  private static MessageDigest newDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance( "MD5" );
+    }
+    catch( final NoSuchAlgorithmException nsae )
+    {
+      throw new IllegalStateException( "MD5 is not supported", nsae );
+    }
+  }
+}
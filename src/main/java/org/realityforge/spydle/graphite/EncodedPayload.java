@@ -0,0 +1,208 @@
+package org.realityforge.spydle.graphite;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.MetricValueSet;
+
+/**
+ * A metric set encoded in a graphite wire format. The payload is encoded at most once per set,
+ * format and prefix and is attached to the set so that every sink that writes the same format
+ * shares the same bytes. Payloads are immutable and the data must not be modified.
+ */
+final class EncodedPayload
+{
+  enum Format
+  {
+    /**
+     * Lines in the plaintext protocol.
+     */
+    PLAINTEXT,
+    /**
+     * The (path, (timestamp, value)) tuples of the pickle protocol without the surrounding frame.
+     */
+    PICKLE
+  }
+
+  // Allowance for the value and timestamp when estimating the size of an encoded metric
+  private static final int VALUE_SIZE_ESTIMATE = 40;
+
+  private final byte[] _data;
+  private final int _length;
+  // Offset of the end of each encoded metric. Metrics that can not be encoded are omitted.
+  private final int[] _ends;
+  private final int _count;
+
+  private EncodedPayload( @Nonnull final byte[] data, final int length, @Nonnull final int[] ends, final int count )
+  {
+    _data = data;
+    _length = length;
+    _ends = ends;
+    _count = count;
+  }
+
+  /**
+   * Return the encoding of the metrics, encoding them if no other sink has done so.
+   */
+  @Nonnull
+  static EncodedPayload get( @Nonnull final Format format,
+                             @Nullable final String prefix,
+                             @Nonnull final MetricValueSet metrics )
+  {
+    final Key key = new Key( format, prefix );
+    Holder holder = (Holder) metrics.getAttachment( key );
+    if( null == holder )
+    {
+      final Holder candidate = new Holder();
+      holder = (Holder) metrics.putAttachmentIfAbsent( key, candidate );
+      if( null == holder )
+      {
+        holder = candidate;
+      }
+    }
+    return holder.get( key, metrics );
+  }
+
+  /**
+   * @return the encoded bytes. Only the first getLength() bytes are valid.
+   */
+  @Nonnull
+  byte[] getData()
+  {
+    return _data;
+  }
+
+  int getLength()
+  {
+    return _length;
+  }
+
+  /**
+   * @return the number of metrics encoded.
+   */
+  int getCount()
+  {
+    return _count;
+  }
+
+  /**
+   * @return the offset of the end of the encoded metric.
+   */
+  int getEnd( final int index )
+  {
+    if( index < 0 || index >= _count )
+    {
+      throw new IndexOutOfBoundsException( "Index " + index + " not in range [0," + _count + ")" );
+    }
+    return _ends[ index ];
+  }
+
+  @Nonnull
+  private static EncodedPayload encode( @Nonnull final Key key, @Nonnull final MetricValueSet metrics )
+  {
+    final byte[] prefix = null != key._prefix ? key._prefix.getBytes( Charset.forName( "US-ASCII" ) ) : null;
+    final long timestamp = metrics.getCollectedAt() / 1000;
+    final int size = metrics.size();
+    final int[] ends = new int[ size ];
+    int count = 0;
+    ByteBuffer buffer = ByteBuffer.allocate( estimateSize( prefix, metrics ) );
+    int index = 0;
+    while( index < size )
+    {
+      final int position = buffer.position();
+      try
+      {
+        final boolean encoded;
+        if( Format.PLAINTEXT == key._format )
+        {
+          GraphiteEncoder.encode( buffer, prefix, metrics, index, timestamp );
+          encoded = buffer.position() != position;
+        }
+        else
+        {
+          encoded = PickleEncoder.encode( buffer, prefix, metrics, index, timestamp );
+        }
+        if( encoded )
+        {
+          ends[ count++ ] = buffer.position();
+        }
+        index++;
+      }
+      catch( final BufferOverflowException boe )
+      {
+        buffer.position( position );
+        final ByteBuffer larger = ByteBuffer.allocate( buffer.capacity() * 2 );
+        buffer.flip();
+        larger.put( buffer );
+        buffer = larger;
+      }
+    }
+    return new EncodedPayload( buffer.array(), buffer.position(), ends, count );
+  }
+
+  private static int estimateSize( @Nullable final byte[] prefix, @Nonnull final MetricValueSet metrics )
+  {
+    final int size = metrics.size();
+    final int prefixLength = null != prefix ? prefix.length : 0;
+    int estimate = 0;
+    for( int i = 0; i < size; i++ )
+    {
+      estimate += prefixLength + metrics.getMetricName( i ).getEncoded().length + VALUE_SIZE_ESTIMATE;
+    }
+    return Math.max( estimate, 64 );
+  }
+
+  /**
+   * Lazily encodes the payload so that sinks racing to encode the same set wait for a single encoding.
+   */
+  private static final class Holder
+  {
+    private EncodedPayload _payload;
+
+    synchronized EncodedPayload get( @Nonnull final Key key, @Nonnull final MetricValueSet metrics )
+    {
+      if( null == _payload )
+      {
+        _payload = encode( key, metrics );
+      }
+      return _payload;
+    }
+  }
+
+  private static final class Key
+  {
+    @Nonnull
+    private final Format _format;
+    @Nullable
+    private final String _prefix;
+
+    Key( @Nonnull final Format format, @Nullable final String prefix )
+    {
+      _format = format;
+      _prefix = prefix;
+    }
+
+    @Override
+    public boolean equals( final Object o )
+    {
+      if( this == o )
+      {
+        return true;
+      }
+      else if( !( o instanceof Key ) )
+      {
+        return false;
+      }
+      final Key other = (Key) o;
+      return _format == other._format && ( null == _prefix ? null == other._prefix : _prefix.equals( other._prefix ) );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * _format.hashCode() + ( null != _prefix ? _prefix.hashCode() : 0 );
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package org.realityforge.spydle.graphite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A blocking connection to a graphite server.
+ * After a connection failure no attempt is made to reconnect until the backoff delay
+ * has expired and writes fail immediately. Not thread safe.
+ */
+final class GraphiteConnection
+  implements Closeable
+{
+  private static final Logger LOG = Logger.getLogger( GraphiteConnection.class.getName() );
+
+  // Thread used to close sockets where writes have not completed within the write timeout
+  private static final ScheduledThreadPoolExecutor c_watchdog = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread thread = new Thread( r, "Graphite-Watchdog" );
+      thread.setDaemon( true );
+      return thread;
+    }
+  } );
+
+  static
+  {
+    c_watchdog.setRemoveOnCancelPolicy( true );
+  }
+
+  @Nonnull
+  private final GraphiteServiceDescriptor _descriptor;
+  @Nonnull
+  private final ConnectionBackoff _backoff;
+  private final GraphiteStatistics _statistics = new GraphiteStatistics();
+  private Socket _socket;
+  private OutputStream _outputStream;
+
+  GraphiteConnection( @Nonnull final GraphiteServiceDescriptor descriptor )
+  {
+    _descriptor = descriptor;
+    _backoff = new ConnectionBackoff( descriptor.getMaxReconnectDelay() );
+  }
+
+  @Nonnull
+  GraphiteServiceDescriptor getDescriptor()
+  {
+    return _descriptor;
+  }
+
+  @Nonnull
+  GraphiteStatistics getStatistics()
+  {
+    return _statistics;
+  }
+
+  /**
+   * @return true if a connection attempt would be made or the connection is open, false while waiting to reconnect.
+   */
+  boolean isAvailable()
+  {
+    return null != _socket || _backoff.isAttemptAllowed( System.currentTimeMillis() );
+  }
+
+  /**
+   * Write the data to the server, connecting if required.
+   *
+   * @return true if the data was written, false if unable to connect, waiting to reconnect or the write failed.
+   */
+  boolean write( @Nonnull final byte[] data, final int offset, final int length )
+  {
+    final OutputStream outputStream = acquireConnection();
+    if( null == outputStream )
+    {
+      return false;
+    }
+    final Future<?> watchdog = scheduleWatchdog( _socket );
+    try
+    {
+      outputStream.write( data, offset, length );
+      outputStream.flush();
+      _statistics.addBytesSent( length );
+      _backoff.onSuccess( System.currentTimeMillis() );
+      return true;
+    }
+    catch( final IOException ioe )
+    {
+      final long now = System.currentTimeMillis();
+      LOG.log( Level.FINE, "Error writing to graphite server: " + _descriptor, ioe );
+      _statistics.onWriteFailure( now );
+      close();
+      _backoff.onFailure( now );
+      return false;
+    }
+    finally
+    {
+      if( null != watchdog )
+      {
+        watchdog.cancel( false );
+      }
+    }
+  }
+
+  /**
+   * Return the stream for the current connection, connecting if required.
+   *
+   * @return the stream or null if unable to connect or waiting to reconnect.
+   */
+  @Nullable
+  private OutputStream acquireConnection()
+  {
+    if( null != _socket )
+    {
+      return _outputStream;
+    }
+    final long now = System.currentTimeMillis();
+    if( !_backoff.isAttemptAllowed( now ) )
+    {
+      return null;
+    }
+    final Socket socket = new Socket();
+    try
+    {
+      socket.connect( _descriptor.getSocketAddress(), _descriptor.getConnectTimeout() );
+      _outputStream = socket.getOutputStream();
+      _socket = socket;
+      final long connectedAt = System.currentTimeMillis();
+      _backoff.onConnect( connectedAt );
+      _statistics.onConnect( connectedAt );
+      return _outputStream;
+    }
+    catch( final IOException ioe )
+    {
+      closeQuietly( socket );
+      _backoff.onFailure( now );
+      _statistics.onConnectFailure( now, _backoff.getDelay() );
+      LOG.log( Level.FINE,
+               "Error connecting to graphite server: " + _descriptor + ". " +
+               "Retrying in " + _backoff.getDelay() + "ms", ioe );
+      return null;
+    }
+  }
+
+  /**
+   * Schedule a task to close the socket if the write does not complete within the write timeout.
+   */
+  @Nullable
+  private Future<?> scheduleWatchdog( @Nonnull final Socket socket )
+  {
+    final int writeTimeout = _descriptor.getWriteTimeout();
+    if( 0 == writeTimeout )
+    {
+      return null;
+    }
+    return c_watchdog.schedule( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        LOG.fine( "Write to graphite server " + _descriptor + " timed out after " + writeTimeout + "ms" );
+        closeQuietly( socket );
+      }
+    }, writeTimeout, TimeUnit.MILLISECONDS );
+  }
+
+  @Override
+  public void close()
+  {
+    if( null != _socket )
+    {
+      closeQuietly( _socket );
+      _socket = null;
+      _outputStream = null;
+      _statistics.onDisconnect();
+    }
+  }
+
+  private static void closeQuietly( @Nonnull final Socket socket )
+  {
+    try
+    {
+      socket.close();
+    }
+    catch( final IOException ioe )
+    {
+      //Ignored
+    }
+  }
+}
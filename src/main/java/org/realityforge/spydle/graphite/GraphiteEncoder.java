@@ -0,0 +1,153 @@
+package org.realityforge.spydle.graphite;
+
+import java.nio.ByteBuffer;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.MetricValueSet;
+
+/**
+ * Encodes metrics in the graphite plaintext protocol directly into a ByteBuffer.
+ * Numbers are formatted without allocating except for doubles outside the range
+ * that can be represented in fixed point, which fall back to Double.toString().
+ */
+final class GraphiteEncoder
+{
+  // Number of digits emitted after the decimal point for doubles
+  private static final int FRACTION_DIGITS = 9;
+  private static final long FRACTION_SCALE = 1000000000L;
+  // Doubles with a magnitude outside this range are formatted using Double.toString()
+  private static final double MIN_FIXED = 1e-3;
+  private static final double MAX_FIXED = 1e9;
+  private static final long[] POWERS_OF_TEN = new long[ 19 ];
+
+  static
+  {
+    long value = 1;
+    for( int i = 0; i < POWERS_OF_TEN.length; i++ )
+    {
+      POWERS_OF_TEN[ i ] = value;
+      value *= 10;
+    }
+  }
+
+  private GraphiteEncoder()
+  {
+  }
+
+  /**
+   * Encode a single metric as a line in the buffer.
+   * Values that graphite can not represent (i.e. NaN and infinite values) are skipped.
+   *
+   * @throws java.nio.BufferOverflowException if the buffer has insufficient space. The buffer
+   *                                          position is undefined when this occurs.
+   */
+  static void encode( @Nonnull final ByteBuffer buffer,
+                      @Nullable final byte[] prefix,
+                      @Nonnull final MetricValueSet metrics,
+                      final int index,
+                      final long timestamp )
+  {
+    if( metrics.isDouble( index ) )
+    {
+      final double value = metrics.getDoubleValue( index );
+      if( Double.isNaN( value ) || Double.isInfinite( value ) )
+      {
+        return;
+      }
+      putName( buffer, prefix, metrics, index );
+      putDouble( buffer, value );
+    }
+    else
+    {
+      putName( buffer, prefix, metrics, index );
+      putLong( buffer, metrics.getLongValue( index ) );
+    }
+    buffer.put( (byte) ' ' );
+    putLong( buffer, timestamp );
+    buffer.put( (byte) '\n' );
+  }
+
+  static void putLong( @Nonnull final ByteBuffer buffer, final long value )
+  {
+    if( value < 0 )
+    {
+      if( Long.MIN_VALUE == value )
+      {
+        putAscii( buffer, Long.toString( value ) );
+        return;
+      }
+      buffer.put( (byte) '-' );
+      putDigits( buffer, -value );
+    }
+    else
+    {
+      putDigits( buffer, value );
+    }
+  }
+
+  static void putDouble( @Nonnull final ByteBuffer buffer, final double value )
+  {
+    final double abs = Math.abs( value );
+    if( 0 != abs && ( abs < MIN_FIXED || abs >= MAX_FIXED ) )
+    {
+      putAscii( buffer, Double.toString( value ) );
+      return;
+    }
+    final long scaled = Math.round( abs * FRACTION_SCALE );
+    if( value < 0 && 0 != scaled )
+    {
+      buffer.put( (byte) '-' );
+    }
+    putDigits( buffer, scaled / FRACTION_SCALE );
+    long fraction = scaled % FRACTION_SCALE;
+    if( 0 != fraction )
+    {
+      int digits = FRACTION_DIGITS;
+      while( 0 == fraction % 10 )
+      {
+        fraction /= 10;
+        digits--;
+      }
+      buffer.put( (byte) '.' );
+      for( int i = digits - 1; i >= 0; i-- )
+      {
+        buffer.put( (byte) ( '0' + ( fraction / POWERS_OF_TEN[ i ] ) % 10 ) );
+      }
+    }
+  }
+
+  private static void putName( @Nonnull final ByteBuffer buffer,
+                               @Nullable final byte[] prefix,
+                               @Nonnull final MetricValueSet metrics,
+                               final int index )
+  {
+    if( null != prefix )
+    {
+      buffer.put( prefix );
+    }
+    buffer.put( metrics.getMetricName( index ).getEncoded() );
+    buffer.put( (byte) ' ' );
+  }
+
+  private static void putDigits( @Nonnull final ByteBuffer buffer, final long value )
+  {
+    int digits = 1;
+    while( digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[ digits ] )
+    {
+      digits++;
+    }
+    for( int i = digits - 1; i >= 0; i-- )
+    {
+      buffer.put( (byte) ( '0' + ( value / POWERS_OF_TEN[ i ] ) % 10 ) );
+    }
+  }
+
+  private static void putAscii( @Nonnull final ByteBuffer buffer, @Nonnull final String value )
+  {
+    final int length = value.length();
+    for( int i = 0; i < length; i++ )
+    {
+      buffer.put( (byte) value.charAt( i ) );
+    }
+  }
+}
@@ -1,6 +1,16 @@
 package org.realityforge.spydle.graphite;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.util.ConfigUtil;
 
 /**
  * Utility class to interact with the GraphiteSink.
@@ -11,19 +21,211 @@ public final class GraphiteKit
   {
   }
 
-  public static GraphiteService build( final JsonObject config )
+  /**
+   * Build a sink that sends metrics using the plaintext protocol.
+   */
+  public static MetricSink build( final JsonObject config )
     throws Exception
   {
-    return new GraphiteService( parse( config ) );
+    return build( config, parse( config, config.getString( "host" ), config.getInt( "port" ) ) );
   }
 
-  private static GraphiteServiceDescriptor parse( final JsonObject config )
+  private static MetricSink build( final JsonObject config, final GraphiteServiceDescriptor descriptor )
+    throws IOException
+  {
+    if( config.getBoolean( "non_blocking", false ) )
+    {
+      return new NioGraphiteService( descriptor );
+    }
+    else
+    {
+      return new GraphiteService( descriptor );
+    }
+  }
+
+  /**
+   * Build a sink that sends batches of metrics using the pickle protocol.
+   */
+  public static MetricSink buildPickle( final JsonObject config )
+    throws Exception
+  {
+    return buildPickle( config, parse( config, config.getString( "host" ), config.getInt( "port" ) ) );
+  }
+
+  private static PickleGraphiteService buildPickle( final JsonObject config,
+                                                    final GraphiteServiceDescriptor descriptor )
+  {
+    final int maxBatchBytes = config.getInt( "max_batch_bytes", GraphitePickleDescriptor.DEFAULT_MAX_BATCH_BYTES );
+    final int maxBatchSize = config.getInt( "max_batch_size", GraphitePickleDescriptor.DEFAULT_MAX_BATCH_SIZE );
+    final int linger = config.getInt( "linger", GraphitePickleDescriptor.DEFAULT_LINGER );
+    return new PickleGraphiteService( new GraphitePickleDescriptor( descriptor, maxBatchBytes, maxBatchSize, linger ) );
+  }
+
+  /**
+   * @return true if the configuration contains a "destinations" list, in which case metrics are
+   * sharded across the destinations and the sinks must be built using buildShards or buildPickleShards.
+   */
+  public static boolean isSharded( final JsonObject config )
+  {
+    return config.containsKey( "destinations" );
+  }
+
+  /**
+   * Build a sink for each destination that sends the metrics placed on the destination using the
+   * plaintext protocol. The sinks are keyed on the label of the destination, in configuration order,
+   * and are expected to be registered separately so that each has its own queue and spill queue.
+   */
+  public static Map<String, MetricSink> buildShards( final JsonObject config )
+    throws Exception
+  {
+    return buildShards( config, false );
+  }
+
+  /**
+   * Build a sink for each destination that sends the metrics placed on the destination using the
+   * pickle protocol. The sinks are keyed on the label of the destination as in buildShards.
+   */
+  public static Map<String, MetricSink> buildPickleShards( final JsonObject config )
+    throws Exception
+  {
+    return buildShards( config, true );
+  }
+
+  private static Map<String, MetricSink> buildShards( final JsonObject config, final boolean pickle )
     throws Exception
   {
-    final String host = config.getString( "host" );
-    final int port = config.getInt( "port" );
+    final ConsistentHashRing.HashType hashType = parseHashType( config.getString( "hash_type", "carbon_ch" ) );
+    final JsonArray entries = config.getJsonArray( "destinations" );
+    final List<String> nodeKeys = new ArrayList<>();
+    final List<String> labels = new ArrayList<>();
+    for( int i = 0; i < entries.size(); i++ )
+    {
+      final String[] parts = splitDestination( entries.getString( i ) );
+      final String instance = parts.length > 2 ? parts[ 2 ] : null;
+      if( ConsistentHashRing.HashType.FNV1A_CH == hashType && null == instance )
+      {
+        throw new IllegalArgumentException( "Destination " + entries.getString( i ) +
+                                            " must specify an instance when using fnv1a_ch hashing" );
+      }
+      nodeKeys.add( ConsistentHashRing.toNodeKey( hashType, parts[ 0 ], instance ) );
+      final StringBuilder sb = new StringBuilder();
+      for( final String part : parts )
+      {
+        ConfigUtil.appendNameElement( sb, part );
+      }
+      final String label = sb.toString().replace( '.', '_' );
+      if( labels.contains( label ) )
+      {
+        throw new IllegalArgumentException( "Duplicate graphite destination " + entries.getString( i ) );
+      }
+      labels.add( label );
+    }
+    final List<GraphiteServiceDescriptor> descriptors = parseDestinations( config );
+    final int replicationFactor = config.getInt( "replication_factor", 1 );
+    if( replicationFactor < 1 )
+    {
+      throw new IllegalArgumentException( "Invalid replication factor " + replicationFactor );
+    }
+    final String prefix = config.getString( "prefix", null );
+
+    final LinkedHashMap<String, MetricSink> shards = new LinkedHashMap<>();
+    try
+    {
+      for( int i = 0; i < descriptors.size(); i++ )
+      {
+        final MetricSink destination =
+          pickle ? buildPickle( config, descriptors.get( i ) ) : build( config, descriptors.get( i ) );
+        // Each shard has its own ring as the ring is not thread safe and the shards are invoked concurrently
+        shards.put( labels.get( i ),
+                    new GraphiteShard( new ConsistentHashRing( hashType, nodeKeys ),
+                                       i,
+                                       replicationFactor,
+                                       prefix,
+                                       destination ) );
+      }
+      return shards;
+    }
+    catch( final Exception e )
+    {
+      close( shards.values() );
+      throw e;
+    }
+  }
+
+  /**
+   * Close the sinks built before a later destination failed to build so that their
+   * connections and threads are released.
+   */
+  private static void close( final Collection<MetricSink> destinations )
+  {
+    for( final MetricSink destination : destinations )
+    {
+      if( destination instanceof Closeable )
+      {
+        try
+        {
+          ( (Closeable) destination ).close();
+        }
+        catch( final IOException ioe )
+        {
+          // Ignored as the original failure is reported
+        }
+      }
+    }
+  }
+
+  /**
+   * Parse the "destinations" list. Each destination is specified as in carbon-relay using the
+   * form "host:port" or "host:port:instance".
+   */
+  private static List<GraphiteServiceDescriptor> parseDestinations( final JsonObject config )
+  {
+    final JsonArray entries = config.getJsonArray( "destinations" );
+    if( entries.isEmpty() )
+    {
+      throw new IllegalArgumentException( "No graphite destinations specified" );
+    }
+    final List<GraphiteServiceDescriptor> descriptors = new ArrayList<>();
+    for( int i = 0; i < entries.size(); i++ )
+    {
+      final String[] parts = splitDestination( entries.getString( i ) );
+      descriptors.add( parse( config, parts[ 0 ], Integer.parseInt( parts[ 1 ] ) ) );
+    }
+    return descriptors;
+  }
+
+  private static String[] splitDestination( final String destination )
+  {
+    final String[] parts = destination.split( ":" );
+    if( parts.length < 2 || parts.length > 3 )
+    {
+      throw new IllegalArgumentException( "Invalid graphite destination " + destination );
+    }
+    return parts;
+  }
+
+  private static ConsistentHashRing.HashType parseHashType( final String hashType )
+  {
+    switch( hashType )
+    {
+      case "carbon_ch":
+        return ConsistentHashRing.HashType.CARBON_CH;
+      case "fnv1a_ch":
+        return ConsistentHashRing.HashType.FNV1A_CH;
+      default:
+        throw new IllegalArgumentException( "Unknown hash type " + hashType );
+    }
+  }
+
+  private static GraphiteServiceDescriptor parse( final JsonObject config, final String host, final int port )
+  {
     final String prefix = config.getString( "prefix", null );
+    final int connectTimeout =
+      config.getInt( "connect_timeout", GraphiteServiceDescriptor.DEFAULT_CONNECT_TIMEOUT );
+    final int writeTimeout = config.getInt( "write_timeout", GraphiteServiceDescriptor.DEFAULT_WRITE_TIMEOUT );
+    final int maxReconnectDelay =
+      config.getInt( "max_reconnect_delay", (int) GraphiteServiceDescriptor.DEFAULT_MAX_RECONNECT_DELAY );
 
-    return new GraphiteServiceDescriptor( host, port, prefix );
+    return new GraphiteServiceDescriptor( host, port, prefix, connectTimeout, writeTimeout, maxReconnectDelay );
   }
 }
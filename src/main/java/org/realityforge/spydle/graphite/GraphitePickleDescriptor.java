@@ -0,0 +1,80 @@
+package org.realityforge.spydle.graphite;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Describes a graphite endpoint that receives metrics in batches via the pickle protocol.
+ */
+public final class GraphitePickleDescriptor
+{
+  public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+  public static final int DEFAULT_LINGER = 1000;
+  // Carbon rejects frames larger than this
+  public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+  @Nonnull
+  private final GraphiteServiceDescriptor _service;
+  private final int _maxBatchBytes;
+  private final int _maxBatchSize;
+  private final int _linger;
+
+  public GraphitePickleDescriptor( @Nonnull final GraphiteServiceDescriptor service,
+                                   final int maxBatchBytes,
+                                   final int maxBatchSize,
+                                   final int linger )
+  {
+    if( maxBatchBytes < 1024 || maxBatchBytes > MAX_FRAME_SIZE )
+    {
+      throw new IllegalArgumentException( "max_batch_bytes must be between 1024 and " + MAX_FRAME_SIZE );
+    }
+    if( maxBatchSize < 1 || linger < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid batch configuration: max_batch_size=" + maxBatchSize +
+                                          " linger=" + linger );
+    }
+    _service = service;
+    _maxBatchBytes = maxBatchBytes;
+    _maxBatchSize = maxBatchSize;
+    _linger = linger;
+  }
+
+  @Nonnull
+  public GraphiteServiceDescriptor getService()
+  {
+    return _service;
+  }
+
+  /**
+   * @return the maximum size of a frame in bytes.
+   */
+  public int getMaxBatchBytes()
+  {
+    return _maxBatchBytes;
+  }
+
+  /**
+   * @return the maximum number of metrics in a frame.
+   */
+  public int getMaxBatchSize()
+  {
+    return _maxBatchSize;
+  }
+
+  /**
+   * @return the maximum time in milliseconds that a metric is held before the batch is sent.
+   */
+  public int getLinger()
+  {
+    return _linger;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "GraphitePickle[" + _service +
+           ",maxBatchBytes=" + _maxBatchBytes +
+           ",maxBatchSize=" + _maxBatchSize +
+           ",linger=" + _linger + "]";
+  }
+}
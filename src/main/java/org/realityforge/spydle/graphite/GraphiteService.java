@@ -1,120 +1,68 @@
 package org.realityforge.spydle.graphite;
 
 import java.io.Closeable;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.Socket;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.Instrumented;
 import org.realityforge.spydle.MetricSink;
-import org.realityforge.spydle.MetricValue;
 import org.realityforge.spydle.MetricValueSet;
 
+/**
+ * A graphite sink that writes to the server using a blocking socket in the caller's thread.
+ * After a connection failure no attempt is made to send metrics until the backoff delay
+ * has expired and the metrics are discarded. The encoded metrics are shared with other
+ * plaintext sinks using the same prefix. The sink is instrumented with metrics describing
+ * the health of the connection.
+ */
 public final class GraphiteService
-  implements Closeable, MetricSink
+  implements Closeable, MetricSink, Instrumented
 {
-  private static final Logger LOG = Logger.getLogger( GraphiteService.class.getName() );
-
-  private final GraphiteServiceDescriptor _descriptor;
-  private OutputStream _outputStream;
-  private Socket _socket;
+  private final GraphiteConnection _connection;
+  @Nullable
+  private final String _prefix;
 
   public GraphiteService( @Nonnull final GraphiteServiceDescriptor descriptor )
   {
-    _descriptor = descriptor;
+    _connection = new GraphiteConnection( descriptor );
+    _prefix = descriptor.getPrefix();
   }
 
   @Override
   public boolean handleMetrics( @Nonnull final MetricValueSet metrics )
   {
-    final StringBuilder sb = new StringBuilder();
-    final String prefix = _descriptor.getPrefix();
-
-    for( final MetricValue metric : metrics.getMetrics() )
-    {
-      if( null != prefix )
-      {
-        sb.append( prefix );
-      }
-      sb.append( metric.getName() );
-      sb.append( ' ' );
-      sb.append( metric.getValue() );
-      sb.append( ' ' );
-      sb.append( toUnixEpoch( metrics.getCollectedAt() ) );
-      sb.append( '\n' );
-    }
-
-    try
+    // Metrics are not encoded while waiting to reconnect as they would be discarded
+    if( !_connection.isAvailable() )
     {
-      final byte[] bytes = sb.toString().getBytes( "US-ASCII" );
-      final OutputStream outputStream = acquireConnection();
-      outputStream.write( bytes );
-      outputStream.flush();
-      return true;
-    }
-    catch( final UnsupportedEncodingException uee )
-    {
-      LOG.log( Level.FINE, "Unable to convert message for graphite: " + sb, uee );
-      return false;
-    }
-    catch( final IOException ioe )
-    {
-      LOG.log( Level.FINE, "Error writing to graphite server: " + _descriptor, ioe );
-      close();
       return false;
     }
+    final EncodedPayload payload = EncodedPayload.get( EncodedPayload.Format.PLAINTEXT, _prefix, metrics );
+    return _connection.write( payload.getData(), 0, payload.getLength() );
   }
 
-  private OutputStream acquireConnection()
-    throws IOException
+  /**
+   * @return metrics describing the health of the connection.
+   */
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
   {
-    if( null != _socket )
-    {
-      if( _socket.isClosed() )
-      {
-        close();
-      }
-      else
-      {
-        try
-        {
-          _socket.getOutputStream();
-        }
-        catch( final IOException ioe )
-        {
-          close();
-        }
-      }
-    }
-    if( null == _socket )
-    {
-      final Socket socket = new Socket();
-      socket.connect( _descriptor.getSocketAddress() );
-      _socket = socket;
-    }
-    return _socket.getOutputStream();
+    return _connection.getStatistics().toMetricValueSet();
+  }
+
+  @Nonnull
+  GraphiteStatistics getConnectionStatistics()
+  {
+    return _connection.getStatistics();
   }
 
   public void close()
   {
-    if( null != _outputStream )
-    {
-      try
-      {
-        _outputStream.close();
-      }
-      catch( final IOException ioe )
-      {
-        //Ignored
-      }
-      _outputStream = null;
-    }
+    _connection.close();
   }
 
-  private long toUnixEpoch( final long timeInMillis )
+  @Override
+  public String toString()
   {
-    return timeInMillis / 1000;
+    return "GraphiteService[" + _connection.getDescriptor() + "]";
   }
 }
@@ -9,21 +9,41 @@ import javax.annotation.Nullable;
  */
 public final class GraphiteServiceDescriptor
 {
+  public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+  public static final int DEFAULT_WRITE_TIMEOUT = 10000;
+  public static final long DEFAULT_MAX_RECONNECT_DELAY = 60000;
+
   private final InetSocketAddress _socketAddress;
   @Nonnull
   private final String _host;
   private final int _port;
   @Nullable
   private final String _prefix;
+  private final int _connectTimeout;
+  private final int _writeTimeout;
+  private final long _maxReconnectDelay;
 
   public GraphiteServiceDescriptor( @Nonnull final String host,
                                     final int port,
-                                    @Nullable final String prefix )
+                                    @Nullable final String prefix,
+                                    final int connectTimeout,
+                                    final int writeTimeout,
+                                    final long maxReconnectDelay )
   {
     _host = host;
     _port = port;
     _socketAddress = new InetSocketAddress( host, port );
     _prefix = prefix;
+    _connectTimeout = connectTimeout;
+    _writeTimeout = writeTimeout;
+    _maxReconnectDelay = maxReconnectDelay;
+  }
+
+  public GraphiteServiceDescriptor( @Nonnull final String host,
+                                    final int port,
+                                    @Nullable final String prefix )
+  {
+    this( host, port, prefix, DEFAULT_CONNECT_TIMEOUT, DEFAULT_WRITE_TIMEOUT, DEFAULT_MAX_RECONNECT_DELAY );
   }
 
   @Nonnull
@@ -49,6 +69,30 @@ public final class GraphiteServiceDescriptor
     return _prefix;
   }
 
+  /**
+   * @return the maximum time in milliseconds to wait when connecting, 0 to wait indefinitely.
+   */
+  public int getConnectTimeout()
+  {
+    return _connectTimeout;
+  }
+
+  /**
+   * @return the maximum time in milliseconds to wait for a write to complete, 0 to wait indefinitely.
+   */
+  public int getWriteTimeout()
+  {
+    return _writeTimeout;
+  }
+
+  /**
+   * @return the maximum time in milliseconds to wait between attempts to reconnect.
+   */
+  public long getMaxReconnectDelay()
+  {
+    return _maxReconnectDelay;
+  }
+
   @Override
   public String toString()
   {
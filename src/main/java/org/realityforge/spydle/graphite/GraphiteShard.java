@@ -0,0 +1,153 @@
+package org.realityforge.spydle.graphite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.Instrumented;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.realityforge.spydle.util.SweptCache;
+
+/**
+ * A graphite sink for one destination of a cluster of carbon destinations. The sink forwards
+ * the metrics that the consistent hash ring, configured as in carbon-relay, places on its
+ * destination and accepts the remainder as they are delivered by the sinks of the other
+ * destinations. Each destination is registered as a separate sink so that it has its own
+ * queue, overflow policy and spill queue, and a destination that is slow or unavailable
+ * does not delay the others.
+ */
+final class GraphiteShard
+  implements Closeable, MetricSink, Instrumented
+{
+  // Time in milliseconds after which the placement of a metric that is no longer reported may be discarded
+  static final long PLACEMENT_CACHE_INTERVAL = 10 * 60 * 1000;
+
+  @Nonnull
+  private final ConsistentHashRing _ring;
+  private final int _index;
+  private final int _replicationFactor;
+  @Nullable
+  private final String _prefix;
+  @Nonnull
+  private final MetricSink _destination;
+  // True if every metric is placed on the destination so that sets can be forwarded without filtering
+  private final boolean _placesAll;
+  // Whether each metric is placed on the destination. Only accessed by the sink thread as the sink is never invoked concurrently
+  private final SweptCache<MetricName, Boolean> _placements = new SweptCache<>( PLACEMENT_CACHE_INTERVAL );
+
+  /**
+   * @param ring  the ring used to place metrics. The ring is not thread safe and must not be shared with other shards.
+   * @param index the index of the destination within the ring.
+   */
+  GraphiteShard( @Nonnull final ConsistentHashRing ring,
+                 final int index,
+                 final int replicationFactor,
+                 @Nullable final String prefix,
+                 @Nonnull final MetricSink destination )
+  {
+    if( index < 0 || index >= ring.getNodeCount() )
+    {
+      throw new IllegalArgumentException( "Invalid destination index " + index );
+    }
+    if( replicationFactor < 1 )
+    {
+      throw new IllegalArgumentException( "Invalid replication factor " + replicationFactor );
+    }
+    _ring = ring;
+    _index = index;
+    _replicationFactor = replicationFactor;
+    _prefix = prefix;
+    _destination = destination;
+    _placesAll = replicationFactor >= ring.getNodeCount();
+  }
+
+  /**
+   * Forward the metrics placed on the destination.
+   *
+   * @return false if the destination failed to accept its share of the metrics.
+   */
+  @Override
+  public boolean handleMetrics( @Nonnull final MetricValueSet metrics )
+  {
+    if( _placesAll )
+    {
+      return _destination.handleMetrics( metrics );
+    }
+    _placements.sweep( System.currentTimeMillis() );
+    MetricValueSetBuilder share = null;
+    final int size = metrics.size();
+    for( int i = 0; i < size; i++ )
+    {
+      final MetricName name = metrics.getMetricName( i );
+      if( isPlaced( name ) )
+      {
+        if( null == share )
+        {
+          share = new MetricValueSetBuilder();
+        }
+        if( metrics.isDouble( i ) )
+        {
+          share.add( name, metrics.getDoubleValue( i ) );
+        }
+        else
+        {
+          share.add( name, metrics.getLongValue( i ) );
+        }
+      }
+    }
+    return null == share || _destination.handleMetrics( share.build( metrics.getCollectedAt() ) );
+  }
+
+  /**
+   * @return the metrics reported by the destination.
+   */
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
+  {
+    return _destination instanceof Instrumented ?
+           ( (Instrumented) _destination ).getStatistics() :
+           new MetricValueSetBuilder( 0 ).build( System.currentTimeMillis() );
+  }
+
+  boolean isPlaced( @Nonnull final MetricName name )
+  {
+    Boolean placed = _placements.get( name );
+    if( null == placed )
+    {
+      final String key = null != _prefix ? _prefix + name.getName() : name.getName();
+      placed = Boolean.FALSE;
+      for( final int node : _ring.getNodes( key, _replicationFactor ) )
+      {
+        if( node == _index )
+        {
+          placed = Boolean.TRUE;
+          break;
+        }
+      }
+      _placements.put( name, placed );
+    }
+    return placed;
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    if( _destination instanceof Closeable )
+    {
+      ( (Closeable) _destination ).close();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "GraphiteShard[destination=" + _destination +
+           ",index=" + _index +
+           ",replicationFactor=" + _replicationFactor + "]";
+  }
+}
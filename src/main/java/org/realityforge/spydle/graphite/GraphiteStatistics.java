@@ -0,0 +1,104 @@
+package org.realityforge.spydle.graphite;
+
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+
+/**
+ * Statistics describing the health of the connection to a graphite server.
+ */
+final class GraphiteStatistics
+{
+  private final AtomicLong _connectCount = new AtomicLong();
+  private final AtomicLong _connectFailureCount = new AtomicLong();
+  private final AtomicLong _writeFailureCount = new AtomicLong();
+  private final AtomicLong _bytesSent = new AtomicLong();
+  private volatile boolean _connected;
+  // Time the connection was lost or 0 if the connection has not been lost
+  private volatile long _disconnectedAt;
+  // Time between losing the connection and reestablishing it, for the last reconnect
+  private volatile long _reconnectLatency;
+  private volatile long _backoffDelay;
+
+  void onConnect( final long now )
+  {
+    _connectCount.incrementAndGet();
+    _connected = true;
+    _backoffDelay = 0;
+    if( 0 != _disconnectedAt )
+    {
+      _reconnectLatency = now - _disconnectedAt;
+      _disconnectedAt = 0;
+    }
+  }
+
+  void onConnectFailure( final long now, final long backoffDelay )
+  {
+    _connectFailureCount.incrementAndGet();
+    _backoffDelay = backoffDelay;
+    if( 0 == _disconnectedAt )
+    {
+      _disconnectedAt = now;
+    }
+  }
+
+  void onWriteFailure( final long now )
+  {
+    _writeFailureCount.incrementAndGet();
+    if( _connected )
+    {
+      _connected = false;
+      _disconnectedAt = now;
+    }
+  }
+
+  void onDisconnect()
+  {
+    _connected = false;
+  }
+
+  void addBytesSent( final long bytes )
+  {
+    _bytesSent.addAndGet( bytes );
+  }
+
+  boolean isConnected()
+  {
+    return _connected;
+  }
+
+  long getConnectCount()
+  {
+    return _connectCount.get();
+  }
+
+  long getConnectFailureCount()
+  {
+    return _connectFailureCount.get();
+  }
+
+  long getWriteFailureCount()
+  {
+    return _writeFailureCount.get();
+  }
+
+  long getBytesSent()
+  {
+    return _bytesSent.get();
+  }
+
+  @Nonnull
+  MetricValueSet toMetricValueSet()
+  {
+    return new MetricValueSetBuilder().
+      add( "connected", _connected ? 1L : 0L ).
+      add( "connect_count", _connectCount.get() ).
+      add( "connect_failure_count", _connectFailureCount.get() ).
+      add( "write_failure_count", _writeFailureCount.get() ).
+      add( "bytes_sent", _bytesSent.get() ).
+      add( "reconnect_latency", _reconnectLatency ).
+      add( "backoff_delay", _backoffDelay ).
+      build( System.currentTimeMillis() );
+  }
+}
@@ -0,0 +1,519 @@
+package org.realityforge.spydle.graphite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.Instrumented;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.realityforge.spydle.util.ByteBufferPool;
+
+/**
+ * A graphite sink that copies the encoded metrics into pooled direct buffers and writes them
+ * to the server from a dedicated selector thread using a non-blocking channel.
+ * The caller is never blocked by a slow or unavailable server. If the server can
+ * not keep up and all the buffers are in use then new metrics are discarded.
+ */
+public final class NioGraphiteService
+  implements Closeable, MetricSink, Instrumented
+{
+  static final int BUFFER_SIZE = 64 * 1024;
+  static final int MAX_BUFFERS = 32;
+  // Maximum time to wait for the selector thread to exit when closing
+  private static final long CLOSE_TIMEOUT = 1000;
+
+  private static final Logger LOG = Logger.getLogger( NioGraphiteService.class.getName() );
+
+  @Nonnull
+  private final GraphiteServiceDescriptor _descriptor;
+  @Nullable
+  private final String _prefix;
+  @Nonnull
+  private final ByteBufferPool _pool;
+  // Filled buffers waiting to be written, in order. Added by producers and removed by the selector thread
+  private final ConcurrentLinkedQueue<ByteBuffer> _pending = new ConcurrentLinkedQueue<>();
+  @Nonnull
+  private final Selector _selector;
+  @Nonnull
+  private final Thread _thread;
+  private final AtomicLong _droppedCount = new AtomicLong();
+  private final GraphiteStatistics _statistics = new GraphiteStatistics();
+  private volatile boolean _closed;
+
+  // Buffers used to encode the current batch. Only accessed by the producer as sink is never invoked concurrently
+  private final ByteBuffer[] _batch = new ByteBuffer[ MAX_BUFFERS ];
+
+  // The remaining fields are only accessed by the selector thread
+  // Buffers being written to the channel via gathering writes
+  private final ByteBuffer[] _outbound = new ByteBuffer[ MAX_BUFFERS ];
+  private int _outboundCount;
+  private final ByteBuffer _readBuffer = ByteBuffer.allocate( 64 );
+  @Nullable
+  private SocketChannel _channel;
+  @Nullable
+  private SelectionKey _key;
+  @Nonnull
+  private final ConnectionBackoff _backoff;
+  private boolean _connected;
+  // Time by which the connect or the next write must complete or 0 if no deadline
+  private long _deadline;
+
+  public NioGraphiteService( @Nonnull final GraphiteServiceDescriptor descriptor )
+    throws IOException
+  {
+    this( descriptor, new ByteBufferPool( BUFFER_SIZE, MAX_BUFFERS ) );
+  }
+
+  NioGraphiteService( @Nonnull final GraphiteServiceDescriptor descriptor, @Nonnull final ByteBufferPool pool )
+    throws IOException
+  {
+    if( pool.getMaxBuffers() > MAX_BUFFERS )
+    {
+      throw new IllegalArgumentException( "Pool size exceeds " + MAX_BUFFERS );
+    }
+    _descriptor = descriptor;
+    _prefix = descriptor.getPrefix();
+    _pool = pool;
+    _backoff = new ConnectionBackoff( descriptor.getMaxReconnectDelay() );
+    _selector = Selector.open();
+    _thread = new Thread( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        runSelectorLoop();
+      }
+    }, "Spydle-Graphite-" + descriptor.getHost() + ":" + descriptor.getPort() );
+    _thread.setDaemon( true );
+    _thread.start();
+  }
+
+  /**
+   * Encode the metrics and queue them for writing by the selector thread.
+   *
+   * @return true if the metrics were queued, false if there was insufficient buffer space.
+   */
+  @Override
+  public boolean handleMetrics( @Nonnull final MetricValueSet metrics )
+  {
+    if( _closed )
+    {
+      return false;
+    }
+    final EncodedPayload payload = EncodedPayload.get( EncodedPayload.Format.PLAINTEXT, _prefix, metrics );
+    final byte[] data = payload.getData();
+    final int length = payload.getLength();
+    if( 0 == length )
+    {
+      return true;
+    }
+    // Lines may be split across buffers as the buffers are written to the channel in order
+    int batchSize = 0;
+    int offset = 0;
+    while( offset < length )
+    {
+      final ByteBuffer buffer = batchSize < _batch.length ? _pool.acquire() : null;
+      if( null == buffer )
+      {
+        for( int i = 0; i < batchSize; i++ )
+        {
+          _pool.release( _batch[ i ] );
+          _batch[ i ] = null;
+        }
+        _droppedCount.incrementAndGet();
+        LOG.fine( "Insufficient buffer space to queue metrics for " + _descriptor );
+        return false;
+      }
+      final int count = Math.min( buffer.remaining(), length - offset );
+      buffer.put( data, offset, count );
+      buffer.flip();
+      offset += count;
+      _batch[ batchSize++ ] = buffer;
+    }
+    for( int i = 0; i < batchSize; i++ )
+    {
+      _pending.add( _batch[ i ] );
+      _batch[ i ] = null;
+    }
+    _selector.wakeup();
+    return true;
+  }
+
+  /**
+   * @return the number of batches discarded due to insufficient buffer space.
+   */
+  public long getDroppedCount()
+  {
+    return _droppedCount.get();
+  }
+
+  /**
+   * @return metrics describing the health of the connection.
+   */
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
+  {
+    final MetricValueSet statistics = _statistics.toMetricValueSet();
+    final MetricValueSetBuilder builder = new MetricValueSetBuilder( statistics.size() + 2 );
+    for( int i = 0; i < statistics.size(); i++ )
+    {
+      builder.add( statistics.getMetricName( i ), statistics.getLongValue( i ) );
+    }
+    builder.add( "dropped_count", _droppedCount.get() );
+    builder.add( "buffers_in_use", _pool.getInUseCount() );
+    return builder.build( statistics.getCollectedAt() );
+  }
+
+  @Override
+  public void close()
+  {
+    _closed = true;
+    _selector.wakeup();
+    if( Thread.currentThread() != _thread )
+    {
+      try
+      {
+        _thread.join( CLOSE_TIMEOUT );
+      }
+      catch( final InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void runSelectorLoop()
+  {
+    try
+    {
+      while( !_closed )
+      {
+        try
+        {
+          final long timeout = updateConnection();
+          _selector.select( timeout );
+          final Iterator<SelectionKey> iterator = _selector.selectedKeys().iterator();
+          while( iterator.hasNext() )
+          {
+            final SelectionKey key = iterator.next();
+            iterator.remove();
+            if( key.isValid() && key.isConnectable() )
+            {
+              finishConnect();
+            }
+            if( key.isValid() && key.isReadable() )
+            {
+              read();
+            }
+            if( key.isValid() && key.isWritable() )
+            {
+              write();
+            }
+          }
+        }
+        catch( final IOException ioe )
+        {
+          onFailure( ioe );
+        }
+      }
+    }
+    finally
+    {
+      disconnect();
+      try
+      {
+        _selector.close();
+      }
+      catch( final IOException ioe )
+      {
+        //Ignored
+      }
+    }
+  }
+
+  /**
+   * Establish a connection if there is data to send, enforce timeouts and update the operations of interest.
+   *
+   * @return the maximum time to wait in the selector, 0 to wait indefinitely.
+   */
+  private long updateConnection()
+    throws IOException
+  {
+    final long now = System.currentTimeMillis();
+    if( null != _channel && !_connected )
+    {
+      return remainingTime( now, _deadline, "Timed out connecting" );
+    }
+    else if( _pending.isEmpty() && 0 == _outboundCount )
+    {
+      if( null != _key )
+      {
+        _key.interestOps( SelectionKey.OP_READ );
+      }
+      _deadline = 0;
+      return 0;
+    }
+    else if( null == _channel )
+    {
+      if( !_backoff.isAttemptAllowed( now ) )
+      {
+        return _backoff.getNextAttemptTime() - now;
+      }
+      connect( now );
+      return 0 == _deadline ? 0 : Math.max( 1, _deadline - now );
+    }
+    else
+    {
+      _key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+      if( 0 == _deadline )
+      {
+        _deadline = deadline( now, _descriptor.getWriteTimeout() );
+      }
+      return remainingTime( now, _deadline, "Timed out writing" );
+    }
+  }
+
+  private long remainingTime( final long now, final long deadline, final String message )
+    throws SocketTimeoutException
+  {
+    if( 0 == deadline )
+    {
+      return 0;
+    }
+    else if( now >= deadline )
+    {
+      throw new SocketTimeoutException( message + " to " + _descriptor );
+    }
+    else
+    {
+      return deadline - now;
+    }
+  }
+
+  private long deadline( final long now, final int timeout )
+  {
+    return 0 == timeout ? 0 : now + timeout;
+  }
+
+  private void connect( final long now )
+    throws IOException
+  {
+    final SocketChannel channel = SocketChannel.open();
+    _channel = channel;
+    channel.configureBlocking( false );
+    channel.setOption( StandardSocketOptions.TCP_NODELAY, Boolean.TRUE );
+    if( channel.connect( _descriptor.getSocketAddress() ) )
+    {
+      _key = channel.register( _selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+      onConnect();
+    }
+    else
+    {
+      _key = channel.register( _selector, SelectionKey.OP_CONNECT );
+      _deadline = deadline( now, _descriptor.getConnectTimeout() );
+    }
+  }
+
+  private void finishConnect()
+    throws IOException
+  {
+    if( null != _channel && _channel.finishConnect() )
+    {
+      _key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+      onConnect();
+    }
+  }
+
+  private void onConnect()
+  {
+    _connected = true;
+    _deadline = 0;
+    final long now = System.currentTimeMillis();
+    _backoff.onConnect( now );
+    _statistics.onConnect( now );
+  }
+
+  /**
+   * Graphite never sends data, so read only to detect the server closing the connection.
+   */
+  private void read()
+    throws IOException
+  {
+    _readBuffer.clear();
+    if( -1 == _channel.read( _readBuffer ) )
+    {
+      throw new IOException( "Connection closed by server" );
+    }
+  }
+
+  private void write()
+    throws IOException
+  {
+    ByteBuffer buffer;
+    while( _outboundCount < _outbound.length && null != ( buffer = _pending.poll() ) )
+    {
+      _outbound[ _outboundCount++ ] = buffer;
+    }
+    if( 0 == _outboundCount )
+    {
+      return;
+    }
+    final long bytes = _channel.write( _outbound, 0, _outboundCount );
+    if( bytes > 0 )
+    {
+      _statistics.addBytesSent( bytes );
+      _backoff.onSuccess( System.currentTimeMillis() );
+      // Writes time out if no progress is made rather than if the whole backlog is not written
+      _deadline = 0;
+    }
+
+    int written = 0;
+    while( written < _outboundCount && !_outbound[ written ].hasRemaining() )
+    {
+      _pool.release( _outbound[ written ] );
+      written++;
+    }
+    if( 0 != written )
+    {
+      System.arraycopy( _outbound, written, _outbound, 0, _outboundCount - written );
+      for( int i = _outboundCount - written; i < _outboundCount; i++ )
+      {
+        _outbound[ i ] = null;
+      }
+      _outboundCount -= written;
+    }
+  }
+
+  /**
+   * Close the connection after a failure and schedule a reconnect.
+   */
+  private void onFailure( @Nonnull final IOException ioe )
+  {
+    final long now = System.currentTimeMillis();
+    LOG.log( Level.FINE, "Error communicating with graphite server: " + _descriptor, ioe );
+    if( _connected )
+    {
+      _statistics.onWriteFailure( now );
+      _backoff.onFailure( now );
+    }
+    else
+    {
+      _backoff.onFailure( now );
+      _statistics.onConnectFailure( now, _backoff.getDelay() );
+    }
+    disconnect();
+  }
+
+  /**
+   * Close the connection. Queued data is retained and sent once a new connection is established.
+   * The partially written line is resent from its start so that a new connection does not start mid-line.
+   */
+  private void disconnect()
+  {
+    if( null != _channel )
+    {
+      try
+      {
+        _channel.close();
+      }
+      catch( final IOException ioe )
+      {
+        //Ignored
+      }
+      _channel = null;
+      _key = null;
+      _connected = false;
+      _deadline = 0;
+      _statistics.onDisconnect();
+    }
+    if( _closed )
+    {
+      for( int i = 0; i < _outboundCount; i++ )
+      {
+        _pool.release( _outbound[ i ] );
+        _outbound[ i ] = null;
+      }
+      _outboundCount = 0;
+      ByteBuffer buffer;
+      while( null != ( buffer = _pending.poll() ) )
+      {
+        _pool.release( buffer );
+      }
+    }
+    else
+    {
+      rewindPartialLine();
+    }
+  }
+
+  /**
+   * Rewind the partially written buffer to the start of the line being written.
+   * If the line started in a buffer that has already been released then the remainder of the line is skipped.
+   */
+  private void rewindPartialLine()
+  {
+    if( 0 == _outboundCount || 0 == _outbound[ 0 ].position() )
+    {
+      return;
+    }
+    final ByteBuffer partial = _outbound[ 0 ];
+    for( int i = partial.position() - 1; i >= 0; i-- )
+    {
+      if( '\n' == partial.get( i ) )
+      {
+        partial.position( i + 1 );
+        return;
+      }
+    }
+    // A line never exceeds a buffer so the rest of the line is in this or the following buffer
+    int skipped = 0;
+    while( skipped < _outboundCount )
+    {
+      final ByteBuffer buffer = _outbound[ skipped ];
+      boolean lineEnd = false;
+      while( !lineEnd && buffer.hasRemaining() )
+      {
+        lineEnd = '\n' == buffer.get();
+      }
+      if( buffer.hasRemaining() )
+      {
+        break;
+      }
+      _pool.release( buffer );
+      skipped++;
+      if( lineEnd )
+      {
+        break;
+      }
+    }
+    if( 0 != skipped )
+    {
+      System.arraycopy( _outbound, skipped, _outbound, 0, _outboundCount - skipped );
+      for( int i = _outboundCount - skipped; i < _outboundCount; i++ )
+      {
+        _outbound[ i ] = null;
+      }
+      _outboundCount -= skipped;
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "NioGraphiteService[" + _descriptor + "]";
+  }
+}
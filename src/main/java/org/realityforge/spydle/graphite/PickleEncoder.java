@@ -0,0 +1,129 @@
+package org.realityforge.spydle.graphite;
+
+import java.nio.ByteBuffer;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.MetricValueSet;
+
+/**
+ * Encodes metrics as a frame in the graphite pickle protocol. A frame is a 4 byte big-endian
+ * length followed by a list of (path, (timestamp, value)) tuples serialized with pickle protocol 2.
+ * Only opcodes that carbon's restricted unpickler accepts are used.
+ */
+final class PickleEncoder
+{
+  private static final byte PROTO = (byte) 0x80;
+  private static final byte PROTOCOL_VERSION = 2;
+  private static final byte EMPTY_LIST = ']';
+  private static final byte MARK = '(';
+  private static final byte APPENDS = 'e';
+  private static final byte BINUNICODE = 'X';
+  private static final byte BININT = 'J';
+  private static final byte LONG1 = (byte) 0x8a;
+  private static final byte BINFLOAT = 'G';
+  private static final byte TUPLE2 = (byte) 0x86;
+  private static final byte STOP = '.';
+
+  // Size of the length prefix and the opcodes before the first tuple
+  static final int FRAME_START_SIZE = 4 + 4;
+  // Size of the opcodes after the last tuple
+  static final int FRAME_END_SIZE = 2;
+
+  private PickleEncoder()
+  {
+  }
+
+  /**
+   * Start a frame at the current position of the buffer.
+   */
+  static void startFrame( @Nonnull final ByteBuffer buffer )
+  {
+    // Placeholder for the length which is written when the frame is completed
+    buffer.putInt( 0 );
+    buffer.put( PROTO );
+    buffer.put( PROTOCOL_VERSION );
+    buffer.put( EMPTY_LIST );
+    buffer.put( MARK );
+  }
+
+  /**
+   * Complete the frame that was started at the specified offset.
+   */
+  static void endFrame( @Nonnull final ByteBuffer buffer, final int frameOffset )
+  {
+    buffer.put( APPENDS );
+    buffer.put( STOP );
+    buffer.putInt( frameOffset, buffer.position() - frameOffset - 4 );
+  }
+
+  /**
+   * Encode a single metric as a tuple. Values that graphite can not represent (i.e. NaN and infinite values) are skipped.
+   *
+   * @return true if the metric was encoded.
+   * @throws java.nio.BufferOverflowException if the buffer has insufficient space.
+   */
+  static boolean encode( @Nonnull final ByteBuffer buffer,
+                         @Nullable final byte[] prefix,
+                         @Nonnull final MetricValueSet metrics,
+                         final int index,
+                         final long timestamp )
+  {
+    final boolean isDouble = metrics.isDouble( index );
+    if( isDouble )
+    {
+      final double value = metrics.getDoubleValue( index );
+      if( Double.isNaN( value ) || Double.isInfinite( value ) )
+      {
+        return false;
+      }
+    }
+    final byte[] name = metrics.getMetricName( index ).getEncoded();
+    buffer.put( BINUNICODE );
+    putIntLE( buffer, ( null != prefix ? prefix.length : 0 ) + name.length );
+    if( null != prefix )
+    {
+      buffer.put( prefix );
+    }
+    buffer.put( name );
+    putLong( buffer, timestamp );
+    if( isDouble )
+    {
+      buffer.put( BINFLOAT );
+      buffer.putDouble( metrics.getDoubleValue( index ) );
+    }
+    else
+    {
+      putLong( buffer, metrics.getLongValue( index ) );
+    }
+    buffer.put( TUPLE2 );
+    buffer.put( TUPLE2 );
+    return true;
+  }
+
+  private static void putLong( @Nonnull final ByteBuffer buffer, final long value )
+  {
+    if( value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE )
+    {
+      buffer.put( BININT );
+      putIntLE( buffer, (int) value );
+    }
+    else
+    {
+      // Little-endian two's complement, 8 bytes is always sufficient for a long
+      buffer.put( LONG1 );
+      buffer.put( (byte) 8 );
+      for( int i = 0; i < 8; i++ )
+      {
+        buffer.put( (byte) ( value >>> ( 8 * i ) ) );
+      }
+    }
+  }
+
+  private static void putIntLE( @Nonnull final ByteBuffer buffer, final int value )
+  {
+    buffer.put( (byte) value );
+    buffer.put( (byte) ( value >>> 8 ) );
+    buffer.put( (byte) ( value >>> 16 ) );
+    buffer.put( (byte) ( value >>> 24 ) );
+  }
+}
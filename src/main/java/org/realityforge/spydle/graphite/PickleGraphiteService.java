@@ -0,0 +1,333 @@
+package org.realityforge.spydle.graphite;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.Instrumented;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+
+/**
+ * A graphite sink that accumulates metrics from multiple metric sets into a batch that is
+ * sent as a single pickle protocol frame. A batch is sent when it reaches the maximum size
+ * in bytes or metrics, or when the oldest metric in the batch has waited for the linger time.
+ *
+ * <p>Metrics are accepted once they are added to a batch. If a batch can not be sent then it is
+ * retained and resent, in order, before any further metrics are accepted. While unsent batches
+ * remain handleMetrics returns false without accepting the metrics, so the caller can spill them.
+ * Unsent batches are discarded when the sink is closed.</p>
+ */
+public final class PickleGraphiteService
+  implements Closeable, MetricSink, Instrumented
+{
+  private static final Logger LOG = Logger.getLogger( PickleGraphiteService.class.getName() );
+
+  // Time after which an idle flusher thread is released
+  private static final int FLUSHER_KEEP_ALIVE = 60000;
+
+  @Nonnull
+  private final GraphitePickleDescriptor _descriptor;
+  @Nonnull
+  private final GraphiteConnection _connection;
+  @Nullable
+  private final String _prefix;
+  // Holds the frame being accumulated
+  @Nonnull
+  private final ByteBuffer _batch;
+  // Frames that could not be sent, oldest first
+  private final ArrayDeque<Frame> _unsent = new ArrayDeque<>();
+  // Thread used to send batches that have reached the linger time and retry unsent batches.
+  // Each sink has a separate thread so that a sink blocked connecting does not delay other sinks.
+  @Nonnull
+  private final ScheduledThreadPoolExecutor _flusher;
+  private final Runnable _lingerTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      flushExpired();
+    }
+  };
+  private final AtomicLong _sentCount = new AtomicLong();
+  private final AtomicLong _batchCount = new AtomicLong();
+  private final AtomicLong _droppedCount = new AtomicLong();
+  // Number of metrics in the current batch
+  private int _batchSize;
+  @Nullable
+  private Future<?> _lingerFuture;
+  private boolean _closed;
+
+  public PickleGraphiteService( @Nonnull final GraphitePickleDescriptor descriptor )
+  {
+    _descriptor = descriptor;
+    _connection = new GraphiteConnection( descriptor.getService() );
+    _prefix = descriptor.getService().getPrefix();
+    _batch = ByteBuffer.allocate( descriptor.getMaxBatchBytes() );
+    _batch.limit( descriptor.getMaxBatchBytes() - PickleEncoder.FRAME_END_SIZE );
+    PickleEncoder.startFrame( _batch );
+    final String name = "Graphite-Flusher-" + descriptor.getService().getHost() + ":" + descriptor.getService().getPort();
+    _flusher = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+    {
+      @Override
+      public Thread newThread( final Runnable r )
+      {
+        final Thread thread = new Thread( r, name );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+    _flusher.setRemoveOnCancelPolicy( true );
+    _flusher.setKeepAliveTime( FLUSHER_KEEP_ALIVE, TimeUnit.MILLISECONDS );
+    _flusher.allowCoreThreadTimeOut( true );
+  }
+
+  /**
+   * Add the metrics to the batch, sending any batches that become full.
+   * Batches that can not be sent are retained and resent before further metrics are accepted.
+   *
+   * @return false if the metrics were not accepted as earlier batches could not be sent.
+   */
+  @Override
+  public synchronized boolean handleMetrics( @Nonnull final MetricValueSet metrics )
+  {
+    if( _closed )
+    {
+      return false;
+    }
+    if( !sendUnsent() )
+    {
+      return false;
+    }
+    final EncodedPayload payload = EncodedPayload.get( EncodedPayload.Format.PICKLE, _prefix, metrics );
+    final byte[] data = payload.getData();
+    final int count = payload.getCount();
+    int start = 0;
+    int index = 0;
+    while( index < count )
+    {
+      final int end = payload.getEnd( index );
+      if( end - start > _batch.remaining() )
+      {
+        if( 0 == _batchSize )
+        {
+          LOG.warning( "Metric of " + ( end - start ) + " bytes too large to send to " + _descriptor );
+          start = end;
+          index++;
+        }
+        else
+        {
+          // Send the full batch and retry the metric in an empty batch
+          flush();
+        }
+        continue;
+      }
+      _batch.put( data, start, end - start );
+      onAdd();
+      start = end;
+      index++;
+      if( _batchSize >= _descriptor.getMaxBatchSize() )
+      {
+        flush();
+      }
+    }
+    if( 0 != _batchSize && 0 == _descriptor.getLinger() )
+    {
+      flush();
+    }
+    // Any batch that could not be sent is retained and the metrics have been accepted
+    return true;
+  }
+
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
+  {
+    final MetricValueSet statistics = _connection.getStatistics().toMetricValueSet();
+    final MetricValueSetBuilder builder = new MetricValueSetBuilder( statistics.size() + 3 );
+    for( int i = 0; i < statistics.size(); i++ )
+    {
+      final MetricName name = statistics.getMetricName( i );
+      builder.add( name, statistics.getLongValue( i ) );
+    }
+    builder.add( "sent_count", _sentCount.get() );
+    builder.add( "batch_count", _batchCount.get() );
+    builder.add( "dropped_count", _droppedCount.get() );
+    return builder.build( statistics.getCollectedAt() );
+  }
+
+  /**
+   * @return the number of metrics sent to the server.
+   */
+  long getSentCount()
+  {
+    return _sentCount.get();
+  }
+
+  /**
+   * @return the number of frames sent to the server.
+   */
+  long getBatchCount()
+  {
+    return _batchCount.get();
+  }
+
+  /**
+   * @return the number of metrics discarded as the batch containing them was not sent before the sink was closed.
+   */
+  long getDroppedCount()
+  {
+    return _droppedCount.get();
+  }
+
+  /**
+   * Send any unsent batches followed by the metrics in the current batch.
+   * If the current batch can not be sent it is retained to be resent.
+   *
+   * @return false if any batch could not be sent.
+   */
+  synchronized boolean flush()
+  {
+    if( null != _lingerFuture )
+    {
+      _lingerFuture.cancel( false );
+      _lingerFuture = null;
+    }
+    if( 0 == _batchSize )
+    {
+      return sendUnsent();
+    }
+    _batch.limit( _batch.capacity() );
+    PickleEncoder.endFrame( _batch, 0 );
+    final boolean sent;
+    if( sendUnsent() && _connection.write( _batch.array(), 0, _batch.position() ) )
+    {
+      _sentCount.addAndGet( _batchSize );
+      _batchCount.incrementAndGet();
+      sent = true;
+    }
+    else
+    {
+      _unsent.add( new Frame( Arrays.copyOf( _batch.array(), _batch.position() ), _batchSize ) );
+      scheduleRetry();
+      sent = false;
+    }
+    _batch.clear();
+    _batch.limit( _batch.capacity() - PickleEncoder.FRAME_END_SIZE );
+    PickleEncoder.startFrame( _batch );
+    _batchSize = 0;
+    return sent;
+  }
+
+  /**
+   * Send any pending metrics and close the connection.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if( !_closed )
+    {
+      flush();
+      _closed = true;
+      for( final Frame frame : _unsent )
+      {
+        _droppedCount.addAndGet( frame._size );
+      }
+      _unsent.clear();
+      _connection.close();
+      _flusher.shutdownNow();
+    }
+  }
+
+  /**
+   * Resend the batches that could not previously be sent, oldest first.
+   *
+   * @return true if there are no remaining unsent batches.
+   */
+  private boolean sendUnsent()
+  {
+    Frame frame;
+    while( null != ( frame = _unsent.peek() ) )
+    {
+      if( !_connection.write( frame._data, 0, frame._data.length ) )
+      {
+        scheduleRetry();
+        return false;
+      }
+      _unsent.poll();
+      _sentCount.addAndGet( frame._size );
+      _batchCount.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * Retry unsent batches after the linger time if the sink is not otherwise invoked.
+   * If the sink does not linger then unsent batches are retried when metrics are next received.
+   */
+  private void scheduleRetry()
+  {
+    final int linger = _descriptor.getLinger();
+    if( null == _lingerFuture && 0 != linger && !_closed )
+    {
+      _lingerFuture = _flusher.schedule( _lingerTask, linger, TimeUnit.MILLISECONDS );
+    }
+  }
+
+  private void onAdd()
+  {
+    if( 0 == _batchSize )
+    {
+      final int linger = _descriptor.getLinger();
+      // A pending retry of unsent batches also sends the new batch
+      if( 0 != linger && null == _lingerFuture )
+      {
+        _lingerFuture = _flusher.schedule( _lingerTask, linger, TimeUnit.MILLISECONDS );
+      }
+    }
+    _batchSize++;
+  }
+
+  private synchronized void flushExpired()
+  {
+    // The task is cancelled when the batch is sent, so any batch present is the one that has lingered
+    _lingerFuture = null;
+    if( !_closed )
+    {
+      flush();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "PickleGraphiteService[" + _descriptor + "]";
+  }
+
+  /**
+   * A complete frame that could not be sent.
+   */
+  private static final class Frame
+  {
+    @Nonnull
+    private final byte[] _data;
+    // Number of metrics in the frame
+    private final int _size;
+
+    Frame( @Nonnull final byte[] data, final int size )
+    {
+      _data = data;
+      _size = size;
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package org.realityforge.spydle.influx;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import javax.json.JsonObject;
+
+/**
+ * Utility class to interact with the InfluxSink.
+ */
+public final class InfluxKit
+{
+  private InfluxKit()
+  {
+  }
+
+  public static InfluxService build( final JsonObject config )
+    throws Exception
+  {
+    return new InfluxService( parse( config ) );
+  }
+
+  private static InfluxServiceDescriptor parse( final JsonObject config )
+    throws Exception
+  {
+    final URL url = new URL( config.getString( "url" ) );
+    final Map<String, String> tags = new HashMap<>();
+    if( config.containsKey( "tags" ) )
+    {
+      final JsonObject tagConfig = config.getJsonObject( "tags" );
+      for( final String key : tagConfig.keySet() )
+      {
+        tags.put( key, tagConfig.getString( key ) );
+      }
+    }
+    final boolean gzip = config.getBoolean( "gzip", true );
+    final int maxBatchBytes = config.getInt( "max_batch_bytes", InfluxServiceDescriptor.DEFAULT_MAX_BATCH_BYTES );
+    final int maxBatchSize = config.getInt( "max_batch_size", InfluxServiceDescriptor.DEFAULT_MAX_BATCH_SIZE );
+    final int linger = config.getInt( "linger", InfluxServiceDescriptor.DEFAULT_LINGER );
+    final int maxInFlight = config.getInt( "max_in_flight", InfluxServiceDescriptor.DEFAULT_MAX_IN_FLIGHT );
+    final int maxPending = config.getInt( "max_pending", InfluxServiceDescriptor.DEFAULT_MAX_PENDING );
+    final int maxRetries = config.getInt( "max_retries", InfluxServiceDescriptor.DEFAULT_MAX_RETRIES );
+    final int connectTimeout = config.getInt( "connect_timeout", InfluxServiceDescriptor.DEFAULT_CONNECT_TIMEOUT );
+    final int readTimeout = config.getInt( "read_timeout", InfluxServiceDescriptor.DEFAULT_READ_TIMEOUT );
+    return new InfluxServiceDescriptor( url,
+                                        tags,
+                                        gzip,
+                                        maxBatchBytes,
+                                        maxBatchSize,
+                                        linger,
+                                        maxInFlight,
+                                        maxPending,
+                                        maxRetries,
+                                        connectTimeout,
+                                        readTimeout );
+  }
+}
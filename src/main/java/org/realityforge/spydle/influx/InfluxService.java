@@ -0,0 +1,548 @@
+package org.realityforge.spydle.influx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.Instrumented;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.realityforge.spydle.util.SweptCache;
+
+/**
+ * A sink that accumulates metrics from multiple metric sets into batches that are sent to an
+ * InfluxDB compatible write endpoint in line protocol. A batch is sent when it reaches the
+ * maximum size in bytes or points, or when the oldest point in the batch has waited for the
+ * linger time.
+ *
+ * <p>Batches are compressed and posted by a pool of request threads, so at most max_in_flight
+ * requests are outstanding and the JDK keeps the connections alive between requests. Requests
+ * that fail with a 429 or 5xx response or an IO error are retried with an increasing delay.</p>
+ *
+ * <p>Points are accepted once they are added to a batch. A batch that can not be queued, because every
+ * request thread is busy and max_pending batches are waiting, or that exhausts its retries is retained
+ * and resubmitted before further metrics are accepted. While batches are retained, or the request
+ * threads are saturated, handleMetrics returns false without accepting the metrics so that the runtime
+ * can apply back-pressure. Retained batches are discarded when the sink is closed.</p>
+ */
+public final class InfluxService
+  implements Closeable, MetricSink, Instrumented
+{
+  private static final Logger LOG = Logger.getLogger( InfluxService.class.getName() );
+
+  static final long INITIAL_RETRY_DELAY = 100;
+  static final long MAX_RETRY_DELAY = 10000;
+  // Time in milliseconds after which the measurement of a metric that is no longer reported may be discarded
+  static final long MEASUREMENT_CACHE_INTERVAL = 10 * 60 * 1000;
+
+  // Thread used to send batches that have reached the linger time
+  private static final ScheduledThreadPoolExecutor c_flusher = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread thread = new Thread( r, "Influx-Flusher" );
+      thread.setDaemon( true );
+      return thread;
+    }
+  } );
+
+  static
+  {
+    c_flusher.setRemoveOnCancelPolicy( true );
+  }
+
+  @Nonnull
+  private final InfluxServiceDescriptor _descriptor;
+  @Nonnull
+  private final byte[] _tags;
+  // Escaped measurement of each metric
+  private final SweptCache<MetricName, byte[]> _measurements = new SweptCache<>( MEASUREMENT_CACHE_INTERVAL );
+  @Nonnull
+  private final ThreadPoolExecutor _sender;
+  private final Runnable _lingerTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      flushExpired();
+    }
+  };
+  private final AtomicLong _sentCount = new AtomicLong();
+  private final AtomicLong _requestCount = new AtomicLong();
+  private final AtomicLong _retryCount = new AtomicLong();
+  private final AtomicLong _failedCount = new AtomicLong();
+  private final AtomicLong _rejectedCount = new AtomicLong();
+  private final AtomicInteger _inFlight = new AtomicInteger();
+  // Number of batches submitted to the request threads that have not completed
+  private final AtomicInteger _outstanding = new AtomicInteger();
+  // Batches that have not been submitted or that exhausted their retries, oldest first
+  private final ArrayDeque<Batch> _unsent = new ArrayDeque<>();
+  // Holds the lines of the batch being accumulated
+  private final ByteArrayOutputStream _batch;
+  // Number of points in the current batch
+  private int _batchSize;
+  @Nullable
+  private Future<?> _lingerFuture;
+  private volatile boolean _closed;
+
+  public InfluxService( @Nonnull final InfluxServiceDescriptor descriptor )
+  {
+    _descriptor = descriptor;
+    _tags = LineProtocolEncoder.encodeTags( descriptor.getTags() );
+    _batch = new ByteArrayOutputStream( descriptor.getMaxBatchBytes() );
+    final BlockingQueue<Runnable> queue =
+      0 == descriptor.getMaxPending() ?
+      new SynchronousQueue<Runnable>() :
+      new ArrayBlockingQueue<Runnable>( descriptor.getMaxPending() );
+    final AtomicInteger threadIndex = new AtomicInteger();
+    _sender = new ThreadPoolExecutor( descriptor.getMaxInFlight(),
+                                      descriptor.getMaxInFlight(),
+                                      0,
+                                      TimeUnit.MILLISECONDS,
+                                      queue,
+                                      new ThreadFactory()
+                                      {
+                                        @Override
+                                        public Thread newThread( final Runnable r )
+                                        {
+                                          final Thread thread =
+                                            new Thread( r, "Spydle-Influx-" + threadIndex.incrementAndGet() );
+                                          thread.setDaemon( true );
+                                          return thread;
+                                        }
+                                      } );
+  }
+
+  /**
+   * Add the metrics to the batch, sending any batches that become full.
+   * Batches that can not be submitted are retained and resubmitted before further metrics are accepted.
+   *
+   * @return false if the metrics were not accepted as earlier batches have not been sent.
+   */
+  @Override
+  public synchronized boolean handleMetrics( @Nonnull final MetricValueSet metrics )
+  {
+    if( _closed )
+    {
+      return false;
+    }
+    if( !submitUnsent() || _outstanding.get() >= _descriptor.getMaxInFlight() + _descriptor.getMaxPending() )
+    {
+      _rejectedCount.incrementAndGet();
+      return false;
+    }
+    _measurements.sweep( System.currentTimeMillis() );
+    final int size = metrics.size();
+    for( int i = 0; i < size; i++ )
+    {
+      if( LineProtocolEncoder.encode( _batch, getMeasurement( metrics.getMetricName( i ) ), _tags, metrics, i ) )
+      {
+        onAdd();
+        if( _batchSize >= _descriptor.getMaxBatchSize() || _batch.size() >= _descriptor.getMaxBatchBytes() )
+        {
+          flush();
+        }
+      }
+    }
+    if( 0 != _batchSize && 0 == _descriptor.getLinger() )
+    {
+      flush();
+    }
+    // Any batch that could not be submitted is retained and the metrics have been accepted
+    return true;
+  }
+
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
+  {
+    return new MetricValueSetBuilder( 6 ).
+      add( "sent_count", _sentCount.get() ).
+      add( "request_count", _requestCount.get() ).
+      add( "retry_count", _retryCount.get() ).
+      add( "failed_count", _failedCount.get() ).
+      add( "rejected_count", _rejectedCount.get() ).
+      add( "in_flight", _inFlight.get() ).
+      build( System.currentTimeMillis() );
+  }
+
+  /**
+   * @return the number of points that have been accepted by the server.
+   */
+  long getSentCount()
+  {
+    return _sentCount.get();
+  }
+
+  long getRetryCount()
+  {
+    return _retryCount.get();
+  }
+
+  /**
+   * @return the number of batches discarded after a non-retryable response or when the sink was closed.
+   */
+  long getFailedCount()
+  {
+    return _failedCount.get();
+  }
+
+  /**
+   * @return the number of metric sets refused because earlier batches had not been sent.
+   */
+  long getRejectedCount()
+  {
+    return _rejectedCount.get();
+  }
+
+  /**
+   * Submit any retained batches followed by the current batch for sending.
+   * If a batch can not be submitted it is retained to be resubmitted.
+   *
+   * @return false if any batch could not be submitted.
+   */
+  synchronized boolean flush()
+  {
+    if( null != _lingerFuture )
+    {
+      _lingerFuture.cancel( false );
+      _lingerFuture = null;
+    }
+    if( 0 != _batchSize )
+    {
+      _unsent.add( new Batch( _batch.toByteArray(), _batchSize ) );
+      _batch.reset();
+      _batchSize = 0;
+    }
+    return submitUnsent();
+  }
+
+  /**
+   * Send any pending metrics and stop accepting new metrics. Requests that are
+   * outstanding are completed in the background but are not retried.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if( !_closed )
+    {
+      flush();
+      _closed = true;
+      _failedCount.addAndGet( _unsent.size() );
+      _unsent.clear();
+      _sender.shutdown();
+    }
+  }
+
+  /**
+   * Submit retained batches to the request threads, oldest first.
+   *
+   * @return true if there are no remaining retained batches.
+   */
+  private boolean submitUnsent()
+  {
+    Batch batch;
+    while( null != ( batch = _unsent.peek() ) )
+    {
+      final Batch submitted = batch;
+      _outstanding.incrementAndGet();
+      try
+      {
+        _sender.execute( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            sendBatch( submitted );
+          }
+        } );
+      }
+      catch( final RejectedExecutionException ree )
+      {
+        _outstanding.decrementAndGet();
+        LOG.fine( "Too many outstanding requests to " + _descriptor + ", retaining " + _unsent.size() + " batches" );
+        scheduleRetry();
+        return false;
+      }
+      _unsent.poll();
+    }
+    return true;
+  }
+
+  /**
+   * Resubmit retained batches after the linger time if the sink is not otherwise invoked.
+   * If the sink does not linger then retained batches are resubmitted when metrics are next received.
+   */
+  private void scheduleRetry()
+  {
+    final int linger = _descriptor.getLinger();
+    if( null == _lingerFuture && 0 != linger && !_closed )
+    {
+      _lingerFuture = c_flusher.schedule( _lingerTask, linger, TimeUnit.MILLISECONDS );
+    }
+  }
+
+  /**
+   * Send the batch and retain it if it exhausted its retries. Invoked by the request threads.
+   */
+  private void sendBatch( @Nonnull final Batch batch )
+  {
+    final boolean sent;
+    try
+    {
+      sent = send( batch._lines, batch._count );
+    }
+    finally
+    {
+      _outstanding.decrementAndGet();
+    }
+    synchronized( this )
+    {
+      if( !sent )
+      {
+        if( _closed )
+        {
+          _failedCount.incrementAndGet();
+        }
+        else
+        {
+          // Resent before newer batches. Not resubmitted immediately to avoid spinning against a failed server
+          _unsent.addFirst( batch );
+          scheduleRetry();
+        }
+      }
+      else if( !_unsent.isEmpty() && !_closed )
+      {
+        // The server is accepting requests so resubmit the batches retained while the request threads were busy
+        submitUnsent();
+      }
+    }
+  }
+
+  @Nonnull
+  private byte[] getMeasurement( @Nonnull final MetricName name )
+  {
+    byte[] measurement = _measurements.get( name );
+    if( null == measurement )
+    {
+      measurement = LineProtocolEncoder.encodeMeasurement( name.getName() );
+      _measurements.put( name, measurement );
+    }
+    return measurement;
+  }
+
+  private void onAdd()
+  {
+    if( 0 == _batchSize )
+    {
+      final int linger = _descriptor.getLinger();
+      // A pending retry of retained batches also sends the new batch
+      if( 0 != linger && null == _lingerFuture )
+      {
+        _lingerFuture = c_flusher.schedule( _lingerTask, linger, TimeUnit.MILLISECONDS );
+      }
+    }
+    _batchSize++;
+  }
+
+  private synchronized void flushExpired()
+  {
+    // The task is cancelled when the batch is sent, so any batch present is the one that has lingered
+    _lingerFuture = null;
+    if( !_closed )
+    {
+      flush();
+    }
+  }
+
+  /**
+   * Post the batch, retrying while the failure is transient. Invoked by the request threads.
+   *
+   * @return false if the batch exhausted its retries and should be retained.
+   */
+  private boolean send( @Nonnull final byte[] lines, final int count )
+  {
+    _inFlight.incrementAndGet();
+    try
+    {
+      final byte[] body = _descriptor.isGzip() ? gzip( lines ) : lines;
+      int attempt = 0;
+      while( true )
+      {
+        int status;
+        long retryAfter = -1;
+        try
+        {
+          final HttpURLConnection connection = (HttpURLConnection) _descriptor.getUrl().openConnection();
+          _requestCount.incrementAndGet();
+          status = post( connection, body );
+          retryAfter = parseRetryAfter( connection.getHeaderField( "Retry-After" ) );
+        }
+        catch( final IOException ioe )
+        {
+          LOG.log( Level.FINE, "Error writing to influx server: " + _descriptor, ioe );
+          status = -1;
+        }
+        if( status >= 200 && status < 300 )
+        {
+          _sentCount.addAndGet( count );
+          return true;
+        }
+        final boolean retryable = -1 == status || 429 == status || status >= 500;
+        if( !retryable )
+        {
+          _failedCount.incrementAndGet();
+          LOG.warning( "Failed to write " + count + " points to " + _descriptor + ". Status: " + status );
+          return true;
+        }
+        else if( attempt >= _descriptor.getMaxRetries() || _closed )
+        {
+          LOG.warning( "Failed to write " + count + " points to " + _descriptor + " after " + ( attempt + 1 ) +
+                       " attempts. Last status: " + status );
+          return false;
+        }
+        attempt++;
+        _retryCount.incrementAndGet();
+        final long delay = retryAfter >= 0 ? retryAfter : INITIAL_RETRY_DELAY << Math.min( attempt - 1, 16 );
+        try
+        {
+          Thread.sleep( Math.min( delay, MAX_RETRY_DELAY ) );
+        }
+        catch( final InterruptedException ie )
+        {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    finally
+    {
+      _inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * Post the body and consume the response so that the connection can be reused.
+   *
+   * @return the response status.
+   */
+  private int post( @Nonnull final HttpURLConnection connection, @Nonnull final byte[] body )
+    throws IOException
+  {
+    connection.setConnectTimeout( _descriptor.getConnectTimeout() );
+    connection.setReadTimeout( _descriptor.getReadTimeout() );
+    connection.setRequestMethod( "POST" );
+    connection.setDoOutput( true );
+    connection.setFixedLengthStreamingMode( body.length );
+    connection.setRequestProperty( "Content-Type", "text/plain; charset=utf-8" );
+    if( _descriptor.isGzip() )
+    {
+      connection.setRequestProperty( "Content-Encoding", "gzip" );
+    }
+    try ( final OutputStream output = connection.getOutputStream() )
+    {
+      output.write( body );
+    }
+    final int status = connection.getResponseCode();
+    final InputStream input = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+    if( null != input )
+    {
+      try
+      {
+        final byte[] buffer = new byte[ 1024 ];
+        while( -1 != input.read( buffer ) )
+        {
+          // Discard the response
+        }
+      }
+      finally
+      {
+        input.close();
+      }
+    }
+    return status;
+  }
+
+  /**
+   * @return the delay in milliseconds specified by a Retry-After header in seconds or -1 if not specified.
+   */
+  private static long parseRetryAfter( @Nullable final String value )
+  {
+    if( null != value )
+    {
+      try
+      {
+        return Long.parseLong( value.trim() ) * 1000;
+      }
+      catch( final NumberFormatException nfe )
+      {
+        // Retry-After may also be an HTTP date which is ignored
+      }
+    }
+    return -1;
+  }
+
+  @Nonnull
+  private static byte[] gzip( @Nonnull final byte[] data )
+  {
+    try
+    {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream( data.length / 4 + 32 );
+      try ( final GZIPOutputStream gzip = new GZIPOutputStream( output ) )
+      {
+        gzip.write( data );
+      }
+      return output.toByteArray();
+    }
+    catch( final IOException ioe )
+    {
+      // Can not occur when writing to memory
+      throw new IllegalStateException( ioe );
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "InfluxService[" + _descriptor + "]";
+  }
+
+  /**
+   * An encoded batch that has not yet been sent.
+   */
+  private static final class Batch
+  {
+    @Nonnull
+    private final byte[] _lines;
+    // Number of points in the batch
+    private final int _count;
+
+    Batch( @Nonnull final byte[] lines, final int count )
+    {
+      _lines = lines;
+      _count = count;
+    }
+  }
+}
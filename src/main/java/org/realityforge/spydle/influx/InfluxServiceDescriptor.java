@@ -0,0 +1,182 @@
+package org.realityforge.spydle.influx;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nonnull;
+
+/**
+ * Describes an InfluxDB compatible write endpoint that receives metrics in line protocol.
+ */
+public final class InfluxServiceDescriptor
+{
+  public static final int DEFAULT_MAX_BATCH_BYTES = 256 * 1024;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 5000;
+  public static final int DEFAULT_LINGER = 1000;
+  public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+  public static final int DEFAULT_MAX_PENDING = 8;
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+  public static final int DEFAULT_READ_TIMEOUT = 10000;
+
+  @Nonnull
+  private final URL _url;
+  @Nonnull
+  private final Map<String, String> _tags;
+  private final boolean _gzip;
+  private final int _maxBatchBytes;
+  private final int _maxBatchSize;
+  private final int _linger;
+  private final int _maxInFlight;
+  private final int _maxPending;
+  private final int _maxRetries;
+  private final int _connectTimeout;
+  private final int _readTimeout;
+
+  public InfluxServiceDescriptor( @Nonnull final URL url,
+                                  @Nonnull final Map<String, String> tags,
+                                  final boolean gzip,
+                                  final int maxBatchBytes,
+                                  final int maxBatchSize,
+                                  final int linger,
+                                  final int maxInFlight,
+                                  final int maxPending,
+                                  final int maxRetries,
+                                  final int connectTimeout,
+                                  final int readTimeout )
+  {
+    if( maxBatchBytes < 1024 || maxBatchSize < 1 || linger < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid batch configuration: max_batch_bytes=" + maxBatchBytes +
+                                          " max_batch_size=" + maxBatchSize + " linger=" + linger );
+    }
+    if( maxInFlight < 1 || maxPending < 0 || maxRetries < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid request configuration: max_in_flight=" + maxInFlight +
+                                          " max_pending=" + maxPending + " max_retries=" + maxRetries );
+    }
+    _url = url;
+    _tags = Collections.unmodifiableMap( new TreeMap<>( tags ) );
+    _gzip = gzip;
+    _maxBatchBytes = maxBatchBytes;
+    _maxBatchSize = maxBatchSize;
+    _linger = linger;
+    _maxInFlight = maxInFlight;
+    _maxPending = maxPending;
+    _maxRetries = maxRetries;
+    _connectTimeout = connectTimeout;
+    _readTimeout = readTimeout;
+  }
+
+  public InfluxServiceDescriptor( @Nonnull final URL url )
+  {
+    this( url,
+          Collections.<String, String>emptyMap(),
+          true,
+          DEFAULT_MAX_BATCH_BYTES,
+          DEFAULT_MAX_BATCH_SIZE,
+          DEFAULT_LINGER,
+          DEFAULT_MAX_IN_FLIGHT,
+          DEFAULT_MAX_PENDING,
+          DEFAULT_MAX_RETRIES,
+          DEFAULT_CONNECT_TIMEOUT,
+          DEFAULT_READ_TIMEOUT );
+  }
+
+  /**
+   * @return the write endpoint including any query parameters such as the database and precision.
+   */
+  @Nonnull
+  public URL getUrl()
+  {
+    return _url;
+  }
+
+  /**
+   * @return the tags added to every point, sorted by key.
+   */
+  @Nonnull
+  public Map<String, String> getTags()
+  {
+    return _tags;
+  }
+
+  /**
+   * @return true if request bodies are compressed.
+   */
+  public boolean isGzip()
+  {
+    return _gzip;
+  }
+
+  /**
+   * @return the size in bytes at which a batch is sent.
+   */
+  public int getMaxBatchBytes()
+  {
+    return _maxBatchBytes;
+  }
+
+  /**
+   * @return the maximum number of points in a batch.
+   */
+  public int getMaxBatchSize()
+  {
+    return _maxBatchSize;
+  }
+
+  /**
+   * @return the maximum time in milliseconds that a point is held before the batch is sent.
+   */
+  public int getLinger()
+  {
+    return _linger;
+  }
+
+  /**
+   * @return the maximum number of concurrent requests.
+   */
+  public int getMaxInFlight()
+  {
+    return _maxInFlight;
+  }
+
+  /**
+   * @return the maximum number of batches waiting for a request slot before new batches are rejected.
+   */
+  public int getMaxPending()
+  {
+    return _maxPending;
+  }
+
+  /**
+   * @return the maximum number of times a request is retried after a 429 or 5xx response or an IO error.
+   */
+  public int getMaxRetries()
+  {
+    return _maxRetries;
+  }
+
+  /**
+   * @return the maximum time in milliseconds to wait when connecting, 0 to wait indefinitely.
+   */
+  public int getConnectTimeout()
+  {
+    return _connectTimeout;
+  }
+
+  /**
+   * @return the maximum time in milliseconds to wait for a response, 0 to wait indefinitely.
+   */
+  public int getReadTimeout()
+  {
+    return _readTimeout;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Influx[url=" + _url + ",tags=" + _tags + "]";
+  }
+}
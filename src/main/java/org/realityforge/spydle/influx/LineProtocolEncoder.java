@@ -0,0 +1,110 @@
+package org.realityforge.spydle.influx;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import org.realityforge.spydle.MetricValueSet;
+
+/**
+ * Encodes metrics in the InfluxDB line protocol. Each metric is written as a point
+ * whose measurement is the metric name and whose single field is named "value".
+ */
+final class LineProtocolEncoder
+{
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+  private static final byte[] VALUE_FIELD = " value=".getBytes( UTF_8 );
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private LineProtocolEncoder()
+  {
+  }
+
+  /**
+   * Encode a single metric as a line in the output.
+   * Values that the line protocol can not represent (i.e. NaN and infinite values) are skipped.
+   *
+   * @param measurement the escaped measurement.
+   * @param tags        the escaped tags, each preceded by a comma.
+   * @return true if the metric was encoded.
+   */
+  static boolean encode( @Nonnull final ByteArrayOutputStream output,
+                         @Nonnull final byte[] measurement,
+                         @Nonnull final byte[] tags,
+                         @Nonnull final MetricValueSet metrics,
+                         final int index )
+  {
+    final String value;
+    if( metrics.isDouble( index ) )
+    {
+      final double doubleValue = metrics.getDoubleValue( index );
+      if( Double.isNaN( doubleValue ) || Double.isInfinite( doubleValue ) )
+      {
+        return false;
+      }
+      value = Double.toString( doubleValue );
+    }
+    else
+    {
+      // Integers are suffixed so that the field is stored as an integer rather than a float
+      value = metrics.getLongValue( index ) + "i";
+    }
+    output.write( measurement, 0, measurement.length );
+    output.write( tags, 0, tags.length );
+    output.write( VALUE_FIELD, 0, VALUE_FIELD.length );
+    putAscii( output, value );
+    output.write( ' ' );
+    putAscii( output, Long.toString( metrics.getCollectedAt() * NANOS_PER_MILLI ) );
+    output.write( '\n' );
+    return true;
+  }
+
+  /**
+   * Escape the metric name for use as a measurement.
+   */
+  @Nonnull
+  static byte[] encodeMeasurement( @Nonnull final String name )
+  {
+    return escape( name, false ).getBytes( UTF_8 );
+  }
+
+  /**
+   * Encode the tags as a sequence of ",key=value" elements in iteration order.
+   */
+  @Nonnull
+  static byte[] encodeTags( @Nonnull final Map<String, String> tags )
+  {
+    final StringBuilder sb = new StringBuilder();
+    for( final Map.Entry<String, String> entry : tags.entrySet() )
+    {
+      sb.append( ',' ).append( escape( entry.getKey(), true ) ).append( '=' ).append( escape( entry.getValue(), true ) );
+    }
+    return sb.toString().getBytes( UTF_8 );
+  }
+
+  @Nonnull
+  private static String escape( @Nonnull final String value, final boolean escapeEquals )
+  {
+    final int length = value.length();
+    final StringBuilder sb = new StringBuilder( length );
+    for( int i = 0; i < length; i++ )
+    {
+      final char c = value.charAt( i );
+      if( ',' == c || ' ' == c || ( escapeEquals && '=' == c ) )
+      {
+        sb.append( '\\' );
+      }
+      sb.append( c );
+    }
+    return sb.toString();
+  }
+
+  private static void putAscii( @Nonnull final ByteArrayOutputStream output, @Nonnull final String value )
+  {
+    final int length = value.length();
+    for( int i = 0; i < length; i++ )
+    {
+      output.write( value.charAt( i ) );
+    }
+  }
+}
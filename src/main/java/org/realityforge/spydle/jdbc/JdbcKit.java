@@ -17,10 +17,19 @@ public final class JdbcKit
   public static JdbcService build( final JsonObject config )
     throws Exception
   {
-    return new JdbcService( parse( config ) );
+    return build( config, 0 );
   }
 
-  private static JdbcTaskDescriptor parse( final JsonObject config )
+  /**
+   * @param timeout the maximum time in milliseconds to spend connecting or querying, or 0 for no limit.
+   */
+  public static JdbcService build( final JsonObject config, final int timeout )
+    throws Exception
+  {
+    return new JdbcService( parse( config, timeout ) );
+  }
+
+  private static JdbcTaskDescriptor parse( final JsonObject config, final int timeout )
     throws Exception
   {
     final String driver = config.getString( "driver" );
@@ -42,7 +51,9 @@ public final class JdbcKit
       }
     }
 
-    return new JdbcTaskDescriptor( connectionDescriptor, probes );
+    final int concurrency = config.getInt( "concurrency", 1 );
+
+    return new JdbcTaskDescriptor( connectionDescriptor, probes, timeout, concurrency );
   }
 
   private static JdbcProbeDescriptor parseQuery( final JsonObject config )
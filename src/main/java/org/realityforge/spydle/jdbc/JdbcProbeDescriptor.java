@@ -2,6 +2,8 @@ package org.realityforge.spydle.jdbc;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricNameCache;
 import org.realityforge.spydle.util.ConfigUtil;
 
 /**
@@ -12,6 +14,7 @@ public class JdbcProbeDescriptor
   private final String _query;
   private final String _keyColumn;
   private final String _namespace;
+  private final MetricNameCache _metricNames = new MetricNameCache();
 
   public JdbcProbeDescriptor( @Nonnull final String query,
                               @Nullable final String keyColumn,
@@ -40,6 +43,31 @@ public class JdbcProbeDescriptor
     return _namespace;
   }
 
+  /**
+   * Discard the cached names that have not been used since the previous sweep so that the names of
+   * key values that are no longer returned are released. Invoked once per poll.
+   */
+  public void sweepMetricNames()
+  {
+    _metricNames.sweep();
+  }
+
+  /**
+   * Return the interned name for the column, generating it on first use.
+   */
+  @Nonnull
+  public MetricName getMetricName( @Nullable final String keyValue, @Nonnull final String columnName )
+  {
+    final MetricName existing = _metricNames.get( keyValue, columnName );
+    if( null != existing )
+    {
+      return existing;
+    }
+    final MetricName name = MetricName.intern( generateKey( keyValue, columnName ) );
+    _metricNames.put( keyValue, columnName, name );
+    return name;
+  }
+
   public String generateKey( final String keyValue, final String columnName )
   {
     final StringBuilder sb = new StringBuilder();
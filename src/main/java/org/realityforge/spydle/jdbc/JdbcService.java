@@ -3,6 +3,9 @@ package org.realityforge.spydle.jdbc;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.net.SocketTimeoutException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
@@ -10,129 +13,343 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import org.realityforge.spydle.Abortable;
+import org.realityforge.spydle.Instrumented;
+import org.realityforge.spydle.MetricName;
 import org.realityforge.spydle.MetricSource;
-import org.realityforge.spydle.MetricValue;
 import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.realityforge.spydle.util.ParallelCollector;
 
 public final class JdbcService
-  implements Closeable, MetricSource
+  implements Closeable, MetricSource, Instrumented, Abortable
 {
   private static final Logger LOG = Logger.getLogger( JdbcService.class.getName() );
+  // Threads used to perform connections that may be abandoned and to abort connections
+  private static final ExecutorService c_connectExecutor = Executors.newCachedThreadPool( new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread thread = new Thread( r, "JDBC-Connect" );
+      thread.setDaemon( true );
+      return thread;
+    }
+  } );
 
   private final JdbcTaskDescriptor _descriptor;
-  private Connection _connection;
+  private final ParallelCollector _parallelCollector;
+  // Connections not in use by a probe. At most one connection is opened per concurrent probe.
+  private final ArrayDeque<Connection> _idleConnections = new ArrayDeque<>();
+  // Connections in use by a probe, guarded by the idle connections
+  private final HashSet<Connection> _busyConnections = new HashSet<>();
   private boolean _closed;
+  private volatile int _lastFailedProbeCount;
 
   public JdbcService( @Nonnull final JdbcTaskDescriptor descriptor )
   {
     _descriptor = descriptor;
+    _parallelCollector = new ParallelCollector( descriptor.getConcurrency() );
   }
 
   private Connection acquireConnection()
     throws IOException, SQLException
   {
-    if( _closed )
+    synchronized( _idleConnections )
     {
-      throw new EOFException();
+      if( _closed )
+      {
+        throw new EOFException();
+      }
+      Connection connection;
+      while( null != ( connection = _idleConnections.poll() ) )
+      {
+        if( !connection.isClosed() )
+        {
+          _busyConnections.add( connection );
+          return connection;
+        }
+      }
     }
-    if( null != _connection && _connection.isClosed() )
+    try
     {
-      _connection = null;
+      Class.forName( _descriptor.getConnection().getJdbcDriver() );
     }
-    if( null == _connection )
+    catch( ClassNotFoundException e )
     {
-      try
+      throw new IllegalStateException( "Missing or invalid JDBC Driver: " + _descriptor.getConnection().getJdbcDriver() );
+    }
+    final Connection connection = connect( _descriptor.getTimeout() );
+    synchronized( _idleConnections )
+    {
+      _busyConnections.add( connection );
+    }
+    return connection;
+  }
+
+  /**
+   * Connect to the database. If a timeout is specified the connection is attempted in a separate thread
+   * and abandoned if it does not complete in time. Drivers need not honour the login timeout nor respond to
+   * interrupts while blocked on a socket, so the timeout can not be enforced in the polling thread.
+   */
+  private Connection connect( final int timeout )
+    throws IOException, SQLException
+  {
+    final JdbcConnectionDescriptor descriptor = _descriptor.getConnection();
+    if( 0 == timeout )
+    {
+      return DriverManager.getConnection( descriptor.getJdbcURL(), descriptor.getUsername(), descriptor.getPassword() );
+    }
+    final ConnectTask task = new ConnectTask( descriptor );
+    final Future<Connection> future = c_connectExecutor.submit( task );
+    try
+    {
+      return future.get( timeout, TimeUnit.MILLISECONDS );
+    }
+    catch( final TimeoutException te )
+    {
+      task.abandon();
+      throw new SocketTimeoutException( "Timed out connecting to " + descriptor.getJdbcURL() + " after " + timeout + "ms" );
+    }
+    catch( final InterruptedException ie )
+    {
+      task.abandon();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted connecting to " + descriptor.getJdbcURL() );
+    }
+    catch( final ExecutionException ee )
+    {
+      final Throwable cause = ee.getCause();
+      if( cause instanceof SQLException )
       {
-        Class.forName( _descriptor.getConnection().getJdbcDriver() );
+        throw (SQLException) cause;
       }
-      catch( ClassNotFoundException e )
+      throw new IOException( "Error connecting to " + descriptor.getJdbcURL(), cause );
+    }
+  }
+
+  /**
+   * Return the connection to the idle connections unless it was aborted or the service closed.
+   */
+  private void releaseConnection( @Nonnull final Connection connection )
+  {
+    synchronized( _idleConnections )
+    {
+      if( _busyConnections.remove( connection ) && !_closed )
       {
-        throw new IllegalStateException( "Missing or invalid JDBC Driver: " + _descriptor.getConnection().getJdbcDriver() );
+        _idleConnections.add( connection );
+        return;
       }
-      _connection =
-        DriverManager.getConnection( _descriptor.getConnection().getJdbcURL(),
-                                     _descriptor.getConnection().getUsername(),
-                                     _descriptor.getConnection().getPassword() );
     }
-    return _connection;
+    closeConnection( connection );
   }
 
-  public void close()
+  private void discardConnection( @Nonnull final Connection connection )
   {
-    _closed = true;
-    doClose();
+    synchronized( _idleConnections )
+    {
+      _busyConnections.remove( connection );
+    }
+    closeConnection( connection );
   }
 
-  private void doClose()
+  /**
+   * Abort the connections in use by probes so that queries blocked reading from the database fail.
+   * Connection.abort releases the connection using the executor rather than blocking the caller.
+   */
+  @Override
+  public void abort()
   {
-    if( null != _connection )
+    final ArrayList<Connection> connections;
+    synchronized( _idleConnections )
+    {
+      connections = new ArrayList<>( _busyConnections );
+      _busyConnections.clear();
+    }
+    for( final Connection connection : connections )
     {
       try
       {
-        _connection.close();
+        connection.abort( c_connectExecutor );
       }
-      catch( final SQLException sqle )
+      catch( final SQLException | AbstractMethodError e )
       {
-        //Ignored
+        // The driver predates JDBC 4.1 so close the connection, which may block, in the background
+        c_connectExecutor.execute( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            closeConnection( connection );
+          }
+        } );
       }
-      _connection = null;
+    }
+  }
+
+  public void close()
+  {
+    final ArrayList<Connection> connections;
+    synchronized( _idleConnections )
+    {
+      _closed = true;
+      connections = new ArrayList<>( _idleConnections );
+      _idleConnections.clear();
+    }
+    for( final Connection connection : connections )
+    {
+      closeConnection( connection );
+    }
+  }
+
+  private static void closeConnection( @Nonnull final Connection connection )
+  {
+    try
+    {
+      connection.close();
+    }
+    catch( final SQLException sqle )
+    {
+      //Ignored
     }
   }
 
   @Override
   public MetricValueSet poll()
   {
-    final LinkedList<MetricValue> metrics = new LinkedList<>();
-    for( final JdbcProbeDescriptor probe : _descriptor.getProbes() )
+    final MetricValueSetBuilder metrics = new MetricValueSetBuilder();
+    final List<JdbcProbeDescriptor> probes = _descriptor.getProbes();
+    for( final JdbcProbeDescriptor probe : probes )
+    {
+      probe.sweepMetricNames();
+    }
+    final int failures = _parallelCollector.collect( probes, new ProbeCollector(), metrics );
+    _lastFailedProbeCount = failures;
+    // Partial results are still reported unless every probe failed
+    if( 0 != failures && failures == probes.size() )
+    {
+      return null;
+    }
+    return metrics.build( System.currentTimeMillis() );
+  }
+
+  /**
+   * @return the number of probes that failed in the most recent poll.
+   */
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
+  {
+    return new MetricValueSetBuilder( 1 ).
+      add( "failed_probe_count", _lastFailedProbeCount ).
+      build( System.currentTimeMillis() );
+  }
+
+  /**
+   * Queries each probe using a connection that is not in use by any other probe.
+   */
+  private final class ProbeCollector
+    implements ParallelCollector.Collector<JdbcProbeDescriptor>
+  {
+    @Override
+    public void collect( @Nonnull final MetricValueSetBuilder metrics, @Nonnull final JdbcProbeDescriptor probe )
+      throws Exception
     {
+      final Connection connection = acquireConnection();
       try
       {
-        collectJdbcQueryResults( metrics, acquireConnection(), probe );
+        collectJdbcQueryResults( metrics, connection, probe );
       }
       catch( final Exception e )
       {
-        LOG.log( Level.FINE, "Error querying MBeanServer: " + _descriptor.getConnection() + " Query: " + probe, e );
-        doClose();
-        return null;
+        // The connection may be unusable so discard it
+        discardConnection( connection );
+        throw e;
       }
+      releaseConnection( connection );
     }
 
-    return new MetricValueSet( metrics, System.currentTimeMillis() );
+    @Override
+    public void onFailure( @Nonnull final JdbcProbeDescriptor probe, @Nonnull final Exception e )
+    {
+      LOG.log( Level.FINE, "Error querying database: " + _descriptor.getConnection() + " Query: " + probe, e );
+    }
   }
 
-
-  private void collectJdbcQueryResults( final LinkedList<MetricValue> metrics,
+  private void collectJdbcQueryResults( final MetricValueSetBuilder metrics,
                                         final Connection connection,
                                         final JdbcProbeDescriptor probe )
-    throws SQLException, IOException
+    throws SQLException
   {
-    //TODO: Gracefully handle SQL exceptions and close resources correctly
-    final Statement statement = connection.createStatement();
-    final ResultSet resultSet = statement.executeQuery( probe.getQuery() );
-    final HashMap<String, Integer> columns = new HashMap<>();
+    try ( final Statement statement = connection.createStatement() )
+    {
+      final int timeout = _descriptor.getTimeout();
+      if( 0 != timeout )
+      {
+        // Query timeout is specified in seconds so round up
+        statement.setQueryTimeout( ( timeout + 999 ) / 1000 );
+      }
+      try ( final ResultSet resultSet = statement.executeQuery( probe.getQuery() ) )
+      {
+        collectJdbcQueryResults( metrics, probe, resultSet );
+      }
+    }
+  }
+
+  private void collectJdbcQueryResults( final MetricValueSetBuilder metrics,
+                                        final JdbcProbeDescriptor probe,
+                                        final ResultSet resultSet )
+    throws SQLException
+  {
+    final ArrayList<String> columnNames = new ArrayList<>();
     final ResultSetMetaData metaData = resultSet.getMetaData();
     final int columnCount = metaData.getColumnCount();
+    // Whether each collected column is read as double rather than long
+    final boolean[] doubleColumns = new boolean[ columnCount ];
+    // Whether each collected column is read as a decimal that is reported as long if integral
+    final boolean[] decimalColumns = new boolean[ columnCount ];
     for( int i = 1; i <= columnCount; i++ )
     {
       final int columnType = metaData.getColumnType( i );
       if( Types.TINYINT == columnType ||
-          Types.DECIMAL == columnType ||
-          Types.DOUBLE == columnType ||
-          Types.FLOAT == columnType ||
           Types.INTEGER == columnType ||
           Types.SMALLINT == columnType ||
-          Types.NUMERIC == columnType ||
           Types.BIGINT == columnType )
       {
-        columns.put( metaData.getColumnName( i ), i );
+        doubleColumns[ columnNames.size() ] = false;
+        columnNames.add( metaData.getColumnName( i ) );
+      }
+      else if( Types.DECIMAL == columnType || Types.NUMERIC == columnType )
+      {
+        // Integral values, such as COUNT(*) or NUMBER(19) keys, have no scale and are reported as long.
+        // Drivers report a scale of -127 for unconstrained Oracle NUMBER columns so the value is checked.
+        final boolean fractional = metaData.getScale( i ) > 0;
+        doubleColumns[ columnNames.size() ] = fractional;
+        decimalColumns[ columnNames.size() ] = !fractional;
+        columnNames.add( metaData.getColumnName( i ) );
+      }
+      else if( Types.DOUBLE == columnType || Types.FLOAT == columnType )
+      {
+        doubleColumns[ columnNames.size() ] = true;
+        columnNames.add( metaData.getColumnName( i ) );
       }
     }
+    final int size = columnNames.size();
     while( resultSet.next() )
     {
       final String key;
@@ -144,14 +361,97 @@ public final class JdbcService
       {
         key = null;
       }
-      for( final Map.Entry<String, Integer> entry : columns.entrySet() )
+      for( int i = 0; i < size; i++ )
+      {
+        final String columnName = columnNames.get( i );
+        if( decimalColumns[ i ] )
+        {
+          final BigDecimal value = resultSet.getBigDecimal( columnName );
+          if( null != value )
+          {
+            addDecimal( metrics, probe.getMetricName( key, columnName ), value );
+          }
+        }
+        else if( doubleColumns[ i ] )
+        {
+          final double value = resultSet.getDouble( columnName );
+          if( !resultSet.wasNull() )
+          {
+            metrics.add( probe.getMetricName( key, columnName ), value );
+          }
+        }
+        else
+        {
+          final long value = resultSet.getLong( columnName );
+          if( !resultSet.wasNull() )
+          {
+            metrics.add( probe.getMetricName( key, columnName ), value );
+          }
+        }
+      }
+    }
+  }
+
+  private static void addDecimal( @Nonnull final MetricValueSetBuilder metrics,
+                                  @Nonnull final MetricName name,
+                                  @Nonnull final BigDecimal value )
+  {
+    try
+    {
+      metrics.add( name, value.longValueExact() );
+    }
+    catch( final ArithmeticException ae )
+    {
+      // Fractional or too large for a long
+      metrics.add( name, value.doubleValue() );
+    }
+  }
+
+  /**
+   * Task that connects to a database and closes the connection if the connection was abandoned.
+   */
+  private static final class ConnectTask
+    implements Callable<Connection>
+  {
+    private final JdbcConnectionDescriptor _descriptor;
+    private Connection _connection;
+    private boolean _abandoned;
+
+    ConnectTask( @Nonnull final JdbcConnectionDescriptor descriptor )
+    {
+      _descriptor = descriptor;
+    }
+
+    @Override
+    public Connection call()
+      throws SQLException
+    {
+      final Connection connection =
+        DriverManager.getConnection( _descriptor.getJdbcURL(), _descriptor.getUsername(), _descriptor.getPassword() );
+      synchronized( this )
+      {
+        _connection = connection;
+        if( !_abandoned )
+        {
+          return connection;
+        }
+      }
+      closeConnection( connection );
+      return null;
+    }
+
+    void abandon()
+    {
+      final Connection connection;
+      synchronized( this )
+      {
+        _abandoned = true;
+        connection = _connection;
+      }
+      if( null != connection )
       {
-        final String columnName = entry.getKey();
-        final Object value = resultSet.getObject( columnName );
-        metrics.add( new MetricValue( probe.generateKey( key, columnName ), (Number) value ) );
+        closeConnection( connection );
       }
     }
-    resultSet.close();
-    statement.close();
   }
 }
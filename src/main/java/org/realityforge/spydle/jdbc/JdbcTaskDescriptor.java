@@ -12,12 +12,39 @@ public class JdbcTaskDescriptor
 {
   private final JdbcConnectionDescriptor _connection;
   private final List<JdbcProbeDescriptor> _probes;
+  private final int _timeout;
+  private final int _concurrency;
 
+  /**
+   * @param timeout     the maximum time in milliseconds to spend connecting or querying, or 0 for no limit.
+   * @param concurrency the maximum number of probes queried at once, each using a separate connection.
+   */
   public JdbcTaskDescriptor( @Nonnull final JdbcConnectionDescriptor connection,
-                             @Nonnull final List<JdbcProbeDescriptor> probes )
+                             @Nonnull final List<JdbcProbeDescriptor> probes,
+                             final int timeout,
+                             final int concurrency )
   {
+    if( concurrency < 1 )
+    {
+      throw new IllegalArgumentException( "Invalid concurrency " + concurrency );
+    }
     _connection = connection;
     _probes = Collections.unmodifiableList( new ArrayList<>( probes ) );
+    _timeout = timeout;
+    _concurrency = concurrency;
+  }
+
+  public JdbcTaskDescriptor( @Nonnull final JdbcConnectionDescriptor connection,
+                             @Nonnull final List<JdbcProbeDescriptor> probes,
+                             final int timeout )
+  {
+    this( connection, probes, timeout, 1 );
+  }
+
+  public JdbcTaskDescriptor( @Nonnull final JdbcConnectionDescriptor connection,
+                             @Nonnull final List<JdbcProbeDescriptor> probes )
+  {
+    this( connection, probes, 0 );
   }
 
   public JdbcConnectionDescriptor getConnection()
@@ -29,4 +56,14 @@ public class JdbcTaskDescriptor
   {
     return _probes;
   }
+
+  public int getTimeout()
+  {
+    return _timeout;
+  }
+
+  public int getConcurrency()
+  {
+    return _concurrency;
+  }
 }
@@ -0,0 +1,302 @@
+package org.realityforge.spydle.jmx;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nonnull;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * A connection to a JMX server shared by every source that reads from the server.
+ * The connector is established lazily and re-established by the first user to
+ * acquire it after it has failed, so concurrent users share a single handshake.
+ * The handshake is performed by a connect thread rather than while holding the lock
+ * of the connection, so that each user waits for it no longer than its own timeout
+ * and a user that is interrupted or aborted is not left blocked on the server.
+ *
+ * <p>The connection is only pinged if it has not been used successfully within
+ * the health check interval. Otherwise failures are detected when a remote call
+ * fails and the user invalidates the connector, or when the connector reports
+ * that it has failed.</p>
+ */
+final class JmxConnection
+  implements NotificationListener
+{
+  static final long HEALTH_CHECK_INTERVAL = 30 * 1000;
+
+  // Threads used to check and establish connectors and to close aborted connectors
+  private static final ExecutorService c_connectExecutor = Executors.newCachedThreadPool( new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread thread = new Thread( r, "JMX-Connect" );
+      thread.setDaemon( true );
+      return thread;
+    }
+  } );
+
+  @Nonnull
+  private final JmxConnectionDescriptor _descriptor;
+  // Guarded by the JmxConnectionPool
+  private int _referenceCount;
+  private JMXConnector _connector;
+  // The health check or connection attempt in progress, shared by the users waiting for a connector
+  private Future<JMXConnector> _pending;
+  private long _verifiedAt;
+  private int _connectCount;
+  private boolean _closed;
+
+  JmxConnection( @Nonnull final JmxConnectionDescriptor descriptor )
+  {
+    _descriptor = descriptor;
+  }
+
+  @Nonnull
+  JmxConnectionDescriptor getDescriptor()
+  {
+    return _descriptor;
+  }
+
+  int incReferenceCount()
+  {
+    return ++_referenceCount;
+  }
+
+  int decReferenceCount()
+  {
+    return --_referenceCount;
+  }
+
+  /**
+   * @return the number of times a connection to the server has been established.
+   */
+  synchronized int getConnectCount()
+  {
+    return _connectCount;
+  }
+
+  /**
+   * Return a connector to the server, connecting if there is no connector or the current connector fails the health check.
+   *
+   * @param timeout the maximum time in milliseconds to wait for the health check or connection, or 0 for no limit.
+   */
+  @Nonnull
+  JMXConnector getConnector( final int timeout )
+    throws IOException
+  {
+    final Future<JMXConnector> pending;
+    synchronized( this )
+    {
+      if( _closed )
+      {
+        throw new EOFException();
+      }
+      if( null != _connector && System.currentTimeMillis() - _verifiedAt < HEALTH_CHECK_INTERVAL )
+      {
+        return _connector;
+      }
+      if( null == _pending )
+      {
+        _pending = c_connectExecutor.submit( new Callable<JMXConnector>()
+        {
+          @Override
+          public JMXConnector call()
+            throws IOException
+          {
+            try
+            {
+              return establish( timeout );
+            }
+            finally
+            {
+              synchronized( JmxConnection.this )
+              {
+                _pending = null;
+              }
+            }
+          }
+        } );
+      }
+      pending = _pending;
+    }
+    return await( pending, timeout );
+  }
+
+  /**
+   * Record that a remote call using the connector succeeded so that it need not be pinged.
+   */
+  synchronized void verified( @Nonnull final JMXConnector connector )
+  {
+    if( connector == _connector )
+    {
+      _verifiedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Close the connector if it is still the current connector, forcing the next user to reconnect.
+   */
+  void invalidate( @Nonnull final JMXConnector connector )
+  {
+    synchronized( this )
+    {
+      if( connector != _connector )
+      {
+        return;
+      }
+      _connector = null;
+    }
+    closeConnector( connector );
+  }
+
+  /**
+   * Invalidate the connector in the background, so that calls blocked on the connector fail
+   * without the caller waiting on the server.
+   */
+  void abort( @Nonnull final JMXConnector connector )
+  {
+    c_connectExecutor.execute( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        invalidate( connector );
+      }
+    } );
+  }
+
+  /**
+   * Close the connection. Any connection attempt in progress closes its connector when it completes.
+   */
+  void close()
+  {
+    final JMXConnector connector;
+    synchronized( this )
+    {
+      _closed = true;
+      connector = _connector;
+      _connector = null;
+    }
+    if( null != connector )
+    {
+      closeConnector( connector );
+    }
+  }
+
+  @Override
+  public void handleNotification( final Notification notification, final Object handback )
+  {
+    final String type = notification.getType();
+    if( JMXConnectionNotification.FAILED.equals( type ) || JMXConnectionNotification.CLOSED.equals( type ) )
+    {
+      final Object source = notification.getSource();
+      if( source instanceof JMXConnector )
+      {
+        invalidate( (JMXConnector) source );
+      }
+    }
+  }
+
+  /**
+   * Ping the current connector and connect if there is no connector or the ping fails. Invoked on a
+   * connect thread by the first user to find that the connector must be checked.
+   */
+  @Nonnull
+  private JMXConnector establish( final int timeout )
+    throws IOException
+  {
+    final JMXConnector current;
+    synchronized( this )
+    {
+      current = _connector;
+    }
+    if( null != current )
+    {
+      try
+      {
+        current.getConnectionId();
+        verified( current );
+        return current;
+      }
+      catch( final IOException ioe )
+      {
+        invalidate( current );
+      }
+    }
+    final JMXConnector connector =
+      JMXConnectorFactory.connect( new JMXServiceURL( _descriptor.getURL() ), _descriptor.getEnvironment( timeout ) );
+    connector.addConnectionNotificationListener( this, null, null );
+    synchronized( this )
+    {
+      if( !_closed )
+      {
+        _connector = connector;
+        _verifiedAt = System.currentTimeMillis();
+        _connectCount++;
+        return connector;
+      }
+    }
+    // The connection was closed while connecting
+    closeConnector( connector );
+    throw new EOFException();
+  }
+
+  /**
+   * Wait for the health check or connection attempt. The attempt is not cancelled if the wait times out
+   * or is interrupted as other users may be waiting for it, and the connector it establishes is retained.
+   */
+  @Nonnull
+  private JMXConnector await( @Nonnull final Future<JMXConnector> pending, final int timeout )
+    throws IOException
+  {
+    try
+    {
+      return 0 == timeout ? pending.get() : pending.get( timeout, TimeUnit.MILLISECONDS );
+    }
+    catch( final TimeoutException te )
+    {
+      throw new SocketTimeoutException( "Timed out connecting to " + _descriptor.getURL() + " after " + timeout + "ms" );
+    }
+    catch( final InterruptedException ie )
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted connecting to " + _descriptor.getURL() );
+    }
+    catch( final ExecutionException ee )
+    {
+      final Throwable cause = ee.getCause();
+      if( cause instanceof IOException )
+      {
+        throw (IOException) cause;
+      }
+      throw new IOException( "Error connecting to " + _descriptor.getURL(), cause );
+    }
+  }
+
+  private static void closeConnector( @Nonnull final JMXConnector connector )
+  {
+    try
+    {
+      connector.close();
+    }
+    catch( final IOException ioe )
+    {
+      //Ignored
+    }
+  }
+}
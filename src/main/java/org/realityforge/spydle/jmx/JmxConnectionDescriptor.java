@@ -11,6 +11,9 @@ import javax.management.remote.JMXConnector;
  */
 public final class JmxConnectionDescriptor
 {
+  // Environment key used to specify socket factory when looking up the RMI registry
+  private static final String RMI_SOCKET_FACTORY = "com.sun.jndi.rmi.factory.socket";
+
   private final String _host;
   private final int _port;
   @Nullable
@@ -64,11 +67,54 @@ public final class JmxConnectionDescriptor
 
   public Map<String, ?> getEnvironment()
   {
-    final Map<String, String[]> environment = new HashMap<>();
+    return getEnvironment( 0 );
+  }
+
+  /**
+   * @param timeout the timeout in milliseconds applied to sockets used to lookup the server, or 0 for no timeout.
+   */
+  public Map<String, ?> getEnvironment( final int timeout )
+  {
+    final Map<String, Object> environment = new HashMap<>();
     if( null != getUsername() && null != getPassword() )
     {
       environment.put( JMXConnector.CREDENTIALS, new String[]{ getUsername(), getPassword() } );
     }
+    if( 0 != timeout )
+    {
+      environment.put( RMI_SOCKET_FACTORY, new TimeoutRMIClientSocketFactory( timeout ) );
+    }
     return environment;
   }
+
+  /**
+   * Descriptors are equal if they describe the same server and credentials, so that connections can be shared.
+   */
+  @Override
+  public boolean equals( final Object o )
+  {
+    if( this == o )
+    {
+      return true;
+    }
+    else if( !( o instanceof JmxConnectionDescriptor ) )
+    {
+      return false;
+    }
+    final JmxConnectionDescriptor other = (JmxConnectionDescriptor) o;
+    return getURL().equals( other.getURL() ) &&
+           equal( _username, other._username ) &&
+           equal( _password, other._password );
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return 31 * getURL().hashCode() + ( null == _username ? 0 : _username.hashCode() );
+  }
+
+  private static boolean equal( @Nullable final String s1, @Nullable final String s2 )
+  {
+    return null == s1 ? null == s2 : s1.equals( s2 );
+  }
 }
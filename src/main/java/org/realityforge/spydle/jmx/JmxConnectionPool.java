@@ -0,0 +1,57 @@
+package org.realityforge.spydle.jmx;
+
+import java.util.HashMap;
+import javax.annotation.Nonnull;
+
+/**
+ * Process wide pool of JMX connections keyed by the server URL and credentials.
+ * Sources that read from the same server share a single reference counted
+ * connection which is closed when the last source releases it.
+ */
+final class JmxConnectionPool
+{
+  private static final JmxConnectionPool c_instance = new JmxConnectionPool();
+
+  private final HashMap<JmxConnectionDescriptor, JmxConnection> _connections = new HashMap<>();
+
+  @Nonnull
+  static JmxConnectionPool getInstance()
+  {
+    return c_instance;
+  }
+
+  @Nonnull
+  synchronized JmxConnection acquire( @Nonnull final JmxConnectionDescriptor descriptor )
+  {
+    JmxConnection connection = _connections.get( descriptor );
+    if( null == connection )
+    {
+      connection = new JmxConnection( descriptor );
+      _connections.put( descriptor, connection );
+    }
+    connection.incReferenceCount();
+    return connection;
+  }
+
+  void release( @Nonnull final JmxConnection connection )
+  {
+    synchronized( this )
+    {
+      if( 0 != connection.decReferenceCount() )
+      {
+        return;
+      }
+      _connections.remove( connection.getDescriptor() );
+    }
+    // Closed after releasing the lock as closing may block on the server
+    connection.close();
+  }
+
+  /**
+   * @return the number of servers with at least one user.
+   */
+  synchronized int getConnectionCount()
+  {
+    return _connections.size();
+  }
+}
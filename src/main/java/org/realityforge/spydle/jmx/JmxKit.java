@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import javax.json.JsonObject;
+import javax.json.JsonString;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 
@@ -19,11 +20,65 @@ public final class JmxKit
   public static JmxService build( final JsonObject config )
     throws Exception
   {
-    return new JmxService( parse( config ) );
+    return build( config, 0 );
   }
 
-  private static JmxTaskDescriptor parse( final JsonObject config )
+  /**
+   * @param timeout the maximum time in milliseconds to spend connecting or querying, or 0 for no limit.
+   */
+  public static JmxService build( final JsonObject config, final int timeout )
     throws Exception
+  {
+    return new JmxService( parse( config, timeout ) );
+  }
+
+  /**
+   * Build a service that reads the platform MBeanServer of this JVM rather than connecting to a remote server.
+   *
+   * @param timeout the maximum time in milliseconds to spend querying, or 0 for no limit.
+   */
+  public static JmxService buildLocal( final JsonObject config, final int timeout )
+    throws Exception
+  {
+    return new JmxService( parse( config, null, timeout ) );
+  }
+
+  /**
+   * Build a service that publishes metrics from the notifications emitted by MBeans in a remote server.
+   *
+   * @param timeout the maximum time in milliseconds to spend connecting, or 0 for no limit.
+   */
+  public static JmxNotificationService buildNotification( final JsonObject config, final int timeout )
+    throws Exception
+  {
+    return new JmxNotificationService( parseNotification( config, parseConnection( config ), timeout ) );
+  }
+
+  /**
+   * Build a service that publishes metrics from the notifications emitted by MBeans in the platform MBeanServer.
+   */
+  public static JmxNotificationService buildLocalNotification( final JsonObject config )
+    throws Exception
+  {
+    return new JmxNotificationService( parseNotification( config, null, 0 ) );
+  }
+
+  private static JmxNotificationDescriptor parseNotification( final JsonObject config,
+                                                              final JmxConnectionDescriptor connectionDescriptor,
+                                                              final int timeout )
+    throws Exception
+  {
+    final int window = config.getInt( "window", JmxNotificationDescriptor.DEFAULT_WINDOW );
+    return new JmxNotificationDescriptor( connectionDescriptor, parseProbes( config ), window, timeout );
+  }
+
+  private static JmxTaskDescriptor parse( final JsonObject config, final int timeout )
+    throws Exception
+  {
+    return parse( config, parseConnection( config ), timeout );
+  }
+
+  private static JmxConnectionDescriptor parseConnection( final JsonObject config )
   {
     final String host = config.getString( "host" );
     final int port = config.getInt( "port" );
@@ -31,8 +86,12 @@ public final class JmxKit
     final String username = config.getString( "username", null );
     final String password = config.getString( "password", null );
 
-    final JmxConnectionDescriptor connectionDescriptor = new JmxConnectionDescriptor( host, port, username, password );
+    return new JmxConnectionDescriptor( host, port, username, password );
+  }
 
+  private static List<JmxProbeDescriptor> parseProbes( final JsonObject config )
+    throws Exception
+  {
     final List<JmxProbeDescriptor> probes = new ArrayList<>();
 
     if ( config.containsKey( "probes" ) )
@@ -42,8 +101,24 @@ public final class JmxKit
         probes.add( parseQuery( (JsonObject) queryConfig ) );
       }
     }
+    return probes;
+  }
+
+  private static JmxTaskDescriptor parse( final JsonObject config,
+                                          final JmxConnectionDescriptor connectionDescriptor,
+                                          final int timeout )
+    throws Exception
+  {
+    final List<JmxProbeDescriptor> probes = parseProbes( config );
+
+    final long metadataTtl =
+      config.containsKey( "metadata_ttl" ) ?
+      config.getJsonNumber( "metadata_ttl" ).longValue() :
+      JmxTaskDescriptor.DEFAULT_METADATA_TTL;
+
+    final int concurrency = config.getInt( "concurrency", 1 );
 
-    return new JmxTaskDescriptor( connectionDescriptor, probes );
+    return new JmxTaskDescriptor( connectionDescriptor, probes, timeout, metadataTtl, concurrency );
   }
 
   private static JmxProbeDescriptor parseQuery( final JsonObject config )
@@ -54,9 +129,9 @@ public final class JmxKit
     if ( config.containsKey( "attribute_names" ) )
     {
       attributeNames = new HashSet<>();
-      for ( final Object attributeName : config.getJsonArray( "attribute_names" ) )
+      for ( final JsonString attributeName : config.getJsonArray( "attribute_names" ).getValuesAs( JsonString.class ) )
       {
-        attributeNames.add( attributeName.toString() );
+        attributeNames.add( attributeName.getString() );
       }
     }
     else
@@ -68,9 +143,9 @@ public final class JmxKit
     if ( config.containsKey( "name_components" ) )
     {
       nameComponents = new ArrayList<>();
-      for ( final Object nameComponent : config.getJsonArray( "name_components" ) )
+      for ( final JsonString nameComponent : config.getJsonArray( "name_components" ).getValuesAs( JsonString.class ) )
       {
-        nameComponents.add( nameComponent.toString() );
+        nameComponents.add( nameComponent.getString() );
       }
     }
     else
@@ -0,0 +1,67 @@
+package org.realityforge.spydle.jmx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Describes a set of MBeans whose notifications are converted into metrics as they are emitted.
+ */
+public final class JmxNotificationDescriptor
+{
+  public static final int DEFAULT_WINDOW = 1000;
+
+  @Nullable
+  private final JmxConnectionDescriptor _connection;
+  private final List<JmxProbeDescriptor> _probes;
+  private final int _window;
+  private final int _timeout;
+
+  /**
+   * @param connection the server to connect to, or null to subscribe to the platform MBeanServer of this JVM.
+   * @param probes     the MBeans to subscribe to. If a probe specifies attribute names then only attribute
+   *                   change notifications for those attributes are received.
+   * @param window     the time in milliseconds over which notifications are coalesced before being published.
+   * @param timeout    the maximum time in milliseconds to spend connecting, or 0 for no limit.
+   */
+  public JmxNotificationDescriptor( @Nullable final JmxConnectionDescriptor connection,
+                                    @Nonnull final List<JmxProbeDescriptor> probes,
+                                    final int window,
+                                    final int timeout )
+  {
+    if( window <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid window " + window );
+    }
+    _connection = connection;
+    _probes = Collections.unmodifiableList( new ArrayList<>( probes ) );
+    _window = window;
+    _timeout = timeout;
+  }
+
+  /**
+   * @return the server to connect to, or null if subscribing to the platform MBeanServer of this JVM.
+   */
+  @Nullable
+  public JmxConnectionDescriptor getConnection()
+  {
+    return _connection;
+  }
+
+  public List<JmxProbeDescriptor> getProbes()
+  {
+    return _probes;
+  }
+
+  public int getWindow()
+  {
+    return _window;
+  }
+
+  public int getTimeout()
+  {
+    return _timeout;
+  }
+}
@@ -0,0 +1,689 @@
+package org.realityforge.spydle.jmx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.AttributeChangeNotification;
+import javax.management.AttributeChangeNotificationFilter;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import org.realityforge.spydle.Instrumented;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricPublisher;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+
+/**
+ * Publishes metrics derived from the notifications emitted by MBeans rather than polling attributes.
+ *
+ * <p>The new value of an AttributeChangeNotification is reported under the attribute name. For other
+ * notifications the numeric items of CompositeData user data, such as the duration of a collection in
+ * a GC notification, are reported under the item name. Notifications are coalesced over a short window,
+ * keeping the most recent value of each metric, the maximum value of each metric with the suffix "_max"
+ * so that a spike within the window is not lost, and the number of notifications from each MBean, and
+ * published when the window closes.</p>
+ *
+ * <p>MBeans registered after the service starts are subscribed as they are registered. The subscriptions
+ * are checked periodically and re-established if the shared connection is replaced. Subscribing and
+ * unsubscribing are performed on a thread owned by the service so that a server that is slow or hung
+ * delays neither other services nor closing the service.</p>
+ */
+public final class JmxNotificationService
+  implements MetricPublisher, Instrumented, Closeable
+{
+  static final String NOTIFICATION_COUNT = "notification_count";
+  static final String MAX_SUFFIX = "_max";
+
+  private static final Logger LOG = Logger.getLogger( JmxNotificationService.class.getName() );
+
+  // Thread that publishes coalesced notifications when a window closes
+  private static final ScheduledThreadPoolExecutor c_publisher = newExecutor( "JMX-Notification-Publisher" );
+
+  private static ScheduledThreadPoolExecutor newExecutor( @Nonnull final String name )
+  {
+    final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+    {
+      @Override
+      public Thread newThread( final Runnable r )
+      {
+        final Thread thread = new Thread( r, name );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+    executor.setRemoveOnCancelPolicy( true );
+    return executor;
+  }
+
+  @Nonnull
+  private final JmxNotificationDescriptor _descriptor;
+  // The shared connection to a remote server, or null if subscribing to the platform MBeanServer
+  @Nullable
+  private final JmxConnection _connection;
+  private final NotificationListener _notificationListener = new NotificationListener()
+  {
+    @Override
+    public void handleNotification( final Notification notification, final Object handback )
+    {
+      record( (Subscription) handback, notification );
+    }
+  };
+  private final NotificationListener _registrationListener = new NotificationListener()
+  {
+    @Override
+    public void handleNotification( final Notification notification, final Object handback )
+    {
+      if( MBeanServerNotification.REGISTRATION_NOTIFICATION.equals( notification.getType() ) &&
+          isMatched( ( (MBeanServerNotification) notification ).getMBeanName() ) )
+      {
+        // Subscribing is a remote call that must not be made on the thread delivering notifications
+        scheduleCheck( 0 );
+      }
+    }
+  };
+  private final NotificationListener _connectionListener = new NotificationListener()
+  {
+    @Override
+    public void handleNotification( final Notification notification, final Object handback )
+    {
+      if( !JMXConnectionNotification.OPENED.equals( notification.getType() ) )
+      {
+        // Registrations may have been missed or the connection failed
+        scheduleCheck( 0 );
+      }
+    }
+  };
+
+  // Thread that subscribes to MBeans, separate from the publisher as subscribing may block on the network
+  private final ScheduledThreadPoolExecutor _subscriber;
+
+  // State guarded by the subscription lock, which is never held while calling the server
+  private final Object _subscriptionLock = new Object();
+  private boolean _closed;
+  private MetricSink _sink;
+  private ScheduledFuture<?> _checkFuture;
+
+  // State only accessed by the subscriber thread
+  // The connector that subscriptions were made through, null if subscribing to the platform MBeanServer
+  private JMXConnector _connector;
+  // The server that subscriptions were made on, null if not subscribed
+  private MBeanServerConnection _server;
+  private final HashSet<Subscription> _subscriptions = new HashSet<>();
+
+  // Notifications received in the current window, guarded by the pending lock
+  private final Object _pendingLock = new Object();
+  private LinkedHashMap<MetricName, Sample> _pending = new LinkedHashMap<>();
+  private boolean _publishScheduled;
+
+  private final AtomicLong _notificationCount = new AtomicLong();
+  private final AtomicLong _publishedCount = new AtomicLong();
+  private volatile int _subscriptionCount;
+
+  public JmxNotificationService( @Nonnull final JmxNotificationDescriptor descriptor )
+  {
+    _descriptor = descriptor;
+    final JmxConnectionDescriptor connection = descriptor.getConnection();
+    _connection = null == connection ? null : JmxConnectionPool.getInstance().acquire( connection );
+    _subscriber = newExecutor( "JMX-Notification-Subscriber-" + getServerDescription() );
+  }
+
+  /**
+   * Start subscribing to MBeans in the background. A server that is unavailable is retried periodically.
+   */
+  @Override
+  public void start( @Nonnull final MetricSink sink )
+  {
+    synchronized( _subscriptionLock )
+    {
+      if( null != _sink || _closed )
+      {
+        throw new IllegalStateException( "Service already started or closed" );
+      }
+      _sink = sink;
+      _checkFuture =
+        _subscriber.scheduleWithFixedDelay( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            check();
+          }
+        }, 0, JmxConnection.HEALTH_CHECK_INTERVAL, TimeUnit.MILLISECONDS );
+    }
+  }
+
+  /**
+   * Stop publishing. The listeners are removed and the connection released on the subscriber thread
+   * after any check in progress completes, so closing does not wait for the server.
+   */
+  @Override
+  public void close()
+  {
+    synchronized( _subscriptionLock )
+    {
+      if( _closed )
+      {
+        return;
+      }
+      _closed = true;
+      _subscriptionCount = 0;
+      if( null != _checkFuture )
+      {
+        _checkFuture.cancel( false );
+      }
+    }
+    _subscriber.execute( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        unsubscribe();
+        if( null != _connection )
+        {
+          JmxConnectionPool.getInstance().release( _connection );
+        }
+      }
+    } );
+    _subscriber.shutdown();
+    synchronized( _pendingLock )
+    {
+      _pending.clear();
+    }
+  }
+
+  /**
+   * @return the number of notifications received, metric sets published and MBeans subscribed to.
+   */
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
+  {
+    return new MetricValueSetBuilder( 3 ).
+      add( "notification_count", _notificationCount.get() ).
+      add( "published_count", _publishedCount.get() ).
+      add( "subscription_count", _subscriptionCount ).
+      build( System.currentTimeMillis() );
+  }
+
+  private boolean isMatched( @Nonnull final ObjectName objectName )
+  {
+    for( final JmxProbeDescriptor probe : _descriptor.getProbes() )
+    {
+      if( probe.getObjectName().apply( objectName ) )
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void scheduleCheck( final long delay )
+  {
+    try
+    {
+      _subscriber.schedule( new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          check();
+        }
+      }, delay, TimeUnit.MILLISECONDS );
+    }
+    catch( final RuntimeException re )
+    {
+      LOG.log( Level.FINE, "Unable to schedule subscription check for " + getServerDescription(), re );
+    }
+  }
+
+  private boolean isClosed()
+  {
+    synchronized( _subscriptionLock )
+    {
+      return _closed;
+    }
+  }
+
+  /**
+   * Ensure that every MBean matched by a probe is subscribed, re-subscribing if the connection was replaced.
+   * Only invoked on the subscriber thread.
+   */
+  void check()
+  {
+    if( isClosed() )
+    {
+      return;
+    }
+    try
+    {
+      if( null == _server )
+      {
+        final MBeanServerConnection server = acquireServer();
+        _subscriptions.clear();
+        server.addNotificationListener( MBeanServerDelegate.DELEGATE_NAME,
+                                        _registrationListener,
+                                        newRegistrationFilter(),
+                                        null );
+        _server = server;
+      }
+      else if( null != _connection && _connection.getConnector( _descriptor.getTimeout() ) != _connector )
+      {
+        // The shared connection was re-established so the listeners were lost with the old connection
+        _server = null;
+        check();
+        return;
+      }
+      subscribeAll( _server );
+    }
+    catch( final Exception e )
+    {
+      LOG.log( Level.FINE, "Error subscribing to notifications from " + getServerDescription(), e );
+      if( null != _connection )
+      {
+        if( e instanceof IOException && null != _connector )
+        {
+          _connection.invalidate( _connector );
+        }
+        _connector = null;
+        _server = null;
+        _subscriptions.clear();
+      }
+    }
+    synchronized( _subscriptionLock )
+    {
+      if( !_closed )
+      {
+        _subscriptionCount = _subscriptions.size();
+      }
+    }
+  }
+
+  @Nonnull
+  private MBeanServerConnection acquireServer()
+    throws IOException
+  {
+    if( null == _connection )
+    {
+      return ManagementFactory.getPlatformMBeanServer();
+    }
+    final JMXConnector connector = _connection.getConnector( _descriptor.getTimeout() );
+    _connector = connector;
+    connector.addConnectionNotificationListener( _connectionListener, null, null );
+    return connector.getMBeanServerConnection();
+  }
+
+  /**
+   * Subscribe to MBeans matched by probes that are not yet subscribed and forget MBeans that are no longer registered.
+   */
+  private void subscribeAll( @Nonnull final MBeanServerConnection server )
+    throws IOException
+  {
+    final HashSet<Subscription> current = new HashSet<>();
+    for( final JmxProbeDescriptor probe : _descriptor.getProbes() )
+    {
+      // Releases the names of MBeans that have not sent a notification since the previous check
+      probe.sweepMetricNames();
+      final ObjectName pattern = probe.getObjectName();
+      final Set<ObjectName> objectNames = server.queryNames( pattern, null );
+      for( final ObjectName objectName : objectNames )
+      {
+        final Subscription candidate = new Subscription( probe, objectName );
+        current.add( candidate );
+        if( !_subscriptions.contains( candidate ) )
+        {
+          try
+          {
+            server.addNotificationListener( objectName, _notificationListener, candidate.getFilter(), candidate );
+            _subscriptions.add( candidate );
+          }
+          catch( final InstanceNotFoundException infe )
+          {
+            // Unregistered after the query
+          }
+          catch( final IllegalArgumentException iae )
+          {
+            // The MBean is not a NotificationBroadcaster
+            LOG.log( Level.FINE, "MBean " + objectName + " does not emit notifications", iae );
+          }
+        }
+      }
+    }
+    // Listeners are removed by the server when an MBean is unregistered
+    final Iterator<Subscription> iterator = _subscriptions.iterator();
+    while( iterator.hasNext() )
+    {
+      if( !current.contains( iterator.next() ) )
+      {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Remove the listeners from the server, which may be shared with other sources. Only invoked on the
+   * subscriber thread.
+   */
+  private void unsubscribe()
+  {
+    final MBeanServerConnection server = _server;
+    if( null != server )
+    {
+      for( final Subscription subscription : _subscriptions )
+      {
+        try
+        {
+          server.removeNotificationListener( subscription.getObjectName(),
+                                             _notificationListener,
+                                             subscription.getFilter(),
+                                             subscription );
+        }
+        catch( final Exception e )
+        {
+          //Ignored
+        }
+      }
+      try
+      {
+        server.removeNotificationListener( MBeanServerDelegate.DELEGATE_NAME, _registrationListener );
+      }
+      catch( final Exception e )
+      {
+        //Ignored
+      }
+    }
+    if( null != _connector )
+    {
+      try
+      {
+        _connector.removeConnectionNotificationListener( _connectionListener );
+      }
+      catch( final Exception e )
+      {
+        //Ignored
+      }
+    }
+    _subscriptions.clear();
+    _subscriptionCount = 0;
+    _server = null;
+    _connector = null;
+  }
+
+  /**
+   * Record the values carried by the notification and schedule the window to be published.
+   */
+  void record( @Nonnull final Subscription subscription, @Nonnull final Notification notification )
+  {
+    _notificationCount.incrementAndGet();
+    final JmxProbeDescriptor probe = subscription.getProbe();
+    final ObjectName objectName = subscription.getObjectName();
+    synchronized( _pendingLock )
+    {
+      final MetricName countName = probe.getMetricName( objectName, NOTIFICATION_COUNT );
+      final Sample count = _pending.get( countName );
+      if( null == count )
+      {
+        _pending.put( countName, new Sample( null, 1L ) );
+      }
+      else
+      {
+        count.increment();
+      }
+      if( notification instanceof AttributeChangeNotification )
+      {
+        final AttributeChangeNotification change = (AttributeChangeNotification) notification;
+        final Object value = change.getNewValue();
+        if( value instanceof Number )
+        {
+          recordValue( probe, objectName, change.getAttributeName(), (Number) value );
+        }
+      }
+      else
+      {
+        final Object userData = notification.getUserData();
+        if( userData instanceof CompositeData )
+        {
+          recordItems( probe, objectName, null, (CompositeData) userData );
+        }
+      }
+      if( !_publishScheduled )
+      {
+        _publishScheduled = true;
+        c_publisher.schedule( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            publish();
+          }
+        }, _descriptor.getWindow(), TimeUnit.MILLISECONDS );
+      }
+    }
+  }
+
+  private void recordItems( @Nonnull final JmxProbeDescriptor probe,
+                            @Nonnull final ObjectName objectName,
+                            @Nullable final String prefix,
+                            @Nonnull final CompositeData data )
+  {
+    for( final String key : data.getCompositeType().keySet() )
+    {
+      final Object value = data.get( key );
+      final String name = null == prefix ? key : prefix + "_" + key;
+      if( value instanceof Number )
+      {
+        recordValue( probe, objectName, name, (Number) value );
+      }
+      else if( value instanceof CompositeData )
+      {
+        recordItems( probe, objectName, name, (CompositeData) value );
+      }
+    }
+  }
+
+  private void recordValue( @Nonnull final JmxProbeDescriptor probe,
+                            @Nonnull final ObjectName objectName,
+                            @Nonnull final String name,
+                            @Nonnull final Number value )
+  {
+    final MetricName metricName = probe.getMetricName( objectName, name );
+    final Sample sample = _pending.get( metricName );
+    if( null == sample )
+    {
+      _pending.put( metricName, new Sample( probe.getMetricName( objectName, name + MAX_SUFFIX ), value ) );
+    }
+    else
+    {
+      sample.update( value );
+    }
+  }
+
+  /**
+   * Publish the values recorded in the window that has closed.
+   */
+  void publish()
+  {
+    final LinkedHashMap<MetricName, Sample> values;
+    synchronized( _pendingLock )
+    {
+      _publishScheduled = false;
+      values = _pending;
+      _pending = new LinkedHashMap<>();
+    }
+    final MetricSink sink;
+    synchronized( _subscriptionLock )
+    {
+      sink = _closed ? null : _sink;
+    }
+    if( null != sink && !values.isEmpty() )
+    {
+      final MetricValueSetBuilder metrics = new MetricValueSetBuilder( values.size() * 2 );
+      for( final Map.Entry<MetricName, Sample> entry : values.entrySet() )
+      {
+        final Sample sample = entry.getValue();
+        metrics.add( entry.getKey(), sample._last );
+        if( null != sample._maxName )
+        {
+          metrics.add( sample._maxName, sample._max );
+        }
+      }
+      _publishedCount.incrementAndGet();
+      sink.handleMetrics( metrics.build( System.currentTimeMillis() ) );
+    }
+  }
+
+  int getSubscriptionCount()
+  {
+    return _subscriptionCount;
+  }
+
+  @Nonnull
+  private static NotificationFilter newRegistrationFilter()
+  {
+    final MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+    filter.enableAllObjectNames();
+    return filter;
+  }
+
+  /**
+   * @return a description of the server for use in log messages.
+   */
+  @Nonnull
+  private String getServerDescription()
+  {
+    final JmxConnectionDescriptor connection = _descriptor.getConnection();
+    return null == connection ? "platform MBeanServer" : connection.getURL();
+  }
+
+  /**
+   * The values of a metric received within a window.
+   */
+  private static final class Sample
+  {
+    // The name under which the maximum is reported, or null if only the last value is reported
+    @Nullable
+    private final MetricName _maxName;
+    @Nonnull
+    private Number _last;
+    @Nonnull
+    private Number _max;
+
+    Sample( @Nullable final MetricName maxName, @Nonnull final Number value )
+    {
+      _maxName = maxName;
+      _last = value;
+      _max = value;
+    }
+
+    void update( @Nonnull final Number value )
+    {
+      _last = value;
+      if( value.doubleValue() > _max.doubleValue() )
+      {
+        _max = value;
+      }
+    }
+
+    void increment()
+    {
+      _last = _last.longValue() + 1;
+    }
+  }
+
+  /**
+   * A listener registration for an MBean matched by a probe, passed as the handback of the registration.
+   */
+  static final class Subscription
+  {
+    @Nonnull
+    private final JmxProbeDescriptor _probe;
+    @Nonnull
+    private final ObjectName _objectName;
+    // Filter evaluated by the server so that unwanted notifications are not transmitted
+    @Nullable
+    private final NotificationFilter _filter;
+
+    Subscription( @Nonnull final JmxProbeDescriptor probe, @Nonnull final ObjectName objectName )
+    {
+      _probe = probe;
+      _objectName = objectName;
+      final Set<String> attributeNames = probe.getAttributeNames();
+      if( null == attributeNames )
+      {
+        _filter = null;
+      }
+      else
+      {
+        final AttributeChangeNotificationFilter filter = new AttributeChangeNotificationFilter();
+        for( final String attributeName : attributeNames )
+        {
+          filter.enableAttribute( attributeName );
+        }
+        _filter = filter;
+      }
+    }
+
+    @Nonnull
+    JmxProbeDescriptor getProbe()
+    {
+      return _probe;
+    }
+
+    @Nonnull
+    ObjectName getObjectName()
+    {
+      return _objectName;
+    }
+
+    @Nullable
+    NotificationFilter getFilter()
+    {
+      return _filter;
+    }
+
+    @Override
+    public boolean equals( final Object o )
+    {
+      if( this == o )
+      {
+        return true;
+      }
+      else if( !( o instanceof Subscription ) )
+      {
+        return false;
+      }
+      final Subscription other = (Subscription) o;
+      return _probe == other._probe && _objectName.equals( other._objectName );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * System.identityHashCode( _probe ) + _objectName.hashCode();
+    }
+  }
+}
@@ -9,6 +9,8 @@ import java.util.Set;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.management.ObjectName;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricNameCache;
 import org.realityforge.spydle.util.ConfigUtil;
 
 /**
@@ -22,7 +24,10 @@ public class JmxProbeDescriptor
   private final ObjectName _objectName;
   private final String _namespace;
   private final Set<String> _attributeNames;
+  // The attribute names as an array that can be passed to getAttributes
+  private final String[] _attributeNameArray;
   private final List<String> _nameComponents;
+  private final MetricNameCache _metricNames = new MetricNameCache();
 
   public JmxProbeDescriptor( @Nonnull final ObjectName objectName,
                              @Nullable final Set<String> attributeNames,
@@ -32,6 +37,7 @@ public class JmxProbeDescriptor
     _objectName = objectName;
     _attributeNames =
       null != attributeNames ? Collections.unmodifiableSet( new HashSet<>( attributeNames ) ) : null;
+    _attributeNameArray = null != _attributeNames ? _attributeNames.toArray( new String[ _attributeNames.size() ] ) : null;
     _namespace = namespace;
     _nameComponents = null != nameComponents ? Collections.unmodifiableList( new ArrayList<>( nameComponents ) ) : null;
   }
@@ -48,6 +54,15 @@ public class JmxProbeDescriptor
     return _attributeNames;
   }
 
+  /**
+   * @return the attribute names as an array. The array must not be modified.
+   */
+  @Nullable
+  String[] getAttributeNameArray()
+  {
+    return _attributeNameArray;
+  }
+
   @Nullable
   public String getNamespace()
   {
@@ -69,6 +84,31 @@ public class JmxProbeDescriptor
            ",_nameComponents=" + _nameComponents + "]";
   }
 
+  /**
+   * Discard the cached names that have not been used since the previous sweep so that the names of
+   * MBeans that are no longer registered are released. Invoked once per poll.
+   */
+  public void sweepMetricNames()
+  {
+    _metricNames.sweep();
+  }
+
+  /**
+   * Return the interned name for the attribute, generating it on first use.
+   */
+  @Nonnull
+  public MetricName getMetricName( @Nonnull final ObjectName objectName, @Nonnull final String attribute )
+  {
+    final MetricName existing = _metricNames.get( objectName, attribute );
+    if( null != existing )
+    {
+      return existing;
+    }
+    final MetricName name = MetricName.intern( generateKey( objectName, attribute ) );
+    _metricNames.put( objectName, attribute, name );
+    return name;
+  }
+
   @Nonnull
   public String generateKey( @Nonnull final ObjectName objectName,
                              @Nonnull final String attribute )
@@ -3,83 +3,305 @@ package org.realityforge.spydle.jmx;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
 import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
 import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
+import org.realityforge.spydle.Abortable;
+import org.realityforge.spydle.Instrumented;
 import org.realityforge.spydle.MetricSource;
-import org.realityforge.spydle.MetricValue;
 import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.realityforge.spydle.util.ParallelCollector;
 
 public final class JmxService
-  implements MetricSource, Closeable
+  implements MetricSource, Instrumented, Abortable, Closeable
 {
   private static final Logger LOG = Logger.getLogger( JmxService.class.getName() );
 
+  // Attribute types that may hold a numeric value. Object is included as dynamic MBeans often use it.
+  private static final Set<String> c_numericTypes = new HashSet<>( Arrays.asList(
+    "byte", "short", "int", "long", "float", "double",
+    Byte.class.getName(), Short.class.getName(), Integer.class.getName(), Long.class.getName(),
+    Float.class.getName(), Double.class.getName(),
+    BigInteger.class.getName(), BigDecimal.class.getName(),
+    AtomicInteger.class.getName(),
+    AtomicLong.class.getName(),
+    Number.class.getName(), Object.class.getName() ) );
+
   private final JmxTaskDescriptor _descriptor;
+  private final MBeanMetadataCache _metadata;
+  // The shared connection to a remote server, or null if reading the platform MBeanServer
+  @Nullable
+  private final JmxConnection _connection;
+  // Guards the connector handoff as polls may overlap. Never held during a remote call
+  private final Object _lock = new Object();
+  // The shared connector that the metadata cache is subscribed to
   private JMXConnector _connector;
+  // The platform MBeanServer once the metadata cache is subscribed to it
+  private MBeanServer _localServer;
   private boolean _closed;
+  @Nonnull
+  private final ParallelCollector _parallelCollector;
+  // Values for the most recently completed poll, read by the runtime when reporting statistics
+  private volatile int _lastRoundTrips;
+  private volatile int _lastMBeanCount;
+  private volatile int _lastFailedProbeCount;
 
   public JmxService( @Nonnull final JmxTaskDescriptor descriptor )
   {
     _descriptor = descriptor;
+    _metadata = new MBeanMetadataCache( descriptor.getMetadataTtl() );
+    _parallelCollector = new ParallelCollector( descriptor.getConcurrency() );
+    final JmxConnectionDescriptor connection = descriptor.getConnection();
+    _connection = null == connection ? null : JmxConnectionPool.getInstance().acquire( connection );
   }
 
-  private MBeanServerConnection acquireConnection()
+  private MBeanServerConnection acquireConnection( @Nonnull final AtomicInteger roundTrips )
     throws IOException
   {
-    if( _closed )
+    if( null == _connection )
+    {
+      return acquireLocalServer();
+    }
+    synchronized( _lock )
+    {
+      if( _closed )
+      {
+        throw new EOFException();
+      }
+    }
+    final JMXConnector connector = _connection.getConnector( _descriptor.getTimeout() );
+    final boolean reconnected;
+    synchronized( _lock )
     {
-      throw new EOFException();
+      if( _closed )
+      {
+        throw new EOFException();
+      }
+      // Only the first poll to see a connector subscribes to it
+      reconnected = connector != _connector;
+      _connector = connector;
     }
-    if( null != _connector )
+    if( reconnected )
     {
+      // The shared connection was re-established
       try
       {
-        //Attempt to ping connection and if it fails null out the connector to force a reconnect
-        _connector.getConnectionId();
+        subscribe( connector, roundTrips );
       }
       catch( final IOException ioe )
       {
-        _connector = null;
+        invalidateConnector( connector );
+        throw ioe;
+      }
+      final boolean stale;
+      synchronized( _lock )
+      {
+        stale = _closed || connector != _connector;
+      }
+      if( stale )
+      {
+        // Closed or replaced while subscribing so the listeners may have been added after they were removed
+        unsubscribe( connector, null );
       }
     }
-    if( null == _connector )
+    return connector.getMBeanServerConnection();
+  }
+
+  /**
+   * Return the platform MBeanServer which is invoked directly, avoiding RMI and serialization.
+   */
+  private MBeanServer acquireLocalServer()
+    throws IOException
+  {
+    synchronized( _lock )
+    {
+      if( _closed )
+      {
+        throw new EOFException();
+      }
+      if( null == _localServer )
+      {
+        _localServer = ManagementFactory.getPlatformMBeanServer();
+        if( _metadata.isEnabled() )
+        {
+          try
+          {
+            // The platform MBeanServer is in process so the listener is added without a remote call
+            _localServer.addNotificationListener( MBeanServerDelegate.DELEGATE_NAME,
+                                                  _metadata,
+                                                  newDelegateFilter(),
+                                                  null );
+          }
+          catch( final InstanceNotFoundException infe )
+          {
+            // Should never happen but if it does the cache still expires entries
+            LOG.log( Level.FINE, "Unable to listen for MBean registrations in " + getServerDescription(), infe );
+          }
+        }
+      }
+      return _localServer;
+    }
+  }
+
+  @Nonnull
+  private static MBeanServerNotificationFilter newDelegateFilter()
+  {
+    final MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+    filter.enableAllObjectNames();
+    return filter;
+  }
+
+  /**
+   * @return a description of the server for use in log messages.
+   */
+  @Nonnull
+  private String getServerDescription()
+  {
+    final JmxConnectionDescriptor connection = _descriptor.getConnection();
+    return null == connection ? "platform MBeanServer" : connection.getURL();
+  }
+
+  /**
+   * Listen for MBeans being registered and unregistered so that cached metadata can be invalidated.
+   * Metadata cached from an earlier connection is discarded as notifications may have been missed.
+   */
+  private void subscribe( @Nonnull final JMXConnector connector, @Nonnull final AtomicInteger roundTrips )
+    throws IOException
+  {
+    _metadata.clear();
+    if( _metadata.isEnabled() )
     {
-      final JMXServiceURL url = new JMXServiceURL( _descriptor.getConnection().getURL() );
-      _connector = JMXConnectorFactory.connect( url, _descriptor.getConnection().getEnvironment() );
+      connector.addConnectionNotificationListener( _metadata, null, null );
+      try
+      {
+        roundTrips.incrementAndGet();
+        connector.getMBeanServerConnection().
+          addNotificationListener( MBeanServerDelegate.DELEGATE_NAME, _metadata, newDelegateFilter(), null );
+      }
+      catch( final InstanceNotFoundException infe )
+      {
+        // Should never happen but if it does the cache still expires entries
+        LOG.log( Level.FINE, "Unable to listen for MBean registrations in " + getServerDescription(), infe );
+      }
     }
-    return _connector.getMBeanServerConnection();
   }
 
   public void close()
   {
-    _closed = true;
-    doClose();
+    final JMXConnector connector;
+    final MBeanServer localServer;
+    synchronized( _lock )
+    {
+      if( _closed )
+      {
+        return;
+      }
+      _closed = true;
+      connector = _connector;
+      localServer = _localServer;
+      _connector = null;
+      _localServer = null;
+    }
+    unsubscribe( connector, localServer );
+    if( null != _connection )
+    {
+      JmxConnectionPool.getInstance().release( _connection );
+    }
   }
 
-  private void doClose()
+  /**
+   * Remove the listeners added to the shared connector as it may outlive this service.
+   */
+  private void unsubscribe( @Nullable final JMXConnector connector, @Nullable final MBeanServer localServer )
   {
-    if( null != _connector )
+    _metadata.clear();
+    if( null != localServer && _metadata.isEnabled() )
     {
       try
       {
-        _connector.close();
+        localServer.removeNotificationListener( MBeanServerDelegate.DELEGATE_NAME, _metadata );
       }
-      catch( final IOException ioe )
+      catch( final Exception e )
       {
         //Ignored
       }
-      _connector = null;
+    }
+    if( null != connector && _metadata.isEnabled() )
+    {
+      try
+      {
+        connector.removeConnectionNotificationListener( _metadata );
+        connector.getMBeanServerConnection().removeNotificationListener( MBeanServerDelegate.DELEGATE_NAME, _metadata );
+      }
+      catch( final Exception e )
+      {
+        //Ignored
+      }
+    }
+  }
+
+  @Nullable
+  private JMXConnector getCurrentConnector()
+  {
+    synchronized( _lock )
+    {
+      return _connector;
+    }
+  }
+
+  /**
+   * Close the shared connector after it failed so that the next user reconnects.
+   */
+  private void invalidateConnector( @Nullable final JMXConnector connector )
+  {
+    synchronized( _lock )
+    {
+      if( connector == _connector )
+      {
+        _connector = null;
+      }
+    }
+    _metadata.clear();
+    if( null != connector && null != _connection )
+    {
+      _connection.invalidate( connector );
+    }
+  }
+
+  /**
+   * Close the shared connector so that remote calls blocked reading from an unresponsive server fail.
+   * The platform MBeanServer is invoked directly and is not aborted.
+   */
+  @Override
+  public void abort()
+  {
+    final JMXConnector connector = getCurrentConnector();
+    if( null != connector && null != _connection )
+    {
+      _connection.abort( connector );
     }
   }
 
@@ -87,67 +309,234 @@ public final class JmxService
   @Nullable
   public MetricValueSet poll()
   {
-    final LinkedList<MetricValue> metrics = new LinkedList<>();
-    for( final JmxProbeDescriptor probe : _descriptor.getProbes() )
+    // Counted per poll as threads abandoned by an earlier poll may still be querying probes
+    final AtomicInteger roundTrips = new AtomicInteger();
+    final AtomicInteger mBeanCount = new AtomicInteger();
+    try
     {
+      final MBeanServerConnection mBeanServer;
       try
       {
-        collectQueryResults( metrics, acquireConnection(), probe );
+        mBeanServer = acquireConnection( roundTrips );
       }
-      catch( final Exception e )
+      catch( final IOException ioe )
       {
-        LOG.log( Level.FINE, "Error querying MBeanServer: " + _descriptor.getConnection() + " Query: " + probe, e );
-        doClose();
+        LOG.log( Level.FINE, "Error connecting to MBeanServer: " + getServerDescription(), ioe );
+        _lastFailedProbeCount = _descriptor.getProbes().size();
         return null;
       }
+
+      // The connector used by this poll, which is invalidated if the poll finds it has failed
+      final JMXConnector connector = getCurrentConnector();
+      final ProbeCollector collector = new ProbeCollector( mBeanServer, roundTrips, mBeanCount );
+      final MetricValueSetBuilder metrics = new MetricValueSetBuilder();
+      final List<JmxProbeDescriptor> probes = _descriptor.getProbes();
+      for( final JmxProbeDescriptor probe : probes )
+      {
+        probe.sweepMetricNames();
+      }
+      final int failures = _parallelCollector.collect( probes, collector, metrics );
+      _lastFailedProbeCount = failures;
+      if( collector.isConnectionFailed() )
+      {
+        invalidateConnector( connector );
+      }
+      else if( null != connector && null != _connection )
+      {
+        _connection.verified( connector );
+      }
+
+      // Partial results are still reported unless every probe failed
+      if( 0 != failures && failures == probes.size() )
+      {
+        return null;
+      }
+      return metrics.build( System.currentTimeMillis() );
+    }
+    finally
+    {
+      _lastRoundTrips = roundTrips.get();
+      _lastMBeanCount = mBeanCount.get();
     }
+  }
+
+  /**
+   * @return the number of remote calls, MBeans read and probes that failed in the most recent poll.
+   */
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
+  {
+    return new MetricValueSetBuilder( 3 ).
+      add( "round_trips", _lastRoundTrips ).
+      add( "mbean_count", _lastMBeanCount ).
+      add( "failed_probe_count", _lastFailedProbeCount ).
+      build( System.currentTimeMillis() );
+  }
 
-    return new MetricValueSet( metrics, System.currentTimeMillis() );
+  int getLastRoundTrips()
+  {
+    return _lastRoundTrips;
   }
 
+  int getLastFailedProbeCount()
+  {
+    return _lastFailedProbeCount;
+  }
 
-  private void collectQueryResults( final LinkedList<MetricValue> metrics,
-                                    final MBeanServerConnection mBeanServer,
+  private void collectQueryResults( final MetricValueSetBuilder metrics,
+                                    final ProbeCollector collector,
                                     final JmxProbeDescriptor probe )
     throws Exception
   {
     final ObjectName objectName = probe.getObjectName();
     if( objectName.isPattern() )
     {
-      final Set<ObjectName> objectNames = mBeanServer.queryNames( objectName, null );
-      for( final ObjectName candidate : objectNames )
+      for( final ObjectName candidate : getObjectNames( collector, probe ) )
       {
-        collectQueryResults( metrics, mBeanServer, probe, candidate );
+        collectQueryResults( metrics, collector, probe, candidate );
       }
     }
     else
     {
-      collectQueryResults( metrics, mBeanServer, probe, objectName );
+      collectQueryResults( metrics, collector, probe, objectName );
     }
   }
 
-  private void collectQueryResults( final LinkedList<MetricValue> metrics,
-                                    final MBeanServerConnection mBeanServer,
+  private void collectQueryResults( final MetricValueSetBuilder metrics,
+                                    final ProbeCollector collector,
                                     final JmxProbeDescriptor probe,
                                     final ObjectName objectName )
     throws Exception
   {
-    final MBeanInfo info = mBeanServer.getMBeanInfo( objectName );
-    for( final MBeanAttributeInfo attribute : info.getAttributes() )
+    collector._mBeanCount.incrementAndGet();
+    try
     {
-      final String attributeName = attribute.getName();
-      final Set<String> attributeNames = probe.getAttributeNames();
-      if( null == attributeNames ||
-          attributeNames.contains( attributeName ) )
+      final String[] attributeNames = getAttributeNames( collector, probe, objectName );
+      if( 0 == attributeNames.length )
       {
-        final Object value = mBeanServer.getAttribute( objectName, attributeName );
+        return;
+      }
+      // Fetch all the attributes in a single round trip. Attributes that can not be read are omitted.
+      collector._roundTrips.incrementAndGet();
+      final AttributeList attributes = collector._mBeanServer.getAttributes( objectName, attributeNames );
+      for( final Attribute attribute : attributes.asList() )
+      {
+        final Object value = attribute.getValue();
         if( value instanceof Number )
         {
-          final MetricValue metricValue =
-            new MetricValue( probe.generateKey( objectName, attributeName ), (Number) value );
-          metrics.add( metricValue );
+          metrics.add( probe.getMetricName( objectName, attribute.getName() ), (Number) value );
         }
       }
     }
+    catch( final InstanceNotFoundException infe )
+    {
+      // The MBean was unregistered after it was matched by the query
+      _metadata.invalidate( objectName );
+      LOG.log( Level.FINE, "MBean " + objectName + " no longer registered in " + getServerDescription(), infe );
+    }
+  }
+
+  /**
+   * Return the MBeans that match the pattern of the probe, querying the server if not cached.
+   */
+  @Nonnull
+  private List<ObjectName> getObjectNames( final ProbeCollector collector,
+                                           final JmxProbeDescriptor probe )
+    throws Exception
+  {
+    final long now = System.currentTimeMillis();
+    final List<ObjectName> cached = _metadata.getObjectNames( probe, now );
+    if( null != cached )
+    {
+      return cached;
+    }
+    final long generation = _metadata.getGeneration();
+    collector._roundTrips.incrementAndGet();
+    final List<ObjectName> objectNames =
+      new ArrayList<>( collector._mBeanServer.queryNames( probe.getObjectName(), null ) );
+    _metadata.putObjectNames( probe, objectNames, generation, now );
+    return objectNames;
+  }
+
+  /**
+   * Return the attributes to collect. If the probe does not specify the attributes then every readable
+   * attribute that may be numeric is collected, querying the server if not cached.
+   */
+  @Nonnull
+  private String[] getAttributeNames( final ProbeCollector collector,
+                                      final JmxProbeDescriptor probe,
+                                      final ObjectName objectName )
+    throws Exception
+  {
+    final String[] attributeNames = probe.getAttributeNameArray();
+    if( null != attributeNames )
+    {
+      return attributeNames;
+    }
+    final long now = System.currentTimeMillis();
+    final String[] cached = _metadata.getAttributeNames( objectName, now );
+    if( null != cached )
+    {
+      return cached;
+    }
+    final long generation = _metadata.getGeneration();
+    collector._roundTrips.incrementAndGet();
+    final MBeanInfo info = collector._mBeanServer.getMBeanInfo( objectName );
+    final ArrayList<String> names = new ArrayList<>();
+    for( final MBeanAttributeInfo attribute : info.getAttributes() )
+    {
+      if( attribute.isReadable() && c_numericTypes.contains( attribute.getType() ) )
+      {
+        names.add( attribute.getName() );
+      }
+    }
+    final String[] result = names.toArray( new String[ names.size() ] );
+    _metadata.putAttributeNames( objectName, result, generation, now );
+    return result;
+  }
+
+  /**
+   * Queries probes using a connection, possibly from several threads at once.
+   * Records the number of remote calls and MBeans read by a single poll.
+   */
+  private final class ProbeCollector
+    implements ParallelCollector.Collector<JmxProbeDescriptor>
+  {
+    private final MBeanServerConnection _mBeanServer;
+    private final AtomicInteger _roundTrips;
+    private final AtomicInteger _mBeanCount;
+    private volatile boolean _connectionFailed;
+
+    ProbeCollector( @Nonnull final MBeanServerConnection mBeanServer,
+                    @Nonnull final AtomicInteger roundTrips,
+                    @Nonnull final AtomicInteger mBeanCount )
+    {
+      _mBeanServer = mBeanServer;
+      _roundTrips = roundTrips;
+      _mBeanCount = mBeanCount;
+    }
+
+    boolean isConnectionFailed()
+    {
+      return _connectionFailed;
+    }
+
+    @Override
+    public void collect( @Nonnull final MetricValueSetBuilder metrics, @Nonnull final JmxProbeDescriptor probe )
+      throws Exception
+    {
+      collectQueryResults( metrics, this, probe );
+    }
+
+    @Override
+    public void onFailure( @Nonnull final JmxProbeDescriptor probe, @Nonnull final Exception e )
+    {
+      LOG.log( Level.FINE, "Error querying MBeanServer: " + getServerDescription() + " Query: " + probe, e );
+      if( e instanceof IOException )
+      {
+        _connectionFailed = true;
+      }
+    }
   }
 }
@@ -4,22 +4,74 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * Describes a batch of queries against a service invoked with a set delay between queries.
  */
 public final class JmxTaskDescriptor
 {
+  public static final long DEFAULT_METADATA_TTL = 5 * 60 * 1000;
+
+  @Nullable
   private final JmxConnectionDescriptor _connection;
   private final List<JmxProbeDescriptor> _probes;
+  private final int _timeout;
+  private final long _metadataTtl;
+  private final int _concurrency;
 
-  public JmxTaskDescriptor( @Nonnull final JmxConnectionDescriptor connection,
-                            @Nonnull final List<JmxProbeDescriptor> probes )
+  /**
+   * @param connection  the server to connect to, or null to read the platform MBeanServer of this JVM.
+   * @param timeout     the maximum time in milliseconds to spend connecting or querying, or 0 for no limit.
+   * @param metadataTtl the maximum time in milliseconds to cache the MBeans and attributes matched by probes, or 0 to disable caching.
+   * @param concurrency the maximum number of probes queried at once.
+   */
+  public JmxTaskDescriptor( @Nullable final JmxConnectionDescriptor connection,
+                            @Nonnull final List<JmxProbeDescriptor> probes,
+                            final int timeout,
+                            final long metadataTtl,
+                            final int concurrency )
   {
+    if( metadataTtl < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid metadata_ttl " + metadataTtl );
+    }
+    if( concurrency < 1 )
+    {
+      throw new IllegalArgumentException( "Invalid concurrency " + concurrency );
+    }
     _connection = connection;
     _probes = Collections.unmodifiableList( new ArrayList<>( probes ) );
+    _timeout = timeout;
+    _metadataTtl = metadataTtl;
+    _concurrency = concurrency;
+  }
+
+  public JmxTaskDescriptor( @Nonnull final JmxConnectionDescriptor connection,
+                            @Nonnull final List<JmxProbeDescriptor> probes,
+                            final int timeout,
+                            final long metadataTtl )
+  {
+    this( connection, probes, timeout, metadataTtl, 1 );
   }
 
+  public JmxTaskDescriptor( @Nonnull final JmxConnectionDescriptor connection,
+                            @Nonnull final List<JmxProbeDescriptor> probes,
+                            final int timeout )
+  {
+    this( connection, probes, timeout, DEFAULT_METADATA_TTL );
+  }
+
+  public JmxTaskDescriptor( @Nonnull final JmxConnectionDescriptor connection,
+                            @Nonnull final List<JmxProbeDescriptor> probes )
+  {
+    this( connection, probes, 0 );
+  }
+
+  /**
+   * @return the server to connect to, or null if reading the platform MBeanServer of this JVM.
+   */
+  @Nullable
   public JmxConnectionDescriptor getConnection()
   {
     return _connection;
@@ -29,4 +81,19 @@ public final class JmxTaskDescriptor
   {
     return _probes;
   }
+
+  public int getTimeout()
+  {
+    return _timeout;
+  }
+
+  public long getMetadataTtl()
+  {
+    return _metadataTtl;
+  }
+
+  public int getConcurrency()
+  {
+    return _concurrency;
+  }
 }
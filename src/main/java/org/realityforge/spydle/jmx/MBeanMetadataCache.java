@@ -0,0 +1,178 @@
+package org.realityforge.spydle.jmx;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+
+/**
+ * Cache of the MBeans matched by each probe and the numeric attributes of each MBean, so that
+ * steady state polls only fetch attribute values. Entries are invalidated when an MBean is
+ * registered or unregistered, as reported by the MBeanServerDelegate, and the whole cache is
+ * cleared if notifications may have been lost. Entries also expire after a time to live in
+ * case the server does not deliver notifications.
+ *
+ * <p>The cache is updated by the polling thread and invalidated by the thread delivering
+ * notifications. Each invalidation increments a generation so that values resolved
+ * concurrently with an invalidation are not cached.</p>
+ */
+final class MBeanMetadataCache
+  implements NotificationListener
+{
+  private static final class Entry<T>
+  {
+    @Nonnull
+    private final T _value;
+    private final long _expiresAt;
+
+    Entry( @Nonnull final T value, final long expiresAt )
+    {
+      _value = value;
+      _expiresAt = expiresAt;
+    }
+  }
+
+  private final long _ttl;
+  private final ConcurrentHashMap<JmxProbeDescriptor, Entry<List<ObjectName>>> _objectNames =
+    new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<ObjectName, Entry<String[]>> _attributeNames = new ConcurrentHashMap<>();
+  private final AtomicLong _generation = new AtomicLong();
+
+  /**
+   * @param ttl the time in milliseconds that an entry is cached, 0 to disable caching.
+   */
+  MBeanMetadataCache( final long ttl )
+  {
+    _ttl = ttl;
+  }
+
+  boolean isEnabled()
+  {
+    return 0 != _ttl;
+  }
+
+  /**
+   * @return a value that changes whenever entries are invalidated.
+   */
+  long getGeneration()
+  {
+    return _generation.get();
+  }
+
+  /**
+   * @return the MBeans matched by the pattern of the probe or null if not cached.
+   */
+  @Nullable
+  List<ObjectName> getObjectNames( @Nonnull final JmxProbeDescriptor probe, final long now )
+  {
+    return getValue( _objectNames, probe, now );
+  }
+
+  void putObjectNames( @Nonnull final JmxProbeDescriptor probe,
+                       @Nonnull final List<ObjectName> objectNames,
+                       final long generation,
+                       final long now )
+  {
+    putValue( _objectNames, probe, objectNames, generation, now );
+  }
+
+  /**
+   * @return the numeric attributes of the MBean or null if not cached.
+   */
+  @Nullable
+  String[] getAttributeNames( @Nonnull final ObjectName objectName, final long now )
+  {
+    return getValue( _attributeNames, objectName, now );
+  }
+
+  void putAttributeNames( @Nonnull final ObjectName objectName,
+                          @Nonnull final String[] attributeNames,
+                          final long generation,
+                          final long now )
+  {
+    putValue( _attributeNames, objectName, attributeNames, generation, now );
+  }
+
+  /**
+   * Invalidate the attributes of the MBean and the results of any probe whose pattern matches the MBean.
+   */
+  void invalidate( @Nonnull final ObjectName objectName )
+  {
+    _generation.incrementAndGet();
+    _attributeNames.remove( objectName );
+    final Iterator<JmxProbeDescriptor> iterator = _objectNames.keySet().iterator();
+    while( iterator.hasNext() )
+    {
+      if( iterator.next().getObjectName().apply( objectName ) )
+      {
+        iterator.remove();
+      }
+    }
+  }
+
+  void clear()
+  {
+    _generation.incrementAndGet();
+    _objectNames.clear();
+    _attributeNames.clear();
+  }
+
+  @Override
+  public void handleNotification( final Notification notification, final Object handback )
+  {
+    if( notification instanceof MBeanServerNotification )
+    {
+      invalidate( ( (MBeanServerNotification) notification ).getMBeanName() );
+    }
+    else if( notification instanceof JMXConnectionNotification &&
+             !JMXConnectionNotification.OPENED.equals( notification.getType() ) )
+    {
+      // Notifications were lost or the connection failed so registrations may have been missed
+      clear();
+    }
+  }
+
+  @Nullable
+  private <K, T> T getValue( @Nonnull final ConcurrentHashMap<K, Entry<T>> entries, @Nonnull final K key, final long now )
+  {
+    final Entry<T> entry = entries.get( key );
+    if( null == entry )
+    {
+      return null;
+    }
+    else if( now >= entry._expiresAt )
+    {
+      entries.remove( key, entry );
+      return null;
+    }
+    else
+    {
+      return entry._value;
+    }
+  }
+
+  private <K, T> void putValue( @Nonnull final ConcurrentHashMap<K, Entry<T>> entries,
+                                @Nonnull final K key,
+                                @Nonnull final T value,
+                                final long generation,
+                                final long now )
+  {
+    if( isEnabled() && generation == _generation.get() )
+    {
+      final Entry<T> entry = new Entry<>( value, now + _ttl );
+      entries.put( key, entry );
+      // Discard the value if it was invalidated while being stored
+      if( generation != _generation.get() )
+      {
+        entries.remove( key, entry );
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package org.realityforge.spydle.jmx;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+
+/**
+ * RMI socket factory that applies a timeout to connecting to and reading from a socket.
+ */
+final class TimeoutRMIClientSocketFactory
+  implements RMIClientSocketFactory, Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final int _timeout;
+
+  TimeoutRMIClientSocketFactory( final int timeout )
+  {
+    _timeout = timeout;
+  }
+
+  @Override
+  public Socket createSocket( final String host, final int port )
+    throws IOException
+  {
+    final Socket socket = new Socket();
+    try
+    {
+      socket.connect( new InetSocketAddress( host, port ), _timeout );
+      socket.setSoTimeout( _timeout );
+      return socket;
+    }
+    catch( final IOException ioe )
+    {
+      socket.close();
+      throw ioe;
+    }
+  }
+
+  @Override
+  public boolean equals( final Object o )
+  {
+    return o instanceof TimeoutRMIClientSocketFactory && _timeout == ( (TimeoutRMIClientSocketFactory) o )._timeout;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return _timeout;
+  }
+}
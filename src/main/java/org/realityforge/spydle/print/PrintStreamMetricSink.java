@@ -3,7 +3,6 @@ package org.realityforge.spydle.print;
 import java.io.PrintStream;
 import javax.annotation.Nonnull;
 import org.realityforge.spydle.MetricSink;
-import org.realityforge.spydle.MetricValue;
 import org.realityforge.spydle.MetricValueSet;
 
 /**
@@ -21,10 +20,19 @@ public final class PrintStreamMetricSink
 
   public boolean handleMetrics( @Nonnull final MetricValueSet metrics )
   {
-    for( final MetricValue metric : metrics.getMetrics() )
+    final int size = metrics.size();
+    for( int i = 0; i < size; i++ )
     {
-      _writer.println( metric.getName() + " = " + metric.getValue() );
+      if( metrics.isDouble( i ) )
+      {
+        _writer.println( metrics.getName( i ) + " = " + metrics.getDoubleValue( i ) );
+      }
+      else
+      {
+        _writer.println( metrics.getName( i ) + " = " + metrics.getLongValue( i ) );
+      }
     }
-    return false;
+    // PrintStream swallows IOExceptions so report whether any write has failed
+    return !_writer.checkError();
   }
 }
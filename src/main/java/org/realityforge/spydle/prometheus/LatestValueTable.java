@@ -0,0 +1,290 @@
+package org.realityforge.spydle.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricValueSet;
+
+/**
+ * The latest value of each metric, keyed on the id of the interned metric name.
+ * As ids are small, and reused once a name is released, the table is a set of arrays indexed by id rather
+ * than a hash map, so updates neither hash nor box. Every update increments the
+ * generation so that readers can cheaply determine whether the table has changed.
+ *
+ * <p>A metric that has not been updated within the series TTL is removed so that the
+ * last value of a source that has gone away is not exposed indefinitely. Distinct metric
+ * names that map to the same exposed name, such as "a.b" and "a_b", would produce a
+ * duplicate series that fails the scrape, so only the first metric to claim an exposed
+ * name is retained and the others are counted as duplicates until it is removed.</p>
+ */
+final class LatestValueTable
+{
+  private static final Logger LOG = Logger.getLogger( LatestValueTable.class.getName() );
+
+  private static final Charset US_ASCII = Charset.forName( "US-ASCII" );
+  private static final int INITIAL_CAPACITY = 256;
+
+  private MetricName[] _names = new MetricName[ INITIAL_CAPACITY ];
+  // Exposition name of each metric, derived from the metric name when the metric is first seen
+  private byte[][] _exposedNames = new byte[ INITIAL_CAPACITY ][];
+  private byte[] _types = new byte[ INITIAL_CAPACITY ];
+  // Long values or the raw bits of double values
+  private long[] _values = new long[ INITIAL_CAPACITY ];
+  // Time each metric was last updated
+  private long[] _updatedAt = new long[ INITIAL_CAPACITY ];
+  // Id of the metric that claimed each exposed name
+  private final HashMap<String, Integer> _exposedIds = new HashMap<>();
+  // Time in milliseconds after which a metric that is not updated is removed, or 0 to retain metrics forever
+  private final long _seriesTtl;
+  // The earliest time at which a metric may expire
+  private long _nextExpiry = Long.MAX_VALUE;
+  // One greater than the largest id in the table
+  private int _limit;
+  private int _count;
+  private long _expiredCount;
+  private long _duplicateCount;
+  private volatile long _generation;
+
+  LatestValueTable( final long seriesTtl )
+  {
+    if( seriesTtl < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid series TTL " + seriesTtl );
+    }
+    _seriesTtl = seriesTtl;
+  }
+
+  synchronized void update( @Nonnull final MetricValueSet metrics )
+  {
+    final long now = System.currentTimeMillis();
+    final int size = metrics.size();
+    for( int i = 0; i < size; i++ )
+    {
+      final MetricName name = metrics.getMetricName( i );
+      final int id = name.getId();
+      if( id >= _names.length )
+      {
+        grow( id + 1 );
+      }
+      if( null == _names[ id ] && !add( name, now ) )
+      {
+        _duplicateCount++;
+        continue;
+      }
+      _updatedAt[ id ] = now;
+      final byte type = metrics.getType( i );
+      _types[ id ] = type;
+      _values[ id ] =
+        MetricValueSet.TYPE_DOUBLE == type ?
+        Double.doubleToRawLongBits( metrics.getDoubleValue( i ) ) :
+        metrics.getLongValue( i );
+    }
+    _generation++;
+  }
+
+  /**
+   * Add the metric to the table unless another metric has claimed its exposed name.
+   */
+  private boolean add( @Nonnull final MetricName name, final long now )
+  {
+    final String exposedName = toExposedName( name.getName() );
+    final int id = name.getId();
+    final Integer existing = _exposedIds.get( exposedName );
+    if( null != existing )
+    {
+      if( LOG.isLoggable( Level.FINE ) )
+      {
+        LOG.log( Level.FINE, "Metric " + name + " ignored as its exposed name " + exposedName +
+                             " is used by " + _names[ existing ] );
+      }
+      return false;
+    }
+    _exposedIds.put( exposedName, id );
+    _names[ id ] = name;
+    _exposedNames[ id ] = exposedName.getBytes( US_ASCII );
+    _count++;
+    _limit = Math.max( _limit, id + 1 );
+    if( 0 != _seriesTtl )
+    {
+      _nextExpiry = Math.min( _nextExpiry, now + _seriesTtl );
+    }
+    return true;
+  }
+
+  /**
+   * Remove the metrics that have not been updated within the series TTL.
+   */
+  synchronized void expire( final long now )
+  {
+    if( now < _nextExpiry )
+    {
+      return;
+    }
+    final long threshold = now - _seriesTtl;
+    long oldest = Long.MAX_VALUE;
+    boolean removed = false;
+    for( int id = 0; id < _limit; id++ )
+    {
+      final MetricName name = _names[ id ];
+      if( null != name )
+      {
+        if( _updatedAt[ id ] <= threshold )
+        {
+          _exposedIds.remove( new String( _exposedNames[ id ], US_ASCII ) );
+          _names[ id ] = null;
+          _exposedNames[ id ] = null;
+          _count--;
+          _expiredCount++;
+          removed = true;
+        }
+        else
+        {
+          oldest = Math.min( oldest, _updatedAt[ id ] );
+        }
+      }
+    }
+    _nextExpiry = Long.MAX_VALUE == oldest ? Long.MAX_VALUE : oldest + _seriesTtl;
+    if( removed )
+    {
+      _generation++;
+    }
+  }
+
+  /**
+   * @return a number that changes whenever the table is updated.
+   */
+  long getGeneration()
+  {
+    return _generation;
+  }
+
+  synchronized int getCount()
+  {
+    return _count;
+  }
+
+  /**
+   * @return the number of metrics removed as they were not updated within the series TTL.
+   */
+  synchronized long getExpiredCount()
+  {
+    return _expiredCount;
+  }
+
+  /**
+   * @return the number of values ignored as another metric had claimed the exposed name.
+   */
+  synchronized long getDuplicateCount()
+  {
+    return _duplicateCount;
+  }
+
+  /**
+   * Render the table in the prometheus text exposition format.
+   * The table is copied while holding the lock and formatted after the lock is released
+   * so that the writer is only blocked for the duration of the copy.
+   *
+   * @param output the stream to render to.
+   * @return the generation that was rendered.
+   */
+  long render( @Nonnull final ByteArrayOutputStream output )
+  {
+    final long generation;
+    final byte[][] exposedNames;
+    final byte[] types;
+    final long[] values;
+    synchronized( this )
+    {
+      generation = _generation;
+      exposedNames = Arrays.copyOf( _exposedNames, _limit );
+      types = Arrays.copyOf( _types, _limit );
+      values = Arrays.copyOf( _values, _limit );
+    }
+    for( int i = 0; i < exposedNames.length; i++ )
+    {
+      final byte[] name = exposedNames[ i ];
+      if( null != name )
+      {
+        output.write( name, 0, name.length );
+        output.write( ' ' );
+        final String value =
+          MetricValueSet.TYPE_DOUBLE == types[ i ] ?
+          formatDouble( Double.longBitsToDouble( values[ i ] ) ) :
+          Long.toString( values[ i ] );
+        final byte[] bytes = value.getBytes( US_ASCII );
+        output.write( bytes, 0, bytes.length );
+        output.write( '\n' );
+      }
+    }
+    return generation;
+  }
+
+  /**
+   * Convert the name into a valid prometheus metric name by replacing invalid characters with '_'.
+   */
+  @Nonnull
+  static String toExposedName( @Nonnull final String name )
+  {
+    final int length = name.length();
+    final StringBuilder sb = new StringBuilder( length + 1 );
+    for( int i = 0; i < length; i++ )
+    {
+      final char c = name.charAt( i );
+      if( ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || '_' == c || ':' == c ||
+          ( c >= '0' && c <= '9' && 0 != i ) )
+      {
+        sb.append( c );
+      }
+      else if( c >= '0' && c <= '9' )
+      {
+        // Names may not start with a digit
+        sb.append( '_' ).append( c );
+      }
+      else
+      {
+        sb.append( '_' );
+      }
+    }
+    if( 0 == sb.length() )
+    {
+      sb.append( '_' );
+    }
+    return sb.toString();
+  }
+
+  @Nonnull
+  static String formatDouble( final double value )
+  {
+    if( Double.isNaN( value ) )
+    {
+      return "NaN";
+    }
+    else if( Double.isInfinite( value ) )
+    {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    else
+    {
+      return Double.toString( value );
+    }
+  }
+
+  private void grow( final int minCapacity )
+  {
+    int capacity = _names.length;
+    while( capacity < minCapacity )
+    {
+      capacity *= 2;
+    }
+    _names = Arrays.copyOf( _names, capacity );
+    _exposedNames = Arrays.copyOf( _exposedNames, capacity );
+    _types = Arrays.copyOf( _types, capacity );
+    _values = Arrays.copyOf( _values, capacity );
+    _updatedAt = Arrays.copyOf( _updatedAt, capacity );
+  }
+}
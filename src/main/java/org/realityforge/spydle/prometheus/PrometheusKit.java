@@ -0,0 +1,30 @@
+package org.realityforge.spydle.prometheus;
+
+import javax.json.JsonObject;
+
+/**
+ * Utility class to interact with the PrometheusSink.
+ */
+public final class PrometheusKit
+{
+  private PrometheusKit()
+  {
+  }
+
+  public static PrometheusService build( final JsonObject config )
+    throws Exception
+  {
+    return new PrometheusService( parse( config ) );
+  }
+
+  private static PrometheusServiceDescriptor parse( final JsonObject config )
+    throws Exception
+  {
+    final String host = config.getString( "host", null );
+    final int port = config.getInt( "port" );
+    final String path = config.getString( "path", PrometheusServiceDescriptor.DEFAULT_PATH );
+    final int threadCount = config.getInt( "threads", PrometheusServiceDescriptor.DEFAULT_THREAD_COUNT );
+    final int seriesTtl = config.getInt( "series_ttl", PrometheusServiceDescriptor.DEFAULT_SERIES_TTL );
+    return new PrometheusServiceDescriptor( host, port, path, threadCount, seriesTtl );
+  }
+}
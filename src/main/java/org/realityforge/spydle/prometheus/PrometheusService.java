@@ -0,0 +1,242 @@
+package org.realityforge.spydle.prometheus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nonnull;
+import org.realityforge.spydle.Instrumented;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+
+/**
+ * A sink that retains the latest value of each metric and exposes them over HTTP for
+ * scraping by prometheus. The exposition is rendered at most once per update of the
+ * values and every scrape until the next update is served from the rendered bytes,
+ * so scrapes only contend with the sink while the values are copied for rendering.
+ * Values that are not updated within the series TTL of the descriptor are no longer exposed.
+ * The sink is instrumented with metrics describing the scrapes.
+ */
+public final class PrometheusService
+  implements Closeable, MetricSink, Instrumented
+{
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  @Nonnull
+  private final PrometheusServiceDescriptor _descriptor;
+  @Nonnull
+  private final LatestValueTable _values;
+  @Nonnull
+  private final HttpServer _server;
+  @Nonnull
+  private final ExecutorService _executor;
+  // Lock held while rendering so that concurrent scrapes of a new generation only render once
+  private final Object _renderLock = new Object();
+  private volatile Exposition _exposition = new Exposition( -1, new byte[ 0 ], gzip( new byte[ 0 ] ) );
+  private final AtomicLong _scrapeCount = new AtomicLong();
+  private final AtomicLong _renderCount = new AtomicLong();
+
+  public PrometheusService( @Nonnull final PrometheusServiceDescriptor descriptor )
+    throws IOException
+  {
+    _descriptor = descriptor;
+    _values = new LatestValueTable( descriptor.getSeriesTtl() );
+    _server = HttpServer.create( descriptor.getSocketAddress(), 0 );
+    _server.createContext( descriptor.getPath(), new HttpHandler()
+    {
+      @Override
+      public void handle( final HttpExchange exchange )
+        throws IOException
+      {
+        handleScrape( exchange );
+      }
+    } );
+    final AtomicInteger threadIndex = new AtomicInteger();
+    _executor = Executors.newFixedThreadPool( descriptor.getThreadCount(), new ThreadFactory()
+    {
+      @Override
+      public Thread newThread( final Runnable r )
+      {
+        final Thread thread = new Thread( r, "Spydle-Prometheus-" + threadIndex.incrementAndGet() );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+    _server.setExecutor( _executor );
+    _server.start();
+  }
+
+  @Override
+  public boolean handleMetrics( @Nonnull final MetricValueSet metrics )
+  {
+    _values.update( metrics );
+    return true;
+  }
+
+  /**
+   * @return metrics describing the scrapes.
+   */
+  @Nonnull
+  @Override
+  public MetricValueSet getStatistics()
+  {
+    return new MetricValueSetBuilder( 5 ).
+      add( "scrape_count", _scrapeCount.get() ).
+      add( "render_count", _renderCount.get() ).
+      add( "series_count", _values.getCount() ).
+      add( "expired_count", _values.getExpiredCount() ).
+      add( "duplicate_count", _values.getDuplicateCount() ).
+      build( System.currentTimeMillis() );
+  }
+
+  /**
+   * Remove the series that have not been updated within the series TTL of the specified time.
+   * Series are otherwise expired when the server is scraped.
+   */
+  void expire( final long now )
+  {
+    _values.expire( now );
+  }
+
+  /**
+   * @return the port the server is listening on.
+   */
+  public int getPort()
+  {
+    return _server.getAddress().getPort();
+  }
+
+  long getScrapeCount()
+  {
+    return _scrapeCount.get();
+  }
+
+  long getRenderCount()
+  {
+    return _renderCount.get();
+  }
+
+  @Override
+  public void close()
+  {
+    _server.stop( 0 );
+    _executor.shutdownNow();
+  }
+
+  private void handleScrape( @Nonnull final HttpExchange exchange )
+    throws IOException
+  {
+    try
+    {
+      final String method = exchange.getRequestMethod();
+      final boolean isHead = "HEAD".equals( method );
+      if( !isHead && !"GET".equals( method ) )
+      {
+        exchange.getResponseHeaders().set( "Allow", "GET, HEAD" );
+        exchange.sendResponseHeaders( 405, -1 );
+        return;
+      }
+      _scrapeCount.incrementAndGet();
+      final Exposition exposition = getExposition();
+      final String acceptEncoding = exchange.getRequestHeaders().getFirst( "Accept-Encoding" );
+      final boolean gzip = null != acceptEncoding && acceptEncoding.contains( "gzip" );
+      final byte[] body = gzip ? exposition._gzip : exposition._text;
+      exchange.getResponseHeaders().set( "Content-Type", CONTENT_TYPE );
+      if( gzip )
+      {
+        exchange.getResponseHeaders().set( "Content-Encoding", "gzip" );
+      }
+      exchange.sendResponseHeaders( 200, isHead ? -1 : body.length );
+      if( !isHead )
+      {
+        try ( final OutputStream output = exchange.getResponseBody() )
+        {
+          output.write( body );
+        }
+      }
+    }
+    finally
+    {
+      exchange.close();
+    }
+  }
+
+  @Nonnull
+  private Exposition getExposition()
+  {
+    _values.expire( System.currentTimeMillis() );
+    final Exposition exposition = _exposition;
+    if( exposition._generation == _values.getGeneration() )
+    {
+      return exposition;
+    }
+    synchronized( _renderLock )
+    {
+      // Another scrape may have rendered the generation while this scrape waited for the lock
+      if( _exposition._generation == _values.getGeneration() )
+      {
+        return _exposition;
+      }
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final long generation = _values.render( output );
+      final byte[] text = output.toByteArray();
+      _exposition = new Exposition( generation, text, gzip( text ) );
+      _renderCount.incrementAndGet();
+      return _exposition;
+    }
+  }
+
+  @Nonnull
+  private static byte[] gzip( @Nonnull final byte[] data )
+  {
+    try
+    {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream( data.length / 4 + 32 );
+      try ( final GZIPOutputStream gzip = new GZIPOutputStream( output ) )
+      {
+        gzip.write( data );
+      }
+      return output.toByteArray();
+    }
+    catch( final IOException ioe )
+    {
+      // Can not occur when writing to memory
+      throw new IllegalStateException( ioe );
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "PrometheusService[" + _descriptor + "]";
+  }
+
+  /**
+   * A rendering of a single generation of the values in plain and compressed form.
+   */
+  private static final class Exposition
+  {
+    private final long _generation;
+    @Nonnull
+    private final byte[] _text;
+    @Nonnull
+    private final byte[] _gzip;
+
+    Exposition( final long generation, @Nonnull final byte[] text, @Nonnull final byte[] gzip )
+    {
+      _generation = generation;
+      _text = text;
+      _gzip = gzip;
+    }
+  }
+}
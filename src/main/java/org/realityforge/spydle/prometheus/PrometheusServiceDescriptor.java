@@ -0,0 +1,105 @@
+package org.realityforge.spydle.prometheus;
+
+import java.net.InetSocketAddress;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Describes the HTTP endpoint on which metrics are exposed for scraping by prometheus.
+ */
+public final class PrometheusServiceDescriptor
+{
+  public static final String DEFAULT_PATH = "/metrics";
+  public static final int DEFAULT_THREAD_COUNT = 2;
+  public static final int DEFAULT_SERIES_TTL = 5 * 60 * 1000;
+
+  @Nullable
+  private final String _host;
+  private final int _port;
+  @Nonnull
+  private final String _path;
+  private final int _threadCount;
+  private final int _seriesTtl;
+
+  /**
+   * @param seriesTtl the time in milliseconds after which a metric that has not been updated is no
+   *                  longer exposed, or 0 to expose the last value of every metric indefinitely.
+   */
+  public PrometheusServiceDescriptor( @Nullable final String host,
+                                      final int port,
+                                      @Nonnull final String path,
+                                      final int threadCount,
+                                      final int seriesTtl )
+  {
+    if( port < 0 || port > 65535 )
+    {
+      throw new IllegalArgumentException( "Invalid port " + port );
+    }
+    if( !path.startsWith( "/" ) )
+    {
+      throw new IllegalArgumentException( "Path must start with '/': " + path );
+    }
+    if( threadCount < 1 )
+    {
+      throw new IllegalArgumentException( "Invalid thread count " + threadCount );
+    }
+    if( seriesTtl < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid series TTL " + seriesTtl );
+    }
+    _host = host;
+    _port = port;
+    _path = path;
+    _threadCount = threadCount;
+    _seriesTtl = seriesTtl;
+  }
+
+  /**
+   * @return the address to listen on or null to listen on all addresses.
+   */
+  @Nullable
+  public String getHost()
+  {
+    return _host;
+  }
+
+  public int getPort()
+  {
+    return _port;
+  }
+
+  @Nonnull
+  public InetSocketAddress getSocketAddress()
+  {
+    return null != _host ? new InetSocketAddress( _host, _port ) : new InetSocketAddress( _port );
+  }
+
+  @Nonnull
+  public String getPath()
+  {
+    return _path;
+  }
+
+  /**
+   * @return the number of threads that serve scrape requests.
+   */
+  public int getThreadCount()
+  {
+    return _threadCount;
+  }
+
+  /**
+   * @return the time in milliseconds after which a metric that has not been updated is no longer exposed,
+   * or 0 if metrics never expire.
+   */
+  public int getSeriesTtl()
+  {
+    return _seriesTtl;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Prometheus[host=" + getHost() + ",port=" + getPort() + ",path=" + getPath() + "]";
+  }
+}
@@ -10,15 +10,25 @@ import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.json.Json;
 import javax.json.JsonObject;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.file.FileKit;
 import org.realityforge.spydle.graphite.GraphiteKit;
+import org.realityforge.spydle.influx.InfluxKit;
 import org.realityforge.spydle.jdbc.JdbcKit;
 import org.realityforge.spydle.jmx.JmxKit;
 import org.realityforge.spydle.print.PrintKit;
+import org.realityforge.spydle.prometheus.PrometheusKit;
 
 /**
  * Utility class that monitors a configuration directory and updates data store when configuration changes.
@@ -32,14 +42,18 @@ final class ConfigScanner
   @Nonnull
   private final MonitorDataStore _dataStore;
   @Nonnull
+  private final ExecutionEngine _executionEngine;
+  @Nonnull
   private final File _configDirectory;
 
   private WatchService _watcher;
 
   public ConfigScanner( @Nonnull final MonitorDataStore dataStore,
+                        @Nonnull final ExecutionEngine executionEngine,
                         @Nonnull final File configDirectory )
   {
     _dataStore = dataStore;
+    _executionEngine = executionEngine;
     _configDirectory = configDirectory;
   }
 
@@ -108,8 +122,11 @@ final class ConfigScanner
             else if ( StandardWatchEventKinds.ENTRY_MODIFY == kind )
             {
               LOG.info( "Configuration file modified: " + file );
-              unloadConfiguration( file );
-              loadConfiguration( file );
+              // Registration replaces the existing configuration atomically
+              if ( !loadConfiguration( file ) )
+              {
+                unloadConfiguration( file );
+              }
             }
           }
         }
@@ -121,17 +138,34 @@ final class ConfigScanner
   private void unloadConfiguration( @Nonnull final File file )
   {
     final String key = file.toString();
+    deregister( key );
+    deregisterShards( key, Collections.<String>emptySet() );
+  }
+
+  private void deregister( @Nonnull final String key )
+  {
     if ( _dataStore.isSourceRegistered( key ) )
     {
       _dataStore.deregisterSource( key );
     }
+    else if ( _dataStore.isPublisherRegistered( key ) )
+    {
+      _dataStore.deregisterPublisher( key );
+    }
     else if ( _dataStore.isSinkRegistered( key ) )
     {
       _dataStore.deregisterSink( key );
     }
+    else if ( _executionEngine.isStageRegistered( key ) )
+    {
+      _executionEngine.deregisterStage( key );
+    }
   }
 
-  private void loadConfiguration( @Nonnull final File file )
+  /**
+   * @return true if the configuration was successfully loaded.
+   */
+  private boolean loadConfiguration( @Nonnull final File file )
   {
     try
     {
@@ -140,31 +174,240 @@ final class ConfigScanner
 
       // Period really only makes sense for sources
       final int refreshPeriod = config.getInt( "period", -1 );
-      final int pollPeriod = -1 == refreshPeriod ? refreshPeriod : DEFAULT_PERIOD;
+      final int pollPeriod = -1 == refreshPeriod ? DEFAULT_PERIOD : refreshPeriod;
+      final SourceEntry.OverrunPolicy overrunPolicy = parseOverrunPolicy( config.getString( "overrun_policy", "align" ) );
+      final int jitter = config.getInt( "jitter", 0 );
+      final int timeout = config.getInt( "timeout", SourceEntry.defaultTimeout( pollPeriod ) );
       final String stage = config.getString( "stage", type );
+      // Queue configuration only makes sense for sinks
+      final int queueCapacity = config.getInt( "queue_capacity", SinkEntry.DEFAULT_QUEUE_CAPACITY );
+      final StageDescriptor.RejectionPolicy overflowPolicy =
+        StageKit.parseRejectionPolicy( config.getString( "overflow_policy", "drop-oldest" ) );
+      final SpillQueueDescriptor spill =
+        config.containsKey( "spill" ) ? SpillQueueKit.build( config.getJsonObject( "spill" ) ) : null;
       final JsonObject subConfig =
         config.containsKey( "config" ) ? config.getJsonObject( "config" ) : Json.createObjectBuilder().build();
+      Set<String> shardKeys = Collections.emptySet();
       switch ( type )
       {
         case "in:jmx":
-          _dataStore.registerSource( file.toString(), JmxKit.build( subConfig ), stage, pollPeriod );
+          _dataStore.registerSource( file.toString(),
+                                     JmxKit.build( subConfig, timeout ),
+                                     stage,
+                                     pollPeriod,
+                                     overrunPolicy,
+                                     jitter,
+                                     timeout );
+          break;
+        case "in:jmx-local":
+          _dataStore.registerSource( file.toString(),
+                                     JmxKit.buildLocal( subConfig, timeout ),
+                                     stage,
+                                     pollPeriod,
+                                     overrunPolicy,
+                                     jitter,
+                                     timeout );
+          break;
+        case "in:jmx-notification":
+          _dataStore.registerPublisher( file.toString(), JmxKit.buildNotification( subConfig, timeout ) );
+          break;
+        case "in:jmx-local-notification":
+          _dataStore.registerPublisher( file.toString(), JmxKit.buildLocalNotification( subConfig ) );
           break;
         case "in:jdbc":
-          _dataStore.registerSource( file.toString(), JdbcKit.build( subConfig ), stage, pollPeriod );
+          _dataStore.registerSource( file.toString(),
+                                     JdbcKit.build( subConfig, timeout ),
+                                     stage,
+                                     pollPeriod,
+                                     overrunPolicy,
+                                     jitter,
+                                     timeout );
           break;
         case "out:graphite":
-          _dataStore.registerSink( file.toString(), GraphiteKit.build( subConfig ), stage );
+          if ( GraphiteKit.isSharded( subConfig ) )
+          {
+            shardKeys = registerShards( file.toString(),
+                                        GraphiteKit.buildShards( subConfig ),
+                                        stage,
+                                        queueCapacity,
+                                        overflowPolicy,
+                                        spill );
+          }
+          else
+          {
+            registerSink( file.toString(), GraphiteKit.build( subConfig ), stage, queueCapacity, overflowPolicy, spill );
+          }
+          break;
+        case "out:graphite-pickle":
+          if ( GraphiteKit.isSharded( subConfig ) )
+          {
+            shardKeys = registerShards( file.toString(),
+                                        GraphiteKit.buildPickleShards( subConfig ),
+                                        stage,
+                                        queueCapacity,
+                                        overflowPolicy,
+                                        spill );
+          }
+          else
+          {
+            registerSink( file.toString(),
+                          GraphiteKit.buildPickle( subConfig ),
+                          stage,
+                          queueCapacity,
+                          overflowPolicy,
+                          spill );
+          }
+          break;
+        case "out:file":
+          registerSink( file.toString(), FileKit.build( subConfig ), stage, queueCapacity, overflowPolicy, spill );
+          break;
+        case "out:influx":
+          registerSink( file.toString(), InfluxKit.build( subConfig ), stage, queueCapacity, overflowPolicy, spill );
+          break;
+        case "out:prometheus":
+          // The server of a sink being replaced holds the port so the sink is removed before the new server binds
+          deregister( file.toString() );
+          registerSink( file.toString(), PrometheusKit.build( subConfig ), stage, queueCapacity, overflowPolicy, spill );
           break;
         case "out:print":
-          _dataStore.registerSink( file.toString(), PrintKit.build( subConfig ), stage );
+          registerSink( file.toString(), PrintKit.build( subConfig ), stage, queueCapacity, overflowPolicy, spill );
+          break;
+        case "stage":
+          _executionEngine.registerStage( file.toString(), StageKit.build( config.getString( "stage" ), subConfig ) );
           break;
         default:
           throw new IllegalArgumentException( "Unknown type '" + type + "' in configuration: " + config );
       }
+      // Remove the shards of an earlier version of the configuration that have not been replaced
+      deregisterShards( file.toString(), shardKeys );
+      return true;
     }
     catch ( final Throwable t )
     {
       LOG.log( Level.WARNING, "Error parsing configuration file: " + file, t );
+      return false;
+    }
+  }
+
+  private void registerSink( @Nonnull final String key,
+                             @Nonnull final MetricSink sink,
+                             @Nonnull final String stage,
+                             final int queueCapacity,
+                             @Nonnull final StageDescriptor.RejectionPolicy overflowPolicy,
+                             @Nullable final SpillQueueDescriptor spill )
+    throws IOException
+  {
+    if ( null != spill )
+    {
+      _dataStore.registerSink( key, sink, stage, queueCapacity, overflowPolicy, spill );
+    }
+    else
+    {
+      _dataStore.registerSink( key, sink, stage, queueCapacity, overflowPolicy );
+    }
+  }
+
+  /**
+   * Register each shard as a separate sink so that each destination has its own queue, overflow and spill
+   * policy. The sink registered under the key of the file is removed as it is replaced by the shards.
+   *
+   * @return the keys under which the shards are registered.
+   */
+  @Nonnull
+  private Set<String> registerShards( @Nonnull final String key,
+                                      @Nonnull final Map<String, MetricSink> shards,
+                                      @Nonnull final String stage,
+                                      final int queueCapacity,
+                                      @Nonnull final StageDescriptor.RejectionPolicy overflowPolicy,
+                                      @Nullable final SpillQueueDescriptor spill )
+    throws IOException
+  {
+    final Set<String> keys = new HashSet<>();
+    final Iterator<Map.Entry<String, MetricSink>> iterator = shards.entrySet().iterator();
+    try
+    {
+      while ( iterator.hasNext() )
+      {
+        final Map.Entry<String, MetricSink> entry = iterator.next();
+        final String shardKey = toShardKey( key, entry.getKey() );
+        registerSink( shardKey, entry.getValue(), stage, queueCapacity, overflowPolicy, spill );
+        keys.add( shardKey );
+      }
+    }
+    catch ( final IOException ioe )
+    {
+      // Remove the shards registered before the failure and close those that were never registered
+      deregisterShards( key, Collections.<String>emptySet() );
+      while ( iterator.hasNext() )
+      {
+        closeQuietly( iterator.next().getValue() );
+      }
+      throw ioe;
+    }
+    deregister( key );
+    return keys;
+  }
+
+  /**
+   * Deregister the shards of the sink configured by the file, other than the specified shards.
+   */
+  private void deregisterShards( @Nonnull final String key, @Nonnull final Set<String> retainedKeys )
+  {
+    final String prefix = toShardPrefix( key );
+    for ( final SinkEntry sink : _dataStore.getSinks() )
+    {
+      final String sinkKey = sink.getKey();
+      if ( sinkKey.startsWith( prefix ) && !retainedKeys.contains( sinkKey ) )
+      {
+        _dataStore.deregisterSink( sinkKey );
+      }
+    }
+  }
+
+  /**
+   * @return the key of a shard of the sink configured by the file. The label is inserted before the
+   * extension so that the metrics describing the shard are named after the file and the destination.
+   */
+  @Nonnull
+  static String toShardKey( @Nonnull final String key, @Nonnull final String label )
+  {
+    return toShardPrefix( key ) + label + ".json";
+  }
+
+  @Nonnull
+  private static String toShardPrefix( @Nonnull final String key )
+  {
+    final String base = key.endsWith( ".json" ) ? key.substring( 0, key.length() - ".json".length() ) : key;
+    return base + '#';
+  }
+
+  private static void closeQuietly( @Nonnull final MetricSink sink )
+  {
+    if ( sink instanceof Closeable )
+    {
+      try
+      {
+        ( (Closeable) sink ).close();
+      }
+      catch ( final IOException ioe )
+      {
+        LOG.log( Level.FINE, "Error closing sink " + sink, ioe );
+      }
+    }
+  }
+
+  private static SourceEntry.OverrunPolicy parseOverrunPolicy( @Nonnull final String policy )
+  {
+    switch ( policy )
+    {
+      case "skip":
+        return SourceEntry.OverrunPolicy.SKIP;
+      case "catch-up":
+        return SourceEntry.OverrunPolicy.CATCH_UP;
+      case "align":
+        return SourceEntry.OverrunPolicy.ALIGN;
+      default:
+        throw new IllegalArgumentException( "Unknown overrun_policy '" + policy + "'" );
     }
   }
 }
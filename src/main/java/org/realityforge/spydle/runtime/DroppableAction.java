@@ -0,0 +1,15 @@
+package org.realityforge.spydle.runtime;
+
+/**
+ * An action that must be notified if a stage discards it rather than executing it.
+ * Such actions are never run on the submitting thread when the stage uses the CALLER_RUNS
+ * policy as the submitter is typically the scheduler, which would stall all other entries.
+ */
+interface DroppableAction
+  extends Runnable
+{
+  /**
+   * Invoked, instead of run(), when the action is discarded by the stage.
+   */
+  void onDrop();
+}
@@ -1,12 +1,19 @@
 package org.realityforge.spydle.runtime;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * Class responsible for performing actions in one or more thread pools.
@@ -16,48 +23,160 @@ import javax.annotation.Nonnull;
 final class ExecutionEngine
   implements Closeable
 {
-  private final HashMap<String, ThreadPoolExecutor> _executors = new HashMap<>();
+  private static final Logger LOG = Logger.getLogger( ExecutionEngine.class.getName() );
+
+  // Stage configuration keyed on the key under which it was registered
+  private final HashMap<String, StageDescriptor> _descriptors = new HashMap<>();
+  // Replaced wholesale when stages change so that actions are executed without locking
+  private volatile Map<String, Stage> _stages = Collections.emptyMap();
+  // Single thread used to run short timer actions such as enforcing deadlines
+  private final ScheduledThreadPoolExecutor _timer = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread thread = new Thread( r, "Spydle-Timer" );
+      thread.setDaemon( true );
+      return thread;
+    }
+  } );
+
+  ExecutionEngine()
+  {
+    _timer.setRemoveOnCancelPolicy( true );
+  }
 
   void execute( @Nonnull final String stage, @Nonnull final Runnable runnable )
   {
-    getExecutorForStage( stage ).execute( runnable );
+    execute( stage, null, runnable );
+  }
+
+  /**
+   * Execute an action in the specified stage.
+   *
+   * @param stage    the stage in which to execute action.
+   * @param key      the key used to identify equivalent actions when stage is configured to coalesce actions.
+   * @param runnable the action.
+   */
+  void execute( @Nonnull final String stage, @Nullable final String key, @Nonnull final Runnable runnable )
+  {
+    getStage( stage ).execute( key, runnable );
+  }
+
+  /**
+   * Execute a task created by {@link Stage#newTask(String, Runnable)} in the specified stage.
+   * Neither locks nor allocates unless the stage has yet to be created.
+   */
+  void submit( @Nonnull final String stage, @Nonnull final Runnable task )
+  {
+    getStage( stage ).execute( task );
+  }
+
+  /**
+   * Run a short action after the specified delay.
+   * The action is run in a shared timer thread and must not block.
+   */
+  @Nonnull
+  Future<?> schedule( @Nonnull final Runnable runnable, final long delay )
+  {
+    return _timer.schedule( runnable, delay, TimeUnit.MILLISECONDS );
+  }
+
+  synchronized void registerStage( @Nonnull final String key, @Nonnull final StageDescriptor descriptor )
+  {
+    if( LOG.isLoggable( Level.FINE ) )
+    {
+      LOG.fine( "ExecutionEngine.registerStage(" + key + "," + descriptor + ")" );
+    }
+    deregisterStage( key );
+    _descriptors.put( key, descriptor );
+    replaceStage( descriptor.getName(), descriptor );
+  }
+
+  synchronized boolean isStageRegistered( @Nonnull final String key )
+  {
+    return _descriptors.containsKey( key );
+  }
+
+  synchronized void deregisterStage( @Nonnull final String key )
+  {
+    final StageDescriptor existing = _descriptors.remove( key );
+    if( null != existing )
+    {
+      if( LOG.isLoggable( Level.FINE ) )
+      {
+        LOG.fine( "ExecutionEngine.deregisterStage(" + key + ") => " + existing );
+      }
+      replaceStage( existing.getName(), findDescriptor( existing.getName() ) );
+    }
+  }
+
+  /**
+   * @return a snapshot of the stages that have been created.
+   */
+  List<Stage> getStages()
+  {
+    return new ArrayList<>( _stages.values() );
   }
 
   @Override
-  public void close()
+  public synchronized void close()
   {
-    for( final ThreadPoolExecutor executor : _executors.values() )
+    for( final Stage stage : _stages.values() )
     {
-      executor.shutdownNow();
+      stage.shutdownNow();
     }
+    _stages = Collections.emptyMap();
+    _timer.shutdownNow();
+  }
+
+  @Nonnull
+  private Stage getStage( @Nonnull final String name )
+  {
+    final Stage stage = _stages.get( name );
+    return null != stage ? stage : createStage( name );
   }
 
-  private ThreadPoolExecutor getExecutorForStage( @Nonnull final String stage )
+  @Nonnull
+  private synchronized Stage createStage( @Nonnull final String name )
   {
-    ThreadPoolExecutor executor = _executors.get( stage );
-    if( null == executor )
+    Stage stage = _stages.get( name );
+    if( null == stage )
     {
-      executor = newExecutor( stage );
-      _executors.put( stage, executor );
+      stage = new Stage( findDescriptor( name ) );
+      final HashMap<String, Stage> stages = new HashMap<>( _stages );
+      stages.put( name, stage );
+      _stages = stages;
     }
-    return executor;
+    return stage;
   }
 
-  private ThreadPoolExecutor newExecutor( @Nonnull final String stage )
+  /**
+   * Replace an existing stage with a stage with new configuration.
+   * Actions already queued in the existing stage are allowed to complete.
+   */
+  private void replaceStage( @Nonnull final String name, @Nonnull final StageDescriptor descriptor )
   {
-    return new ThreadPoolExecutor( 0,
-                                   4,
-                                   1L,
-                                   TimeUnit.SECONDS,
-                                   new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+    final Stage existing = _stages.get( name );
+    if( null != existing )
     {
-      private int _threadID;
+      final HashMap<String, Stage> stages = new HashMap<>( _stages );
+      stages.put( name, new Stage( descriptor ) );
+      _stages = stages;
+      existing.shutdown();
+    }
+  }
 
-      @Override
-      public Thread newThread( final Runnable r )
+  @Nonnull
+  private StageDescriptor findDescriptor( @Nonnull final String name )
+  {
+    for( final StageDescriptor descriptor : _descriptors.values() )
+    {
+      if( descriptor.getName().equals( name ) )
       {
-        return new Thread( r, "Stage: " + stage + "-" + ( ++_threadID ) );
+        return descriptor;
       }
-    } );
+    }
+    return new StageDescriptor( name );
   }
 }
@@ -1,62 +1,104 @@
 package org.realityforge.spydle.runtime;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import org.realityforge.spydle.MetricPublisher;
 import org.realityforge.spydle.MetricSink;
 import org.realityforge.spydle.MetricSource;
 import org.realityforge.spydle.MetricValueSet;
 
 /**
- * Simple store for sources and sinks of monitoring data.
+ * Simple store for sources, publishers and sinks of monitoring data.
  */
 final class MonitorDataStore
   implements Closeable
 {
   private static final Logger LOG = Logger.getLogger( MonitorDataStore.class.getName() );
 
+  @Nonnull
+  private final ExecutionEngine _executionEngine;
   @Nonnull
   private final Scheduler _scheduler;
-  private final Map<String, SourceEntry> _sources = new HashMap<>();
-  private final Map<String, SinkEntry> _sinks = new HashMap<>();
+  // Replaced wholesale when sources or sinks change. Writers are serialized by synchronizing on the store
+  private volatile RoutingTable _routingTable = RoutingTable.EMPTY;
 
-  MonitorDataStore( @Nonnull final Scheduler scheduler )
+  MonitorDataStore( @Nonnull final ExecutionEngine executionEngine, @Nonnull final Scheduler scheduler )
   {
+    _executionEngine = executionEngine;
     _scheduler = scheduler;
   }
 
+  @Nonnull
+  ExecutionEngine getExecutionEngine()
+  {
+    return _executionEngine;
+  }
+
+  /**
+   * Queue metrics for delivery to every sink. Delivery occurs asynchronously in the stage of each sink.
+   * This method neither locks nor allocates and routes to the sinks registered at the time of invocation.
+   */
   void queueRoute( final MetricValueSet metrics )
   {
-    for( final SinkEntry sink : _sinks.values() )
+    final SinkEntry[] sinks = _routingTable.getSinkArray();
+    for( final SinkEntry sink : sinks )
     {
-      try
+      if( sink.offer( metrics ) )
       {
-        sink.getSink().handleMetrics( metrics );
-      }
-      catch( final Throwable t )
-      {
-        LOG.log( Level.WARNING, "Problem sending metric to sink " + sink, t );
+        _executionEngine.submit( sink.getStage(), sink.getTask() );
       }
     }
   }
 
+  /**
+   * @return a snapshot of the registered sinks.
+   */
+  @Nonnull
+  Collection<SinkEntry> getSinks()
+  {
+    return _routingTable.getSinks().values();
+  }
+
+  /**
+   * @return a snapshot of the registered sources keyed on registration key.
+   */
+  @Nonnull
+  Map<String, SourceEntry> getSources()
+  {
+    return _routingTable.getSources();
+  }
+
+  /**
+   * @return a snapshot of the registered publishers keyed on registration key.
+   */
+  @Nonnull
+  Map<String, PublisherEntry> getPublishers()
+  {
+    return _routingTable.getPublishers();
+  }
+
   synchronized void clear()
   {
-    for( final Map.Entry<String, SourceEntry> entry : _sources.entrySet() )
+    final RoutingTable existing = _routingTable;
+    _routingTable = RoutingTable.EMPTY;
+    for( final Map.Entry<String, SourceEntry> entry : existing.getSources().entrySet() )
+    {
+      doDeregisterSource( entry.getKey(), entry.getValue() );
+    }
+    for( final Map.Entry<String, PublisherEntry> entry : existing.getPublishers().entrySet() )
     {
-      doClose( entry.getKey(), entry.getValue().getSource() );
-      _scheduler.removeTrigger( entry.getKey() );
+      doDeregisterPublisher( entry.getKey(), entry.getValue() );
     }
-    _sources.clear();
-    for( final Map.Entry<String, SinkEntry> entry : _sinks.entrySet() )
+    for( final Map.Entry<String, SinkEntry> entry : existing.getSinks().entrySet() )
     {
-      doClose( entry.getKey(), entry.getValue().getSink() );
+      doDeregisterSink( entry.getKey(), entry.getValue() );
     }
-    _sinks.clear();
   }
 
   @Override
@@ -70,30 +112,72 @@ final class MonitorDataStore
                                     @Nonnull final MetricSource source,
                                     @Nonnull final String stage,
                                     final int pollPeriod )
+  {
+    registerSource( key,
+                    source,
+                    stage,
+                    pollPeriod,
+                    SourceEntry.OverrunPolicy.ALIGN,
+                    0,
+                    SourceEntry.defaultTimeout( pollPeriod ) );
+  }
+
+  /**
+   * Register a source to be polled periodically. The phase of the source within the period is derived from the key.
+   *
+   * @param jitter  the maximum random delay added to each poll.
+   * @param timeout the time after which a poll is interrupted and considered failed, or 0 for no timeout.
+   */
+  synchronized void registerSource( @Nonnull final String key,
+                                    @Nonnull final MetricSource source,
+                                    @Nonnull final String stage,
+                                    final int pollPeriod,
+                                    @Nonnull final SourceEntry.OverrunPolicy overrunPolicy,
+                                    final int jitter,
+                                    final int timeout )
   {
     if( LOG.isLoggable( Level.FINE ) )
     {
       LOG.fine( "MonitorDataStore.registerSource(" + key + "," + source + ")" );
     }
-    doDeregisterSource( key, _sources.remove( key ) );
-    final SourceEntry entry = new SourceEntry( this, source, pollPeriod );
-    _sources.put( key, entry );
+    final RoutingTable existing = _routingTable;
+    final SourceEntry entry = new SourceEntry( this,
+                                               source,
+                                               pollPeriod,
+                                               overrunPolicy,
+                                               SourceEntry.computePhase( key, pollPeriod ),
+                                               jitter,
+                                               timeout );
+    _routingTable = existing.withSource( key, entry );
+    // Replaces any existing trigger with the same key
     _scheduler.addTrigger( key, stage, entry, entry );
+    final SourceEntry existingSource = existing.getSource( key );
+    if( null != existingSource )
+    {
+      doClose( key, existingSource.getSource() );
+    }
+    doDeregisterPublisher( key, existing.getPublisher( key ) );
+    doDeregisterSink( key, existing.getSink( key ) );
   }
 
-  synchronized boolean isSourceRegistered( @Nonnull final String key )
+  boolean isSourceRegistered( @Nonnull final String key )
   {
-    return null != _sources.remove( key );
+    return null != _routingTable.getSource( key );
   }
 
   synchronized void deregisterSource( @Nonnull final String key )
   {
-    final SourceEntry existing = _sources.remove( key );
+    final RoutingTable existing = _routingTable;
+    final SourceEntry entry = existing.getSource( key );
     if( LOG.isLoggable( Level.FINE ) )
     {
-      LOG.fine( "MonitorDataStore.deregisterSource(" + key + ") => " + existing );
+      LOG.fine( "MonitorDataStore.deregisterSource(" + key + ") => " + entry );
+    }
+    if( null != entry )
+    {
+      _routingTable = existing.without( key );
+      doDeregisterSource( key, entry );
     }
-    doDeregisterSource( key, existing );
   }
 
   private void doDeregisterSource( final String key, final SourceEntry existing )
@@ -105,37 +189,157 @@ final class MonitorDataStore
     }
   }
 
+  /**
+   * Register a publisher that routes metrics as events occur rather than being polled by the scheduler.
+   * The publisher is started before it is registered and is not registered if it fails to start.
+   */
+  synchronized void registerPublisher( @Nonnull final String key, @Nonnull final MetricPublisher publisher )
+    throws Exception
+  {
+    if( LOG.isLoggable( Level.FINE ) )
+    {
+      LOG.fine( "MonitorDataStore.registerPublisher(" + key + "," + publisher + ")" );
+    }
+    final PublisherEntry entry = new PublisherEntry( this, publisher );
+    try
+    {
+      publisher.start( entry );
+    }
+    catch( final Exception e )
+    {
+      doDeregisterPublisher( key, entry );
+      throw e;
+    }
+    final RoutingTable existing = _routingTable;
+    _routingTable = existing.withPublisher( key, entry );
+    doDeregisterSource( key, existing.getSource( key ) );
+    doDeregisterPublisher( key, existing.getPublisher( key ) );
+    doDeregisterSink( key, existing.getSink( key ) );
+  }
+
+  boolean isPublisherRegistered( @Nonnull final String key )
+  {
+    return null != _routingTable.getPublisher( key );
+  }
+
+  synchronized void deregisterPublisher( @Nonnull final String key )
+  {
+    final RoutingTable existing = _routingTable;
+    final PublisherEntry entry = existing.getPublisher( key );
+    if( LOG.isLoggable( Level.FINE ) )
+    {
+      LOG.fine( "MonitorDataStore.deregisterPublisher(" + key + ") => " + entry );
+    }
+    if( null != entry )
+    {
+      _routingTable = existing.without( key );
+      doDeregisterPublisher( key, entry );
+    }
+  }
+
+  private void doDeregisterPublisher( final String key, final PublisherEntry existing )
+  {
+    if( null != existing )
+    {
+      existing.close();
+      doClose( "publisher", key, existing.getPublisher() );
+    }
+  }
+
   synchronized void registerSink( @Nonnull final String key,
                                   @Nonnull final MetricSink sink,
                                   @Nonnull final String stage )
+  {
+    registerSink( key, sink, stage, SinkEntry.DEFAULT_QUEUE_CAPACITY, StageDescriptor.RejectionPolicy.DROP_OLDEST );
+  }
+
+  synchronized void registerSink( @Nonnull final String key,
+                                  @Nonnull final MetricSink sink,
+                                  @Nonnull final String stage,
+                                  final int queueCapacity,
+                                  @Nonnull final StageDescriptor.RejectionPolicy overflowPolicy )
   {
     if( LOG.isLoggable( Level.FINE ) )
     {
       LOG.fine( "MonitorDataStore.registerSink(" + key + "," + sink + ")" );
     }
-    doDeregisterSink( key, _sinks.remove( key ) );
-    _sinks.put( key, new SinkEntry( sink, stage ) );
+    installSink( key, new SinkEntry( key, sink, stage, queueCapacity, overflowPolicy ) );
+  }
+
+  /**
+   * Register a sink where metrics that the sink fails to accept are stored in a spill queue and replayed later.
+   *
+   * @throws IOException if unable to open the spill queue, in which case the sink and any sink registered
+   *                     with the same key are closed.
+   */
+  synchronized void registerSink( @Nonnull final String key,
+                                  @Nonnull final MetricSink sink,
+                                  @Nonnull final String stage,
+                                  final int queueCapacity,
+                                  @Nonnull final StageDescriptor.RejectionPolicy overflowPolicy,
+                                  @Nonnull final SpillQueueDescriptor spill )
+    throws IOException
+  {
+    if( LOG.isLoggable( Level.FINE ) )
+    {
+      LOG.fine( "MonitorDataStore.registerSink(" + key + "," + sink + "," + spill + ")" );
+    }
+    final SinkEntry existingSink = _routingTable.getSink( key );
+    if( null != existingSink )
+    {
+      // Release the spill queue of the sink being replaced so that it can be reopened
+      existingSink.close();
+    }
+    final SpillQueue spillQueue;
+    try
+    {
+      spillQueue = new SpillQueue( new File( spill.getDirectory(), SpillQueue.toDirectoryName( key ) ), spill );
+    }
+    catch( final IOException ioe )
+    {
+      // The replaced entry is closed and would silently drop every batch, so it is removed along with its sink
+      deregisterSink( key );
+      doClose( key, sink );
+      throw ioe;
+    }
+    installSink( key,
+                 new SinkEntry( key, sink, stage, queueCapacity, overflowPolicy, spillQueue, spill.getReplayRate() ) );
   }
 
-  synchronized boolean isSinkRegistered( @Nonnull final String key )
+  private void installSink( @Nonnull final String key, @Nonnull final SinkEntry entry )
   {
-    return null != _sinks.remove( key );
+    final RoutingTable existing = _routingTable;
+    _routingTable = existing.withSink( key, entry );
+    doDeregisterSource( key, existing.getSource( key ) );
+    doDeregisterPublisher( key, existing.getPublisher( key ) );
+    doDeregisterSink( key, existing.getSink( key ) );
+  }
+
+  boolean isSinkRegistered( @Nonnull final String key )
+  {
+    return null != _routingTable.getSink( key );
   }
 
   synchronized void deregisterSink( @Nonnull final String key )
   {
-    final SinkEntry existing = _sinks.remove( key );
+    final RoutingTable existing = _routingTable;
+    final SinkEntry entry = existing.getSink( key );
     if( LOG.isLoggable( Level.FINE ) )
     {
-      LOG.fine( "MonitorDataStore.deregisterSink(" + key + ") => " + existing );
+      LOG.fine( "MonitorDataStore.deregisterSink(" + key + ") => " + entry );
+    }
+    if( null != entry )
+    {
+      _routingTable = existing.without( key );
+      doDeregisterSink( key, entry );
     }
-    doDeregisterSink( key, existing );
   }
 
   private void doDeregisterSink( final String key, final SinkEntry existing )
   {
     if( null != existing )
     {
+      existing.close();
       doClose( key, existing.getSink() );
     }
   }
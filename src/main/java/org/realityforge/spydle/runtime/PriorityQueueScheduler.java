@@ -0,0 +1,54 @@
+package org.realityforge.spydle.runtime;
+
+import java.util.PriorityQueue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Scheduler that orders pending entries in a binary heap.
+ * Adding and polling entries is O(log n) while removal is O(n).
+ */
+final class PriorityQueueScheduler
+  extends Scheduler
+{
+  private final PriorityQueue<TimeEntry> _queue = new PriorityQueue<>( 10, TimeEntryComparator.COMPARATOR );
+
+  PriorityQueueScheduler( @Nonnull final ExecutionEngine executionEngine )
+  {
+    super( executionEngine );
+  }
+
+  @Override
+  void schedule( @Nonnull final TimeEntry entry )
+  {
+    _queue.add( entry );
+  }
+
+  @Override
+  void unschedule( @Nonnull final TimeEntry entry )
+  {
+    _queue.remove( entry );
+  }
+
+  @Nullable
+  @Override
+  TimeEntry pollExpired( final long now )
+  {
+    final TimeEntry entry = _queue.peek();
+    if( null != entry && entry.getNextTime() < now )
+    {
+      return _queue.poll();
+    }
+    else
+    {
+      return null;
+    }
+  }
+
+  @Override
+  long getNextTime()
+  {
+    final TimeEntry entry = _queue.peek();
+    return null != entry ? entry.getNextTime() : Long.MAX_VALUE;
+  }
+}
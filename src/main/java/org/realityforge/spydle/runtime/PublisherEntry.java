@@ -0,0 +1,72 @@
+package org.realityforge.spydle.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import org.realityforge.spydle.MetricPublisher;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
+
+/**
+ * A registered publisher. Published metrics are routed to the sinks immediately rather than
+ * when a scheduler trigger fires, on the thread of the publisher.
+ */
+final class PublisherEntry
+  implements MetricSink
+{
+  @Nonnull
+  private final MonitorDataStore _dataStore;
+  @Nonnull
+  private final MetricPublisher _publisher;
+  private final AtomicLong _publishedCount = new AtomicLong();
+  private final AtomicLong _droppedCount = new AtomicLong();
+  private volatile boolean _closed;
+
+  PublisherEntry( @Nonnull final MonitorDataStore dataStore, @Nonnull final MetricPublisher publisher )
+  {
+    _dataStore = dataStore;
+    _publisher = publisher;
+  }
+
+  @Nonnull
+  MetricPublisher getPublisher()
+  {
+    return _publisher;
+  }
+
+  /**
+   * Route the metrics unless the publisher has been deregistered.
+   */
+  @Override
+  public boolean handleMetrics( @Nonnull final MetricValueSet metrics )
+  {
+    if( _closed )
+    {
+      _droppedCount.incrementAndGet();
+      return false;
+    }
+    _publishedCount.incrementAndGet();
+    _dataStore.queueRoute( metrics );
+    return true;
+  }
+
+  void close()
+  {
+    _closed = true;
+  }
+
+  /**
+   * @return the number of metric sets routed.
+   */
+  long getPublishedCount()
+  {
+    return _publishedCount.get();
+  }
+
+  /**
+   * @return the number of metric sets published after the publisher was deregistered.
+   */
+  long getDroppedCount()
+  {
+    return _droppedCount.get();
+  }
+}
@@ -0,0 +1,148 @@
+package org.realityforge.spydle.runtime;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An immutable snapshot of the registered sources, publishers and sinks. Each key identifies at most one of them.
+ * Modifications create a new table so that readers can route metrics without locking.
+ */
+final class RoutingTable
+{
+  static final RoutingTable EMPTY =
+    new RoutingTable( Collections.<String, SourceEntry>emptyMap(),
+                      Collections.<String, PublisherEntry>emptyMap(),
+                      Collections.<String, SinkEntry>emptyMap() );
+
+  @Nonnull
+  private final Map<String, SourceEntry> _sources;
+  @Nonnull
+  private final Map<String, PublisherEntry> _publishers;
+  @Nonnull
+  private final Map<String, SinkEntry> _sinks;
+  // Array form of sinks so routing can iterate without allocating an iterator
+  @Nonnull
+  private final SinkEntry[] _sinkArray;
+
+  private RoutingTable( @Nonnull final Map<String, SourceEntry> sources,
+                        @Nonnull final Map<String, PublisherEntry> publishers,
+                        @Nonnull final Map<String, SinkEntry> sinks )
+  {
+    _sources = Collections.unmodifiableMap( sources );
+    _publishers = Collections.unmodifiableMap( publishers );
+    _sinks = Collections.unmodifiableMap( sinks );
+    _sinkArray = sinks.values().toArray( new SinkEntry[ sinks.size() ] );
+  }
+
+  @Nonnull
+  Map<String, SourceEntry> getSources()
+  {
+    return _sources;
+  }
+
+  @Nonnull
+  Map<String, PublisherEntry> getPublishers()
+  {
+    return _publishers;
+  }
+
+  @Nonnull
+  Map<String, SinkEntry> getSinks()
+  {
+    return _sinks;
+  }
+
+  /**
+   * @return the sinks. The caller must not modify the returned array.
+   */
+  @Nonnull
+  SinkEntry[] getSinkArray()
+  {
+    return _sinkArray;
+  }
+
+  @Nullable
+  SourceEntry getSource( @Nonnull final String key )
+  {
+    return _sources.get( key );
+  }
+
+  @Nullable
+  PublisherEntry getPublisher( @Nonnull final String key )
+  {
+    return _publishers.get( key );
+  }
+
+  @Nullable
+  SinkEntry getSink( @Nonnull final String key )
+  {
+    return _sinks.get( key );
+  }
+
+  /**
+   * @return a table with the source registered under key, replacing any entry with the same key.
+   */
+  @Nonnull
+  RoutingTable withSource( @Nonnull final String key, @Nonnull final SourceEntry entry )
+  {
+    final HashMap<String, SourceEntry> sources = new HashMap<>( _sources );
+    final HashMap<String, PublisherEntry> publishers = new HashMap<>( _publishers );
+    final HashMap<String, SinkEntry> sinks = new HashMap<>( _sinks );
+    sources.put( key, entry );
+    publishers.remove( key );
+    sinks.remove( key );
+    return new RoutingTable( sources, publishers, sinks );
+  }
+
+  /**
+   * @return a table with the publisher registered under key, replacing any entry with the same key.
+   */
+  @Nonnull
+  RoutingTable withPublisher( @Nonnull final String key, @Nonnull final PublisherEntry entry )
+  {
+    final HashMap<String, SourceEntry> sources = new HashMap<>( _sources );
+    final HashMap<String, PublisherEntry> publishers = new HashMap<>( _publishers );
+    final HashMap<String, SinkEntry> sinks = new HashMap<>( _sinks );
+    sources.remove( key );
+    publishers.put( key, entry );
+    sinks.remove( key );
+    return new RoutingTable( sources, publishers, sinks );
+  }
+
+  /**
+   * @return a table with the sink registered under key, replacing any entry with the same key.
+   */
+  @Nonnull
+  RoutingTable withSink( @Nonnull final String key, @Nonnull final SinkEntry entry )
+  {
+    final HashMap<String, SourceEntry> sources = new HashMap<>( _sources );
+    final HashMap<String, PublisherEntry> publishers = new HashMap<>( _publishers );
+    final HashMap<String, SinkEntry> sinks = new HashMap<>( _sinks );
+    sources.remove( key );
+    publishers.remove( key );
+    sinks.put( key, entry );
+    return new RoutingTable( sources, publishers, sinks );
+  }
+
+  /**
+   * @return a table with no entry registered under key.
+   */
+  @Nonnull
+  RoutingTable without( @Nonnull final String key )
+  {
+    if( !_sources.containsKey( key ) && !_publishers.containsKey( key ) && !_sinks.containsKey( key ) )
+    {
+      return this;
+    }
+    final HashMap<String, SourceEntry> sources = new HashMap<>( _sources );
+    final HashMap<String, PublisherEntry> publishers = new HashMap<>( _publishers );
+    final HashMap<String, SinkEntry> sinks = new HashMap<>( _sinks );
+    sources.remove( key );
+    publishers.remove( key );
+    sinks.remove( key );
+    return new RoutingTable( sources, publishers, sinks );
+  }
+}
@@ -0,0 +1,191 @@
+package org.realityforge.spydle.runtime;
+
+import java.io.File;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import org.realityforge.spydle.Instrumented;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricNameCache;
+import org.realityforge.spydle.MetricSource;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.realityforge.spydle.util.ConfigUtil;
+
+/**
+ * Source that reports metrics describing the health of the Spydle runtime itself.
+ * Publishers are reported under the source prefix. The statistics of instrumented sources and
+ * publishers are reported under the source prefix and those of instrumented sinks under the sink prefix.
+ */
+final class RuntimeMetricSource
+  implements MetricSource
+{
+  static final String PREFIX = "spydle";
+
+  private static final Logger LOG = Logger.getLogger( RuntimeMetricSource.class.getName() );
+
+  @Nonnull
+  private final ExecutionEngine _executionEngine;
+  @Nonnull
+  private final MonitorDataStore _dataStore;
+  // Names cached by stage name or the registration key of the source or sink
+  private final MetricNameCache _stageNames = new MetricNameCache();
+  private final MetricNameCache _sourceNames = new MetricNameCache();
+  private final MetricNameCache _sinkNames = new MetricNameCache();
+
+  RuntimeMetricSource( @Nonnull final ExecutionEngine executionEngine, @Nonnull final MonitorDataStore dataStore )
+  {
+    _executionEngine = executionEngine;
+    _dataStore = dataStore;
+  }
+
+  @Nonnull
+  @Override
+  public MetricValueSet poll()
+  {
+    // Every live stage, source and sink is reported each poll so names absent since the last poll are released
+    _stageNames.sweep();
+    _sourceNames.sweep();
+    _sinkNames.sweep();
+    final MetricValueSetBuilder metrics = new MetricValueSetBuilder();
+    for( final Stage stage : _executionEngine.getStages() )
+    {
+      final String name = stage.getDescriptor().getName();
+      metrics.add( toMetricName( _stageNames, "stage", name, false, "queue_depth" ), stage.getQueueDepth() );
+      metrics.add( toMetricName( _stageNames, "stage", name, false, "rejected_count" ), stage.getRejectedCount() );
+      metrics.add( toMetricName( _stageNames, "stage", name, false, "active_count" ), stage.getActiveCount() );
+      metrics.add( toMetricName( _stageNames, "stage", name, false, "pool_size" ), stage.getPoolSize() );
+      metrics.add( toMetricName( _stageNames, "stage", name, false, "completed_count" ), stage.getCompletedCount() );
+    }
+    for( final Map.Entry<String, SourceEntry> entry : _dataStore.getSources().entrySet() )
+    {
+      final SourceEntry source = entry.getValue();
+      final String key = entry.getKey();
+      metrics.add( toMetricName( _sourceNames, "source", key, true, "missed_count" ), source.getMissedCount() );
+      metrics.add( toMetricName( _sourceNames, "source", key, true, "late_count" ), source.getLateCount() );
+      metrics.add( toMetricName( _sourceNames, "source", key, true, "fail_count" ), source.getFailCount() );
+      metrics.add( toMetricName( _sourceNames, "source", key, true, "timeout_count" ), source.getTimeoutCount() );
+      if( source.getSource() instanceof Instrumented )
+      {
+        addStatistics( metrics, _sourceNames, "source", key, (Instrumented) source.getSource() );
+      }
+    }
+    for( final Map.Entry<String, PublisherEntry> entry : _dataStore.getPublishers().entrySet() )
+    {
+      final PublisherEntry publisher = entry.getValue();
+      final String key = entry.getKey();
+      metrics.add( toMetricName( _sourceNames, "source", key, true, "published_count" ), publisher.getPublishedCount() );
+      metrics.add( toMetricName( _sourceNames, "source", key, true, "dropped_count" ), publisher.getDroppedCount() );
+      if( publisher.getPublisher() instanceof Instrumented )
+      {
+        addStatistics( metrics, _sourceNames, "source", key, (Instrumented) publisher.getPublisher() );
+      }
+    }
+    for( final SinkEntry sink : _dataStore.getSinks() )
+    {
+      final String key = sink.getKey();
+      metrics.add( toMetricName( _sinkNames, "sink", key, true, "queue_depth" ), sink.getQueueDepth() );
+      metrics.add( toMetricName( _sinkNames, "sink", key, true, "dropped_count" ), sink.getDroppedCount() );
+      metrics.add( toMetricName( _sinkNames, "sink", key, true, "delivered_count" ), sink.getDeliveredCount() );
+      metrics.add( toMetricName( _sinkNames, "sink", key, true, "failed_count" ), sink.getFailedCount() );
+      metrics.add( toMetricName( _sinkNames, "sink", key, true, "lag" ), sink.getLag() );
+      metrics.add( toMetricName( _sinkNames, "sink", key, true, "spill_depth" ), sink.getSpillDepth() );
+      metrics.add( toMetricName( _sinkNames, "sink", key, true, "spilled_count" ), sink.getSpilledCount() );
+      metrics.add( toMetricName( _sinkNames, "sink", key, true, "replayed_count" ), sink.getReplayedCount() );
+      metrics.add( toMetricName( _sinkNames, "sink", key, true, "spill_dropped_count" ), sink.getSpillDroppedCount() );
+      if( sink.getSink() instanceof Instrumented )
+      {
+        addStatistics( metrics, _sinkNames, "sink", key, (Instrumented) sink.getSink() );
+      }
+    }
+    return metrics.build( System.currentTimeMillis() );
+  }
+
+  /**
+   * Add the statistics reported by an instrumented source, publisher or sink, such as the cost of
+   * the last poll or the health of a connection.
+   */
+  private void addStatistics( @Nonnull final MetricValueSetBuilder metrics,
+                              @Nonnull final MetricNameCache cache,
+                              @Nonnull final String type,
+                              @Nonnull final String key,
+                              @Nonnull final Instrumented component )
+  {
+    final MetricValueSet values;
+    try
+    {
+      values = component.getStatistics();
+    }
+    catch( final Throwable t )
+    {
+      LOG.log( Level.FINE, "Error collecting statistics from " + type + " " + key, t );
+      return;
+    }
+    addMetrics( metrics, cache, type, key, values );
+  }
+
+  private void addMetrics( @Nonnull final MetricValueSetBuilder metrics,
+                           @Nonnull final MetricNameCache cache,
+                           @Nonnull final String type,
+                           @Nonnull final String key,
+                           @Nonnull final MetricValueSet values )
+  {
+    final int size = values.size();
+    for( int i = 0; i < size; i++ )
+    {
+      final MetricName name = toMetricName( cache, type, key, true, values.getName( i ) );
+      if( values.isDouble( i ) )
+      {
+        metrics.add( name, values.getDoubleValue( i ) );
+      }
+      else
+      {
+        metrics.add( name, values.getLongValue( i ) );
+      }
+    }
+  }
+
+  /**
+   * Return the interned name for an element of a stage, source or sink.
+   *
+   * @param registrationKey true if the key is a registration key that must be converted via toName().
+   */
+  @Nonnull
+  private static MetricName toMetricName( @Nonnull final MetricNameCache cache,
+                                          @Nonnull final String type,
+                                          @Nonnull final String key,
+                                          final boolean registrationKey,
+                                          @Nonnull final String element )
+  {
+    final MetricName existing = cache.get( key, element );
+    if( null != existing )
+    {
+      return existing;
+    }
+    final String name = registrationKey ? toName( key ) : key;
+    final MetricName metricName = MetricName.intern( generateKey( type, name ) + "." + element );
+    cache.put( key, element, metricName );
+    return metricName;
+  }
+
+  /**
+   * Convert a registration key, typically the path to a configuration file, into a name for use in metric keys.
+   */
+  @Nonnull
+  static String toName( @Nonnull final String key )
+  {
+    final String name = new File( key ).getName();
+    return name.endsWith( ".json" ) ? name.substring( 0, name.length() - ".json".length() ) : name;
+  }
+
+  @Nonnull
+  static String generateKey( @Nonnull final String type, @Nonnull final String name )
+  {
+    final StringBuilder sb = new StringBuilder();
+    ConfigUtil.appendNameElement( sb, PREFIX );
+    ConfigUtil.appendNameElement( sb, type );
+    ConfigUtil.appendNameElement( sb, name );
+    return sb.toString();
+  }
+}
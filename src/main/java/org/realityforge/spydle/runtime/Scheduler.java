@@ -1,13 +1,20 @@
 package org.realityforge.spydle.runtime;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.PriorityQueue;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
-final class Scheduler
+/**
+ * Base class for schedulers that dispatch TimeEntry targets to the ExecutionEngine when they are due.
+ * Subclasses are responsible for the data structure used to order the pending entries.
+ */
+abstract class Scheduler
 {
+  // Maximum time returned from tick()
   static final int MAX_SLEEP_TIME = 1000;
 
   private static final Logger LOG = Logger.getLogger( Scheduler.class.getName() );
@@ -15,7 +22,6 @@ final class Scheduler
   @Nonnull
   private final ExecutionEngine _executionEngine;
   private final HashMap<String, TimeEntry> _entryMap = new HashMap<>();
-  private final PriorityQueue<TimeEntry> _queue = new PriorityQueue<>( 10, TimeEntryComparator.COMPARATOR );
 
   Scheduler( @Nonnull final ExecutionEngine executionEngine )
   {
@@ -30,7 +36,8 @@ final class Scheduler
     removeTrigger( name );
     final TimeEntry entry = new TimeEntry( name, stage, trigger, target );
     _entryMap.put( name, entry );
-    scheduleEntry( entry );
+    schedule( entry );
+    notifyAll();
   }
 
   synchronized void removeTrigger( @Nonnull final String name )
@@ -38,40 +45,117 @@ final class Scheduler
     final TimeEntry entry = _entryMap.remove( name );
     if( null != entry )
     {
-      _queue.remove( entry );
+      unschedule( entry );
+      notifyAll();
     }
   }
 
-  synchronized long tick( final long now )
+  /**
+   * Dispatch any entries due at the specified time.
+   * This is a deterministic alternative to dispatchAndWait() used when driving the scheduler externally.
+   *
+   * @return the time to wait before the next invocation.
+   */
+  long tick( final long now )
   {
-    TimeEntry entry;
-    //noinspection LoopStatementThatDoesntLoop
-    while( null != ( entry = _queue.peek() ) )
+    dispatch( pollAllExpired( now ) );
+    synchronized( this )
+    {
+      final long nextTime = getNextTime();
+      return nextTime <= now ? 0 : Math.min( MAX_SLEEP_TIME, nextTime - now );
+    }
+  }
+
+  /**
+   * Dispatch any entries that are due and then park the calling thread until the next entry is
+   * due or the set of entries is modified.
+   * Entries are dispatched without holding the scheduler lock so that a stage that blocks or
+   * rejects the action does not prevent other threads adding, removing or rescheduling entries.
+   */
+  void dispatchAndWait()
+    throws InterruptedException
+  {
+    final long now = System.currentTimeMillis();
+    dispatch( pollAllExpired( now ) );
+    synchronized( this )
     {
-      final long nextPollTime = entry.getNextTime();
-      if( nextPollTime < now )
+      // Entries modified while dispatching are reflected in the next time so no wake up is missed
+      final long nextTime = getNextTime();
+      if( Long.MAX_VALUE == nextTime )
       {
-        // Remove top entry from queue
-        _queue.poll();
-        run( entry );
+        wait();
       }
       else
       {
-        return Math.min( MAX_SLEEP_TIME, nextPollTime - now );
+        // Always wait at least 1ms as entries may only be considered expired once time has passed their due time
+        wait( Math.max( 1, nextTime - now ) );
       }
     }
-    return MAX_SLEEP_TIME;
   }
 
+  /**
+   * Remove all entries that are due. Entries that are rescheduled while the expired entries are
+   * dispatched are not considered until the next invocation.
+   */
+  @Nonnull
+  private synchronized List<TimeEntry> pollAllExpired( final long now )
+  {
+    final ArrayList<TimeEntry> entries = new ArrayList<>();
+    TimeEntry entry;
+    while( null != ( entry = pollExpired( now ) ) )
+    {
+      entries.add( entry );
+    }
+    return entries;
+  }
+
+  private void dispatch( @Nonnull final List<TimeEntry> entries )
+  {
+    for( final TimeEntry entry : entries )
+    {
+      run( entry );
+    }
+  }
+
+  /**
+   * Add the entry to the set of pending entries, keyed on TimeEntry.getNextTime().
+   */
+  abstract void schedule( @Nonnull TimeEntry entry );
+
+  /**
+   * Remove the entry from the set of pending entries if present.
+   */
+  abstract void unschedule( @Nonnull TimeEntry entry );
+
+  /**
+   * Remove and return a pending entry that is due at the specified time.
+   *
+   * @return the expired entry or null if no entries are due.
+   */
+  @Nullable
+  abstract TimeEntry pollExpired( long now );
+
+  /**
+   * @return the earliest time at which a pending entry may be due or Long.MAX_VALUE if there are no pending entries.
+   */
+  abstract long getNextTime();
+
   private void run( final TimeEntry entry )
   {
-    _executionEngine.execute( entry.getStage(), new Runnable()
+    // The entry is not pending while dispatched so it must be rescheduled whether the action runs or is dropped
+    _executionEngine.execute( entry.getStage(), entry.getName(), new DroppableAction()
     {
       @Override
       public void run()
       {
         executeEntry( entry );
       }
+
+      @Override
+      public void onDrop()
+      {
+        dropEntry( entry );
+      }
     } );
   }
 
@@ -85,11 +169,34 @@ final class Scheduler
     {
       LOG.log( Level.WARNING, "Problem executing scheduled task " + entry.getName(), t );
     }
-    scheduleEntry( entry );
+    rescheduleEntry( entry );
+  }
+
+  private void dropEntry( final TimeEntry entry )
+  {
+    final Runnable target = entry.getTarget();
+    if( target instanceof DroppableAction )
+    {
+      try
+      {
+        ( (DroppableAction) target ).onDrop();
+      }
+      catch( final Throwable t )
+      {
+        LOG.log( Level.WARNING, "Problem dropping scheduled task " + entry.getName(), t );
+      }
+    }
+    rescheduleEntry( entry );
   }
 
-  private synchronized void scheduleEntry( final TimeEntry entry )
+  private synchronized void rescheduleEntry( final TimeEntry entry )
   {
-    _queue.add( entry );
+    // Entry may have been removed or replaced while it was executing
+    if( entry == _entryMap.get( entry.getName() ) )
+    {
+      entry.setNextTime( entry.getTimeTrigger().getTimeAfter( System.currentTimeMillis() ) );
+      schedule( entry );
+      notifyAll();
+    }
   }
 }
@@ -1,19 +1,105 @@
 package org.realityforge.spydle.runtime;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
 
+/**
+ * A registered sink and the queue of metrics waiting to be delivered to it.
+ * The entry is run in the sink's stage to drain the queue. Metrics are delivered
+ * in order and the sink is never invoked concurrently.
+ *
+ * <p>If a spill queue is configured then metrics the sink fails to accept, or that
+ * overflow the queue, are written to the spill queue. Spilled metrics are replayed at
+ * a limited rate after each successful delivery.</p>
+ */
 final class SinkEntry
+  implements Runnable
 {
+  static final int DEFAULT_QUEUE_CAPACITY = 100;
+
+  private static final Logger LOG = Logger.getLogger( SinkEntry.class.getName() );
+
+  @Nonnull
+  private final String _key;
   @Nonnull
   private final MetricSink _sink;
   @Nonnull
   private final String _stage;
+  @Nonnull
+  private final StageDescriptor.RejectionPolicy _overflowPolicy;
+  @Nonnull
+  private final ArrayBlockingQueue<MetricValueSet> _queue;
+  // The task that runs the entry in its stage, created once so routing does not allocate
+  @Nonnull
+  private final Runnable _task;
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final AtomicLong _droppedCount = new AtomicLong();
+  private final AtomicLong _deliveredCount = new AtomicLong();
+  private final AtomicLong _failedCount = new AtomicLong();
+  private final AtomicLong _spilledCount = new AtomicLong();
+  private final AtomicLong _replayedCount = new AtomicLong();
+  // Time between collection and delivery of the last delivered metrics
+  private volatile long _lag;
+  private volatile boolean _closed;
+  @Nullable
+  private final SpillQueue _spillQueue;
+  // Maximum spilled metric sets replayed per second
+  private final int _replayRate;
+  // Number of spilled metric sets that may currently be replayed. Only accessed while holding lock
+  private double _replayAllowance;
+  private long _lastReplayTime;
 
-  SinkEntry( @Nonnull final MetricSink sink, @Nonnull final String stage )
+  SinkEntry( @Nonnull final String key,
+             @Nonnull final MetricSink sink,
+             @Nonnull final String stage,
+             final int queueCapacity,
+             @Nonnull final StageDescriptor.RejectionPolicy overflowPolicy )
   {
+    this( key, sink, stage, queueCapacity, overflowPolicy, null, 0 );
+  }
+
+  /**
+   * @param spillQueue the queue in which to store undelivered metrics, or null to discard them.
+   * @param replayRate the maximum number of spilled metric sets replayed per second.
+   */
+  SinkEntry( @Nonnull final String key,
+             @Nonnull final MetricSink sink,
+             @Nonnull final String stage,
+             final int queueCapacity,
+             @Nonnull final StageDescriptor.RejectionPolicy overflowPolicy,
+             @Nullable final SpillQueue spillQueue,
+             final int replayRate )
+  {
+    if( StageDescriptor.RejectionPolicy.COALESCE == overflowPolicy )
+    {
+      throw new IllegalArgumentException( "Sink " + key + " does not support overflow policy " + overflowPolicy );
+    }
+    _key = key;
     _sink = sink;
     _stage = stage;
+    _overflowPolicy = overflowPolicy;
+    _queue = new ArrayBlockingQueue<>( queueCapacity );
+    _spillQueue = spillQueue;
+    _replayRate = replayRate;
+    _task = Stage.newTask( key, this );
+  }
+
+  SinkEntry( @Nonnull final String key, @Nonnull final MetricSink sink, @Nonnull final String stage )
+  {
+    this( key, sink, stage, DEFAULT_QUEUE_CAPACITY, StageDescriptor.RejectionPolicy.DROP_OLDEST );
+  }
+
+  @Nonnull
+  String getKey()
+  {
+    return _key;
   }
 
   @Nonnull
@@ -27,4 +113,236 @@ final class SinkEntry
   {
     return _stage;
   }
+
+  /**
+   * @return the task to execute in the stage to drain the queue.
+   */
+  @Nonnull
+  Runnable getTask()
+  {
+    return _task;
+  }
+
+  /**
+   * Add metrics to the queue for delivery, applying the overflow policy if the queue is full.
+   *
+   * @return true if the metrics were queued and the entry should be run to drain the queue.
+   */
+  boolean offer( @Nonnull final MetricValueSet metrics )
+  {
+    if( _closed )
+    {
+      return false;
+    }
+    while( !_queue.offer( metrics ) )
+    {
+      switch ( _overflowPolicy )
+      {
+        case DROP_NEWEST:
+          spillOrDrop( metrics );
+          return false;
+        case CALLER_RUNS:
+          _lock.lock();
+          try
+          {
+            drain();
+            deliver( metrics );
+          }
+          finally
+          {
+            _lock.unlock();
+          }
+          return false;
+        case DROP_OLDEST:
+        default:
+          final MetricValueSet oldest = _queue.poll();
+          if( null != oldest )
+          {
+            spillOrDrop( oldest );
+          }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void run()
+  {
+    // If another thread holds the lock it is draining and will recheck the queue after releasing lock
+    while( !_queue.isEmpty() && _lock.tryLock() )
+    {
+      try
+      {
+        drain();
+      }
+      finally
+      {
+        _lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Discard queued metrics and stop accepting metrics.
+   * Waits for any in progress delivery to complete so the sink can be safely closed.
+   */
+  void close()
+  {
+    _closed = true;
+    _lock.lock();
+    try
+    {
+      _queue.clear();
+      if( null != _spillQueue )
+      {
+        _spillQueue.close();
+      }
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  int getQueueDepth()
+  {
+    return _queue.size();
+  }
+
+  long getDroppedCount()
+  {
+    return _droppedCount.get();
+  }
+
+  long getDeliveredCount()
+  {
+    return _deliveredCount.get();
+  }
+
+  long getFailedCount()
+  {
+    return _failedCount.get();
+  }
+
+  long getLag()
+  {
+    return _lag;
+  }
+
+  long getSpilledCount()
+  {
+    return _spilledCount.get();
+  }
+
+  long getReplayedCount()
+  {
+    return _replayedCount.get();
+  }
+
+  /**
+   * @return the number of metric sets in the spill queue.
+   */
+  int getSpillDepth()
+  {
+    return null != _spillQueue ? _spillQueue.size() : 0;
+  }
+
+  /**
+   * @return the number of metric sets the spill queue discarded due to its size and age limits.
+   */
+  long getSpillDroppedCount()
+  {
+    return null != _spillQueue ? _spillQueue.getDroppedCount() : 0;
+  }
+
+  private void drain()
+  {
+    MetricValueSet metrics;
+    while( !_closed && null != ( metrics = _queue.poll() ) )
+    {
+      deliver( metrics );
+    }
+  }
+
+  private void deliver( final MetricValueSet metrics )
+  {
+    if( send( metrics ) )
+    {
+      _deliveredCount.incrementAndGet();
+      _lag = System.currentTimeMillis() - metrics.getCollectedAt();
+      replay();
+    }
+    else
+    {
+      _failedCount.incrementAndGet();
+      if( null != _spillQueue )
+      {
+        spillOrDrop( metrics );
+      }
+    }
+  }
+
+  /**
+   * Deliver spilled metrics, oldest first, at no more than the replay rate.
+   * Must be invoked while holding the lock.
+   */
+  private void replay()
+  {
+    if( null == _spillQueue || 0 == _spillQueue.size() )
+    {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    final double elapsed = 0 == _lastReplayTime ? 1 : ( now - _lastReplayTime ) / 1000.0;
+    _lastReplayTime = now;
+    _replayAllowance = Math.min( _replayRate, _replayAllowance + elapsed * _replayRate );
+    while( !_closed && _replayAllowance >= 1 )
+    {
+      final MetricValueSet metrics = _spillQueue.peek();
+      if( null == metrics )
+      {
+        break;
+      }
+      _replayAllowance -= 1;
+      if( !send( metrics ) )
+      {
+        // Leave the metrics in the spill queue and retry after the next successful delivery
+        break;
+      }
+      // The metrics may have been discarded, as the spill queue exceeded its maximum size, while being sent
+      _spillQueue.remove( metrics );
+      _replayedCount.incrementAndGet();
+    }
+  }
+
+  private boolean send( final MetricValueSet metrics )
+  {
+    try
+    {
+      return _sink.handleMetrics( metrics );
+    }
+    catch( final Throwable t )
+    {
+      LOG.log( Level.WARNING, "Problem sending metric to sink " + _key, t );
+      return false;
+    }
+  }
+
+  private void spillOrDrop( final MetricValueSet metrics )
+  {
+    if( null != _spillQueue && _spillQueue.add( metrics ) )
+    {
+      _spilledCount.incrementAndGet();
+    }
+    else
+    {
+      _droppedCount.incrementAndGet();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "SinkEntry[key=" + _key + ",stage=" + _stage + ",sink=" + _sink + "]";
+  }
 }
@@ -1,29 +1,103 @@
 package org.realityforge.spydle.runtime;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.Abortable;
 import org.realityforge.spydle.MetricSource;
 import org.realityforge.spydle.MetricValueSet;
 
 final class SourceEntry
-  implements Runnable, TimeTrigger
+  implements DroppableAction, TimeTrigger
 {
+  /**
+   * The action taken when a poll completes after the time that the next poll was due.
+   */
+  enum OverrunPolicy
+  {
+    // Skip the missed polls and poll again a period after the overrunning poll completed
+    SKIP,
+    // Perform the missed polls immediately, up to MAX_CATCH_UP_POLLS, after which the polls are skipped
+    CATCH_UP,
+    // Skip the missed polls and poll again at the next period boundary
+    ALIGN
+  }
+
   static final int MAX_BACK_OFF_FACTOR = 5;
+  static final int MAX_CATCH_UP_POLLS = 5;
+  // A poll is late if it starts more than period / LATE_FACTOR after it was due
+  static final int LATE_FACTOR = 10;
+  // The default timeout is this percentage of the period
+  static final int DEFAULT_TIMEOUT_PERCENTAGE = 75;
+
+  private static final Logger LOG = Logger.getLogger( SourceEntry.class.getName() );
+
   @Nonnull
   private final MonitorDataStore _dataStore;
   @Nonnull
   private final MetricSource _source;
   private final int _period;
+  @Nonnull
+  private final OverrunPolicy _overrunPolicy;
+  // The maximum random delay added to each poll
+  private final int _jitter;
+  // The random delay added to the next poll
+  private int _pollJitter;
+  // The time after which a poll is interrupted and considered failed, 0 if polls never time out
+  private final int _timeout;
   private long _lastPollTime;
   private long _lastFailTime;
   private long _nextPollTime;
   private int _failCount;
+  private int _catchUpCount;
+  private volatile long _missedCount;
+  private volatile long _lateCount;
+  private volatile long _timeoutCount;
 
-  SourceEntry( @Nonnull final MonitorDataStore dataStore, @Nonnull final MetricSource source, final int period )
+  /**
+   * @param phase  the offset within the period at which polls occur. Spreading the phase of sources
+   *               prevents sources with the same period from polling at the same time.
+   * @param jitter  the maximum random delay added to each poll.
+   * @param timeout the time after which a poll is interrupted and considered failed, or 0 for no timeout.
+   *                See PollDeadline for the limits of interrupting a poll.
+   */
+  SourceEntry( @Nonnull final MonitorDataStore dataStore,
+               @Nonnull final MetricSource source,
+               final int period,
+               @Nonnull final OverrunPolicy overrunPolicy,
+               final int phase,
+               final int jitter,
+               final int timeout )
   {
+    if( jitter < 0 || jitter >= period )
+    {
+      throw new IllegalArgumentException( "Jitter " + jitter + " must be non-negative and less than period " + period );
+    }
     _dataStore = dataStore;
     _source = source;
     _period = period;
-    poll( System.currentTimeMillis() );
+    _overrunPolicy = overrunPolicy;
+    _jitter = jitter;
+    _timeout = timeout;
+    final long now = System.currentTimeMillis();
+    _nextPollTime = now + ( _period - ( now - phase ) % _period );
+    updateJitter();
+  }
+
+  SourceEntry( @Nonnull final MonitorDataStore dataStore,
+               @Nonnull final MetricSource source,
+               final int period,
+               @Nonnull final OverrunPolicy overrunPolicy )
+  {
+    this( dataStore, source, period, overrunPolicy, 0, 0, defaultTimeout( period ) );
+  }
+
+  SourceEntry( @Nonnull final MonitorDataStore dataStore, @Nonnull final MetricSource source, final int period )
+  {
+    this( dataStore, source, period, OverrunPolicy.ALIGN );
   }
 
   void poll( final long time )
@@ -33,6 +107,43 @@ final class SourceEntry
     _lastPollTime = time;
     _failCount = 0;
     _nextPollTime = time + _period;
+    updateJitter();
+  }
+
+  /**
+   * Record a successful poll and calculate the next poll time according to the overrun policy.
+   *
+   * @param scheduledTime the time at which the poll was due.
+   * @param startTime     the time at which the poll started.
+   * @param endTime       the time at which the poll completed.
+   */
+  void poll( final long scheduledTime, final long startTime, final long endTime )
+  {
+    _lastPollTime = startTime;
+    _failCount = 0;
+    final long nextTime = scheduledTime + _period;
+    if( nextTime > endTime )
+    {
+      _catchUpCount = 0;
+      _nextPollTime = nextTime;
+    }
+    else
+    {
+      // The number of period boundaries that passed before the poll completed
+      final long missed = ( endTime - nextTime ) / _period + 1;
+      if( OverrunPolicy.CATCH_UP == _overrunPolicy && _catchUpCount < MAX_CATCH_UP_POLLS )
+      {
+        _catchUpCount++;
+        _nextPollTime = nextTime;
+      }
+      else
+      {
+        _catchUpCount = 0;
+        _missedCount += missed;
+        _nextPollTime = OverrunPolicy.SKIP == _overrunPolicy ? endTime + _period : nextTime + missed * _period;
+      }
+    }
+    updateJitter();
   }
 
   void fail( final long time )
@@ -42,6 +153,32 @@ final class SourceEntry
     _lastFailTime = time;
     _failCount = ( _failCount < MAX_BACK_OFF_FACTOR ) ? _failCount + 1 : MAX_BACK_OFF_FACTOR;
     _nextPollTime = time + (long) ( _period * Math.pow( 2, (_failCount - 1) ) );
+    updateJitter();
+  }
+
+  private void updateJitter()
+  {
+    _pollJitter = 0 == _jitter ? 0 : ThreadLocalRandom.current().nextInt( _jitter );
+  }
+
+  static int defaultTimeout( final int period )
+  {
+    return (int) ( (long) period * DEFAULT_TIMEOUT_PERCENTAGE / 100 );
+  }
+
+  /**
+   * Derive a phase within the period from the key so that the phase is stable across restarts.
+   */
+  static int computePhase( @Nonnull final String key, final int period )
+  {
+    // Mix the bits of the hash as hashCode of similar keys only differ in the low bits
+    int hash = key.hashCode();
+    hash ^= ( hash >>> 16 );
+    hash *= 0x85ebca6b;
+    hash ^= ( hash >>> 13 );
+    hash *= 0xc2b2ae35;
+    hash ^= ( hash >>> 16 );
+    return ( hash & Integer.MAX_VALUE ) % period;
   }
 
   int getFailCount()
@@ -58,23 +195,83 @@ final class SourceEntry
   @Override
   public void run()
   {
+    final long scheduledTime = _nextPollTime;
     final long now = System.currentTimeMillis();
-    final MetricValueSet metrics = getSource().poll();
+    if( now - ( scheduledTime + _pollJitter ) > _period / LATE_FACTOR )
+    {
+      _lateCount++;
+    }
+    final MetricValueSet metrics = pollWithTimeout();
     if( null == metrics )
     {
-      fail( now );
+      fail( System.currentTimeMillis() );
     }
     else
     {
-      poll( now );
+      poll( scheduledTime, now, System.currentTimeMillis() );
       _dataStore.queueRoute( metrics );
     }
   }
 
+  /**
+   * Invoked when the stage discards the poll. The poll is counted as missed and the
+   * next poll occurs at the next period boundary so that a saturated stage is not flooded.
+   */
+  @Override
+  public void onDrop()
+  {
+    final long now = System.currentTimeMillis();
+    if( _nextPollTime <= now )
+    {
+      final long missed = ( now - _nextPollTime ) / _period + 1;
+      _missedCount += missed;
+      _nextPollTime += missed * _period;
+    }
+    updateJitter();
+  }
+
+  /**
+   * Poll the source, interrupting and aborting the poll if it exceeds the timeout.
+   *
+   * @return the metrics or null if the poll failed or timed out.
+   */
+  @Nullable
+  private MetricValueSet pollWithTimeout()
+  {
+    final PollDeadline deadline =
+      new PollDeadline( Thread.currentThread(), _source instanceof Abortable ? (Abortable) _source : null );
+    final Future<?> future =
+      0 != _timeout ? _dataStore.getExecutionEngine().schedule( deadline, _timeout ) : null;
+    try
+    {
+      final MetricValueSet metrics = getSource().poll();
+      return deadline.complete() ? metrics : null;
+    }
+    catch( final Throwable t )
+    {
+      LOG.log( Level.FINE, "Error polling source " + _source, t );
+      return null;
+    }
+    finally
+    {
+      if( !deadline.complete() )
+      {
+        _timeoutCount++;
+      }
+      if( null != future )
+      {
+        future.cancel( false );
+      }
+      // Clear the interrupt flag in case deadline expired so the stage thread can be reused
+      //noinspection ResultOfMethodCallIgnored
+      Thread.interrupted();
+    }
+  }
+
   @Override
   public long getTimeAfter( final long moment )
   {
-    return _nextPollTime;
+    return _nextPollTime + _pollJitter;
   }
 
   int getPeriod()
@@ -96,4 +293,103 @@ final class SourceEntry
   {
     return _nextPollTime;
   }
+
+  int getJitter()
+  {
+    return _jitter;
+  }
+
+  @Nonnull
+  OverrunPolicy getOverrunPolicy()
+  {
+    return _overrunPolicy;
+  }
+
+  /**
+   * @return the number of polls skipped due to overrunning polls or being dropped by the stage.
+   */
+  long getMissedCount()
+  {
+    return _missedCount;
+  }
+
+  /**
+   * @return the number of polls that started late.
+   */
+  long getLateCount()
+  {
+    return _lateCount;
+  }
+
+  int getTimeout()
+  {
+    return _timeout;
+  }
+
+  /**
+   * @return the number of polls that exceeded the timeout.
+   */
+  long getTimeoutCount()
+  {
+    return _timeoutCount;
+  }
+
+  /**
+   * Action run when a poll exceeds its timeout that interrupts the polling thread.
+   * An interrupt only aborts interruptible waits, such as Object.wait() or interruptible channels, and does
+   * not abort a thread blocked connecting or reading a socket, as JDBC drivers and RMI do, so sources that
+   * perform blocking I/O implement Abortable and are also aborted to release the thread.
+   */
+  private static final class PollDeadline
+    implements Runnable
+  {
+    @Nonnull
+    private final Thread _thread;
+    @Nullable
+    private final Abortable _abortable;
+    private boolean _completed;
+    private boolean _expired;
+
+    PollDeadline( @Nonnull final Thread thread, @Nullable final Abortable abortable )
+    {
+      _thread = thread;
+      _abortable = abortable;
+    }
+
+    @Override
+    public void run()
+    {
+      synchronized( this )
+      {
+        if( _completed )
+        {
+          return;
+        }
+        _expired = true;
+        _thread.interrupt();
+      }
+      if( null != _abortable )
+      {
+        try
+        {
+          _abortable.abort();
+        }
+        catch( final Throwable t )
+        {
+          LOG.log( Level.WARNING, "Error aborting poll of source " + _abortable, t );
+        }
+      }
+    }
+
+    /**
+     * Mark the poll as complete so the thread will no longer be interrupted.
+     *
+     * @return true if the poll completed before the deadline expired.
+     */
+    synchronized boolean complete()
+    {
+      _completed = true;
+      return !_expired;
+    }
+  }
 }
@@ -0,0 +1,467 @@
+package org.realityforge.spydle.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+
+/**
+ * A durable FIFO queue of metric sets stored in an append only log of memory mapped segment files.
+ *
+ * <p>Each segment starts with a header containing a magic number and the offset of the first
+ * record that has not been removed. Records are written as a length followed by the encoded
+ * metrics, with the length written last so that a torn write reads as the end of the segment.
+ * Segments are deleted once every record has been removed or when the total size exceeds the
+ * configured maximum, in which case the oldest records are discarded.</p>
+ *
+ * <p>The queue is thread safe.</p>
+ */
+final class SpillQueue
+  implements Closeable
+{
+  private static final Logger LOG = Logger.getLogger( SpillQueue.class.getName() );
+
+  private static final int MAGIC = 0x5350494C;
+  // Magic number followed by read offset
+  private static final int HEADER_SIZE = 8;
+  private static final int READ_OFFSET_POSITION = 4;
+  // Size of the length that precedes each record
+  private static final int LENGTH_SIZE = 4;
+  private static final String SUFFIX = ".seg";
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+  private static final class Segment
+  {
+    @Nonnull
+    private final File _file;
+    @Nonnull
+    private final MappedByteBuffer _buffer;
+    // Offset of the first record not yet removed
+    private int _readOffset;
+    // Offset after the last record
+    private int _writeOffset;
+    // Number of records not yet removed
+    private int _count;
+
+    private Segment( @Nonnull final File file, @Nonnull final MappedByteBuffer buffer )
+    {
+      _file = file;
+      _buffer = buffer;
+    }
+  }
+
+  @Nonnull
+  private final File _directory;
+  private final int _segmentSize;
+  private final long _maxSize;
+  private final long _maxAge;
+  // Segments ordered from oldest to newest
+  private final ArrayDeque<Segment> _segments = new ArrayDeque<>();
+  // Buffer used to encode a record before it is copied into a segment
+  private ByteBuffer _scratch = ByteBuffer.allocate( 4096 );
+  private long _nextSequence;
+  private int _count;
+  private long _droppedCount;
+  private boolean _closed;
+  // The metrics last returned by peek() and the location of their record, used to verify remove()
+  @Nullable
+  private MetricValueSet _peeked;
+  @Nullable
+  private Segment _peekedSegment;
+  private int _peekedOffset;
+
+  SpillQueue( @Nonnull final File directory, final int segmentSize, final long maxSize, final long maxAge )
+    throws IOException
+  {
+    _directory = directory;
+    _segmentSize = segmentSize;
+    _maxSize = maxSize;
+    _maxAge = maxAge;
+    if( !directory.isDirectory() && !directory.mkdirs() )
+    {
+      throw new IOException( "Unable to create spill directory " + directory );
+    }
+    openSegments();
+  }
+
+  SpillQueue( @Nonnull final File directory, @Nonnull final SpillQueueDescriptor descriptor )
+    throws IOException
+  {
+    this( directory, descriptor.getSegmentSize(), descriptor.getMaxSize(), descriptor.getMaxAge() );
+  }
+
+  /**
+   * Append the metrics to the queue.
+   *
+   * @return false if the metrics could not be stored.
+   */
+  synchronized boolean add( @Nonnull final MetricValueSet metrics )
+  {
+    if( _closed )
+    {
+      return false;
+    }
+    final int length = encode( metrics );
+    final int recordSize = LENGTH_SIZE + length;
+    if( HEADER_SIZE + recordSize > _segmentSize )
+    {
+      LOG.warning( "Unable to spill " + metrics.size() + " metrics to " + _directory + " as they exceed segment size" );
+      _droppedCount++;
+      return false;
+    }
+    try
+    {
+      Segment tail = _segments.peekLast();
+      if( null == tail || tail._writeOffset + recordSize > tail._buffer.capacity() )
+      {
+        if( null != tail )
+        {
+          tail._buffer.force();
+        }
+        tail = createSegment();
+      }
+      final MappedByteBuffer buffer = tail._buffer;
+      buffer.position( tail._writeOffset + LENGTH_SIZE );
+      _scratch.flip();
+      buffer.put( _scratch );
+      buffer.putInt( tail._writeOffset, length );
+      tail._writeOffset += recordSize;
+      tail._count++;
+      _count++;
+    }
+    catch( final IOException ioe )
+    {
+      LOG.log( Level.WARNING, "Unable to spill metrics to " + _directory, ioe );
+      _droppedCount++;
+      return false;
+    }
+    enforceMaxSize();
+    return true;
+  }
+
+  /**
+   * Return the oldest metrics in the queue without removing them.
+   * Metrics older than the maximum age are discarded.
+   *
+   * @return the metrics or null if the queue is empty.
+   */
+  @Nullable
+  synchronized MetricValueSet peek()
+  {
+    final long minCollectedAt = System.currentTimeMillis() - _maxAge;
+    while( !_closed )
+    {
+      final Segment head = _segments.peekFirst();
+      if( null == head )
+      {
+        return null;
+      }
+      else if( head._readOffset >= head._writeOffset )
+      {
+        if( 1 == _segments.size() )
+        {
+          return null;
+        }
+        deleteSegment( _segments.removeFirst() );
+      }
+      else
+      {
+        final MetricValueSet metrics = decode( head._buffer, head._readOffset + LENGTH_SIZE );
+        if( metrics.getCollectedAt() >= minCollectedAt )
+        {
+          _peeked = metrics;
+          _peekedSegment = head;
+          _peekedOffset = head._readOffset;
+          return metrics;
+        }
+        advance( head );
+        _droppedCount++;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Remove the metrics returned by the last invocation of peek(), typically after they have been delivered.
+   * The metrics are only removed if they are still the oldest in the queue. Metrics may be discarded by
+   * another thread adding metrics that cause the queue to exceed its maximum size, in which case the
+   * queue is not modified.
+   *
+   * @return true if the metrics were removed.
+   */
+  synchronized boolean remove( @Nonnull final MetricValueSet metrics )
+  {
+    final Segment head = _segments.peekFirst();
+    if( !_closed &&
+        metrics == _peeked &&
+        null != head &&
+        head == _peekedSegment &&
+        head._readOffset == _peekedOffset &&
+        head._readOffset < head._writeOffset )
+    {
+      _peeked = null;
+      _peekedSegment = null;
+      advance( head );
+      return true;
+    }
+    else
+    {
+      return false;
+    }
+  }
+
+  /**
+   * @return the number of metric sets in the queue, including any that have expired but not yet been discarded.
+   */
+  synchronized int size()
+  {
+    return _count;
+  }
+
+  /**
+   * @return the number of metric sets discarded because they were too large, too old or exceeded the maximum size.
+   */
+  synchronized long getDroppedCount()
+  {
+    return _droppedCount;
+  }
+
+  @Override
+  public synchronized void close()
+  {
+    if( !_closed )
+    {
+      _closed = true;
+      for( final Segment segment : _segments )
+      {
+        segment._buffer.force();
+      }
+      // The mappings are released when the buffers are garbage collected
+      _segments.clear();
+    }
+  }
+
+  /**
+   * Convert a registration key into a name suitable for use as a directory.
+   */
+  @Nonnull
+  static String toDirectoryName( @Nonnull final String key )
+  {
+    final StringBuilder sb = new StringBuilder();
+    final int length = key.length();
+    for( int i = 0; i < length; i++ )
+    {
+      final char c = key.charAt( i );
+      sb.append( Character.isLetterOrDigit( c ) || '.' == c || '-' == c ? c : '_' );
+    }
+    return sb.toString();
+  }
+
+  private void advance( @Nonnull final Segment segment )
+  {
+    segment._readOffset += LENGTH_SIZE + segment._buffer.getInt( segment._readOffset );
+    segment._buffer.putInt( READ_OFFSET_POSITION, segment._readOffset );
+    segment._count--;
+    _count--;
+  }
+
+  private void enforceMaxSize()
+  {
+    while( _segments.size() > 1 && (long) _segments.size() * _segmentSize > _maxSize )
+    {
+      final Segment segment = _segments.removeFirst();
+      _droppedCount += segment._count;
+      _count -= segment._count;
+      deleteSegment( segment );
+    }
+  }
+
+  private int encode( @Nonnull final MetricValueSet metrics )
+  {
+    while( true )
+    {
+      _scratch.clear();
+      try
+      {
+        final int size = metrics.size();
+        _scratch.putLong( metrics.getCollectedAt() );
+        _scratch.putInt( size );
+        for( int i = 0; i < size; i++ )
+        {
+          final byte[] name = metrics.getName( i ).getBytes( UTF_8 );
+          _scratch.putShort( (short) name.length );
+          _scratch.put( name );
+          final byte type = metrics.getType( i );
+          _scratch.put( type );
+          if( MetricValueSet.TYPE_DOUBLE == type )
+          {
+            _scratch.putDouble( metrics.getDoubleValue( i ) );
+          }
+          else
+          {
+            _scratch.putLong( metrics.getLongValue( i ) );
+          }
+        }
+        return _scratch.position();
+      }
+      catch( final BufferOverflowException boe )
+      {
+        _scratch = ByteBuffer.allocate( _scratch.capacity() * 2 );
+      }
+    }
+  }
+
+  @Nonnull
+  private MetricValueSet decode( @Nonnull final MappedByteBuffer segmentBuffer, final int offset )
+  {
+    final ByteBuffer buffer = segmentBuffer.duplicate();
+    buffer.position( offset );
+    final long collectedAt = buffer.getLong();
+    final int size = buffer.getInt();
+    final MetricValueSetBuilder builder = new MetricValueSetBuilder( size );
+    for( int i = 0; i < size; i++ )
+    {
+      final byte[] name = new byte[ buffer.getShort() & 0xFFFF ];
+      buffer.get( name );
+      final MetricName metricName = MetricName.intern( new String( name, UTF_8 ) );
+      if( MetricValueSet.TYPE_DOUBLE == buffer.get() )
+      {
+        builder.add( metricName, buffer.getDouble() );
+      }
+      else
+      {
+        builder.add( metricName, buffer.getLong() );
+      }
+    }
+    return builder.build( collectedAt );
+  }
+
+  private void openSegments()
+    throws IOException
+  {
+    final File[] files = _directory.listFiles( new FilenameFilter()
+    {
+      @Override
+      public boolean accept( final File dir, final String name )
+      {
+        return name.endsWith( SUFFIX );
+      }
+    } );
+    if( null == files )
+    {
+      throw new IOException( "Unable to list spill directory " + _directory );
+    }
+    // Names are zero padded sequence numbers so lexical order is sequence order
+    Arrays.sort( files );
+    for( final File file : files )
+    {
+      final String name = file.getName();
+      final long sequence;
+      try
+      {
+        sequence = Long.parseLong( name.substring( 0, name.length() - SUFFIX.length() ) );
+      }
+      catch( final NumberFormatException nfe )
+      {
+        continue;
+      }
+      _nextSequence = Math.max( _nextSequence, sequence + 1 );
+      final Segment segment = new Segment( file, map( file, file.length() ) );
+      if( segment._buffer.capacity() < HEADER_SIZE || MAGIC != segment._buffer.getInt( 0 ) )
+      {
+        LOG.warning( "Discarding invalid spill segment " + file );
+        deleteSegment( segment );
+        continue;
+      }
+      scan( segment );
+      if( 0 == segment._count )
+      {
+        deleteSegment( segment );
+      }
+      else
+      {
+        _segments.add( segment );
+        _count += segment._count;
+      }
+    }
+  }
+
+  /**
+   * Determine the number of records and the write offset of a segment read from disk.
+   */
+  private void scan( @Nonnull final Segment segment )
+  {
+    final MappedByteBuffer buffer = segment._buffer;
+    final int capacity = buffer.capacity();
+    final int readOffset = buffer.getInt( READ_OFFSET_POSITION );
+    segment._readOffset = readOffset < HEADER_SIZE || readOffset > capacity ? capacity : readOffset;
+    int offset = segment._readOffset;
+    while( offset + LENGTH_SIZE <= capacity )
+    {
+      final int length = buffer.getInt( offset );
+      if( length <= 0 || offset + LENGTH_SIZE + length > capacity )
+      {
+        break;
+      }
+      offset += LENGTH_SIZE + length;
+      segment._count++;
+    }
+    segment._writeOffset = offset;
+  }
+
+  @Nonnull
+  private Segment createSegment()
+    throws IOException
+  {
+    final long sequence = _nextSequence++;
+    final File file = new File( _directory, String.format( "%020d%s", sequence, SUFFIX ) );
+    final Segment segment = new Segment( file, map( file, _segmentSize ) );
+    segment._buffer.putInt( 0, MAGIC );
+    segment._buffer.putInt( READ_OFFSET_POSITION, HEADER_SIZE );
+    segment._readOffset = HEADER_SIZE;
+    segment._writeOffset = HEADER_SIZE;
+    _segments.add( segment );
+    return segment;
+  }
+
+  @Nonnull
+  private MappedByteBuffer map( @Nonnull final File file, final long size )
+    throws IOException
+  {
+    try ( final RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" ) )
+    {
+      randomAccessFile.setLength( size );
+      // The mapping remains valid after the file is closed
+      return randomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+    }
+  }
+
+  private void deleteSegment( @Nonnull final Segment segment )
+  {
+    if( !segment._file.delete() )
+    {
+      LOG.warning( "Unable to delete spill segment " + segment._file );
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "SpillQueue[" + _directory + "]";
+  }
+}
@@ -0,0 +1,97 @@
+package org.realityforge.spydle.runtime;
+
+import java.io.File;
+import javax.annotation.Nonnull;
+
+/**
+ * Describes the disk backed queue that holds metrics a sink failed to accept until they can be replayed.
+ */
+final class SpillQueueDescriptor
+{
+  static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+  static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+  static final long DEFAULT_MAX_AGE = 24L * 60 * 60 * 1000;
+  static final int DEFAULT_REPLAY_RATE = 10;
+
+  @Nonnull
+  private final File _directory;
+  private final int _segmentSize;
+  private final long _maxSize;
+  private final long _maxAge;
+  private final int _replayRate;
+
+  SpillQueueDescriptor( @Nonnull final File directory,
+                        final int segmentSize,
+                        final long maxSize,
+                        final long maxAge,
+                        final int replayRate )
+  {
+    if( segmentSize < 1024 || maxSize < segmentSize )
+    {
+      throw new IllegalArgumentException( "Invalid spill queue sizes: segment=" + segmentSize + " max=" + maxSize );
+    }
+    if( maxAge <= 0 || replayRate <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid spill queue limits: max_age=" + maxAge +
+                                          " replay_rate=" + replayRate );
+    }
+    _directory = directory;
+    _segmentSize = segmentSize;
+    _maxSize = maxSize;
+    _maxAge = maxAge;
+    _replayRate = replayRate;
+  }
+
+  SpillQueueDescriptor( @Nonnull final File directory )
+  {
+    this( directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE, DEFAULT_REPLAY_RATE );
+  }
+
+  /**
+   * @return the directory under which spill queues are stored. Each sink uses a subdirectory named after its key.
+   */
+  @Nonnull
+  File getDirectory()
+  {
+    return _directory;
+  }
+
+  int getSegmentSize()
+  {
+    return _segmentSize;
+  }
+
+  /**
+   * @return the maximum size of the segments on disk. The oldest segment is discarded when exceeded.
+   */
+  long getMaxSize()
+  {
+    return _maxSize;
+  }
+
+  /**
+   * @return the age in milliseconds after which spilled metrics are discarded rather than replayed.
+   */
+  long getMaxAge()
+  {
+    return _maxAge;
+  }
+
+  /**
+   * @return the maximum number of spilled metric sets replayed per second.
+   */
+  int getReplayRate()
+  {
+    return _replayRate;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "SpillQueue[directory=" + _directory +
+           ",segmentSize=" + _segmentSize +
+           ",maxSize=" + _maxSize +
+           ",maxAge=" + _maxAge +
+           ",replayRate=" + _replayRate + "]";
+  }
+}
@@ -0,0 +1,30 @@
+package org.realityforge.spydle.runtime;
+
+import java.io.File;
+import javax.annotation.Nonnull;
+import javax.json.JsonObject;
+
+/**
+ * Utility class to build spill queue descriptors from configuration.
+ */
+final class SpillQueueKit
+{
+  private SpillQueueKit()
+  {
+  }
+
+  static SpillQueueDescriptor build( @Nonnull final JsonObject config )
+  {
+    final File directory = new File( config.getString( "directory" ) );
+    final int segmentSize = config.getInt( "segment_size", SpillQueueDescriptor.DEFAULT_SEGMENT_SIZE );
+    final long maxSize = getLong( config, "max_size", SpillQueueDescriptor.DEFAULT_MAX_SIZE );
+    final long maxAge = getLong( config, "max_age", SpillQueueDescriptor.DEFAULT_MAX_AGE );
+    final int replayRate = config.getInt( "replay_rate", SpillQueueDescriptor.DEFAULT_REPLAY_RATE );
+    return new SpillQueueDescriptor( directory, segmentSize, maxSize, maxAge, replayRate );
+  }
+
+  private static long getLong( @Nonnull final JsonObject config, @Nonnull final String key, final long defaultValue )
+  {
+    return config.containsKey( key ) ? config.getJsonNumber( key ).longValue() : defaultValue;
+  }
+}
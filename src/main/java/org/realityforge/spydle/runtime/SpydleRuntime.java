@@ -2,18 +2,39 @@ package org.realityforge.spydle.runtime;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A class responsible for coordinating the components that make up the Spydle service.
  */
 public class SpydleRuntime
 {
+  private static final Logger LOG = Logger.getLogger( SpydleRuntime.class.getName() );
+  private static final String RUNTIME_SOURCE_KEY = "spydle:runtime";
+
   private final ExecutionEngine _executionEngine = new ExecutionEngine();
-  private final Scheduler _scheduler = new Scheduler( _executionEngine );
-  private final MonitorDataStore _dataStore = new MonitorDataStore( _scheduler );
+  private final Scheduler _scheduler;
+  private final MonitorDataStore _dataStore;
 
   private File _configDirectory;
   private ConfigScanner _scanner;
+  private Thread _schedulerThread;
+
+  public SpydleRuntime()
+  {
+    this( false );
+  }
+
+  /**
+   * @param useTimingWheel true to schedule using a hierarchical timing wheel rather than a priority queue.
+   */
+  public SpydleRuntime( final boolean useTimingWheel )
+  {
+    _scheduler =
+      useTimingWheel ? new TimingWheelScheduler( _executionEngine ) : new PriorityQueueScheduler( _executionEngine );
+    _dataStore = new MonitorDataStore( _executionEngine, _scheduler );
+  }
 
   public void start( final File configDirectory )
     throws IOException
@@ -23,8 +44,12 @@ public class SpydleRuntime
       stop();
     }
     _configDirectory = configDirectory;
-    _scanner = new ConfigScanner( _dataStore, _configDirectory );
+    _scanner = new ConfigScanner( _dataStore, _executionEngine, _configDirectory );
     _scanner.start();
+    _dataStore.registerSource( RUNTIME_SOURCE_KEY,
+                               new RuntimeMetricSource( _executionEngine, _dataStore ),
+                               "system",
+                               ConfigScanner.DEFAULT_PERIOD );
     _scheduler.addTrigger( "Scanner", "system", new PeriodicTimeTrigger( 200 ), new Runnable()
     {
       @Override
@@ -42,12 +67,45 @@ public class SpydleRuntime
         System.gc();
       }
     } );
+
+    _schedulerThread = new Thread( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        runScheduler();
+      }
+    }, "Spydle-Scheduler" );
+    _schedulerThread.start();
+  }
+
+  /**
+   * Block until the runtime has been stopped.
+   */
+  public void join()
+    throws InterruptedException
+  {
+    final Thread thread = _schedulerThread;
+    if( null != thread )
+    {
+      thread.join();
+    }
   }
 
   public void stop()
   {
     if( null != _configDirectory )
     {
+      _schedulerThread.interrupt();
+      try
+      {
+        _schedulerThread.join();
+      }
+      catch( final InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+      }
+      _schedulerThread = null;
       _dataStore.close();
       _executionEngine.close();
       _scanner.close();
@@ -55,8 +113,22 @@ public class SpydleRuntime
     }
   }
 
-  public long tick()
+  private void runScheduler()
   {
-    return _scheduler.tick( System.currentTimeMillis() );
+    while( !Thread.currentThread().isInterrupted() )
+    {
+      try
+      {
+        _scheduler.dispatchAndWait();
+      }
+      catch( final InterruptedException ie )
+      {
+        return;
+      }
+      catch( final Throwable t )
+      {
+        LOG.log( Level.WARNING, "Problem dispatching scheduled tasks", t );
+      }
+    }
   }
 }
@@ -0,0 +1,278 @@
+package org.realityforge.spydle.runtime;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded thread pool that executes the actions for a single stage.
+ * When the queue is full, actions are shed according to the stages rejection policy.
+ */
+final class Stage
+  implements RejectedExecutionHandler
+{
+  private static final Logger LOG = Logger.getLogger( Stage.class.getName() );
+
+  @Nonnull
+  private final StageDescriptor _descriptor;
+  @Nonnull
+  private final ThreadPoolExecutor _executor;
+  private final AtomicLong _rejectedCount = new AtomicLong();
+
+  Stage( @Nonnull final StageDescriptor descriptor )
+  {
+    _descriptor = descriptor;
+    final String name = descriptor.getName();
+    _executor = new ThreadPoolExecutor( descriptor.getCoreThreads(),
+                                        descriptor.getMaxThreads(),
+                                        descriptor.getKeepAlive(),
+                                        TimeUnit.MILLISECONDS,
+                                        new ArrayBlockingQueue<Runnable>( descriptor.getQueueCapacity() ),
+                                        new ThreadFactory()
+                                        {
+                                          private int _threadID;
+
+                                          @Override
+                                          public Thread newThread( final Runnable r )
+                                          {
+                                            return new Thread( r, "Stage: " + name + "-" + ( ++_threadID ) );
+                                          }
+                                        },
+                                        this );
+    // Allow idle stages to release all of their threads
+    _executor.allowCoreThreadTimeOut( descriptor.getKeepAlive() > 0 );
+  }
+
+  @Nonnull
+  StageDescriptor getDescriptor()
+  {
+    return _descriptor;
+  }
+
+  void execute( @Nullable final String key, @Nonnull final Runnable runnable )
+  {
+    execute( newTask( key, runnable ) );
+  }
+
+  /**
+   * Execute a task created by {@link #newTask(String, Runnable)}.
+   */
+  void execute( @Nonnull final Runnable task )
+  {
+    if( !( task instanceof KeyedTask ) )
+    {
+      throw new IllegalArgumentException( "Task " + task + " was not created by newTask" );
+    }
+    _executor.execute( task );
+  }
+
+  /**
+   * Create the task that executes an action in a stage. An action that is executed repeatedly may
+   * create its task once and reuse it so that nothing is allocated per execution.
+   */
+  @Nonnull
+  static Runnable newTask( @Nullable final String key, @Nonnull final Runnable runnable )
+  {
+    return new KeyedTask( key, runnable );
+  }
+
+  int getQueueDepth()
+  {
+    return _executor.getQueue().size();
+  }
+
+  int getActiveCount()
+  {
+    return _executor.getActiveCount();
+  }
+
+  int getPoolSize()
+  {
+    return _executor.getPoolSize();
+  }
+
+  long getCompletedCount()
+  {
+    return _executor.getCompletedTaskCount();
+  }
+
+  long getRejectedCount()
+  {
+    return _rejectedCount.get();
+  }
+
+  /**
+   * Stop accepting new actions but allow queued actions to complete.
+   */
+  void shutdown()
+  {
+    _executor.shutdown();
+  }
+
+  boolean awaitTermination( final long timeout, @Nonnull final TimeUnit unit )
+    throws InterruptedException
+  {
+    return _executor.awaitTermination( timeout, unit );
+  }
+
+  void shutdownNow()
+  {
+    for( final Runnable runnable : _executor.shutdownNow() )
+    {
+      dropped( runnable );
+    }
+  }
+
+  @Override
+  public void rejectedExecution( final Runnable runnable, final ThreadPoolExecutor executor )
+  {
+    _rejectedCount.incrementAndGet();
+    if( executor.isShutdown() )
+    {
+      dropped( runnable );
+      return;
+    }
+    switch ( _descriptor.getRejectionPolicy() )
+    {
+      case DROP_NEWEST:
+        dropped( runnable );
+        break;
+      case CALLER_RUNS:
+        if( ( (KeyedTask) runnable ).isDroppable() )
+        {
+          dropped( runnable );
+        }
+        else
+        {
+          runnable.run();
+        }
+        break;
+      case COALESCE:
+        if( isQueued( executor.getQueue(), runnable ) )
+        {
+          dropped( runnable );
+          break;
+        }
+        dropOldest( executor, runnable );
+        break;
+      case DROP_OLDEST:
+      default:
+        dropOldest( executor, runnable );
+        break;
+    }
+  }
+
+  private void dropOldest( final ThreadPoolExecutor executor, final Runnable runnable )
+  {
+    final BlockingQueue<Runnable> queue = executor.getQueue();
+    while( !queue.offer( runnable ) )
+    {
+      if( executor.isShutdown() )
+      {
+        dropped( runnable );
+        return;
+      }
+      final Runnable oldest = queue.poll();
+      if( null != oldest )
+      {
+        dropped( oldest );
+      }
+    }
+  }
+
+  private boolean isQueued( final BlockingQueue<Runnable> queue, final Runnable runnable )
+  {
+    final String key = ( (KeyedTask) runnable ).getKey();
+    if( null != key )
+    {
+      for( final Runnable candidate : queue )
+      {
+        if( key.equals( ( (KeyedTask) candidate ).getKey() ) )
+        {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void dropped( final Runnable runnable )
+  {
+    if( LOG.isLoggable( Level.FINE ) )
+    {
+      LOG.fine( "Stage " + _descriptor.getName() + " dropped action " + runnable );
+    }
+    try
+    {
+      ( (KeyedTask) runnable ).onDrop();
+    }
+    catch( final Throwable t )
+    {
+      LOG.log( Level.WARNING, "Problem notifying dropped action " + runnable, t );
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return _descriptor.toString();
+  }
+
+  /**
+   * Wrapper for actions that records the key used to coalesce actions.
+   * Actions that implement DroppableAction are notified when they are discarded.
+   */
+  private static final class KeyedTask
+    implements Runnable
+  {
+    @Nullable
+    private final String _key;
+    @Nonnull
+    private final Runnable _runnable;
+
+    KeyedTask( @Nullable final String key, @Nonnull final Runnable runnable )
+    {
+      _key = key;
+      _runnable = runnable;
+    }
+
+    @Nullable
+    String getKey()
+    {
+      return _key;
+    }
+
+    boolean isDroppable()
+    {
+      return _runnable instanceof DroppableAction;
+    }
+
+    void onDrop()
+    {
+      if( isDroppable() )
+      {
+        ( (DroppableAction) _runnable ).onDrop();
+      }
+    }
+
+    @Override
+    public void run()
+    {
+      _runnable.run();
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Task[key=" + _key + "]";
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.realityforge.spydle.runtime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Describes the thread pool and queue used to execute actions in a stage.
+ */
+final class StageDescriptor
+{
+  static final int DEFAULT_MAX_THREADS = 4;
+  static final int DEFAULT_QUEUE_CAPACITY = 1000;
+  static final int DEFAULT_KEEP_ALIVE = 1000;
+
+  /**
+   * The action taken when an action is submitted to a stage whose queue is full.
+   */
+  enum RejectionPolicy
+  {
+    // Discard the oldest queued action and enqueue the new action
+    DROP_OLDEST,
+    // Discard the new action
+    DROP_NEWEST,
+    // Run the new action in the thread that submitted it. Scheduled polls are dropped instead as they are submitted by the scheduler
+    CALLER_RUNS,
+    // Discard the new action if an action with the same key is already queued, otherwise drop the oldest.
+    // A scheduled poll is only rescheduled once run or dropped so it is never queued twice and the oldest is dropped
+    COALESCE
+  }
+
+  @Nonnull
+  private final String _name;
+  private final int _coreThreads;
+  private final int _maxThreads;
+  private final int _queueCapacity;
+  private final int _keepAlive;
+  @Nonnull
+  private final RejectionPolicy _rejectionPolicy;
+
+  StageDescriptor( @Nonnull final String name,
+                   @Nonnegative final int coreThreads,
+                   @Nonnegative final int maxThreads,
+                   @Nonnegative final int queueCapacity,
+                   @Nonnegative final int keepAlive,
+                   @Nonnull final RejectionPolicy rejectionPolicy )
+  {
+    if( maxThreads < 1 || coreThreads < 0 || coreThreads > maxThreads )
+    {
+      throw new IllegalArgumentException( "Invalid thread counts for stage " + name + ": core=" + coreThreads +
+                                          " max=" + maxThreads );
+    }
+    if( queueCapacity < 1 )
+    {
+      throw new IllegalArgumentException( "Invalid queue capacity for stage " + name + ": " + queueCapacity );
+    }
+    _name = name;
+    _coreThreads = coreThreads;
+    _maxThreads = maxThreads;
+    _queueCapacity = queueCapacity;
+    _keepAlive = keepAlive;
+    _rejectionPolicy = rejectionPolicy;
+  }
+
+  StageDescriptor( @Nonnull final String name )
+  {
+    this( name,
+          DEFAULT_MAX_THREADS,
+          DEFAULT_MAX_THREADS,
+          DEFAULT_QUEUE_CAPACITY,
+          DEFAULT_KEEP_ALIVE,
+          RejectionPolicy.DROP_OLDEST );
+  }
+
+  @Nonnull
+  String getName()
+  {
+    return _name;
+  }
+
+  int getCoreThreads()
+  {
+    return _coreThreads;
+  }
+
+  int getMaxThreads()
+  {
+    return _maxThreads;
+  }
+
+  int getQueueCapacity()
+  {
+    return _queueCapacity;
+  }
+
+  /**
+   * @return the time in milliseconds that idle threads are retained.
+   */
+  int getKeepAlive()
+  {
+    return _keepAlive;
+  }
+
+  @Nonnull
+  RejectionPolicy getRejectionPolicy()
+  {
+    return _rejectionPolicy;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Stage[name=" + _name + ",coreThreads=" + _coreThreads + ",maxThreads=" + _maxThreads +
+           ",queueCapacity=" + _queueCapacity + ",keepAlive=" + _keepAlive +
+           ",rejectionPolicy=" + _rejectionPolicy + "]";
+  }
+}
@@ -0,0 +1,41 @@
+package org.realityforge.spydle.runtime;
+
+import javax.annotation.Nonnull;
+import javax.json.JsonObject;
+
+/**
+ * Utility class to build stage descriptors from configuration.
+ */
+final class StageKit
+{
+  private StageKit()
+  {
+  }
+
+  static StageDescriptor build( @Nonnull final String name, @Nonnull final JsonObject config )
+  {
+    final int maxThreads = config.getInt( "max_threads", StageDescriptor.DEFAULT_MAX_THREADS );
+    final int coreThreads = config.getInt( "core_threads", maxThreads );
+    final int queueCapacity = config.getInt( "queue_capacity", StageDescriptor.DEFAULT_QUEUE_CAPACITY );
+    final int keepAlive = config.getInt( "keep_alive", StageDescriptor.DEFAULT_KEEP_ALIVE );
+    final String policy = config.getString( "rejection_policy", "drop-oldest" );
+    return new StageDescriptor( name, coreThreads, maxThreads, queueCapacity, keepAlive, parseRejectionPolicy( policy ) );
+  }
+
+  static StageDescriptor.RejectionPolicy parseRejectionPolicy( @Nonnull final String policy )
+  {
+    switch ( policy )
+    {
+      case "drop-oldest":
+        return StageDescriptor.RejectionPolicy.DROP_OLDEST;
+      case "drop-newest":
+        return StageDescriptor.RejectionPolicy.DROP_NEWEST;
+      case "caller-runs":
+        return StageDescriptor.RejectionPolicy.CALLER_RUNS;
+      case "coalesce":
+        return StageDescriptor.RejectionPolicy.COALESCE;
+      default:
+        throw new IllegalArgumentException( "Unknown rejection_policy '" + policy + "'" );
+    }
+  }
+}
@@ -16,6 +16,11 @@ final class TimeEntry
   //cached version of time from TimeTrigger class
   private long _nextTime;
 
+  //intrusive list links used by TimingWheelScheduler so entries can be unlinked in constant time
+  private int _bucket = TimingWheelScheduler.NO_BUCKET;
+  private TimeEntry _previous;
+  private TimeEntry _next;
+
   TimeEntry( @Nonnull final String name,
              @Nonnull final String stage,
              @Nonnull final TimeTrigger trigger,
@@ -62,6 +67,35 @@ final class TimeEntry
     _nextTime = nextTime;
   }
 
+  int getBucket()
+  {
+    return _bucket;
+  }
+
+  void setBucket( final int bucket )
+  {
+    _bucket = bucket;
+  }
+
+  TimeEntry getPrevious()
+  {
+    return _previous;
+  }
+
+  void setPrevious( final TimeEntry previous )
+  {
+    _previous = previous;
+  }
+
+  TimeEntry getNext()
+  {
+    return _next;
+  }
+
+  void setNext( final TimeEntry next )
+  {
+    _next = next;
+  }
 
   public String toString()
   {
@@ -27,7 +27,7 @@ final class TimeEntryComparator
     }
     else
     {
-      return (int) ( o1.getNextTime() - o2.getNextTime() );
+      return Long.compare( o1.getNextTime(), o2.getNextTime() );
     }
   }
 }
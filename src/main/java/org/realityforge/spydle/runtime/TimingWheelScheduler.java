@@ -0,0 +1,198 @@
+package org.realityforge.spydle.runtime;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Scheduler that buckets pending entries in a hierarchical timing wheel.
+ * Adding and removing entries is O(1) and expiry is processed a bucket at a time.
+ * Entries in the higher levels are cascaded into lower levels as time advances.
+ */
+final class TimingWheelScheduler
+  extends Scheduler
+{
+  static final int NO_BUCKET = -1;
+  // Resolution of wheel in milliseconds
+  static final int TICK_DURATION = 10;
+  static final int WHEEL_BITS = 6;
+  static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  static final int WHEEL_MASK = WHEEL_SIZE - 1;
+  // With 4 levels the wheel spans WHEEL_SIZE^4 ticks (~46 hours), longer delays are parked in the last level
+  static final int LEVELS = 4;
+  private static final long MAX_DELAY_TICKS = ( 1L << ( WHEEL_BITS * LEVELS ) ) - 1;
+  private static final int EXPIRED_BUCKET = LEVELS * WHEEL_SIZE;
+
+  // Head of each bucket's list. The last bucket holds entries that have expired but have not been polled
+  private final TimeEntry[] _buckets = new TimeEntry[ EXPIRED_BUCKET + 1 ];
+  // The last tick for which buckets have been processed
+  private long _currentTick;
+  private int _size;
+
+  TimingWheelScheduler( @Nonnull final ExecutionEngine executionEngine )
+  {
+    this( executionEngine, System.currentTimeMillis() );
+  }
+
+  TimingWheelScheduler( @Nonnull final ExecutionEngine executionEngine, final long now )
+  {
+    super( executionEngine );
+    _currentTick = now / TICK_DURATION;
+  }
+
+  @Override
+  void schedule( @Nonnull final TimeEntry entry )
+  {
+    _size++;
+    place( entry );
+  }
+
+  @Override
+  void unschedule( @Nonnull final TimeEntry entry )
+  {
+    if( NO_BUCKET != entry.getBucket() )
+    {
+      unlink( entry );
+      _size--;
+    }
+  }
+
+  @Nullable
+  @Override
+  TimeEntry pollExpired( final long now )
+  {
+    if( null == _buckets[ EXPIRED_BUCKET ] )
+    {
+      advanceTo( now / TICK_DURATION );
+    }
+    final TimeEntry entry = _buckets[ EXPIRED_BUCKET ];
+    if( null != entry )
+    {
+      unlink( entry );
+      _size--;
+    }
+    return entry;
+  }
+
+  @Override
+  long getNextTime()
+  {
+    if( 0 == _size )
+    {
+      return Long.MAX_VALUE;
+    }
+    else if( null != _buckets[ EXPIRED_BUCKET ] )
+    {
+      return _currentTick * TICK_DURATION;
+    }
+    long nextTick = Long.MAX_VALUE;
+    for( int level = 0; level < LEVELS; level++ )
+    {
+      final int shift = WHEEL_BITS * level;
+      final long base = _currentTick >> shift;
+      // At level 0 the current slot has already been processed. At higher levels the
+      // current slot holds entries that are a full revolution away.
+      final int maxOffset = 0 == level ? WHEEL_MASK : WHEEL_SIZE;
+      for( int offset = 1; offset <= maxOffset; offset++ )
+      {
+        if( null != _buckets[ level * WHEEL_SIZE + (int) ( ( base + offset ) & WHEEL_MASK ) ] )
+        {
+          nextTick = Math.min( nextTick, ( base + offset ) << shift );
+          break;
+        }
+      }
+    }
+    return Long.MAX_VALUE == nextTick ? Long.MAX_VALUE : nextTick * TICK_DURATION;
+  }
+
+  private void advanceTo( final long tick )
+  {
+    if( 0 == _size )
+    {
+      _currentTick = Math.max( _currentTick, tick );
+      return;
+    }
+    while( _currentTick < tick && null == _buckets[ EXPIRED_BUCKET ] )
+    {
+      _currentTick++;
+      // Cascade each level whose lower levels have all wrapped around
+      for( int level = 1; level < LEVELS; level++ )
+      {
+        final int shift = WHEEL_BITS * level;
+        if( 0 != ( _currentTick & ( ( 1L << shift ) - 1 ) ) )
+        {
+          break;
+        }
+        cascade( level * WHEEL_SIZE + (int) ( ( _currentTick >> shift ) & WHEEL_MASK ) );
+      }
+      cascade( (int) ( _currentTick & WHEEL_MASK ) );
+    }
+  }
+
+  private void cascade( final int bucket )
+  {
+    TimeEntry entry = _buckets[ bucket ];
+    _buckets[ bucket ] = null;
+    while( null != entry )
+    {
+      final TimeEntry next = entry.getNext();
+      place( entry );
+      entry = next;
+    }
+  }
+
+  private void place( final TimeEntry entry )
+  {
+    // Round up so that entries never fire before their due time
+    final long deadline = ( entry.getNextTime() + TICK_DURATION - 1 ) / TICK_DURATION;
+    final long delay = deadline - _currentTick;
+    if( delay <= 0 )
+    {
+      link( EXPIRED_BUCKET, entry );
+    }
+    else
+    {
+      final long target = delay > MAX_DELAY_TICKS ? _currentTick + MAX_DELAY_TICKS : deadline;
+      final long clampedDelay = target - _currentTick;
+      int level = 0;
+      while( clampedDelay >= ( 1L << ( WHEEL_BITS * ( level + 1 ) ) ) )
+      {
+        level++;
+      }
+      link( level * WHEEL_SIZE + (int) ( ( target >> ( WHEEL_BITS * level ) ) & WHEEL_MASK ), entry );
+    }
+  }
+
+  private void link( final int bucket, final TimeEntry entry )
+  {
+    final TimeEntry head = _buckets[ bucket ];
+    entry.setBucket( bucket );
+    entry.setPrevious( null );
+    entry.setNext( head );
+    if( null != head )
+    {
+      head.setPrevious( entry );
+    }
+    _buckets[ bucket ] = entry;
+  }
+
+  private void unlink( final TimeEntry entry )
+  {
+    final TimeEntry previous = entry.getPrevious();
+    final TimeEntry next = entry.getNext();
+    if( null == previous )
+    {
+      _buckets[ entry.getBucket() ] = next;
+    }
+    else
+    {
+      previous.setNext( next );
+    }
+    if( null != next )
+    {
+      next.setPrevious( previous );
+    }
+    entry.setBucket( NO_BUCKET );
+    entry.setPrevious( null );
+    entry.setNext( null );
+  }
+}
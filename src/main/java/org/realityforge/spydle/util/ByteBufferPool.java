@@ -0,0 +1,84 @@
+package org.realityforge.spydle.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded pool of direct byte buffers of a fixed size.
+ * Buffers are allocated lazily and are never freed, so the memory retained by the
+ * pool is at most the buffer size multiplied by the maximum number of buffers.
+ */
+public final class ByteBufferPool
+{
+  private final int _bufferSize;
+  private final int _maxBuffers;
+  private final ConcurrentLinkedQueue<ByteBuffer> _free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger _allocatedCount = new AtomicInteger();
+
+  public ByteBufferPool( final int bufferSize, final int maxBuffers )
+  {
+    if( bufferSize <= 0 || maxBuffers <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid pool size " + maxBuffers + " x " + bufferSize );
+    }
+    _bufferSize = bufferSize;
+    _maxBuffers = maxBuffers;
+  }
+
+  /**
+   * Acquire a cleared buffer from the pool.
+   *
+   * @return the buffer or null if all the buffers are in use.
+   */
+  @Nullable
+  public ByteBuffer acquire()
+  {
+    final ByteBuffer buffer = _free.poll();
+    if( null != buffer )
+    {
+      return buffer;
+    }
+    while( true )
+    {
+      final int allocated = _allocatedCount.get();
+      if( allocated >= _maxBuffers )
+      {
+        return null;
+      }
+      else if( _allocatedCount.compareAndSet( allocated, allocated + 1 ) )
+      {
+        return ByteBuffer.allocateDirect( _bufferSize );
+      }
+    }
+  }
+
+  /**
+   * Return a buffer to the pool. The buffer must not be used by the caller after it is released.
+   */
+  public void release( @Nonnull final ByteBuffer buffer )
+  {
+    buffer.clear();
+    _free.offer( buffer );
+  }
+
+  public int getBufferSize()
+  {
+    return _bufferSize;
+  }
+
+  public int getMaxBuffers()
+  {
+    return _maxBuffers;
+  }
+
+  /**
+   * @return the number of buffers that have been acquired and not yet released.
+   */
+  public int getInUseCount()
+  {
+    return _allocatedCount.get() - _free.size();
+  }
+}
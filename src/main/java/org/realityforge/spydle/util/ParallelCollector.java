@@ -0,0 +1,219 @@
+package org.realityforge.spydle.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nonnull;
+import org.realityforge.spydle.MetricValueSetBuilder;
+
+/**
+ * Collects metrics from a list of probes using up to a fixed number of threads.
+ * The calling thread collects probes alongside threads borrowed from a shared pool,
+ * and the results are merged in probe order. A probe that fails contributes no
+ * metrics but does not prevent the remaining probes from being collected.
+ *
+ * <p>Each source uses a separate instance that limits the number of borrowed threads. A thread
+ * blocked in a probe that ignores interrupts, such as a socket read, keeps its place until the
+ * probe returns, so later collections use fewer threads rather than borrowing more.</p>
+ */
+public final class ParallelCollector
+{
+  /**
+   * The operation that collects the metrics for a single probe. It may be invoked concurrently.
+   */
+  public interface Collector<P>
+  {
+    void collect( @Nonnull MetricValueSetBuilder metrics, @Nonnull P probe )
+      throws Exception;
+
+    /**
+     * Invoked when collecting the probe failed. Any metrics the probe added are discarded.
+     */
+    void onFailure( @Nonnull P probe, @Nonnull Exception e );
+  }
+
+  private static final ExecutorService c_executor = Executors.newCachedThreadPool( new ThreadFactory()
+  {
+    private final AtomicInteger _count = new AtomicInteger();
+
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread thread = new Thread( r, "Spydle-Probe-" + _count.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    }
+  } );
+
+  // Borrowed threads available to the collection, including threads still running abandoned probes
+  private final Semaphore _permits;
+
+  /**
+   * @param concurrency the maximum number of probes collected at once.
+   */
+  public ParallelCollector( final int concurrency )
+  {
+    if( concurrency < 1 )
+    {
+      throw new IllegalArgumentException( "Invalid concurrency " + concurrency );
+    }
+    _permits = new Semaphore( concurrency - 1 );
+  }
+
+  /**
+   * Collect the probes and add their metrics to the builder.
+   * If the calling thread is interrupted then the probes in progress are abandoned and reported as failed.
+   *
+   * @return the number of probes that failed.
+   */
+  public <P> int collect( @Nonnull final List<P> probes,
+                          @Nonnull final Collector<P> collector,
+                          @Nonnull final MetricValueSetBuilder metrics )
+  {
+    final int count = probes.size();
+    final AtomicReferenceArray<MetricValueSetBuilder> results = new AtomicReferenceArray<>( count );
+    final AtomicInteger next = new AtomicInteger();
+    // Set once the caller stops waiting so that threads returning from abandoned probes do not start more
+    final AtomicBoolean abandoned = new AtomicBoolean();
+    final Runnable worker = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        int index;
+        while( !abandoned.get() &&
+               !Thread.currentThread().isInterrupted() &&
+               ( index = next.getAndIncrement() ) < count )
+        {
+          final P probe = probes.get( index );
+          final MetricValueSetBuilder probeMetrics = new MetricValueSetBuilder();
+          try
+          {
+            collector.collect( probeMetrics, probe );
+            results.set( index, probeMetrics );
+          }
+          catch( final Exception e )
+          {
+            collector.onFailure( probe, e );
+          }
+        }
+      }
+    };
+
+    final ArrayList<BorrowedWorker> borrowed = new ArrayList<>();
+    for( int i = 1; i < count && _permits.tryAcquire(); i++ )
+    {
+      final BorrowedWorker borrowedWorker = new BorrowedWorker( worker );
+      borrowedWorker.submit();
+      borrowed.add( borrowedWorker );
+    }
+    worker.run();
+    for( final BorrowedWorker borrowedWorker : borrowed )
+    {
+      try
+      {
+        borrowedWorker.await();
+      }
+      catch( final InterruptedException ie )
+      {
+        // Abandon the probes in progress, which are then reported as failed
+        abandoned.set( true );
+        for( final BorrowedWorker other : borrowed )
+        {
+          other.abandon();
+        }
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    abandoned.set( true );
+
+    int failures = 0;
+    for( int i = 0; i < count; i++ )
+    {
+      final MetricValueSetBuilder probeMetrics = results.getAndSet( i, null );
+      if( null == probeMetrics )
+      {
+        failures++;
+      }
+      else
+      {
+        metrics.addAll( probeMetrics );
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * A worker run on a borrowed thread. The permit is returned when the worker completes,
+   * or immediately if the worker is abandoned before it starts.
+   */
+  private final class BorrowedWorker
+    implements Runnable
+  {
+    @Nonnull
+    private final Runnable _worker;
+    private final AtomicBoolean _started = new AtomicBoolean();
+    private Future<?> _future;
+
+    BorrowedWorker( @Nonnull final Runnable worker )
+    {
+      _worker = worker;
+    }
+
+    void submit()
+    {
+      _future = c_executor.submit( this );
+    }
+
+    void await()
+      throws InterruptedException
+    {
+      try
+      {
+        _future.get();
+      }
+      catch( final ExecutionException ee )
+      {
+        // Unexpected as workers report failures via the collector
+      }
+    }
+
+    void abandon()
+    {
+      if( _started.compareAndSet( false, true ) )
+      {
+        _permits.release();
+        _future.cancel( false );
+      }
+      else
+      {
+        _future.cancel( true );
+      }
+    }
+
+    @Override
+    public void run()
+    {
+      if( _started.compareAndSet( false, true ) )
+      {
+        try
+        {
+          _worker.run();
+        }
+        finally
+        {
+          _permits.release();
+        }
+      }
+    }
+  }
+}
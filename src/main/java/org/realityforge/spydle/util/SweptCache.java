@@ -0,0 +1,70 @@
+package org.realityforge.spydle.util;
+
+import java.util.HashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A cache that discards the entries that have not been looked up for a sweep interval.
+ * Entries are held in two generations. Each sweep discards the older generation and
+ * entries of the older generation are moved to the current generation when looked up,
+ * so an entry is retained for between one and two intervals after its last lookup.
+ * The cache is not thread safe.
+ */
+public final class SweptCache<K, V>
+{
+  private final long _sweepInterval;
+  private HashMap<K, V> _current = new HashMap<>();
+  private HashMap<K, V> _previous = new HashMap<>();
+  private long _nextSweep;
+
+  public SweptCache( final long sweepInterval )
+  {
+    if( sweepInterval <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid sweep interval " + sweepInterval );
+    }
+    _sweepInterval = sweepInterval;
+  }
+
+  @Nullable
+  public V get( @Nonnull final K key )
+  {
+    V value = _current.get( key );
+    if( null == value )
+    {
+      value = _previous.remove( key );
+      if( null != value )
+      {
+        _current.put( key, value );
+      }
+    }
+    return value;
+  }
+
+  public void put( @Nonnull final K key, @Nonnull final V value )
+  {
+    _current.put( key, value );
+  }
+
+  /**
+   * Discard the entries that have not been looked up since the previous sweep if the sweep interval has elapsed.
+   */
+  public void sweep( final long now )
+  {
+    if( now >= _nextSweep )
+    {
+      // The maps are swapped rather than allocated so that steady state sweeps do not allocate
+      final HashMap<K, V> previous = _previous;
+      previous.clear();
+      _previous = _current;
+      _current = previous;
+      _nextSweep = now + _sweepInterval;
+    }
+  }
+
+  public int size()
+  {
+    return _current.size() + _previous.size();
+  }
+}
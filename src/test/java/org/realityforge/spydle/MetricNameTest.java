@@ -0,0 +1,96 @@
+package org.realityforge.spydle;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class MetricNameTest
+{
+  @Test
+  public void internReturnsCanonicalInstance()
+  {
+    final MetricName name = MetricName.intern( "foo.bar" );
+    assertSame( MetricName.intern( new String( "foo.bar" ) ), name );
+    assertNotSame( MetricName.intern( "foo.baz" ), name );
+    assertNotEquals( MetricName.intern( "foo.baz" ).getId(), name.getId() );
+    assertEquals( name.getName(), "foo.bar" );
+    assertEquals( name.getEncoded(), "foo.bar".getBytes( Charset.forName( "US-ASCII" ) ) );
+  }
+
+  @Test
+  public void builderInternsNames()
+  {
+    final MetricValueSet metrics = new MetricValueSetBuilder().add( "foo.bar", 1L ).build( 0 );
+    assertSame( metrics.getMetricName( 0 ), MetricName.intern( "foo.bar" ) );
+  }
+
+  @Test
+  public void cacheSupportsNullContext()
+  {
+    final MetricNameCache cache = new MetricNameCache();
+    final MetricName name = MetricName.intern( "x" );
+    assertNull( cache.get( null, "x" ) );
+    cache.put( null, "x", name );
+    assertSame( cache.get( null, "x" ), name );
+    assertNull( cache.get( "k", "x" ) );
+  }
+
+  @Test
+  public void cacheSweepDiscardsUnusedContexts()
+  {
+    final MetricNameCache cache = new MetricNameCache();
+    final MetricName name = MetricName.intern( "x" );
+    cache.put( "a", "x", name );
+    cache.put( "b", "x", name );
+    cache.sweep();
+    assertSame( cache.get( "a", "x" ), name );
+    cache.sweep();
+    assertSame( cache.get( "a", "x" ), name );
+    assertNull( cache.get( "b", "x" ) );
+    assertEquals( cache.size(), 1 );
+  }
+
+  @Test
+  public void releasedNamesAreRemovedAndTheirIdsReused()
+    throws Exception
+  {
+    final int count = 100;
+    final ArrayList<WeakReference<MetricName>> released = new ArrayList<>();
+    for( int i = 0; i < count; i++ )
+    {
+      released.add( new WeakReference<>( MetricName.intern( "released." + i ) ) );
+    }
+    final int idLimit = MetricName.getIdLimit();
+    for( int i = 0; i < 50 && !isCleared( released ); i++ )
+    {
+      System.gc();
+      Thread.sleep( 10 );
+    }
+    assertTrue( isCleared( released ) );
+
+    // The ids of the released names are reused rather than allocating new ids
+    final ArrayList<MetricName> reused = new ArrayList<>();
+    for( int i = 0; i < count; i++ )
+    {
+      final MetricName name = MetricName.intern( "reused." + i );
+      reused.add( name );
+    }
+    assertEquals( MetricName.getIdLimit(), idLimit );
+    assertEquals( reused.size(), count );
+  }
+
+  private static boolean isCleared( final List<WeakReference<MetricName>> references )
+  {
+    for( final WeakReference<MetricName> reference : references )
+    {
+      if( null != reference.get() )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,58 @@
+package org.realityforge.spydle;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class MetricValueSetTest
+{
+  @Test
+  public void builderStoresPrimitiveColumns()
+  {
+    final MetricValueSetBuilder builder = new MetricValueSetBuilder( 1 );
+    builder.add( "A", 1L );
+    builder.add( "B", 2.5D );
+    builder.add( "C", (Number) 7 );
+    builder.add( "D", new BigDecimal( "1.25" ) );
+    final MetricValueSet metrics = builder.build( 42 );
+
+    assertEquals( metrics.size(), 4 );
+    assertEquals( metrics.getCollectedAt(), 42 );
+    assertEquals( metrics.getName( 0 ), "A" );
+    assertFalse( metrics.isDouble( 0 ) );
+    assertEquals( metrics.getLongValue( 0 ), 1L );
+    assertTrue( metrics.isDouble( 1 ) );
+    assertEquals( metrics.getDoubleValue( 1 ), 2.5D );
+    assertFalse( metrics.isDouble( 2 ) );
+    assertEquals( metrics.getLongValue( 2 ), 7L );
+    assertTrue( metrics.isDouble( 3 ) );
+    assertEquals( metrics.getDoubleValue( 3 ), 1.25D );
+
+    final ArrayList<MetricValue> values = new ArrayList<>( metrics.getMetrics() );
+    assertEquals( values.size(), 4 );
+    assertEquals( values.get( 0 ).getValue(), 1L );
+    assertEquals( values.get( 1 ).getValue(), 2.5D );
+  }
+
+  @Test
+  public void legacyConstructorConvertsToColumns()
+  {
+    final MetricValueSet metrics =
+      new MetricValueSet( Arrays.asList( new MetricValue( "A", 3 ), new MetricValue( "B", 0.5F ) ), 0 );
+    assertEquals( metrics.size(), 2 );
+    assertEquals( metrics.getType( 0 ), MetricValueSet.TYPE_LONG );
+    assertEquals( metrics.getLongValue( 0 ), 3L );
+    assertEquals( metrics.getType( 1 ), MetricValueSet.TYPE_DOUBLE );
+    assertEquals( metrics.getDoubleValue( 1 ), 0.5D );
+  }
+
+  @Test( expectedExceptions = IllegalStateException.class )
+  public void builderCannotBeReused()
+  {
+    final MetricValueSetBuilder builder = new MetricValueSetBuilder();
+    builder.build( 0 );
+    builder.add( "A", 1L );
+  }
+}
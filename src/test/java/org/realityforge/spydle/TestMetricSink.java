@@ -0,0 +1,38 @@
+package org.realityforge.spydle;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+/**
+ * A metric sink used in tests that records the metrics received.
+ */
+public class TestMetricSink
+  implements MetricSink
+{
+  private final List<MetricValueSet> _received = new ArrayList<>();
+  private boolean _accept = true;
+
+  @Override
+  public synchronized boolean handleMetrics( @Nonnull final MetricValueSet metrics )
+  {
+    if( _accept )
+    {
+      _received.add( metrics );
+    }
+    return _accept;
+  }
+
+  /**
+   * Specify whether the sink accepts metrics or fails to handle them.
+   */
+  public synchronized void setAccept( final boolean accept )
+  {
+    _accept = accept;
+  }
+
+  public synchronized List<MetricValueSet> getReceived()
+  {
+    return new ArrayList<>( _received );
+  }
+}
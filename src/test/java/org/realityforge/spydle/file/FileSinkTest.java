@@ -0,0 +1,124 @@
+package org.realityforge.spydle.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class FileSinkTest
+{
+  @Test
+  public void writesCsv()
+    throws Exception
+  {
+    final File directory = Files.createTempDirectory( "spydle" ).toFile();
+    final FileSink sink =
+      new FileSink( new FileSinkDescriptor( directory, FileSinkDescriptor.Format.CSV, 4096, 0, false ) );
+    assertTrue( sink.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).add( "b", 2.5D ).build( 42 ) ) );
+    sink.close();
+    assertFalse( sink.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).build( 43 ) ) );
+
+    final File[] files = directory.listFiles();
+    assertNotNull( files );
+    assertEquals( files.length, 1 );
+    assertTrue( files[ 0 ].getName().endsWith( ".csv" ) );
+    assertEquals( new String( Files.readAllBytes( files[ 0 ].toPath() ), "US-ASCII" ),
+                  "timestamp,name,value\n42,a,1\n42,b,2.5\n" );
+  }
+
+  @Test
+  public void writesBinaryAndRotatesBySize()
+    throws Exception
+  {
+    final File directory = Files.createTempDirectory( "spydle" ).toFile();
+    final FileSink sink =
+      new FileSink( new FileSinkDescriptor( directory, FileSinkDescriptor.Format.BINARY, 4096, 0, false ) );
+    for( int i = 0; i < 300; i++ )
+    {
+      assertTrue( sink.handleMetrics( new MetricValueSetBuilder().add( "a", i ).add( "b", i / 2D ).build( i ) ) );
+    }
+    sink.close();
+    assertTrue( sink.getSegmentCount() > 1 );
+
+    final File[] files = directory.listFiles();
+    assertNotNull( files );
+    assertEquals( files.length, sink.getSegmentCount() );
+    Arrays.sort( files );
+    int expected = 0;
+    for( final File file : files )
+    {
+      final ByteBuffer buffer = ByteBuffer.wrap( Files.readAllBytes( file.toPath() ) );
+      assertTrue( buffer.limit() <= 4096 );
+      assertEquals( buffer.getInt(), FileSink.MAGIC );
+      assertEquals( buffer.get(), FileSink.VERSION );
+      // Names are defined once per segment
+      assertEquals( buffer.get(), FileSink.NAME_RECORD );
+      assertEquals( buffer.getInt(), 0 );
+      assertEquals( readName( buffer ), "a" );
+      assertEquals( buffer.get(), FileSink.NAME_RECORD );
+      assertEquals( buffer.getInt(), 1 );
+      assertEquals( readName( buffer ), "b" );
+      while( buffer.hasRemaining() )
+      {
+        assertEquals( buffer.get(), FileSink.SET_RECORD );
+        assertEquals( buffer.getLong(), expected );
+        assertEquals( buffer.getInt(), 2 );
+        assertEquals( buffer.getInt(), 0 );
+        assertEquals( buffer.get(), MetricValueSet.TYPE_LONG );
+        assertEquals( buffer.getLong(), expected );
+        assertEquals( buffer.getInt(), 1 );
+        assertEquals( buffer.get(), MetricValueSet.TYPE_DOUBLE );
+        assertEquals( buffer.getDouble(), expected / 2D );
+        expected++;
+      }
+    }
+    assertEquals( expected, 300 );
+  }
+
+  @Test
+  public void compressesClosedSegments()
+    throws Exception
+  {
+    final File directory = Files.createTempDirectory( "spydle" ).toFile();
+    final FileSink sink =
+      new FileSink( new FileSinkDescriptor( directory, FileSinkDescriptor.Format.CSV, 4096, 0, true ) );
+    assertTrue( sink.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).build( 42 ) ) );
+    sink.close();
+
+    final long start = System.currentTimeMillis();
+    while( 0 == sink.getCompressedCount() && System.currentTimeMillis() - start < 2000 )
+    {
+      Thread.sleep( 10 );
+    }
+    final File[] files = directory.listFiles();
+    assertNotNull( files );
+    assertEquals( files.length, 1 );
+    assertTrue( files[ 0 ].getName().endsWith( ".csv.gz" ) );
+    try ( final InputStream input = new GZIPInputStream( new FileInputStream( files[ 0 ] ) ) )
+    {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      int b;
+      while( -1 != ( b = input.read() ) )
+      {
+        output.write( b );
+      }
+      assertEquals( output.toString( "US-ASCII" ), "timestamp,name,value\n42,a,1\n" );
+    }
+  }
+
+  private String readName( final ByteBuffer buffer )
+    throws Exception
+  {
+    final byte[] name = new byte[ buffer.getShort() ];
+    buffer.get( name );
+    return new String( name, "US-ASCII" );
+  }
+}
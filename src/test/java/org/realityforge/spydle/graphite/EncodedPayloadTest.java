@@ -0,0 +1,42 @@
+package org.realityforge.spydle.graphite;
+
+import java.nio.charset.Charset;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class EncodedPayloadTest
+{
+  @Test
+  public void payloadSharedByFormatAndPrefix()
+  {
+    final MetricValueSet metrics =
+      new MetricValueSetBuilder().add( "a", 1L ).add( "b", Double.NaN ).add( "c", 2.5D ).build( 42000 );
+
+    final EncodedPayload payload = EncodedPayload.get( EncodedPayload.Format.PLAINTEXT, "p.", metrics );
+    assertSame( EncodedPayload.get( EncodedPayload.Format.PLAINTEXT, "p.", metrics ), payload );
+    assertNotSame( EncodedPayload.get( EncodedPayload.Format.PLAINTEXT, null, metrics ), payload );
+    assertNotSame( EncodedPayload.get( EncodedPayload.Format.PICKLE, "p.", metrics ), payload );
+
+    final String text = new String( payload.getData(), 0, payload.getLength(), Charset.forName( "US-ASCII" ) );
+    assertEquals( text, "p.a 1 42\np.c 2.5 42\n" );
+    assertEquals( payload.getCount(), 2 );
+    assertEquals( payload.getEnd( 0 ), "p.a 1 42\n".length() );
+    assertEquals( payload.getEnd( 1 ), text.length() );
+  }
+
+  @Test
+  public void pickleEndOffsets()
+  {
+    final MetricValueSetBuilder builder = new MetricValueSetBuilder();
+    for( int i = 0; i < 100; i++ )
+    {
+      builder.add( "m" + i, Long.MIN_VALUE );
+    }
+    final EncodedPayload payload =
+      EncodedPayload.get( EncodedPayload.Format.PICKLE, "prefix.", builder.build( 0 ) );
+    assertEquals( payload.getCount(), 100 );
+    assertEquals( payload.getEnd( 99 ), payload.getLength() );
+  }
+}
@@ -0,0 +1,66 @@
+package org.realityforge.spydle.graphite;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class GraphiteEncoderTest
+{
+  @Test
+  public void putLong()
+  {
+    assertEquals( encodeLong( 0 ), "0" );
+    assertEquals( encodeLong( 7 ), "7" );
+    assertEquals( encodeLong( 10 ), "10" );
+    assertEquals( encodeLong( -1234 ), "-1234" );
+    assertEquals( encodeLong( Long.MAX_VALUE ), Long.toString( Long.MAX_VALUE ) );
+    assertEquals( encodeLong( Long.MIN_VALUE ), Long.toString( Long.MIN_VALUE ) );
+  }
+
+  @Test
+  public void putDouble()
+  {
+    assertEquals( encodeDouble( 0 ), "0" );
+    assertEquals( encodeDouble( 3 ), "3" );
+    assertEquals( encodeDouble( 2.5 ), "2.5" );
+    assertEquals( encodeDouble( -0.125 ), "-0.125" );
+    assertEquals( encodeDouble( 0.1 ), "0.1" );
+    assertEquals( encodeDouble( 1.05 ), "1.05" );
+    assertEquals( encodeDouble( 123456.000789 ), "123456.000789" );
+    assertEquals( encodeDouble( 1e12 ), "1.0E12" );
+    assertEquals( encodeDouble( 1e-5 ), "1.0E-5" );
+  }
+
+  @Test
+  public void encodeSkipsNaN()
+  {
+    final MetricValueSet metrics =
+      new MetricValueSetBuilder().add( "a", Double.NaN ).add( "b", 1L ).build( 5000 );
+    final ByteBuffer buffer = ByteBuffer.allocate( 100 );
+    GraphiteEncoder.encode( buffer, "p.".getBytes( Charset.forName( "US-ASCII" ) ), metrics, 0, 5 );
+    GraphiteEncoder.encode( buffer, "p.".getBytes( Charset.forName( "US-ASCII" ) ), metrics, 1, 5 );
+    assertEquals( toString( buffer ), "p.b 1 5\n" );
+  }
+
+  private String encodeLong( final long value )
+  {
+    final ByteBuffer buffer = ByteBuffer.allocate( 30 );
+    GraphiteEncoder.putLong( buffer, value );
+    return toString( buffer );
+  }
+
+  private String encodeDouble( final double value )
+  {
+    final ByteBuffer buffer = ByteBuffer.allocate( 30 );
+    GraphiteEncoder.putDouble( buffer, value );
+    return toString( buffer );
+  }
+
+  private String toString( final ByteBuffer buffer )
+  {
+    return new String( buffer.array(), 0, buffer.position(), Charset.forName( "US-ASCII" ) );
+  }
+}
@@ -0,0 +1,96 @@
+package org.realityforge.spydle.graphite;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class GraphiteServiceTest
+{
+  @Test
+  public void writesMetricsToServer()
+    throws Exception
+  {
+    try ( final ServerSocket server = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() ) )
+    {
+      server.setSoTimeout( 2000 );
+      final GraphiteService service =
+        new GraphiteService( new GraphiteServiceDescriptor( "127.0.0.1", server.getLocalPort(), "spydle." ) );
+      try
+      {
+        assertTrue( service.handleMetrics( newMetrics() ) );
+        try ( final Socket socket = server.accept() )
+        {
+          socket.setSoTimeout( 2000 );
+          final BufferedReader reader = new BufferedReader( new InputStreamReader( socket.getInputStream(), "US-ASCII" ) );
+          assertEquals( reader.readLine(), "spydle.a 1 42" );
+          assertEquals( reader.readLine(), "spydle.b 2.5 42" );
+        }
+        final GraphiteStatistics statistics = service.getConnectionStatistics();
+        assertTrue( statistics.isConnected() );
+        assertEquals( statistics.getConnectCount(), 1 );
+        assertEquals( statistics.getBytesSent(), "spydle.a 1 42\nspydle.b 2.5 42\n".length() );
+      }
+      finally
+      {
+        service.close();
+      }
+      assertFalse( service.getConnectionStatistics().isConnected() );
+    }
+  }
+
+  @Test
+  public void backsOffAfterConnectFailure()
+    throws Exception
+  {
+    final ServerSocket server = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() );
+    final int port = server.getLocalPort();
+    server.close();
+
+    final GraphiteService service = new GraphiteService( new GraphiteServiceDescriptor( "127.0.0.1", port, null ) );
+    assertFalse( service.handleMetrics( newMetrics() ) );
+    assertEquals( service.getConnectionStatistics().getConnectFailureCount(), 1 );
+
+    // Next attempt is deferred until backoff delay expires
+    assertFalse( service.handleMetrics( newMetrics() ) );
+    assertEquals( service.getConnectionStatistics().getConnectFailureCount(), 1 );
+
+    final MetricValueSet metrics = service.getStatistics();
+    assertEquals( metrics.getName( 2 ), "connect_failure_count" );
+    assertEquals( metrics.getLongValue( 2 ), 1 );
+  }
+
+  @Test
+  public void connectionBackoff()
+  {
+    final ConnectionBackoff backoff = new ConnectionBackoff( 5000 );
+    assertTrue( backoff.isAttemptAllowed( 0 ) );
+    backoff.onFailure( 100 );
+    assertEquals( backoff.getDelay(), ConnectionBackoff.INITIAL_DELAY );
+    assertFalse( backoff.isAttemptAllowed( 100 + ConnectionBackoff.INITIAL_DELAY - 1 ) );
+    assertTrue( backoff.isAttemptAllowed( 100 + ConnectionBackoff.INITIAL_DELAY ) );
+    backoff.onFailure( 0 );
+    assertEquals( backoff.getDelay(), 2000 );
+    backoff.onFailure( 0 );
+    assertEquals( backoff.getDelay(), 4000 );
+    backoff.onFailure( 0 );
+    assertEquals( backoff.getDelay(), 5000 );
+    // A write on a connection that has not been open for the healthy period does not reset the delay
+    backoff.onConnect( 10000 );
+    backoff.onSuccess( 10000 );
+    assertEquals( backoff.getDelay(), 5000 );
+    backoff.onSuccess( 10000 + ConnectionBackoff.HEALTHY_PERIOD );
+    assertEquals( backoff.getDelay(), 0 );
+    assertTrue( backoff.isAttemptAllowed( 0 ) );
+  }
+
+  private MetricValueSet newMetrics()
+  {
+    return new MetricValueSetBuilder().add( "a", 1L ).add( "b", 2.5D ).build( 42000 );
+  }
+}
@@ -0,0 +1,172 @@
+package org.realityforge.spydle.graphite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.realityforge.spydle.MetricName;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.realityforge.spydle.TestMetricSink;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class GraphiteShardTest
+{
+  @Test
+  public void carbonPlacement()
+  {
+    // Expected placements were generated using the carbon-relay consistent hashing algorithm
+    final ConsistentHashRing ring =
+      new ConsistentHashRing( ConsistentHashRing.HashType.CARBON_CH,
+                              Arrays.asList( ConsistentHashRing.toNodeKey( ConsistentHashRing.HashType.CARBON_CH,
+                                                                           "10.0.0.1",
+                                                                           "a" ),
+                                             ConsistentHashRing.toNodeKey( ConsistentHashRing.HashType.CARBON_CH,
+                                                                           "10.0.0.1",
+                                                                           "b" ),
+                                             ConsistentHashRing.toNodeKey( ConsistentHashRing.HashType.CARBON_CH,
+                                                                           "10.0.0.2",
+                                                                           null ) ) );
+    assertEquals( ring.computePosition( "servers.a.cpu" ), 41788 );
+    assertEquals( ring.getNodes( "servers.a.cpu", 3 ), new int[]{ 0, 1, 2 } );
+    assertEquals( ring.getNodes( "spydle.sink.x.lag", 3 ), new int[]{ 2, 1, 0 } );
+    assertEquals( ring.getNodes( "foo", 3 ), new int[]{ 1, 0, 2 } );
+    assertEquals( ring.getNodes( "foo.bar.baz", 3 ), new int[]{ 2, 0, 1 } );
+    assertEquals( ring.getNodes( "foo.bar.baz", 1 ), new int[]{ 2 } );
+    assertEquals( ring.getNodes( "foo.bar.baz", 5 ), new int[]{ 2, 0, 1 } );
+  }
+
+  @Test
+  public void fnv1aPlacement()
+  {
+    final ConsistentHashRing ring =
+      new ConsistentHashRing( ConsistentHashRing.HashType.FNV1A_CH, Arrays.asList( "a", "b", "c" ) );
+    assertEquals( ring.computePosition( "spydle.sink.x.lag" ), 703 );
+    assertEquals( ring.getNodes( "servers.a.cpu", 3 ), new int[]{ 2, 1, 0 } );
+    assertEquals( ring.getNodes( "servers.b.cpu", 3 ), new int[]{ 2, 0, 1 } );
+    assertEquals( ring.getNodes( "spydle.sink.x.lag", 2 ), new int[]{ 1, 2 } );
+    assertEquals( ring.getNodes( "foo.bar.baz", 3 ), new int[]{ 0, 2, 1 } );
+  }
+
+  @Test
+  public void forwardsMetricsPlacedOnDestination()
+  {
+    final TestMetricSink sink1 = new TestMetricSink();
+    final TestMetricSink sink2 = new TestMetricSink();
+    final List<String> nodeKeys = Arrays.asList( "a", "b" );
+    final GraphiteShard shard1 =
+      new GraphiteShard( new ConsistentHashRing( ConsistentHashRing.HashType.FNV1A_CH, nodeKeys ), 0, 1, "p.", sink1 );
+    final GraphiteShard shard2 =
+      new GraphiteShard( new ConsistentHashRing( ConsistentHashRing.HashType.FNV1A_CH, nodeKeys ), 1, 1, "p.", sink2 );
+
+    final MetricValueSetBuilder builder = new MetricValueSetBuilder();
+    for( int i = 0; i < 20; i++ )
+    {
+      builder.add( "m" + i, i );
+    }
+    final MetricValueSet metrics = builder.build( 42 );
+    assertTrue( shard1.handleMetrics( metrics ) );
+    assertTrue( shard2.handleMetrics( metrics ) );
+
+    final ConsistentHashRing ring = new ConsistentHashRing( ConsistentHashRing.HashType.FNV1A_CH, nodeKeys );
+    final TestMetricSink[] sinks = new TestMetricSink[]{ sink1, sink2 };
+    int total = 0;
+    for( int i = 0; i < sinks.length; i++ )
+    {
+      assertEquals( sinks[ i ].getReceived().size(), 1 );
+      final MetricValueSet received = sinks[ i ].getReceived().get( 0 );
+      assertEquals( received.getCollectedAt(), 42 );
+      for( int j = 0; j < received.size(); j++ )
+      {
+        assertEquals( ring.getNodes( "p." + received.getName( j ), 1 ), new int[]{ i } );
+      }
+      total += received.size();
+    }
+    assertEquals( total, 20 );
+
+    // A destination that rejects its share fails only its own sink so that the share can be spilled
+    sink2.setAccept( false );
+    assertTrue( shard1.handleMetrics( metrics ) );
+    assertFalse( shard2.handleMetrics( metrics ) );
+    assertEquals( sink1.getReceived().size(), 2 );
+  }
+
+  @Test
+  public void acceptsMetricsPlacedElsewhere()
+  {
+    final TestMetricSink sink = new TestMetricSink();
+    sink.setAccept( false );
+    final List<String> nodeKeys = Arrays.asList( "a", "b" );
+    final ConsistentHashRing ring = new ConsistentHashRing( ConsistentHashRing.HashType.FNV1A_CH, nodeKeys );
+    final GraphiteShard shard =
+      new GraphiteShard( new ConsistentHashRing( ConsistentHashRing.HashType.FNV1A_CH, nodeKeys ), 0, 1, null, sink );
+    String name = null;
+    for( int i = 0; null == name; i++ )
+    {
+      if( 1 == ring.getNodes( "m" + i, 1 )[ 0 ] )
+      {
+        name = "m" + i;
+      }
+    }
+    assertFalse( shard.isPlaced( MetricName.intern( name ) ) );
+    assertTrue( shard.handleMetrics( new MetricValueSetBuilder().add( name, 1 ).build( 42 ) ) );
+    assertTrue( sink.getReceived().isEmpty() );
+  }
+
+  @Test
+  public void replicatesMetrics()
+  {
+    final TestMetricSink sink1 = new TestMetricSink();
+    final TestMetricSink sink2 = new TestMetricSink();
+    final List<String> nodeKeys = Arrays.asList( "a", "b" );
+    final GraphiteShard shard1 =
+      new GraphiteShard( new ConsistentHashRing( ConsistentHashRing.HashType.FNV1A_CH, nodeKeys ), 0, 2, null, sink1 );
+    final GraphiteShard shard2 =
+      new GraphiteShard( new ConsistentHashRing( ConsistentHashRing.HashType.FNV1A_CH, nodeKeys ), 1, 2, null, sink2 );
+
+    final MetricValueSet metrics =
+      new MetricValueSetBuilder().add( MetricName.intern( "x" ), 1 ).add( "y", 2.5D ).build( 42 );
+    assertTrue( shard1.handleMetrics( metrics ) );
+    assertTrue( shard2.handleMetrics( metrics ) );
+
+    final MetricValueSet received1 = sink1.getReceived().get( 0 );
+    final MetricValueSet received2 = sink2.getReceived().get( 0 );
+    assertEquals( received1.size(), 2 );
+    assertEquals( received2.size(), 2 );
+    assertEquals( received2.getValue( 0 ), received1.getValue( 0 ) );
+  }
+
+  @Test
+  public void buildsShardForEachDestination()
+    throws Exception
+  {
+    final JsonObject config = Json.createObjectBuilder().
+      add( "destinations", Json.createArrayBuilder().add( "127.0.0.1:2003:a" ).add( "127.0.0.1:2004:b" ) ).
+      add( "hash_type", "fnv1a_ch" ).
+      build();
+    assertTrue( GraphiteKit.isSharded( config ) );
+    final Map<String, MetricSink> shards = GraphiteKit.buildShards( config );
+    assertEquals( new ArrayList<>( shards.keySet() ), Arrays.asList( "127_0_0_1_2003_a", "127_0_0_1_2004_b" ) );
+    for( final MetricSink shard : shards.values() )
+    {
+      ( (GraphiteShard) shard ).close();
+    }
+
+    final JsonObject duplicate = Json.createObjectBuilder().
+      add( "destinations", Json.createArrayBuilder().add( "127.0.0.1:2003" ).add( "127.0.0.1:2003" ) ).
+      build();
+    try
+    {
+      GraphiteKit.buildShards( duplicate );
+      fail( "Expected duplicate destination to be rejected" );
+    }
+    catch( final IllegalArgumentException iae )
+    {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package org.realityforge.spydle.graphite;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.realityforge.spydle.util.ByteBufferPool;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class NioGraphiteServiceTest
+{
+  @Test
+  public void writesMetricsToServer()
+    throws Exception
+  {
+    try ( final ServerSocket server = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() ) )
+    {
+      server.setSoTimeout( 2000 );
+      final GraphiteServiceDescriptor descriptor =
+        new GraphiteServiceDescriptor( "127.0.0.1", server.getLocalPort(), "spydle." );
+      // Small buffers so batches span multiple buffers
+      final NioGraphiteService service = new NioGraphiteService( descriptor, new ByteBufferPool( 32, 4 ) );
+      try
+      {
+        assertTrue( service.handleMetrics( new MetricValueSetBuilder()
+                                             .add( "a", 1L )
+                                             .add( "b", 2.5D )
+                                             .add( "c", -3L )
+                                             .build( 42000 ) ) );
+        try ( final Socket socket = server.accept() )
+        {
+          socket.setSoTimeout( 2000 );
+          final BufferedReader reader = new BufferedReader( new InputStreamReader( socket.getInputStream(), "US-ASCII" ) );
+          assertEquals( reader.readLine(), "spydle.a 1 42" );
+          assertEquals( reader.readLine(), "spydle.b 2.5 42" );
+          assertEquals( reader.readLine(), "spydle.c -3 42" );
+        }
+      }
+      finally
+      {
+        service.close();
+      }
+    }
+  }
+
+  @Test
+  public void dropsMetricsWhenBuffersExhausted()
+    throws Exception
+  {
+    // Nothing listens on the port so buffers are never drained
+    final ServerSocket server = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() );
+    final int port = server.getLocalPort();
+    server.close();
+
+    final ByteBufferPool pool = new ByteBufferPool( 16, 2 );
+    final NioGraphiteService service =
+      new NioGraphiteService( new GraphiteServiceDescriptor( "127.0.0.1", port, null ), pool );
+    try
+    {
+      final MetricValueSetBuilder builder = new MetricValueSetBuilder();
+      for( int i = 0; i < 10; i++ )
+      {
+        builder.add( "metric" + i, (long) i );
+      }
+      assertFalse( service.handleMetrics( builder.build( 0 ) ) );
+      assertEquals( service.getDroppedCount(), 1 );
+      assertEquals( pool.getInUseCount(), 0 );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void retainsQueuedMetricsWhenConnectionFails()
+    throws Exception
+  {
+    final ServerSocket closed = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() );
+    final int port = closed.getLocalPort();
+    closed.close();
+
+    final NioGraphiteService service =
+      new NioGraphiteService( new GraphiteServiceDescriptor( "127.0.0.1", port, null, 1000, 1000, 100 ),
+                              new ByteBufferPool( 32, 4 ) );
+    try
+    {
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).build( 42000 ) ) );
+      // Allow the connection attempt to be refused
+      Thread.sleep( 50 );
+      try ( final ServerSocket server = new ServerSocket( port, 1, InetAddress.getLoopbackAddress() ) )
+      {
+        server.setSoTimeout( 2000 );
+        try ( final Socket socket = server.accept() )
+        {
+          socket.setSoTimeout( 2000 );
+          final BufferedReader reader = new BufferedReader( new InputStreamReader( socket.getInputStream(), "US-ASCII" ) );
+          assertEquals( reader.readLine(), "a 1 42" );
+        }
+      }
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package org.realityforge.spydle.graphite;
+
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class PickleGraphiteServiceTest
+{
+  @Test
+  public void encodeFrame()
+  {
+    final ByteBuffer buffer = ByteBuffer.allocate( 100 );
+    PickleEncoder.startFrame( buffer );
+    final MetricValueSet metrics = new MetricValueSetBuilder().add( "a", 1L ).add( "b", 0.5D ).build( 42000 );
+    assertTrue( PickleEncoder.encode( buffer, null, metrics, 0, 42 ) );
+    assertTrue( PickleEncoder.encode( buffer, null, metrics, 1, 42 ) );
+    PickleEncoder.endFrame( buffer, 0 );
+
+    // pickle.loads() of the payload yields [('a', (42, 1)), ('b', (42, 0.5))]
+    final byte[] expected = new byte[]{
+      0, 0, 0, 46,
+      (byte) 0x80, 2, ']', '(',
+      'X', 1, 0, 0, 0, 'a', 'J', 42, 0, 0, 0, 'J', 1, 0, 0, 0, (byte) 0x86, (byte) 0x86,
+      'X', 1, 0, 0, 0, 'b', 'J', 42, 0, 0, 0, 'G', 0x3F, (byte) 0xE0, 0, 0, 0, 0, 0, 0, (byte) 0x86, (byte) 0x86,
+      'e', '.' };
+    assertEquals( Arrays.copyOf( buffer.array(), buffer.position() ), expected );
+  }
+
+  @Test
+  public void batchesAcrossMetricSets()
+    throws Exception
+  {
+    try ( final ServerSocket server = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() ) )
+    {
+      server.setSoTimeout( 2000 );
+      final GraphiteServiceDescriptor service =
+        new GraphiteServiceDescriptor( "127.0.0.1", server.getLocalPort(), null );
+      final PickleGraphiteService sink =
+        new PickleGraphiteService( new GraphitePickleDescriptor( service, 64 * 1024, 3, 60000 ) );
+      try
+      {
+        assertTrue( sink.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).add( "b", 2L ).build( 0 ) ) );
+        assertEquals( sink.getBatchCount(), 0 );
+        // Third metric fills the batch
+        assertTrue( sink.handleMetrics( new MetricValueSetBuilder().add( "c", 3L ).add( "d", 4L ).build( 0 ) ) );
+        assertEquals( sink.getBatchCount(), 1 );
+        assertEquals( sink.getSentCount(), 3 );
+        assertTrue( sink.flush() );
+        assertEquals( sink.getBatchCount(), 2 );
+        assertEquals( sink.getSentCount(), 4 );
+
+        try ( final Socket socket = server.accept() )
+        {
+          socket.setSoTimeout( 2000 );
+          final DataInputStream input = new DataInputStream( socket.getInputStream() );
+          assertEquals( countTuples( readFrame( input ) ), 3 );
+          assertEquals( countTuples( readFrame( input ) ), 1 );
+        }
+      }
+      finally
+      {
+        sink.close();
+      }
+    }
+  }
+
+  @Test
+  public void lingerSendsPartialBatch()
+    throws Exception
+  {
+    try ( final ServerSocket server = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() ) )
+    {
+      server.setSoTimeout( 2000 );
+      final GraphiteServiceDescriptor service =
+        new GraphiteServiceDescriptor( "127.0.0.1", server.getLocalPort(), null );
+      final PickleGraphiteService sink =
+        new PickleGraphiteService( new GraphitePickleDescriptor( service, 64 * 1024, 1000, 50 ) );
+      try
+      {
+        assertTrue( sink.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).build( 0 ) ) );
+        try ( final Socket socket = server.accept() )
+        {
+          socket.setSoTimeout( 2000 );
+          assertEquals( countTuples( readFrame( new DataInputStream( socket.getInputStream() ) ) ), 1 );
+        }
+        // The flusher holds the sink lock until the counters are updated after the write
+        assertTrue( sink.flush() );
+        assertEquals( sink.getBatchCount(), 1 );
+      }
+      finally
+      {
+        sink.close();
+      }
+    }
+  }
+
+  @Test
+  public void retainsUnsentBatches()
+    throws Exception
+  {
+    final ServerSocket closed = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() );
+    final int port = closed.getLocalPort();
+    closed.close();
+
+    final GraphiteServiceDescriptor service = new GraphiteServiceDescriptor( "127.0.0.1", port, null );
+    final PickleGraphiteService sink =
+      new PickleGraphiteService( new GraphitePickleDescriptor( service, 64 * 1024, 1000, 0 ) );
+    try
+    {
+      // Accepted and retained although the server is down
+      assertTrue( sink.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).build( 0 ) ) );
+      // Refused while the earlier batch remains unsent
+      assertFalse( sink.handleMetrics( new MetricValueSetBuilder().add( "b", 2L ).build( 0 ) ) );
+      assertEquals( sink.getSentCount(), 0 );
+
+      try ( final ServerSocket server = new ServerSocket( port, 1, InetAddress.getLoopbackAddress() ) )
+      {
+        server.setSoTimeout( 2000 );
+        // Wait for the reconnect delay to expire
+        Thread.sleep( ConnectionBackoff.INITIAL_DELAY + 100 );
+        assertTrue( sink.handleMetrics( new MetricValueSetBuilder().add( "c", 3L ).build( 0 ) ) );
+        assertEquals( sink.getSentCount(), 2 );
+        assertEquals( sink.getBatchCount(), 2 );
+        assertEquals( sink.getDroppedCount(), 0 );
+        try ( final Socket socket = server.accept() )
+        {
+          socket.setSoTimeout( 2000 );
+          final DataInputStream input = new DataInputStream( socket.getInputStream() );
+          assertEquals( countTuples( readFrame( input ) ), 1 );
+          assertEquals( countTuples( readFrame( input ) ), 1 );
+        }
+      }
+    }
+    finally
+    {
+      sink.close();
+    }
+  }
+
+  private byte[] readFrame( final DataInputStream input )
+    throws Exception
+  {
+    final byte[] frame = new byte[ input.readInt() ];
+    input.readFully( frame );
+    return frame;
+  }
+
+  /**
+   * Count the (path, (timestamp, value)) tuples in a frame. Each ends with a pair of TUPLE2 opcodes.
+   */
+  private int countTuples( final byte[] frame )
+  {
+    int count = 0;
+    for( int i = 1; i < frame.length; i++ )
+    {
+      if( (byte) 0x86 == frame[ i - 1 ] && (byte) 0x86 == frame[ i ] )
+      {
+        count++;
+        i++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,265 @@
+package org.realityforge.spydle.influx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class InfluxServiceTest
+{
+  private HttpServer _server;
+  // Statuses returned by the stub server in order, 204 once exhausted
+  private final BlockingQueue<Integer> _statuses = new ArrayBlockingQueue<>( 10 );
+  private final BlockingQueue<String> _bodies = new ArrayBlockingQueue<>( 10 );
+  // If present, requests are not answered until the gate is opened
+  private volatile CountDownLatch _gate;
+
+  @BeforeMethod
+  public void startServer()
+    throws Exception
+  {
+    _statuses.clear();
+    _bodies.clear();
+    _gate = null;
+    _server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0 );
+    _server.createContext( "/write", new HttpHandler()
+    {
+      @Override
+      public void handle( final HttpExchange exchange )
+        throws IOException
+      {
+        final boolean gzip = "gzip".equals( exchange.getRequestHeaders().getFirst( "Content-Encoding" ) );
+        final InputStream body = exchange.getRequestBody();
+        _bodies.add( read( gzip ? new GZIPInputStream( body ) : body ) );
+        final CountDownLatch gate = _gate;
+        if( null != gate )
+        {
+          try
+          {
+            gate.await( 5, TimeUnit.SECONDS );
+          }
+          catch( final InterruptedException ie )
+          {
+            //Ignored
+          }
+        }
+        final Integer status = _statuses.poll();
+        exchange.sendResponseHeaders( null != status ? status : 204, -1 );
+        exchange.close();
+      }
+    } );
+    _server.start();
+  }
+
+  @AfterMethod
+  public void stopServer()
+  {
+    _server.stop( 0 );
+  }
+
+  @Test
+  public void postsBatchesInLineProtocol()
+    throws Exception
+  {
+    final InfluxService service =
+      new InfluxService( newDescriptor( Collections.singletonMap( "host", "a b" ), 3, 0 ) );
+    try
+    {
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().
+        add( "cpu,load", 1L ).
+        add( "mem", 2.5D ).
+        add( "nan", Double.NaN ).
+        add( "disk", -3L ).
+        build( 1234 ) ) );
+
+      final String first = _bodies.poll( 2, TimeUnit.SECONDS );
+      assertEquals( first,
+                    "cpu\\,load,host=a\\ b value=1i 1234000000\n" +
+                    "mem,host=a\\ b value=2.5 1234000000\n" +
+                    "disk,host=a\\ b value=-3i 1234000000\n" );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void lingerSendsPartialBatch()
+    throws Exception
+  {
+    final InfluxService service =
+      new InfluxService( newDescriptor( Collections.<String, String>emptyMap(), 1000, 50 ) );
+    try
+    {
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).build( 0 ) ) );
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "b", 2L ).build( 0 ) ) );
+      assertEquals( _bodies.poll( 2, TimeUnit.SECONDS ), "a value=1i 0\nb value=2i 0\n" );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void retriesTransientFailures()
+    throws Exception
+  {
+    _statuses.add( 503 );
+    _statuses.add( 429 );
+    _statuses.add( 400 );
+    final InfluxService service =
+      new InfluxService( newDescriptor( Collections.<String, String>emptyMap(), 1000, 0 ) );
+    try
+    {
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).build( 0 ) ) );
+      for( int i = 0; i < 3; i++ )
+      {
+        assertEquals( _bodies.poll( 2, TimeUnit.SECONDS ), "a value=1i 0\n" );
+      }
+      // A client error is not retried
+      assertNull( _bodies.poll( 500, TimeUnit.MILLISECONDS ) );
+      assertEquals( service.getRetryCount(), 2 );
+      assertEquals( service.getFailedCount(), 1 );
+
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "b", 2L ).build( 0 ) ) );
+      assertEquals( _bodies.poll( 2, TimeUnit.SECONDS ), "b value=2i 0\n" );
+      final long start = System.currentTimeMillis();
+      while( 0 == service.getSentCount() && System.currentTimeMillis() - start < 2000 )
+      {
+        Thread.sleep( 10 );
+      }
+      assertEquals( service.getSentCount(), 1 );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void refusesMetricsWhileRequestsAreSaturated()
+    throws Exception
+  {
+    _gate = new CountDownLatch( 1 );
+    final URL url = new URL( "http://127.0.0.1:" + _server.getAddress().getPort() + "/write?db=test" );
+    final InfluxService service =
+      new InfluxService( new InfluxServiceDescriptor( url,
+                                                      Collections.<String, String>emptyMap(),
+                                                      false,
+                                                      64 * 1024,
+                                                      1000,
+                                                      0,
+                                                      1,
+                                                      1,
+                                                      3,
+                                                      2000,
+                                                      2000 ) );
+    try
+    {
+      // One batch in flight and one pending
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).build( 0 ) ) );
+      assertEquals( _bodies.poll( 2, TimeUnit.SECONDS ), "a value=1i 0\n" );
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "b", 2L ).build( 0 ) ) );
+      // Refused before being added to a batch
+      assertFalse( service.handleMetrics( new MetricValueSetBuilder().add( "c", 3L ).build( 0 ) ) );
+      assertEquals( service.getRejectedCount(), 1 );
+
+      _gate.countDown();
+      assertEquals( _bodies.poll( 2, TimeUnit.SECONDS ), "b value=2i 0\n" );
+      waitForSentCount( service, 2 );
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "c", 3L ).build( 0 ) ) );
+      assertEquals( _bodies.poll( 2, TimeUnit.SECONDS ), "c value=3i 0\n" );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void retainsBatchesThatExhaustRetries()
+    throws Exception
+  {
+    for( int i = 0; i < 4; i++ )
+    {
+      _statuses.add( 503 );
+    }
+    final InfluxService service =
+      new InfluxService( newDescriptor( Collections.<String, String>emptyMap(), 1000, 0 ) );
+    try
+    {
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "a", 1L ).build( 0 ) ) );
+      for( int i = 0; i < 4; i++ )
+      {
+        assertEquals( _bodies.poll( 2, TimeUnit.SECONDS ), "a value=1i 0\n" );
+      }
+      assertEquals( service.getRetryCount(), 3 );
+      // Allow the batch to be retained after the final attempt
+      Thread.sleep( 100 );
+      assertNull( _bodies.poll() );
+
+      // The retained batch is resent before the new metrics
+      assertTrue( service.handleMetrics( new MetricValueSetBuilder().add( "b", 2L ).build( 0 ) ) );
+      assertEquals( _bodies.poll( 2, TimeUnit.SECONDS ), "a value=1i 0\n" );
+      assertEquals( _bodies.poll( 2, TimeUnit.SECONDS ), "b value=2i 0\n" );
+      waitForSentCount( service, 2 );
+      assertEquals( service.getFailedCount(), 0 );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  private void waitForSentCount( final InfluxService service, final long count )
+    throws Exception
+  {
+    final long start = System.currentTimeMillis();
+    while( service.getSentCount() < count && System.currentTimeMillis() - start < 2000 )
+    {
+      Thread.sleep( 10 );
+    }
+    assertEquals( service.getSentCount(), count );
+  }
+
+  private InfluxServiceDescriptor newDescriptor( final Map<String, String> tags,
+                                                 final int maxBatchSize,
+                                                 final int linger )
+    throws Exception
+  {
+    final URL url = new URL( "http://127.0.0.1:" + _server.getAddress().getPort() + "/write?db=test" );
+    return new InfluxServiceDescriptor( url, tags, true, 64 * 1024, maxBatchSize, linger, 1, 4, 3, 2000, 2000 );
+  }
+
+  private static String read( final InputStream input )
+    throws IOException
+  {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[ 1024 ];
+    int count;
+    while( -1 != ( count = input.read( buffer ) ) )
+    {
+      output.write( buffer, 0, count );
+    }
+    return output.toString( "UTF-8" );
+  }
+}
@@ -0,0 +1,179 @@
+package org.realityforge.spydle.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import javax.management.AttributeChangeNotification;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.TestMetricSink;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class JmxNotificationServiceTest
+{
+  public interface EmitterMBean
+  {
+    int getLevel();
+  }
+
+  public static final class Emitter
+    extends NotificationBroadcasterSupport
+    implements EmitterMBean
+  {
+    private int _level;
+    private long _sequence;
+
+    @Override
+    public synchronized int getLevel()
+    {
+      return _level;
+    }
+
+    synchronized void setLevel( final int level )
+    {
+      final int oldLevel = _level;
+      _level = level;
+      sendNotification( new AttributeChangeNotification( this, ++_sequence, 0, "", "Level", "int", oldLevel, level ) );
+    }
+
+    synchronized void collect( final long duration )
+      throws Exception
+    {
+      final CompositeType gcInfoType =
+        new CompositeType( "GcInfo", "GcInfo", new String[]{ "duration", "name" }, new String[]{ "duration", "name" },
+                           new OpenType<?>[]{ SimpleType.LONG, SimpleType.STRING } );
+      final CompositeType type =
+        new CompositeType( "Gc", "Gc", new String[]{ "gcInfo" }, new String[]{ "gcInfo" },
+                           new OpenType<?>[]{ gcInfoType } );
+      final Notification notification = new Notification( "test.gc", this, ++_sequence );
+      notification.setUserData(
+        new CompositeDataSupport( type,
+                                  new String[]{ "gcInfo" },
+                                  new Object[]{ new CompositeDataSupport( gcInfoType,
+                                                                          new String[]{ "duration", "name" },
+                                                                          new Object[]{ duration, "young" } ) } ) );
+      sendNotification( notification );
+    }
+  }
+
+  @AfterMethod
+  public void unregister()
+    throws Exception
+  {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for( final ObjectName objectName : server.queryNames( new ObjectName( "spydle.notify:*" ), null ) )
+    {
+      server.unregisterMBean( objectName );
+    }
+  }
+
+  @Test
+  public void publishesCoalescedNotifications()
+    throws Exception
+  {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final Emitter emitter1 = new Emitter();
+    server.registerMBean( emitter1, new ObjectName( "spydle.notify:type=Emitter,name=e1" ) );
+
+    final JmxNotificationService service = newService( 200 );
+    final TestMetricSink sink = new TestMetricSink();
+    service.start( sink );
+    try
+    {
+      waitForSubscriptions( service, 1 );
+      emitter1.setLevel( 5 );
+      emitter1.setLevel( 9 );
+      emitter1.setLevel( 7 );
+      emitter1.collect( 12 );
+      emitter1.collect( 4 );
+
+      final MetricValueSet metrics = waitForMetrics( sink, 1 ).get( 0 );
+      // The last and maximum value of each metric and the number of notifications within the window
+      assertEquals( metrics.size(), 5 );
+      assertEquals( findValue( metrics, "jmx.e1.notification_count" ), 5L );
+      assertEquals( findValue( metrics, "jmx.e1.Level" ), 7L );
+      assertEquals( findValue( metrics, "jmx.e1.Level_max" ), 9L );
+      assertEquals( findValue( metrics, "jmx.e1.gcInfo_duration" ), 4L );
+      assertEquals( findValue( metrics, "jmx.e1.gcInfo_duration_max" ), 12L );
+
+      // MBeans registered later are subscribed as they are registered
+      final Emitter emitter2 = new Emitter();
+      server.registerMBean( emitter2, new ObjectName( "spydle.notify:type=Emitter,name=e2" ) );
+      waitForSubscriptions( service, 2 );
+      emitter2.setLevel( 3 );
+      final MetricValueSet later = waitForMetrics( sink, 2 ).get( 1 );
+      assertEquals( findValue( later, "jmx.e2.Level" ), 3L );
+      assertEquals( service.getStatistics().getLongValue( 0 ), 6 );
+    }
+    finally
+    {
+      service.close();
+    }
+    assertEquals( service.getSubscriptionCount(), 0 );
+
+    // Notifications are no longer received once closed
+    emitter1.setLevel( 9 );
+    Thread.sleep( 300 );
+    assertEquals( sink.getReceived().size(), 2 );
+  }
+
+  private JmxNotificationService newService( final int window )
+    throws Exception
+  {
+    final JmxProbeDescriptor probe =
+      new JmxProbeDescriptor( new ObjectName( "spydle.notify:type=Emitter,*" ),
+                              null,
+                              "jmx",
+                              Collections.singletonList( "name" ) );
+    return new JmxNotificationService( new JmxNotificationDescriptor( null,
+                                                                      Collections.singletonList( probe ),
+                                                                      window,
+                                                                      0 ) );
+  }
+
+  private void waitForSubscriptions( final JmxNotificationService service, final int count )
+    throws Exception
+  {
+    final long start = System.currentTimeMillis();
+    while( service.getSubscriptionCount() < count && System.currentTimeMillis() - start < 5000 )
+    {
+      Thread.sleep( 10 );
+    }
+    assertEquals( service.getSubscriptionCount(), count );
+  }
+
+  private List<MetricValueSet> waitForMetrics( final TestMetricSink sink, final int count )
+    throws Exception
+  {
+    final long start = System.currentTimeMillis();
+    while( sink.getReceived().size() < count && System.currentTimeMillis() - start < 5000 )
+    {
+      Thread.sleep( 10 );
+    }
+    final List<MetricValueSet> received = sink.getReceived();
+    assertEquals( received.size(), count );
+    return received;
+  }
+
+  private Number findValue( final MetricValueSet metrics, final String name )
+  {
+    for( int i = 0; i < metrics.size(); i++ )
+    {
+      if( metrics.getName( i ).equals( name ) )
+      {
+        return metrics.getValue( i );
+      }
+    }
+    fail( "Missing metric " + name );
+    return null;
+  }
+}
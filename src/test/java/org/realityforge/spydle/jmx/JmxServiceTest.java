@@ -0,0 +1,382 @@
+package org.realityforge.spydle.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import org.realityforge.spydle.MetricValueSet;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class JmxServiceTest
+{
+  public interface SampleMBean
+  {
+    int getCount();
+
+    double getRatio();
+
+    String getLabel();
+  }
+
+  public static final class Sample
+    implements SampleMBean
+  {
+    private final int _count;
+
+    public Sample( final int count )
+    {
+      _count = count;
+    }
+
+    @Override
+    public int getCount()
+    {
+      return _count;
+    }
+
+    @Override
+    public double getRatio()
+    {
+      return _count / 2D;
+    }
+
+    @Override
+    public String getLabel()
+    {
+      return "Sample" + _count;
+    }
+  }
+
+  private int _port;
+  private Registry _registry;
+  private JMXConnectorServer _connectorServer;
+
+  @BeforeClass
+  public void startServer()
+    throws Exception
+  {
+    try ( final ServerSocket socket = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() ) )
+    {
+      _port = socket.getLocalPort();
+    }
+    _registry = LocateRegistry.createRegistry( _port );
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for( int i = 1; i <= 3; i++ )
+    {
+      server.registerMBean( new Sample( i ), new ObjectName( "spydle.test:type=Sample,name=s" + i ) );
+    }
+    final JMXServiceURL url = new JMXServiceURL( "service:jmx:rmi:///jndi/rmi://127.0.0.1:" + _port + "/jmxrmi" );
+    _connectorServer = JMXConnectorServerFactory.newJMXConnectorServer( url, null, server );
+    _connectorServer.start();
+  }
+
+  @AfterClass
+  public void stopServer()
+    throws Exception
+  {
+    _connectorServer.stop();
+    UnicastRemoteObject.unexportObject( _registry, true );
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for( final ObjectName objectName : server.queryNames( new ObjectName( "spydle.test:*" ), null ) )
+    {
+      server.unregisterMBean( objectName );
+    }
+  }
+
+  @Test
+  public void collectsAttributesInBulk()
+    throws Exception
+  {
+    final JmxProbeDescriptor probe =
+      new JmxProbeDescriptor( new ObjectName( "spydle.test:type=Sample,*" ),
+                              null,
+                              "jmx",
+                              Collections.singletonList( "name" ) );
+    final JmxService service = newService( probe );
+    try
+    {
+      final MetricValueSet metrics = service.poll();
+      assertNotNull( metrics );
+      // Non-numeric attributes are ignored
+      assertEquals( metrics.size(), 6 );
+      // Subscribe to registrations, one query, then one getMBeanInfo and one getAttributes per MBean
+      assertEquals( service.getLastRoundTrips(), 1 + 1 + 3 * 2 );
+      assertEquals( findValue( metrics, "jmx.s2.Count" ), 2L );
+      assertEquals( findValue( metrics, "jmx.s3.Ratio" ), 1.5D );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void collectsNamedAttributesWithoutMetadata()
+    throws Exception
+  {
+    final JmxProbeDescriptor probe =
+      new JmxProbeDescriptor( new ObjectName( "spydle.test:type=Sample,*" ),
+                              new HashSet<>( Arrays.asList( "Count", "Missing" ) ),
+                              "jmx",
+                              null );
+    final JmxService service = newService( probe );
+    try
+    {
+      final MetricValueSet metrics = service.poll();
+      assertNotNull( metrics );
+      assertEquals( metrics.size(), 3 );
+      assertEquals( service.getLastRoundTrips(), 1 + 1 + 3 );
+
+      // Later polls reuse the query results and do not ping the recently used connection
+      assertNotNull( service.poll() );
+      assertEquals( service.getLastRoundTrips(), 3 );
+      assertEquals( service.getStatistics().getLongValue( 0 ), 3 );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void cachesMetadataUntilMBeanRegistered()
+    throws Exception
+  {
+    final JmxProbeDescriptor probe =
+      new JmxProbeDescriptor( new ObjectName( "spydle.test:type=Sample,*" ),
+                              null,
+                              "jmx",
+                              Collections.singletonList( "name" ) );
+    final JmxService service = newService( probe );
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName objectName = new ObjectName( "spydle.test:type=Sample,name=s4" );
+    try
+    {
+      assertNotNull( service.poll() );
+
+      // Steady state polls only fetch values
+      final MetricValueSet metrics = service.poll();
+      assertNotNull( metrics );
+      assertEquals( metrics.size(), 6 );
+      assertEquals( service.getLastRoundTrips(), 3 );
+
+      server.registerMBean( new Sample( 4 ), objectName );
+      // Notifications are delivered asynchronously
+      final long start = System.currentTimeMillis();
+      MetricValueSet updated = service.poll();
+      while( null != updated && 6 == updated.size() && System.currentTimeMillis() - start < 5000 )
+      {
+        Thread.sleep( 10 );
+        updated = service.poll();
+      }
+      assertNotNull( updated );
+      assertEquals( updated.size(), 8 );
+      assertEquals( findValue( updated, "jmx.s4.Count" ), 4L );
+
+      assertNotNull( service.poll() );
+      assertEquals( service.getLastRoundTrips(), 4 );
+    }
+    finally
+    {
+      service.close();
+      server.unregisterMBean( objectName );
+    }
+  }
+
+  @Test
+  public void metadataCacheCanBeDisabled()
+    throws Exception
+  {
+    final JmxProbeDescriptor probe =
+      new JmxProbeDescriptor( new ObjectName( "spydle.test:type=Sample,*" ), null, "jmx", null );
+    final JmxConnectionDescriptor connection = new JmxConnectionDescriptor( "127.0.0.1", _port );
+    final JmxService service =
+      new JmxService( new JmxTaskDescriptor( connection, Collections.singletonList( probe ), 5000, 0 ) );
+    try
+    {
+      assertNotNull( service.poll() );
+      // Caching is disabled so nothing is subscribed and every poll resolves the metadata
+      assertEquals( service.getLastRoundTrips(), 1 + 3 * 2 );
+      assertNotNull( service.poll() );
+      assertEquals( service.getLastRoundTrips(), 1 + 3 * 2 );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void waitsForSharedConnectWithinOwnTimeout()
+    throws Exception
+  {
+    // The server accepts connections but never responds so the registry lookup blocks
+    try ( final ServerSocket server = new ServerSocket( 0, 10, InetAddress.getLoopbackAddress() ) )
+    {
+      final JmxConnection connection = new JmxConnection( new JmxConnectionDescriptor( "127.0.0.1", server.getLocalPort() ) );
+      final Thread connector = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            connection.getConnector( 0 );
+          }
+          catch( final Exception e )
+          {
+            // Expected once the server is closed
+          }
+        }
+      };
+      connector.setDaemon( true );
+      connector.start();
+      final Socket accepted = server.accept();
+
+      // A second user waits for the handshake in progress no longer than its own timeout
+      final long start = System.currentTimeMillis();
+      try
+      {
+        connection.getConnector( 200 );
+        fail( "Expected connect to time out" );
+      }
+      catch( final SocketTimeoutException ste )
+      {
+        // Expected
+      }
+      assertTrue( System.currentTimeMillis() - start < 2000 );
+      connection.close();
+      accepted.close();
+    }
+  }
+
+  @Test
+  public void sharesConnectionBetweenServices()
+    throws Exception
+  {
+    final JmxProbeDescriptor probe =
+      new JmxProbeDescriptor( new ObjectName( "spydle.test:type=Sample,name=s1" ),
+                              new HashSet<>( Collections.singletonList( "Count" ) ),
+                              "jmx",
+                              null );
+    final JmxConnectionPool pool = JmxConnectionPool.getInstance();
+    final JmxConnection connection = pool.acquire( new JmxConnectionDescriptor( "127.0.0.1", _port ) );
+    final JmxService service1 = newService( probe );
+    final JmxService service2 = newService( probe );
+    try
+    {
+      assertEquals( pool.getConnectionCount(), 1 );
+      assertNotNull( service1.poll() );
+      assertNotNull( service2.poll() );
+      assertEquals( connection.getConnectCount(), 1 );
+
+      // A failed connector is replaced once for all users
+      connection.invalidate( connection.getConnector( 0 ) );
+      assertNotNull( service1.poll() );
+      assertNotNull( service2.poll() );
+      assertEquals( connection.getConnectCount(), 2 );
+
+      service1.close();
+      assertNotNull( service2.poll() );
+      service2.close();
+      assertNull( service2.poll() );
+      assertEquals( pool.getConnectionCount(), 1 );
+    }
+    finally
+    {
+      service1.close();
+      service2.close();
+      pool.release( connection );
+    }
+    assertEquals( pool.getConnectionCount(), 0 );
+  }
+
+  @Test
+  public void queriesProbesConcurrently()
+    throws Exception
+  {
+    final JmxProbeDescriptor probe1 =
+      new JmxProbeDescriptor( new ObjectName( "spydle.test:type=Sample,name=s1" ), null, "jmx", null );
+    final JmxProbeDescriptor probe2 =
+      new JmxProbeDescriptor( new ObjectName( "spydle.test:type=Sample,name=s2" ), null, "jmx", null );
+    final JmxConnectionDescriptor connection = new JmxConnectionDescriptor( "127.0.0.1", _port );
+    final JmxService service =
+      new JmxService( new JmxTaskDescriptor( connection, Arrays.asList( probe1, probe2 ), 5000, 0, 2 ) );
+    try
+    {
+      final MetricValueSet metrics = service.poll();
+      assertNotNull( metrics );
+      assertEquals( metrics.size(), 4 );
+      assertEquals( service.getLastFailedProbeCount(), 0 );
+      assertEquals( service.getLastRoundTrips(), 2 * 2 );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void readsPlatformMBeanServerWithoutConnecting()
+    throws Exception
+  {
+    final JmxProbeDescriptor probe =
+      new JmxProbeDescriptor( new ObjectName( "spydle.test:type=Sample,*" ),
+                              null,
+                              "jmx",
+                              Collections.singletonList( "name" ) );
+    final JmxService service =
+      new JmxService( new JmxTaskDescriptor( null, Collections.singletonList( probe ), 0 ) );
+    final int connectionCount = JmxConnectionPool.getInstance().getConnectionCount();
+    try
+    {
+      assertNotNull( service.poll() );
+      final MetricValueSet metrics = service.poll();
+      assertNotNull( metrics );
+      assertEquals( metrics.size(), 6 );
+      assertEquals( findValue( metrics, "jmx.s1.Count" ), 1L );
+      // Steady state polls only fetch values
+      assertEquals( service.getLastRoundTrips(), 3 );
+      assertEquals( JmxConnectionPool.getInstance().getConnectionCount(), connectionCount );
+    }
+    finally
+    {
+      service.close();
+    }
+    assertNull( service.poll() );
+  }
+
+  private JmxService newService( final JmxProbeDescriptor probe )
+  {
+    final JmxConnectionDescriptor connection = new JmxConnectionDescriptor( "127.0.0.1", _port );
+    return new JmxService( new JmxTaskDescriptor( connection, Collections.singletonList( probe ), 5000 ) );
+  }
+
+  private Number findValue( final MetricValueSet metrics, final String name )
+  {
+    for( int i = 0; i < metrics.size(); i++ )
+    {
+      if( metrics.getName( i ).equals( name ) )
+      {
+        return metrics.getValue( i );
+      }
+    }
+    fail( "Missing metric " + name );
+    return null;
+  }
+}
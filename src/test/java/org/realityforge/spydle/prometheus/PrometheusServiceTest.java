@@ -0,0 +1,128 @@
+package org.realityforge.spydle.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class PrometheusServiceTest
+{
+  @Test
+  public void servesLatestValues()
+    throws Exception
+  {
+    final PrometheusService service =
+      new PrometheusService( new PrometheusServiceDescriptor( "127.0.0.1", 0, "/metrics", 1, 0 ) );
+    try
+    {
+      assertEquals( scrape( service, false ), "" );
+
+      service.handleMetrics( new MetricValueSetBuilder().add( "prom.a", 1L ).add( "prom.b-c", 2.5D ).build( 0 ) );
+      service.handleMetrics( new MetricValueSetBuilder().add( "prom.a", 3L ).add( "1prom", Double.NaN ).build( 0 ) );
+      final long renderCount = service.getRenderCount();
+
+      assertEquals( sorted( scrape( service, false ) ), sorted( "prom_a 3\nprom_b_c 2.5\n_1prom NaN\n" ) );
+      assertEquals( sorted( scrape( service, true ) ), sorted( "prom_a 3\nprom_b_c 2.5\n_1prom NaN\n" ) );
+      // Unchanged values are served without rendering
+      assertEquals( service.getRenderCount(), renderCount + 1 );
+      assertEquals( service.getScrapeCount(), 3 );
+
+      service.handleMetrics( new MetricValueSetBuilder().add( "prom.a", 4L ).build( 0 ) );
+      assertEquals( sorted( scrape( service, true ) ), sorted( "prom_a 4\nprom_b_c 2.5\n_1prom NaN\n" ) );
+      assertEquals( service.getRenderCount(), renderCount + 2 );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  @Test
+  public void expiresStaleSeriesAndIgnoresDuplicateNames()
+    throws Exception
+  {
+    final int seriesTtl = 60000;
+    final PrometheusService service =
+      new PrometheusService( new PrometheusServiceDescriptor( "127.0.0.1", 0, "/metrics", 1, seriesTtl ) );
+    try
+    {
+      // Both names are exposed as a_b so only the first is retained
+      service.handleMetrics( new MetricValueSetBuilder().add( "a.b", 1L ).add( "a_b", 2L ).build( 0 ) );
+      assertEquals( scrape( service, false ), "a_b 1\n" );
+      assertEquals( getStatistic( service, "duplicate_count" ), 1 );
+
+      service.expire( System.currentTimeMillis() + seriesTtl );
+      assertEquals( scrape( service, false ), "" );
+      assertEquals( getStatistic( service, "series_count" ), 0 );
+      assertEquals( getStatistic( service, "expired_count" ), 1 );
+
+      // The exposed name is released once the series that claimed it expires
+      service.handleMetrics( new MetricValueSetBuilder().add( "a_b", 5L ).build( 0 ) );
+      assertEquals( scrape( service, false ), "a_b 5\n" );
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+  private static long getStatistic( final PrometheusService service, final String name )
+  {
+    final MetricValueSet statistics = service.getStatistics();
+    for( int i = 0; i < statistics.size(); i++ )
+    {
+      if( statistics.getName( i ).equals( name ) )
+      {
+        return statistics.getLongValue( i );
+      }
+    }
+    fail( "Missing statistic " + name );
+    return 0;
+  }
+
+  /**
+   * Series are rendered in the order of the ids of their names, which are reused, so compare the sorted lines.
+   */
+  private static List<String> sorted( final String exposition )
+  {
+    final ArrayList<String> lines = new ArrayList<>( Arrays.asList( exposition.split( "\n" ) ) );
+    Collections.sort( lines );
+    return lines;
+  }
+
+  private String scrape( final PrometheusService service, final boolean gzip )
+    throws Exception
+  {
+    final URL url = new URL( "http://127.0.0.1:" + service.getPort() + "/metrics" );
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setReadTimeout( 2000 );
+    if( gzip )
+    {
+      connection.setRequestProperty( "Accept-Encoding", "gzip" );
+    }
+    assertEquals( connection.getResponseCode(), 200 );
+    assertTrue( connection.getContentType().startsWith( "text/plain; version=0.0.4" ) );
+    assertEquals( "gzip".equals( connection.getContentEncoding() ), gzip );
+    try ( final InputStream input =
+            gzip ? new GZIPInputStream( connection.getInputStream() ) : connection.getInputStream() )
+    {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[ 1024 ];
+      int count;
+      while( -1 != ( count = input.read( buffer ) ) )
+      {
+        output.write( buffer, 0, count );
+      }
+      return output.toString( "US-ASCII" );
+    }
+  }
+}
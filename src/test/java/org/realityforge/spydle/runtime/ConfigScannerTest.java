@@ -0,0 +1,102 @@
+package org.realityforge.spydle.runtime;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import org.realityforge.spydle.MetricSink;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class ConfigScannerTest
+{
+  @Test
+  public void reloadsPrometheusSinkOnSamePort()
+    throws Exception
+  {
+    final int port;
+    try ( final ServerSocket socket = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() ) )
+    {
+      port = socket.getLocalPort();
+    }
+    final File directory = Files.createTempDirectory( "config" ).toFile();
+    final File file = new File( directory, "prometheus.json" );
+    writePrometheusConfig( file, port, "/a" );
+
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+    final ConfigScanner scanner = new ConfigScanner( dataStore, executionEngine, directory );
+    try
+    {
+      scanner.start();
+      final MetricSink original = getSink( dataStore, file.toString() );
+      assertNotNull( original );
+      assertEquals( getResponseCode( port, "/a" ), 200 );
+
+      // Modifying the file replaces the sink with one bound to the same port
+      writePrometheusConfig( file, port, "/b" );
+      // Allow the events for truncating and writing the file to be coalesced so that the file is loaded once
+      Thread.sleep( 200 );
+      final long end = System.currentTimeMillis() + 10000;
+      MetricSink sink = original;
+      while( original == sink && System.currentTimeMillis() < end )
+      {
+        scanner.scan();
+        Thread.sleep( 20 );
+        sink = getSink( dataStore, file.toString() );
+      }
+      assertNotNull( sink );
+      assertNotSame( sink, original );
+      assertEquals( getResponseCode( port, "/b" ), 200 );
+    }
+    finally
+    {
+      scanner.close();
+      dataStore.close();
+      executionEngine.close();
+    }
+    assertTrue( file.delete() );
+    assertTrue( directory.delete() );
+  }
+
+  private MetricSink getSink( final MonitorDataStore dataStore, final String key )
+  {
+    for( final SinkEntry entry : dataStore.getSinks() )
+    {
+      if( entry.getKey().equals( key ) )
+      {
+        return entry.getSink();
+      }
+    }
+    return null;
+  }
+
+  private void writePrometheusConfig( final File file, final int port, final String path )
+    throws Exception
+  {
+    try ( final FileWriter writer = new FileWriter( file ) )
+    {
+      writer.write( "{\"type\": \"out:prometheus\", " +
+                    "\"config\": {\"host\": \"127.0.0.1\", \"port\": " + port + ", \"path\": \"" + path + "\"}}" );
+    }
+  }
+
+  private int getResponseCode( final int port, final String path )
+    throws Exception
+  {
+    final HttpURLConnection connection =
+      (HttpURLConnection) new URL( "http://127.0.0.1:" + port + path ).openConnection();
+    try
+    {
+      return connection.getResponseCode();
+    }
+    finally
+    {
+      connection.disconnect();
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package org.realityforge.spydle.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import javax.annotation.Nonnull;
+import org.realityforge.spydle.MetricPublisher;
+import org.realityforge.spydle.MetricSink;
+import org.realityforge.spydle.MetricValue;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.TestMetricSink;
+import org.realityforge.spydle.TestMetricSource;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class MonitorDataStoreTest
+{
+  @Test
+  public void registration()
+  {
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+
+    dataStore.registerSource( "A", new TestMetricSource(), "S", 1000 );
+    dataStore.registerSink( "B", new TestMetricSink(), "S" );
+
+    assertTrue( dataStore.isSourceRegistered( "A" ) );
+    assertTrue( dataStore.isSourceRegistered( "A" ) );
+    assertFalse( dataStore.isSinkRegistered( "A" ) );
+    assertTrue( dataStore.isSinkRegistered( "B" ) );
+    assertEquals( dataStore.getSinks().size(), 1 );
+
+    // Registering a sink with the key of a source replaces the source
+    dataStore.registerSink( "A", new TestMetricSink(), "S" );
+    assertFalse( dataStore.isSourceRegistered( "A" ) );
+    assertTrue( dataStore.isSinkRegistered( "A" ) );
+    assertEquals( dataStore.getSinks().size(), 2 );
+    assertEquals( dataStore.getSources().size(), 0 );
+
+    dataStore.deregisterSink( "A" );
+    assertFalse( dataStore.isSinkRegistered( "A" ) );
+
+    dataStore.close();
+    assertEquals( dataStore.getSinks().size(), 0 );
+    executionEngine.close();
+  }
+
+  @Test
+  public void queueRoute()
+    throws Exception
+  {
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+
+    final TestMetricSink sink1 = new TestMetricSink();
+    final TestMetricSink sink2 = new TestMetricSink();
+    dataStore.registerSink( "A", sink1, "S1" );
+    dataStore.registerSink( "B", sink2, "S2" );
+
+    final MetricValueSet metrics =
+      new MetricValueSet( Collections.singletonList( new MetricValue( "X", 1 ) ), System.currentTimeMillis() );
+    dataStore.queueRoute( metrics );
+
+    final long end = System.currentTimeMillis() + 2000;
+    while( ( sink1.getReceived().isEmpty() || sink2.getReceived().isEmpty() ) && System.currentTimeMillis() < end )
+    {
+      Thread.sleep( 5 );
+    }
+    assertEquals( sink1.getReceived(), Collections.singletonList( metrics ) );
+    assertEquals( sink2.getReceived(), Collections.singletonList( metrics ) );
+
+    dataStore.close();
+    executionEngine.close();
+  }
+
+  @Test
+  public void publisherRoutesWithoutScheduler()
+    throws Exception
+  {
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+
+    final TestMetricSink sink = new TestMetricSink();
+    dataStore.registerSink( "A", sink, "S1" );
+    final MetricSink[] published = new MetricSink[ 1 ];
+    dataStore.registerPublisher( "B", new MetricPublisher()
+    {
+      @Override
+      public void start( @Nonnull final MetricSink sink )
+      {
+        published[ 0 ] = sink;
+      }
+    } );
+    assertTrue( dataStore.isPublisherRegistered( "B" ) );
+    assertNotNull( published[ 0 ] );
+
+    final MetricValueSet metrics =
+      new MetricValueSet( Collections.singletonList( new MetricValue( "X", 1 ) ), System.currentTimeMillis() );
+    assertTrue( published[ 0 ].handleMetrics( metrics ) );
+    final long end = System.currentTimeMillis() + 2000;
+    while( sink.getReceived().isEmpty() && System.currentTimeMillis() < end )
+    {
+      Thread.sleep( 5 );
+    }
+    assertEquals( sink.getReceived(), Collections.singletonList( metrics ) );
+    assertEquals( dataStore.getPublishers().get( "B" ).getPublishedCount(), 1 );
+
+    // Metrics published after deregistration are dropped
+    final PublisherEntry entry = dataStore.getPublishers().get( "B" );
+    dataStore.deregisterPublisher( "B" );
+    assertFalse( dataStore.isPublisherRegistered( "B" ) );
+    assertFalse( published[ 0 ].handleMetrics( metrics ) );
+    assertEquals( entry.getDroppedCount(), 1 );
+
+    dataStore.close();
+    executionEngine.close();
+  }
+
+  @Test
+  public void replacementSinkThatCanNotSpillRemovesTheReplacedSink()
+    throws Exception
+  {
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+
+    final File directory = Files.createTempDirectory( "spill" ).toFile();
+    final ClosableSink sink1 = new ClosableSink();
+    dataStore.registerSink( "A",
+                            sink1,
+                            "S1",
+                            SinkEntry.DEFAULT_QUEUE_CAPACITY,
+                            StageDescriptor.RejectionPolicy.DROP_OLDEST,
+                            new SpillQueueDescriptor( directory ) );
+    assertTrue( dataStore.isSinkRegistered( "A" ) );
+
+    // A spill directory that is a file can not be opened
+    final File file = File.createTempFile( "spill", ".txt" );
+    final ClosableSink sink2 = new ClosableSink();
+    try
+    {
+      dataStore.registerSink( "A",
+                              sink2,
+                              "S1",
+                              SinkEntry.DEFAULT_QUEUE_CAPACITY,
+                              StageDescriptor.RejectionPolicy.DROP_OLDEST,
+                              new SpillQueueDescriptor( file ) );
+      fail( "Expected spill queue to fail to open" );
+    }
+    catch( final IOException ioe )
+    {
+      // Expected
+    }
+    assertFalse( dataStore.isSinkRegistered( "A" ) );
+    assertTrue( sink1.isClosed() );
+    assertTrue( sink2.isClosed() );
+
+    dataStore.close();
+    executionEngine.close();
+    assertTrue( file.delete() );
+  }
+
+  static final class ClosableSink
+    extends TestMetricSink
+    implements Closeable
+  {
+    private boolean _closed;
+
+    @Override
+    public synchronized void close()
+    {
+      _closed = true;
+    }
+
+    synchronized boolean isClosed()
+    {
+      return _closed;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package org.realityforge.spydle.runtime;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class SchedulerTest
+{
+  @Test
+  public void addTriggerWakesParkedScheduler()
+    throws Exception
+  {
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final Scheduler scheduler = new PriorityQueueScheduler( executionEngine );
+    final Thread thread = startScheduler( scheduler );
+    try
+    {
+      // Give the thread time to park with no entries present
+      Thread.sleep( 50 );
+
+      final CountDownLatch latch = new CountDownLatch( 1 );
+      scheduler.addTrigger( "A", "S", new TestTimeTrigger( System.currentTimeMillis() + 20 ), new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          latch.countDown();
+        }
+      } );
+
+      assertTrue( latch.await( 2, TimeUnit.SECONDS ) );
+    }
+    finally
+    {
+      thread.interrupt();
+      thread.join();
+      executionEngine.close();
+    }
+  }
+
+  @Test
+  public void entriesDroppedBySaturatedStageAreRescheduled()
+    throws Exception
+  {
+    for( final StageDescriptor.RejectionPolicy policy : StageDescriptor.RejectionPolicy.values() )
+    {
+      final ExecutionEngine executionEngine = new ExecutionEngine();
+      executionEngine.registerStage( "S", new StageDescriptor( "S", 1, 1, 1, 1000, policy ) );
+      final Scheduler scheduler = new PriorityQueueScheduler( executionEngine );
+      final CountDownLatch blocker = new CountDownLatch( 1 );
+      final Runnable block = new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            blocker.await();
+          }
+          catch( final InterruptedException ie )
+          {
+            //Ignored
+          }
+        }
+      };
+      // Occupy the only thread and the only queue slot
+      executionEngine.execute( "S", block );
+      executionEngine.execute( "S", block );
+
+      final CountDownLatch latch = new CountDownLatch( 3 );
+      scheduler.addTrigger( "A", "S", new PeriodicTimeTrigger( 10 ), new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          latch.countDown();
+        }
+      } );
+      final Thread thread = startScheduler( scheduler );
+      try
+      {
+        // Polls dispatched while the stage is saturated are dropped
+        Thread.sleep( 100 );
+        blocker.countDown();
+        assertTrue( latch.await( 2, TimeUnit.SECONDS ), "Policy " + policy );
+      }
+      finally
+      {
+        thread.interrupt();
+        thread.join();
+        executionEngine.close();
+      }
+    }
+  }
+
+  private Thread startScheduler( final Scheduler scheduler )
+  {
+    final Thread thread = new Thread( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          while( true )
+          {
+            scheduler.dispatchAndWait();
+          }
+        }
+        catch( final InterruptedException ie )
+        {
+          //Exit
+        }
+      }
+    } );
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,152 @@
+package org.realityforge.spydle.runtime;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.realityforge.spydle.MetricValue;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.TestMetricSink;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class SinkEntryTest
+{
+  @Test
+  public void dropOldest()
+  {
+    final TestMetricSink sink = new TestMetricSink();
+    final SinkEntry entry = new SinkEntry( "K", sink, "S", 2, StageDescriptor.RejectionPolicy.DROP_OLDEST );
+
+    final MetricValueSet metrics1 = newMetrics( 1 );
+    final MetricValueSet metrics2 = newMetrics( 2 );
+    final MetricValueSet metrics3 = newMetrics( 3 );
+
+    assertTrue( entry.offer( metrics1 ) );
+    assertTrue( entry.offer( metrics2 ) );
+    assertTrue( entry.offer( metrics3 ) );
+    assertEquals( entry.getQueueDepth(), 2 );
+    assertEquals( entry.getDroppedCount(), 1 );
+    assertEquals( sink.getReceived().size(), 0 );
+
+    entry.run();
+
+    assertEquals( sink.getReceived(), toList( metrics2, metrics3 ) );
+    assertEquals( entry.getQueueDepth(), 0 );
+    assertEquals( entry.getDeliveredCount(), 2 );
+  }
+
+  @Test
+  public void dropNewest()
+  {
+    final TestMetricSink sink = new TestMetricSink();
+    final SinkEntry entry = new SinkEntry( "K", sink, "S", 1, StageDescriptor.RejectionPolicy.DROP_NEWEST );
+
+    final MetricValueSet metrics1 = newMetrics( 1 );
+
+    assertTrue( entry.offer( metrics1 ) );
+    assertFalse( entry.offer( newMetrics( 2 ) ) );
+    assertEquals( entry.getDroppedCount(), 1 );
+
+    entry.run();
+
+    assertEquals( sink.getReceived(), toList( metrics1 ) );
+  }
+
+  @Test
+  public void callerRuns()
+  {
+    final TestMetricSink sink = new TestMetricSink();
+    final SinkEntry entry = new SinkEntry( "K", sink, "S", 1, StageDescriptor.RejectionPolicy.CALLER_RUNS );
+
+    final MetricValueSet metrics1 = newMetrics( 1 );
+    final MetricValueSet metrics2 = newMetrics( 2 );
+
+    assertTrue( entry.offer( metrics1 ) );
+    assertFalse( entry.offer( metrics2 ) );
+
+    assertEquals( sink.getReceived(), toList( metrics1, metrics2 ) );
+    assertEquals( entry.getDroppedCount(), 0 );
+  }
+
+  @Test
+  public void close()
+  {
+    final TestMetricSink sink = new TestMetricSink();
+    final SinkEntry entry = new SinkEntry( "K", sink, "S" );
+
+    assertTrue( entry.offer( newMetrics( 1 ) ) );
+    entry.close();
+    assertFalse( entry.offer( newMetrics( 2 ) ) );
+
+    entry.run();
+
+    assertEquals( sink.getReceived().size(), 0 );
+  }
+
+  @Test
+  public void spillAndReplay()
+    throws Exception
+  {
+    final File directory = Files.createTempDirectory( "spill" ).toFile();
+    final TestMetricSink sink = new TestMetricSink();
+    final SpillQueue spillQueue = new SpillQueue( directory, 4096, 8192, 60000 );
+    final SinkEntry entry =
+      new SinkEntry( "K", sink, "S", 1, StageDescriptor.RejectionPolicy.DROP_OLDEST, spillQueue, 2 );
+    try
+    {
+      sink.setAccept( false );
+      assertTrue( entry.offer( newMetrics( 1 ) ) );
+      // Overflows queue so oldest is spilled rather than dropped
+      assertTrue( entry.offer( newMetrics( 2 ) ) );
+      entry.run();
+      assertTrue( entry.offer( newMetrics( 3 ) ) );
+      entry.run();
+      assertEquals( entry.getSpillDepth(), 3 );
+      assertEquals( entry.getSpilledCount(), 3 );
+      assertEquals( entry.getDroppedCount(), 0 );
+
+      sink.setAccept( true );
+      assertTrue( entry.offer( newMetrics( 4 ) ) );
+      entry.run();
+
+      // Live metrics are delivered first followed by spilled metrics limited by the replay rate
+      assertEquals( toValues( sink.getReceived() ), Arrays.asList( 4L, 1L, 2L ) );
+      assertEquals( entry.getSpillDepth(), 1 );
+      assertEquals( entry.getReplayedCount(), 2 );
+    }
+    finally
+    {
+      entry.close();
+      for( final File file : directory.listFiles() )
+      {
+        assertTrue( file.delete() );
+      }
+      assertTrue( directory.delete() );
+    }
+  }
+
+  private static List<Long> toValues( final List<MetricValueSet> metrics )
+  {
+    final ArrayList<Long> values = new ArrayList<>();
+    for( final MetricValueSet metric : metrics )
+    {
+      values.add( metric.getLongValue( 0 ) );
+    }
+    return values;
+  }
+
+  private static List<MetricValueSet> toList( final MetricValueSet... metrics )
+  {
+    final ArrayList<MetricValueSet> list = new ArrayList<>();
+    Collections.addAll( list, metrics );
+    return list;
+  }
+
+  private static MetricValueSet newMetrics( final int value )
+  {
+    return new MetricValueSet( Collections.singletonList( new MetricValue( "X", value ) ), System.currentTimeMillis() );
+  }
+}
@@ -1,5 +1,12 @@
 package org.realityforge.spydle.runtime;
 
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.realityforge.spydle.Abortable;
+import org.realityforge.spydle.MetricSource;
+import org.realityforge.spydle.MetricValue;
+import org.realityforge.spydle.MetricValueSet;
 import org.realityforge.spydle.TestMetricSource;
 import org.testng.annotations.Test;
 import static org.testng.Assert.*;
@@ -15,7 +22,10 @@ public final class SourceEntryTest
     final long now = System.currentTimeMillis();
     final TestMetricSource source = new TestMetricSource();
     final int period = 100;
-    final SourceEntry entry1 = new SourceEntry( new MonitorDataStore( new Scheduler( new ExecutionEngine() ) ), source, period );
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+    final SourceEntry entry1 = new SourceEntry( dataStore, source, period );
 
     assertEquals( entry1.getSource(), source );
     assertEquals( entry1.getPeriod(), period );
@@ -42,4 +52,156 @@ public final class SourceEntryTest
     assertEquals( entry1.getLastFailTime(), fail2Time );
     assertEquals( entry1.getNextPollTime(), fail2Time + (period * 2) );
   }
+
+  @Test
+  public void overrunPolicies()
+  {
+    final long now = System.currentTimeMillis();
+    final int period = 100;
+
+    final SourceEntry align = newEntry( period, SourceEntry.OverrunPolicy.ALIGN );
+    align.poll( now, now, now + 10 );
+    assertEquals( align.getNextPollTime(), now + period );
+    assertEquals( align.getMissedCount(), 0 );
+
+    // Poll took 2.5 periods, so skip 2 polls and wait for boundary
+    align.poll( now, now, now + 250 );
+    assertEquals( align.getNextPollTime(), now + 300 );
+    assertEquals( align.getMissedCount(), 2 );
+
+    final SourceEntry skip = newEntry( period, SourceEntry.OverrunPolicy.SKIP );
+    skip.poll( now, now, now + 250 );
+    assertEquals( skip.getNextPollTime(), now + 350 );
+    assertEquals( skip.getMissedCount(), 2 );
+
+    final SourceEntry catchUp = newEntry( period, SourceEntry.OverrunPolicy.CATCH_UP );
+    long scheduledTime = now;
+    for( int i = 0; i < SourceEntry.MAX_CATCH_UP_POLLS; i++ )
+    {
+      catchUp.poll( scheduledTime, scheduledTime, now + 1000 );
+      scheduledTime += period;
+      assertEquals( catchUp.getNextPollTime(), scheduledTime );
+      assertEquals( catchUp.getMissedCount(), 0 );
+    }
+    // Too far behind so give up catching up
+    catchUp.poll( scheduledTime, scheduledTime, now + 1000 );
+    assertEquals( catchUp.getNextPollTime(), now + 1100 );
+    assertEquals( catchUp.getMissedCount(), 5 );
+  }
+
+  @Test
+  public void phaseAndJitter()
+  {
+    final int period = 1000;
+    final int phase = SourceEntry.computePhase( "conf.d/jmx.json", period );
+    assertEquals( SourceEntry.computePhase( "conf.d/jmx.json", period ), phase );
+    assertTrue( phase >= 0 && phase < period );
+    assertNotEquals( SourceEntry.computePhase( "conf.d/jmx2.json", period ), phase );
+
+    final long now = System.currentTimeMillis();
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+    final SourceEntry entry =
+      new SourceEntry( dataStore, new TestMetricSource(), period, SourceEntry.OverrunPolicy.ALIGN, phase, 100, 0 );
+
+    final long nextPollTime = entry.getNextPollTime();
+    assertEquals( ( nextPollTime - phase ) % period, 0 );
+    assertTrue( nextPollTime > now );
+    assertTrue( nextPollTime <= now + period + 100 );
+
+    final long timeAfter = entry.getTimeAfter( now );
+    assertTrue( timeAfter >= nextPollTime && timeAfter < nextPollTime + 100 );
+  }
+
+  @Test
+  public void pollTimeout()
+  {
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+    final MetricSource source = new MetricSource()
+    {
+      @Override
+      public MetricValueSet poll()
+      {
+        try
+        {
+          Thread.sleep( 5000 );
+        }
+        catch( final InterruptedException ie )
+        {
+          //Ignored
+        }
+        return new MetricValueSet( new ArrayList<MetricValue>(), System.currentTimeMillis() );
+      }
+    };
+    final SourceEntry entry = new SourceEntry( dataStore, source, 1000, SourceEntry.OverrunPolicy.ALIGN, 0, 0, 50 );
+
+    final long start = System.currentTimeMillis();
+    entry.run();
+
+    assertTrue( System.currentTimeMillis() - start < 5000 );
+    assertEquals( entry.getTimeoutCount(), 1 );
+    assertEquals( entry.getFailCount(), 1 );
+    assertFalse( Thread.currentThread().isInterrupted() );
+    executionEngine.close();
+  }
+
+  public static final class BlockingSource
+    implements MetricSource, Abortable
+  {
+    private final CountDownLatch _aborted = new CountDownLatch( 1 );
+
+    @Override
+    public MetricValueSet poll()
+    {
+      // Ignores interrupts as a thread blocked reading a socket does
+      final long start = System.currentTimeMillis();
+      while( _aborted.getCount() > 0 && System.currentTimeMillis() - start < 5000 )
+      {
+        try
+        {
+          _aborted.await( 5000, TimeUnit.MILLISECONDS );
+        }
+        catch( final InterruptedException ie )
+        {
+          //Ignored
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void abort()
+    {
+      _aborted.countDown();
+    }
+  }
+
+  @Test
+  public void pollTimeoutAbortsSource()
+  {
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+    final SourceEntry entry =
+      new SourceEntry( dataStore, new BlockingSource(), 1000, SourceEntry.OverrunPolicy.ALIGN, 0, 0, 50 );
+
+    final long start = System.currentTimeMillis();
+    entry.run();
+
+    assertTrue( System.currentTimeMillis() - start < 5000 );
+    assertEquals( entry.getTimeoutCount(), 1 );
+    assertEquals( entry.getFailCount(), 1 );
+    executionEngine.close();
+  }
+
+  private SourceEntry newEntry( final int period, final SourceEntry.OverrunPolicy overrunPolicy )
+  {
+    final ExecutionEngine executionEngine = new ExecutionEngine();
+    final MonitorDataStore dataStore =
+      new MonitorDataStore( executionEngine, new PriorityQueueScheduler( executionEngine ) );
+    return new SourceEntry( dataStore, new TestMetricSource(), period, overrunPolicy );
+  }
 }
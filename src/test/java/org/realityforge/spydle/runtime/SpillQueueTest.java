@@ -0,0 +1,154 @@
+package org.realityforge.spydle.runtime;
+
+import java.io.File;
+import java.nio.file.Files;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class SpillQueueTest
+{
+  private File _directory;
+
+  @BeforeMethod
+  public void setUp()
+    throws Exception
+  {
+    _directory = Files.createTempDirectory( "spill" ).toFile();
+  }
+
+  @AfterMethod
+  public void tearDown()
+  {
+    final File[] files = _directory.listFiles();
+    if( null != files )
+    {
+      for( final File file : files )
+      {
+        assertTrue( file.delete() );
+      }
+    }
+    assertTrue( _directory.delete() );
+  }
+
+  @Test
+  public void addPeekAndRemove()
+    throws Exception
+  {
+    final long now = System.currentTimeMillis();
+    final SpillQueue queue = new SpillQueue( _directory, 4096, 8192, 60000 );
+    assertNull( queue.peek() );
+    assertTrue( queue.add( new MetricValueSetBuilder().add( "a", 1L ).add( "b", 2.5D ).build( now ) ) );
+    assertTrue( queue.add( new MetricValueSetBuilder().add( "c", 3L ).build( now ) ) );
+    assertEquals( queue.size(), 2 );
+
+    final MetricValueSet metrics = queue.peek();
+    assertNotNull( metrics );
+    assertEquals( metrics.getCollectedAt(), now );
+    assertEquals( metrics.size(), 2 );
+    assertEquals( metrics.getName( 0 ), "a" );
+    assertEquals( metrics.getLongValue( 0 ), 1L );
+    assertEquals( metrics.getName( 1 ), "b" );
+    assertTrue( metrics.isDouble( 1 ) );
+    assertEquals( metrics.getDoubleValue( 1 ), 2.5D );
+    assertTrue( queue.remove( metrics ) );
+    // Already removed
+    assertFalse( queue.remove( metrics ) );
+
+    final MetricValueSet next = queue.peek();
+    assertEquals( next.getName( 0 ), "c" );
+    assertTrue( queue.remove( next ) );
+    assertNull( queue.peek() );
+    assertEquals( queue.size(), 0 );
+    queue.close();
+  }
+
+  @Test
+  public void survivesReopen()
+    throws Exception
+  {
+    final long now = System.currentTimeMillis();
+    final SpillQueue queue = new SpillQueue( _directory, 4096, 8192, 60000 );
+    for( int i = 0; i < 3; i++ )
+    {
+      assertTrue( queue.add( new MetricValueSetBuilder().add( "x", (long) i ).build( now ) ) );
+    }
+    assertTrue( queue.remove( queue.peek() ) );
+    queue.close();
+
+    final SpillQueue reopened = new SpillQueue( _directory, 4096, 8192, 60000 );
+    assertEquals( reopened.size(), 2 );
+    final MetricValueSet first = reopened.peek();
+    assertEquals( first.getLongValue( 0 ), 1L );
+    assertTrue( reopened.remove( first ) );
+    assertEquals( reopened.peek().getLongValue( 0 ), 2L );
+    reopened.close();
+  }
+
+  @Test
+  public void discardsOldestSegmentWhenFull()
+    throws Exception
+  {
+    final long now = System.currentTimeMillis();
+    final SpillQueue queue = new SpillQueue( _directory, 1024, 2048, 60000 );
+    for( int i = 0; i < 200; i++ )
+    {
+      assertTrue( queue.add( new MetricValueSetBuilder().add( "x", (long) i ).build( now ) ) );
+    }
+    assertTrue( queue.getDroppedCount() > 0 );
+    assertEquals( queue.size() + queue.getDroppedCount(), 200 );
+    final File[] files = _directory.listFiles();
+    assertNotNull( files );
+    assertTrue( files.length <= 2 );
+
+    // Remaining metrics are the newest and in order
+    long expected = queue.getDroppedCount();
+    MetricValueSet metrics;
+    while( null != ( metrics = queue.peek() ) )
+    {
+      assertEquals( metrics.getLongValue( 0 ), expected++ );
+      assertTrue( queue.remove( metrics ) );
+    }
+    assertEquals( expected, 200 );
+    queue.close();
+  }
+
+  @Test
+  public void removeIgnoresMetricsDiscardedAfterPeek()
+    throws Exception
+  {
+    final long now = System.currentTimeMillis();
+    final SpillQueue queue = new SpillQueue( _directory, 1024, 2048, 60000 );
+    assertTrue( queue.add( new MetricValueSetBuilder().add( "x", 0L ).build( now ) ) );
+    final MetricValueSet metrics = queue.peek();
+    assertNotNull( metrics );
+
+    // Adding metrics while the peeked metrics are delivered discards the oldest segment
+    int added = 1;
+    while( 0 == queue.getDroppedCount() )
+    {
+      assertTrue( queue.add( new MetricValueSetBuilder().add( "x", (long) added++ ).build( now ) ) );
+    }
+    final int size = queue.size();
+    assertFalse( queue.remove( metrics ) );
+    assertEquals( queue.size(), size );
+    assertEquals( queue.peek().getLongValue( 0 ), queue.getDroppedCount() );
+    queue.close();
+  }
+
+  @Test
+  public void discardsExpiredMetrics()
+    throws Exception
+  {
+    final long now = System.currentTimeMillis();
+    final SpillQueue queue = new SpillQueue( _directory, 4096, 8192, 1000 );
+    assertTrue( queue.add( new MetricValueSetBuilder().add( "x", 1L ).build( now - 5000 ) ) );
+    assertTrue( queue.add( new MetricValueSetBuilder().add( "x", 2L ).build( now ) ) );
+    assertEquals( queue.peek().getLongValue( 0 ), 2L );
+    assertEquals( queue.getDroppedCount(), 1 );
+    queue.close();
+  }
+}
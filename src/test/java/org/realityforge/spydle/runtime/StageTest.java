@@ -0,0 +1,128 @@
+package org.realityforge.spydle.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class StageTest
+{
+  @Test
+  public void dropNewest()
+    throws Exception
+  {
+    final List<String> executed = runBlockedStage( StageDescriptor.RejectionPolicy.DROP_NEWEST, "A", "B", "C" );
+    assertEquals( executed, Collections.singletonList( "A" ) );
+  }
+
+  @Test
+  public void dropOldest()
+    throws Exception
+  {
+    final List<String> executed = runBlockedStage( StageDescriptor.RejectionPolicy.DROP_OLDEST, "A", "B", "C" );
+    assertEquals( executed, Collections.singletonList( "C" ) );
+  }
+
+  @Test
+  public void coalesce()
+    throws Exception
+  {
+    final List<String> executed = runBlockedStage( StageDescriptor.RejectionPolicy.COALESCE, "A", "A", "B" );
+    assertEquals( executed, Collections.singletonList( "B" ) );
+  }
+
+  @Test
+  public void reusesPrebuiltTask()
+    throws Exception
+  {
+    final Stage stage = new Stage( new StageDescriptor( "S" ) );
+    final CountDownLatch executed = new CountDownLatch( 3 );
+    final Runnable task = Stage.newTask( "A", new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        executed.countDown();
+      }
+    } );
+    for( int i = 0; i < 3; i++ )
+    {
+      stage.execute( task );
+    }
+    assertTrue( executed.await( 2, TimeUnit.SECONDS ) );
+    stage.shutdown();
+  }
+
+  @Test( expectedExceptions = IllegalArgumentException.class )
+  public void rejectsTasksNotCreatedByStage()
+  {
+    final Stage stage = new Stage( new StageDescriptor( "S" ) );
+    try
+    {
+      stage.execute( new Runnable()
+      {
+        @Override
+        public void run()
+        {
+        }
+      } );
+    }
+    finally
+    {
+      stage.shutdown();
+    }
+  }
+
+  /**
+   * Submit actions to a stage with a single thread and a queue of one while the thread is blocked.
+   *
+   * @return the keys of the queued actions that were executed after thread was unblocked.
+   */
+  private List<String> runBlockedStage( final StageDescriptor.RejectionPolicy policy, final String... keys )
+    throws Exception
+  {
+    final Stage stage = new Stage( new StageDescriptor( "S", 1, 1, 1, 1000, policy ) );
+    final CountDownLatch blocker = new CountDownLatch( 1 );
+    final CountDownLatch started = new CountDownLatch( 1 );
+    stage.execute( null, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        started.countDown();
+        try
+        {
+          blocker.await();
+        }
+        catch( final InterruptedException ie )
+        {
+          //Ignored
+        }
+      }
+    } );
+    assertTrue( started.await( 2, TimeUnit.SECONDS ) );
+
+    final List<String> executed = Collections.synchronizedList( new ArrayList<String>() );
+    for( final String key : keys )
+    {
+      stage.execute( key, new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          executed.add( key );
+        }
+      } );
+    }
+    assertEquals( stage.getQueueDepth(), 1 );
+    assertEquals( stage.getRejectedCount(), keys.length - 1 );
+
+    blocker.countDown();
+    stage.shutdown();
+    assertTrue( stage.awaitTermination( 2, TimeUnit.SECONDS ) );
+    return executed;
+  }
+}
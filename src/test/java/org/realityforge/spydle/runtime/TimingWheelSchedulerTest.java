@@ -0,0 +1,65 @@
+package org.realityforge.spydle.runtime;
+
+import org.testng.annotations.Test;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class TimingWheelSchedulerTest
+{
+  @Test
+  public void expiry()
+  {
+    final long now = System.currentTimeMillis();
+    final TimingWheelScheduler scheduler = new TimingWheelScheduler( new ExecutionEngine(), now );
+
+    assertEquals( scheduler.getNextTime(), Long.MAX_VALUE );
+
+    scheduler.addTrigger( "A", "S", new TestTimeTrigger( now + 50 ), mock( Runnable.class ) );
+    scheduler.addTrigger( "B", "S", new TestTimeTrigger( now + 5000 ), mock( Runnable.class ) );
+    scheduler.addTrigger( "C", "S", new TestTimeTrigger( now + 10000000 ), mock( Runnable.class ) );
+    scheduler.addTrigger( "D", "S", new TestTimeTrigger( now - 10 ), mock( Runnable.class ) );
+
+    assertEquals( scheduler.pollExpired( now ).getName(), "D" );
+    assertNull( scheduler.pollExpired( now ) );
+    assertTrue( scheduler.getNextTime() < now + 50 + TimingWheelScheduler.TICK_DURATION );
+    assertTrue( scheduler.getNextTime() > now );
+
+    assertNull( scheduler.pollExpired( now + 40 ) );
+    assertEquals( scheduler.pollExpired( now + 60 ).getName(), "A" );
+    assertNull( scheduler.pollExpired( now + 60 ) );
+
+    final long nextTime = scheduler.getNextTime();
+    assertTrue( nextTime > now + 60 );
+    assertTrue( nextTime < now + 5000 + TimingWheelScheduler.TICK_DURATION );
+
+    assertNull( scheduler.pollExpired( now + 4900 ) );
+    assertEquals( scheduler.pollExpired( now + 5010 ).getName(), "B" );
+
+    assertNull( scheduler.pollExpired( now + 9999000 ) );
+    assertEquals( scheduler.pollExpired( now + 10000010 ).getName(), "C" );
+    assertNull( scheduler.pollExpired( now + 10000010 ) );
+    assertEquals( scheduler.getNextTime(), Long.MAX_VALUE );
+  }
+
+  @Test
+  public void removeTrigger()
+  {
+    final long now = System.currentTimeMillis();
+    final TimingWheelScheduler scheduler = new TimingWheelScheduler( new ExecutionEngine(), now );
+
+    scheduler.addTrigger( "A", "S", new TestTimeTrigger( now + 100 ), mock( Runnable.class ) );
+    scheduler.addTrigger( "B", "S", new TestTimeTrigger( now + 100 ), mock( Runnable.class ) );
+    scheduler.addTrigger( "C", "S", new TestTimeTrigger( now + 100 ), mock( Runnable.class ) );
+
+    scheduler.removeTrigger( "B" );
+    scheduler.removeTrigger( "X" );
+
+    final TimeEntry entry1 = scheduler.pollExpired( now + 200 );
+    final TimeEntry entry2 = scheduler.pollExpired( now + 200 );
+    assertNotNull( entry1 );
+    assertNotNull( entry2 );
+    assertNotEquals( entry1.getName(), "B" );
+    assertNotEquals( entry2.getName(), "B" );
+    assertNull( scheduler.pollExpired( now + 200 ) );
+  }
+}
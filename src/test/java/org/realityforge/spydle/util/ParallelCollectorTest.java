@@ -0,0 +1,188 @@
+package org.realityforge.spydle.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import org.realityforge.spydle.MetricValueSet;
+import org.realityforge.spydle.MetricValueSetBuilder;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public final class ParallelCollectorTest
+{
+  @Test
+  public void collectsProbesConcurrently()
+    throws Exception
+  {
+    // Every probe waits for the others so the collection only completes if they run at the same time
+    final CyclicBarrier barrier = new CyclicBarrier( 3 );
+    final MetricValueSetBuilder builder = new MetricValueSetBuilder();
+    final int failures =
+      new ParallelCollector( 3 ).collect( Arrays.asList( "a", "b", "c" ), new ParallelCollector.Collector<String>()
+      {
+        @Override
+        public void collect( @Nonnull final MetricValueSetBuilder metrics, @Nonnull final String probe )
+          throws Exception
+        {
+          barrier.await( 5, TimeUnit.SECONDS );
+          metrics.add( probe, 1L );
+        }
+
+        @Override
+        public void onFailure( @Nonnull final String probe, @Nonnull final Exception e )
+        {
+        }
+      }, builder );
+    assertEquals( failures, 0 );
+    final MetricValueSet metrics = builder.build( 0 );
+    assertEquals( metrics.size(), 3 );
+    // Results are merged in probe order
+    assertEquals( metrics.getName( 0 ), "a" );
+    assertEquals( metrics.getName( 1 ), "b" );
+    assertEquals( metrics.getName( 2 ), "c" );
+  }
+
+  @Test
+  public void isolatesFailedProbes()
+    throws Exception
+  {
+    final List<String> failed = Collections.synchronizedList( new ArrayList<String>() );
+    final MetricValueSetBuilder builder = new MetricValueSetBuilder();
+    final int failures =
+      new ParallelCollector( 2 ).collect( Arrays.asList( "a", "bad", "c", "d" ), new ParallelCollector.Collector<String>()
+      {
+        @Override
+        public void collect( @Nonnull final MetricValueSetBuilder metrics, @Nonnull final String probe )
+          throws Exception
+        {
+          metrics.add( probe + ".partial", 1L );
+          if( "bad".equals( probe ) )
+          {
+            throw new IllegalStateException();
+          }
+          metrics.add( probe, 2L );
+        }
+
+        @Override
+        public void onFailure( @Nonnull final String probe, @Nonnull final Exception e )
+        {
+          failed.add( probe );
+        }
+      }, builder );
+    assertEquals( failures, 1 );
+    assertEquals( failed, Collections.singletonList( "bad" ) );
+    // Partial results of the failed probe are discarded
+    final MetricValueSet metrics = builder.build( 0 );
+    assertEquals( metrics.size(), 6 );
+    assertEquals( metrics.getName( 0 ), "a.partial" );
+    assertEquals( metrics.getName( 2 ), "c.partial" );
+    assertEquals( metrics.getName( 5 ), "d" );
+  }
+
+  @Test
+  public void abandonedProbesLimitLaterCollections()
+    throws Exception
+  {
+    final ParallelCollector parallelCollector = new ParallelCollector( 2 );
+    final CountDownLatch started = new CountDownLatch( 2 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final int[] failures = new int[ 1 ];
+    final Thread caller = new Thread( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        failures[ 0 ] =
+          parallelCollector.collect( Arrays.asList( "a", "b" ), new ParallelCollector.Collector<String>()
+          {
+            @Override
+            public void collect( @Nonnull final MetricValueSetBuilder metrics, @Nonnull final String probe )
+              throws Exception
+            {
+              started.countDown();
+              while( true )
+              {
+                try
+                {
+                  release.await();
+                  return;
+                }
+                catch( final InterruptedException ie )
+                {
+                  // Only the calling thread responds to interrupts, the borrowed thread behaves like a socket read
+                  if( "Caller".equals( Thread.currentThread().getName() ) )
+                  {
+                    Thread.currentThread().interrupt();
+                    throw ie;
+                  }
+                }
+              }
+            }
+
+            @Override
+            public void onFailure( @Nonnull final String probe, @Nonnull final Exception e )
+            {
+            }
+          }, new MetricValueSetBuilder() );
+      }
+    }, "Caller" );
+    caller.start();
+    assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+    caller.interrupt();
+    caller.join( 5000 );
+    assertFalse( caller.isAlive() );
+    assertEquals( failures[ 0 ], 2 );
+
+    // The abandoned probe still occupies the borrowed thread so the caller collects every probe
+    assertEquals( collectThreadNames( parallelCollector ), Arrays.asList( Thread.currentThread().getName(),
+                                                                          Thread.currentThread().getName() ) );
+
+    // Once the abandoned probe completes its permit is released and probes are collected in parallel again
+    release.countDown();
+    final long end = System.currentTimeMillis() + 5000;
+    List<String> threadNames = collectThreadNames( parallelCollector );
+    while( threadNames.get( 0 ).equals( threadNames.get( 1 ) ) && System.currentTimeMillis() < end )
+    {
+      threadNames = collectThreadNames( parallelCollector );
+    }
+    assertNotEquals( threadNames.get( 0 ), threadNames.get( 1 ) );
+  }
+
+  /**
+   * Collect two probes that each wait briefly for the other.
+   *
+   * @return the name of the thread that collected each probe.
+   */
+  private List<String> collectThreadNames( final ParallelCollector parallelCollector )
+  {
+    final CyclicBarrier barrier = new CyclicBarrier( 2 );
+    final String[] threadNames = new String[ 2 ];
+    parallelCollector.collect( Arrays.asList( 0, 1 ), new ParallelCollector.Collector<Integer>()
+    {
+      @Override
+      public void collect( @Nonnull final MetricValueSetBuilder metrics, @Nonnull final Integer probe )
+      {
+        threadNames[ probe ] = Thread.currentThread().getName();
+        try
+        {
+          barrier.await( 100, TimeUnit.MILLISECONDS );
+        }
+        catch( final Exception e )
+        {
+          // Probes collected sequentially can not meet at the barrier
+        }
+      }
+
+      @Override
+      public void onFailure( @Nonnull final Integer probe, @Nonnull final Exception e )
+      {
+      }
+    }, new MetricValueSetBuilder() );
+    return Arrays.asList( threadNames );
+  }
+}